@@ -3,9 +3,7 @@ package fr.epita.sp18;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 
 /**
  * Starting point of IAM-Project application.
@@ -28,12 +26,6 @@ import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 public class Application
 {
 
-    @Bean
-    public BCryptPasswordEncoder bCryptPasswordEncoder()
-    {
-        return new BCryptPasswordEncoder();
-    }
-
     public static void main(String[] args)
     {
         SpringApplication.run(Application.class, args);
@@ -15,6 +15,19 @@ public class Constants
     public static final String TOKEN_PREFIX    = "Bearer ";
     public static final String HEADER_STRING   = "Authorization";
 
+    /**
+     * Token claims of the permission bitset and of its dictionary version, see
+     * PermissionService
+     */
+    public static final String PERMISSIONS_CLAIM        = "perm";
+    public static final String PERMISSIONS_VERSION_CLAIM = "pv";
+
+    /**
+     * Token claim of the identity uid: the subject is the email, that an
+     * identity may change, the tokens are revoked by uid
+     */
+    public static final String UID_CLAIM = "uid";
+
     /**
      * Allow h2 console can be accessed under debug mode
      */
@@ -0,0 +1,34 @@
+package fr.epita.sp18.authentication;
+
+import static java.util.Collections.emptyList;
+
+import org.springframework.security.core.userdetails.User;
+
+import fr.epita.sp18.entity.Identity;
+
+/**
+ * The user of an identity, with its primary key, so that the token issued at
+ * login can name the identity by its uid. The email of an identity changes, its
+ * uid does not
+ *
+ */
+public class IdentityUser extends User
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Long uid;
+
+    public IdentityUser(Identity identity)
+    {
+        super(identity.getEmail(), identity.getPasswordHash(), emptyList());
+        this.uid = identity.getUid();
+    }
+
+    /**
+     * @return the primary key of the identity
+     */
+    public Long getUid()
+    {
+        return uid;
+    }
+}
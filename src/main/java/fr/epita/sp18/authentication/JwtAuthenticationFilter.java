@@ -1,7 +1,6 @@
 package fr.epita.sp18.authentication;
 
 import java.io.IOException;
-import java.util.ArrayList;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -13,20 +12,34 @@ import org.springframework.security.authentication.UsernamePasswordAuthenticatio
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
 
-import io.jsonwebtoken.Jwts;
+import fr.epita.sp18.service.PermissionService;
+import fr.epita.sp18.service.PermissionSet;
+import fr.epita.sp18.service.TokenRevocationService;
 
 /**
  * Check http header for token string
  * <p>
- * Call login to authenticate the header if not find the token
+ * Call login to authenticate the header if not find the token. The token is
+ * verified through TokenCache, then rejected when it is revoked, by its id or
+ * by the uid of its identity (the email for a token without uid). The
+ * authorities are the permissions of the token, read without a query. The
+ * PermissionSet is set as the authentication details
  *
  */
 public class JwtAuthenticationFilter extends BasicAuthenticationFilter
 {
 
-    public JwtAuthenticationFilter(AuthenticationManager authManager)
+    private TokenCache             tokenCache;
+    private TokenRevocationService revocations;
+    private PermissionService      permissions;
+
+    public JwtAuthenticationFilter(AuthenticationManager authManager, TokenCache tokenCache,
+            TokenRevocationService revocations, PermissionService permissions)
     {
         super(authManager);
+        this.tokenCache = tokenCache;
+        this.revocations = revocations;
+        this.permissions = permissions;
     }
 
     @Override
@@ -52,13 +65,25 @@ public class JwtAuthenticationFilter extends BasicAuthenticationFilter
         String token = request.getHeader(Constants.HEADER_STRING);
         if (token != null) {
             // parse the token.
-            String user = Jwts.parser()
-                    .setSigningKey(Constants.SECRET)
-                    .parseClaimsJws(token.replace(Constants.TOKEN_PREFIX, ""))
-                    .getBody()
-                    .getSubject();
+            String jws = token.replace(Constants.TOKEN_PREFIX, "");
+            TokenCache.Token verified = tokenCache.verify(jws);
+            String user = verified.getSubject();
+            String subject = verified.getUid() != null ? verified.getUid().toString() : user;
+
+            if (user != null && revocations.isRevoked(verified.getId(), subject, verified.getIssuedAt())) {
+                tokenCache.invalidate(jws);
+                return null;
+            }
+
+            if (user != null) {
+                PermissionSet granted = permissions.decode(verified.getPermissions(),
+                        verified.getPermissionsVersion());
+                UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(user,
+                        null, granted.getAuthorities());
 
-            if (user != null) return new UsernamePasswordAuthenticationToken(user, null, new ArrayList<>());
+                authentication.setDetails(granted);
+                return authentication;
+            }
 
             return null;
         }
@@ -0,0 +1,58 @@
+package fr.epita.sp18.authentication;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
+
+import fr.epita.sp18.exception.IamDataAccessException;
+import fr.epita.sp18.service.TokenRevocationService;
+import io.jsonwebtoken.JwtException;
+
+/**
+ * Revoke the token of the http header on logout. A missing or invalid token is
+ * ignored, the answer is 500 when the revocation can not be stored
+ *
+ */
+public class JwtLogoutHandler implements LogoutHandler
+{
+    private static final Log logger = LogFactory.getLog(JwtLogoutHandler.class);
+
+    private TokenCache             tokenCache;
+    private TokenRevocationService revocations;
+
+    public JwtLogoutHandler(TokenCache tokenCache, TokenRevocationService revocations)
+    {
+        this.tokenCache = tokenCache;
+        this.revocations = revocations;
+    }
+
+    @Override
+    public void logout(HttpServletRequest req, HttpServletResponse res, Authentication authentication)
+    {
+        String header = req.getHeader(Constants.HEADER_STRING);
+        if ((header == null) || !header.startsWith(Constants.TOKEN_PREFIX)) return;
+
+        String jws = header.replace(Constants.TOKEN_PREFIX, "");
+
+        try {
+            TokenCache.Token token = tokenCache.verify(jws);
+
+            // Tokens issued before the revocations have no id
+            if (token.getId() != null) {
+                revocations.revokeToken(token.getId(), token.getExpiresAt());
+                tokenCache.invalidate(jws);
+            }
+        }
+        catch (final JwtException ex) {
+            // Nothing to revoke
+        }
+        catch (final IamDataAccessException ex) {
+            logger.error("Token revocation error", ex);
+            res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+}
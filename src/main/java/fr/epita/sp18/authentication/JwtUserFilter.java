@@ -3,37 +3,136 @@ package fr.epita.sp18.authentication;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.http.HttpStatus;
 import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.InternalAuthenticationServiceException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
-import org.springframework.security.core.userdetails.User;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import fr.epita.sp18.exception.IamDataAccessException;
 import fr.epita.sp18.model.LoginRequest;
+import fr.epita.sp18.service.PermissionService;
+import fr.epita.sp18.service.PermissionSet;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 
 /**
  * Attempt to authenticate the user and generate new token if successful
+ * <p>
+ * The credentials are verified on a LoginExecutor thread while the request is
+ * in asynchronous mode, so that the servlet thread is free during the password
+ * hashing. The login is answered 503 with a Retry-After header when the
+ * LoginExecutor queue is full or the verification did not start in time, and
+ * 429 with a Retry-After header when LoginRateLimiter throttles the client or
+ * the account. The token carries the permissions of the identity, see
+ * PermissionService
  *
  */
 public class JwtUserFilter extends UsernamePasswordAuthenticationFilter
 {
 
     private AuthenticationManager authenticationManager;
+    private LoginExecutor         executor;
+    private LoginRateLimiter      rateLimiter;
+    private PermissionService     permissions;
 
-    public JwtUserFilter(AuthenticationManager authenticationManager)
+    public JwtUserFilter(AuthenticationManager authenticationManager, LoginExecutor executor,
+            LoginRateLimiter rateLimiter, PermissionService permissions)
     {
         this.authenticationManager = authenticationManager;
+        this.executor = executor;
+        this.rateLimiter = rateLimiter;
+        this.permissions = permissions;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException
+    {
+        final HttpServletRequest req = (HttpServletRequest) request;
+        final HttpServletResponse res = (HttpServletResponse) response;
+
+        if (!requiresAuthentication(req, res)) {
+            super.doFilter(request, response, chain);
+            return;
+        }
+
+        final Authentication credentials = readCredentials(req);
+
+        // Throttled before any password hashing or query
+        final long retryAfter = rateLimiter.tryAcquire(req.getRemoteAddr(), credentials.getName());
+
+        if (retryAfter > 0) {
+            res.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            res.setHeader("Retry-After", Long.toString(retryAfter));
+            return;
+        }
+
+        if (!req.isAsyncSupported()) {
+            verify(req, res, chain, credentials, null, new AtomicBoolean());
+            return;
+        }
+
+        final AsyncContext async = req.startAsync(req, res);
+
+        // Set by the first of the verification and the timeout, that answers
+        final AtomicBoolean answered = new AtomicBoolean();
+
+        async.setTimeout(executor.getTimeoutMillis());
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException
+            {
+                if (answered.compareAndSet(false, true)) {
+                    reject(res);
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException
+            {
+                answered.set(true);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException
+            {
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException
+            {
+            }
+        });
+
+        try {
+            executor.submit(() -> verify(req, res, chain, credentials, async, answered), answered::get);
+        }
+        catch (final RejectedExecutionException ex) {
+            if (answered.compareAndSet(false, true)) {
+                reject(res);
+                async.complete();
+            }
+        }
     }
 
     @Override
@@ -41,21 +140,65 @@ public class JwtUserFilter extends UsernamePasswordAuthenticationFilter
             HttpServletResponse res) throws AuthenticationException
     {
         try {
-
-            LoginRequest login = new ObjectMapper()
-                    .readValue(req.getInputStream(), LoginRequest.class);
-
-            return authenticationManager.authenticate(
-                    new UsernamePasswordAuthenticationToken(
-                            login.getEmail(),
-                            login.getPassword(),
-                            new ArrayList<>()));
+            return authenticationManager.authenticate(readCredentials(req));
         }
         catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    // Runs on a LoginExecutor thread, or on the servlet thread when async is null
+    private void verify(HttpServletRequest req, HttpServletResponse res, FilterChain chain,
+            Authentication credentials, AsyncContext async, AtomicBoolean answered)
+    {
+        Authentication auth = null;
+        AuthenticationException failed = null;
+
+        try {
+            auth = authenticationManager.authenticate(credentials);
+        }
+        catch (final AuthenticationException ex) {
+            failed = ex;
+        }
+        catch (final RuntimeException ex) {
+            failed = new InternalAuthenticationServiceException(ex.getMessage(), ex);
+        }
+
+        if (!answered.compareAndSet(false, true)) return;
+
+        try {
+            if (failed == null) {
+                successfulAuthentication(req, res, chain, auth);
+            }
+            else {
+                unsuccessfulAuthentication(req, res, failed);
+            }
+        }
+        catch (final IOException | ServletException ex) {
+            logger.error("Login response error", ex);
+        }
+        finally {
+            if (async != null) async.complete();
+        }
+    }
+
+    private void reject(HttpServletResponse res)
+    {
+        res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        res.setHeader("Retry-After", Integer.toString(executor.getRetryAfterSeconds()));
+    }
+
+    private Authentication readCredentials(HttpServletRequest req) throws IOException
+    {
+        LoginRequest login = new ObjectMapper()
+                .readValue(req.getInputStream(), LoginRequest.class);
+
+        return new UsernamePasswordAuthenticationToken(
+                login.getEmail(),
+                login.getPassword(),
+                new ArrayList<>());
+    }
+
     @Override
     protected void successfulAuthentication(
             HttpServletRequest req,
@@ -63,9 +206,29 @@ public class JwtUserFilter extends UsernamePasswordAuthenticationFilter
             FilterChain chain,
             Authentication auth) throws IOException, ServletException
     {
+        final long now = System.currentTimeMillis();
+        final IdentityUser user = (IdentityUser) auth.getPrincipal();
+        final String email = user.getUsername();
+        final PermissionSet granted;
+
+        try {
+            granted = permissions.compile(user.getUid());
+        }
+        catch (final IamDataAccessException ex) {
+            logger.error("Login permissions error", ex);
+            res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        // The id and the issue time let the token be revoked, see TokenRevocationService
         String token = Jwts.builder()
-                .setSubject(((User) auth.getPrincipal()).getUsername())
-                .setExpiration(new Date(System.currentTimeMillis() + Constants.EXPIRATION_TIME))
+                .setId(UUID.randomUUID().toString())
+                .setSubject(email)
+                .setIssuedAt(new Date(now))
+                .setExpiration(new Date(now + Constants.EXPIRATION_TIME))
+                .claim(Constants.UID_CLAIM, user.getUid())
+                .claim(Constants.PERMISSIONS_CLAIM, granted.encode())
+                .claim(Constants.PERMISSIONS_VERSION_CLAIM, granted.getVersion())
                 .signWith(SignatureAlgorithm.HS512, Constants.SECRET)
                 .compact();
 
@@ -0,0 +1,119 @@
+package fr.epita.sp18.authentication;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Bounded pool of the threads that verify the login credentials, so that a
+ * login burst does not hold the servlet threads during the password hashing.
+ * The pool has iam.login.threads threads (0 for one per core) and a queue of
+ * iam.login.queue-size logins. A login that does not fit in the queue is
+ * rejected at once and JwtUserFilter answers 503 with a Retry-After header.
+ * <p>
+ * Metrics: iam.login.queue.wait (time spent in the queue), iam.login.verify
+ * (time spent verifying), iam.login.rejected and iam.login.queue.size
+ *
+ */
+@Component
+public class LoginExecutor
+{
+    private final ThreadPoolExecutor executor;
+    private final Timer              queueWait;
+    private final Timer              verify;
+    private final Counter            rejected;
+    private final int                retryAfterSeconds;
+    private final long               timeoutMillis;
+
+    public LoginExecutor(MeterRegistry registry,
+            @Value("${iam.login.threads:0}") int threads,
+            @Value("${iam.login.queue-size:64}") int queueSize,
+            @Value("${iam.login.retry-after-seconds:1}") int retryAfterSeconds,
+            @Value("${iam.login.timeout-ms:10000}") long timeoutMillis)
+    {
+        final int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        final AtomicInteger count = new AtomicInteger();
+
+        this.executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(queueSize, 1)),
+                task -> {
+                    Thread thread = new Thread(task, "login-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.timeoutMillis = timeoutMillis;
+
+        queueWait = Timer.builder("iam.login.queue.wait")
+                .description("Time a login waits for a verification thread")
+                .register(registry);
+        verify = Timer.builder("iam.login.verify")
+                .description("Time spent verifying the login credentials")
+                .register(registry);
+        rejected = Counter.builder("iam.login.rejected")
+                .description("Logins rejected because the verification queue is full")
+                .register(registry);
+        Gauge.builder("iam.login.queue.size", executor, x -> x.getQueue().size())
+                .register(registry);
+    }
+
+    /**
+     * Queue a verification
+     *
+     * @param verification
+     *            Verifies the credentials, on a pool thread. Not called when the
+     *            login was abandoned while it was queued
+     * @param abandoned
+     *            Tells whether the login was abandoned, e.g. on a timeout
+     * @throws RejectedExecutionException
+     *             when the queue is full
+     */
+    public void submit(Runnable verification, Supplier<Boolean> abandoned)
+    {
+        final long queued = System.nanoTime();
+
+        try {
+            executor.execute(() -> {
+                queueWait.record(System.nanoTime() - queued, TimeUnit.NANOSECONDS);
+
+                if (!abandoned.get()) {
+                    verify.record(verification);
+                }
+            });
+        }
+        catch (final RejectedExecutionException ex) {
+            rejected.increment();
+            throw ex;
+        }
+    }
+
+    public int getRetryAfterSeconds()
+    {
+        return retryAfterSeconds;
+    }
+
+    public long getTimeoutMillis()
+    {
+        return timeoutMillis;
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,118 @@
+package fr.epita.sp18.authentication;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Token bucket rate limits of /login, one bucket per client address and one per
+ * target email, so that neither a client nor an account can trigger more than
+ * "burst" password verifications at once and "per-minute" in the long run.
+ * <p>
+ * A bucket is a single AtomicLong, the time at which it will be full again
+ * (generic cell rate algorithm), updated with compare-and-set. The buckets are
+ * kept in Caffeine caches, bounded by iam.login.rate.maximum-keys. A bucket
+ * expires when it has not been used for the time it takes to refill, since it
+ * is full again then.
+ * <p>
+ * Metrics: iam.login.rate.rejected and iam.login.rate.buckets, tagged with the
+ * limit, "client" or "account"
+ *
+ */
+@Component
+public class LoginRateLimiter
+{
+    private final Limit clients;
+    private final Limit accounts;
+
+    public LoginRateLimiter(MeterRegistry registry,
+            @Value("${iam.login.rate.client.burst:20}") int clientBurst,
+            @Value("${iam.login.rate.client.per-minute:20}") double clientPerMinute,
+            @Value("${iam.login.rate.account.burst:5}") int accountBurst,
+            @Value("${iam.login.rate.account.per-minute:5}") double accountPerMinute,
+            @Value("${iam.login.rate.maximum-keys:100000}") long maximumKeys)
+    {
+        clients = new Limit(registry, "client", clientBurst, clientPerMinute, maximumKeys);
+        accounts = new Limit(registry, "account", accountBurst, accountPerMinute, maximumKeys);
+    }
+
+    /**
+     * Take a token from the bucket of the client and from the bucket of the
+     * account. A login throttled for its account still uses a token of its client
+     *
+     * @param client
+     *            Address of the client
+     * @param email
+     *            Email the client logs in with
+     * @return 0 when the login may proceed, otherwise the number of seconds to
+     *         wait before retrying
+     */
+    public long tryAcquire(String client, String email)
+    {
+        long wait = clients.tryAcquire(client);
+
+        if (wait == 0 && email != null) {
+            wait = accounts.tryAcquire(email.toUpperCase(Locale.ROOT));
+        }
+
+        return wait == 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + 999_999_999));
+    }
+
+    private static class Limit
+    {
+        private final long                      interval;
+        private final long                      tolerance;
+        private final Cache<String, AtomicLong> buckets;
+        private final Counter                   rejected;
+
+        // perMinute <= 0 disables the limit
+        private Limit(MeterRegistry registry, String name, int burst, double perMinute, long maximumKeys)
+        {
+            interval = perMinute > 0 ? (long) (TimeUnit.MINUTES.toNanos(1) / perMinute) : 0;
+            tolerance = interval * (Math.max(1, burst) - 1);
+            buckets = Caffeine.newBuilder()
+                    .maximumSize(maximumKeys)
+                    .expireAfterAccess(Math.max(1, tolerance + interval), TimeUnit.NANOSECONDS)
+                    .build();
+            rejected = Counter.builder("iam.login.rate.rejected")
+                    .description("Logins rejected by the rate limit")
+                    .tag("limit", name)
+                    .register(registry);
+            Gauge.builder("iam.login.rate.buckets", buckets, Cache::estimatedSize)
+                    .tag("limit", name)
+                    .register(registry);
+        }
+
+        // Returns 0 when a token was taken, otherwise the nanoseconds until there
+        // is one
+        private long tryAcquire(String key)
+        {
+            if (interval == 0 || key == null || key.isEmpty()) return 0;
+
+            final long now = System.nanoTime();
+            final AtomicLong full = buckets.get(key, k -> new AtomicLong(now));
+
+            for (;;) {
+                final long current = full.get();
+                final long start = current - now > 0 ? current : now;
+
+                if (start - now > tolerance) {
+                    rejected.increment();
+                    return start - now - tolerance;
+                }
+
+                if (full.compareAndSet(current, start + interval)) return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package fr.epita.sp18.authentication;
+
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+
+import fr.epita.sp18.service.IdentityService;
+import fr.epita.sp18.service.PasswordService;
+
+/**
+ * Verify the user's password with PasswordService, then replace a stored hash
+ * that uses an outdated algorithm or cost while the raw password is still known
+ *
+ */
+public class RehashingAuthenticationProvider extends DaoAuthenticationProvider
+{
+    private PasswordService passwordService;
+    private IdentityService identityService;
+
+    public RehashingAuthenticationProvider(UserDetailsService userDetailsService, PasswordService passwordService,
+            IdentityService identityService)
+    {
+        this.passwordService = passwordService;
+        this.identityService = identityService;
+
+        setUserDetailsService(userDetailsService);
+        setPasswordEncoder(passwordService);
+    }
+
+    @Override
+    protected Authentication createSuccessAuthentication(Object principal, Authentication authentication,
+            UserDetails user)
+    {
+        // The credentials are erased after this call
+        if (authentication.getCredentials() != null && passwordService.needsRehash(user.getPassword())) {
+            identityService.rehashPassword(user.getUsername(), authentication.getCredentials().toString());
+        }
+
+        return super.createSuccessAuthentication(principal, authentication, user);
+    }
+}
@@ -0,0 +1,229 @@
+package fr.epita.sp18.authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Bounded cache of the verified tokens, so that the signature of a token is
+ * checked once and not on every request. The key is the SHA-256 digest of the
+ * token and the value is its claims. An entry expires with the token ("exp"),
+ * and only tokens with a valid signature and an expiration are cached. A
+ * revoked token is still verified: JwtAuthenticationFilter checks the
+ * revocations after TokenCache
+ * <p>
+ * Hit, miss and eviction counters are published as the "tokens" cache metrics
+ *
+ */
+@Component
+public class TokenCache
+{
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    private final Cache<String, Token> cache;
+
+    public TokenCache(MeterRegistry registry,
+            @Value("${iam.cache.token.maximum-size:10000}") long maximumSize)
+    {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new Expiry<String, Token>() {
+                    @Override
+                    public long expireAfterCreate(String key, Token value, long currentTime)
+                    {
+                        return TimeUnit.MILLISECONDS.toNanos(
+                                Math.max(0, value.expiresAt - System.currentTimeMillis()));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Token value, long currentTime,
+                            long currentDuration)
+                    {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Token value, long currentTime,
+                            long currentDuration)
+                    {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(registry, cache, "tokens");
+    }
+
+    /**
+     * Get the claims of a token, verifying the token when it is not cached
+     *
+     * @param jws
+     *            Signed token, without the "Bearer " prefix
+     * @return the claims of the token
+     * @throws JwtException
+     *             when the token is malformed, badly signed or expired
+     */
+    public Token verify(String jws)
+    {
+        final String key = digest(jws);
+        final Token cached = cache.getIfPresent(key);
+
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            return cached;
+        }
+
+        // JwtParser is not thread safe: one per verification
+        final Claims claims = Jwts.parser()
+                .setSigningKey(Constants.SECRET)
+                .parseClaimsJws(jws)
+                .getBody();
+
+        final Date expiration = claims.getExpiration();
+        final Date issuedAt = claims.getIssuedAt();
+        final Token token = new Token(claims.getSubject(), claims.getId(),
+                issuedAt == null ? 0 : issuedAt.getTime(),
+                expiration == null ? Long.MAX_VALUE : expiration.getTime(),
+                claims.get(Constants.UID_CLAIM, Long.class),
+                claims.get(Constants.PERMISSIONS_CLAIM, String.class),
+                claims.get(Constants.PERMISSIONS_VERSION_CLAIM, Integer.class));
+
+        if (claims.getSubject() != null && expiration != null) {
+            cache.put(key, token);
+        }
+
+        return token;
+    }
+
+    /**
+     * Forget a token, e.g. when it is revoked
+     *
+     * @param jws
+     *            Signed token, without the "Bearer " prefix
+     */
+    public void invalidate(String jws)
+    {
+        if (jws != null) {
+            cache.invalidate(digest(jws));
+        }
+    }
+
+    /**
+     * Forget all tokens
+     */
+    public void invalidateAll()
+    {
+        cache.invalidateAll();
+    }
+
+    private static String digest(String jws)
+    {
+        return Base64.getEncoder().encodeToString(SHA256.get().digest(jws.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * The claims of a verified token
+     */
+    public static class Token
+    {
+        private final String  subject;
+        private final String  id;
+        private final long    issuedAt;
+        private final long    expiresAt;
+        private final Long    uid;
+        private final String  permissions;
+        private final Integer permissionsVersion;
+
+        private Token(String subject, String id, long issuedAt, long expiresAt, Long uid, String permissions,
+                Integer permissionsVersion)
+        {
+            this.subject = subject;
+            this.id = id;
+            this.issuedAt = issuedAt;
+            this.expiresAt = expiresAt;
+            this.uid = uid;
+            this.permissions = permissions;
+            this.permissionsVersion = permissionsVersion;
+        }
+
+        /**
+         * @return the subject ("sub"), null when the token has none
+         */
+        public String getSubject()
+        {
+            return subject;
+        }
+
+        /**
+         * @return the id ("jti"), null when the token has none
+         */
+        public String getId()
+        {
+            return id;
+        }
+
+        /**
+         * @return the issue time ("iat") in milliseconds, 0 when the token has none
+         */
+        public long getIssuedAt()
+        {
+            return issuedAt;
+        }
+
+        /**
+         * @return the expiration ("exp") in milliseconds
+         */
+        public long getExpiresAt()
+        {
+            return expiresAt;
+        }
+
+        /**
+         * @return the uid of the identity, null when the token has none
+         */
+        public Long getUid()
+        {
+            return uid;
+        }
+
+        /**
+         * @return the permission bitset claim, null when the token has none
+         */
+        public String getPermissions()
+        {
+            return permissions;
+        }
+
+        /**
+         * @return the version of the permission dictionary, null when the token
+         *         has none
+         */
+        public Integer getPermissionsVersion()
+        {
+            return permissionsVersion;
+        }
+    }
+}
@@ -1,8 +1,5 @@
 package fr.epita.sp18.authentication;
 
-import static java.util.Collections.emptyList;
-
-import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
@@ -32,6 +29,6 @@ public class UserDetailsServiceImpl implements UserDetailsService
 
         if (identity == null) throw new UsernameNotFoundException(username);
 
-        return new User(identity.getEmail(), identity.getPasswordHash(), emptyList());
+        return new IdentityUser(identity);
     }
 }
@@ -7,10 +7,15 @@ import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.core.userdetails.UserDetailsService;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import fr.epita.sp18.service.IdentityService;
+import fr.epita.sp18.service.PasswordService;
+import fr.epita.sp18.service.PermissionService;
+import fr.epita.sp18.service.TokenRevocationService;
 
 /**
- * Define filtered routes and password encoding method
+ * Define filtered routes and password encoding method. /api/permissions
+ * requires the iam.admin permission
  *
  */
 @EnableWebSecurity
@@ -19,13 +24,27 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter
 
     private static final Log logger = LogFactory.getLog(WebSecurityConfig.class);
 
-    private UserDetailsService    userDetailsService;
-    private BCryptPasswordEncoder bCryptPasswordEncoder;
+    private UserDetailsService     userDetailsService;
+    private PasswordService        passwordService;
+    private IdentityService        identityService;
+    private LoginExecutor          loginExecutor;
+    private TokenCache             tokenCache;
+    private TokenRevocationService revocations;
+    private LoginRateLimiter       loginRateLimiter;
+    private PermissionService      permissions;
 
-    public WebSecurityConfig(UserDetailsService userDetailsService, BCryptPasswordEncoder bCryptPasswordEncoder)
+    public WebSecurityConfig(UserDetailsService userDetailsService, PasswordService passwordService,
+            IdentityService identityService, LoginExecutor loginExecutor, TokenCache tokenCache,
+            TokenRevocationService revocations, LoginRateLimiter loginRateLimiter, PermissionService permissions)
     {
         this.userDetailsService = userDetailsService;
-        this.bCryptPasswordEncoder = bCryptPasswordEncoder;
+        this.passwordService = passwordService;
+        this.identityService = identityService;
+        this.loginExecutor = loginExecutor;
+        this.tokenCache = tokenCache;
+        this.revocations = revocations;
+        this.loginRateLimiter = loginRateLimiter;
+        this.permissions = permissions;
     }
 
     @Override
@@ -42,25 +61,38 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter
                     .authorizeRequests()
                     .antMatchers("/index.html", "/", "/favicon.ico", "/*.js", "/*.css").permitAll()
                     .antMatchers(Constants.DEV_PERMIT_URL).permitAll()
+                    .antMatchers("/api/permissions/**").hasAuthority(PermissionService.ADMIN)
                     .anyRequest().authenticated()
                     .and()
-                    .addFilter(new JwtUserFilter(authenticationManager()))
-                    .addFilter(new JwtAuthenticationFilter(authenticationManager()));
+                    .addFilter(new JwtUserFilter(authenticationManager(), loginExecutor, loginRateLimiter,
+                            permissions))
+                    .addFilter(new JwtAuthenticationFilter(authenticationManager(), tokenCache, revocations,
+                            permissions));
         }
         else {
             http.csrf().disable()
                     .authorizeRequests()
                     .antMatchers("/index.html", "/", "/favicon.ico", "/*.js", "/*.css").permitAll()
+                    .antMatchers("/api/permissions/**").hasAuthority(PermissionService.ADMIN)
                     .anyRequest().authenticated()
                     .and()
-                    .addFilter(new JwtUserFilter(authenticationManager()))
-                    .addFilter(new JwtAuthenticationFilter(authenticationManager()));
+                    .addFilter(new JwtUserFilter(authenticationManager(), loginExecutor, loginRateLimiter,
+                            permissions))
+                    .addFilter(new JwtAuthenticationFilter(authenticationManager(), tokenCache, revocations,
+                            permissions));
         }
+
+        // /logout revokes the token of the request and answers 200
+        http.logout()
+                .addLogoutHandler(new JwtLogoutHandler(tokenCache, revocations))
+                .logoutSuccessHandler((req, res, auth) -> {
+                });
     }
 
     @Override
     public void configure(AuthenticationManagerBuilder auth) throws Exception
     {
-        auth.userDetailsService(userDetailsService).passwordEncoder(bCryptPasswordEncoder);
+        auth.authenticationProvider(
+                new RehashingAuthenticationProvider(userDetailsService, passwordService, identityService));
     }
 }
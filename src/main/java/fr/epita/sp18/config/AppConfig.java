@@ -3,9 +3,14 @@
  */
 package fr.epita.sp18.config;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 
+import fr.epita.sp18.dao.IdGenerator;
+import fr.epita.sp18.dao.SnowflakeIdGenerator;
+
 /**
  * App's dynamic configuration
  *
@@ -16,4 +21,20 @@ import org.springframework.context.annotation.PropertySource;
 @PropertySource(value = { "classpath:application.properties" })
 public class AppConfig
 {
+    /**
+     * Primary key generator of BaseJdbcDAO. Every node of a cluster must have its
+     * own iam.id.node-id
+     *
+     * @return the generator
+     */
+    @Bean
+    public IdGenerator idGenerator(
+            @Value("${iam.id.node-id:0}") long nodeId,
+            @Value("${iam.id.node-bits:4}") int nodeBits,
+            @Value("${iam.id.sequence-bits:8}") int sequenceBits,
+            @Value("${iam.id.block-size:16}") int blockSize,
+            @Value("${iam.id.max-drift-ms:1000}") long maxDriftMillis)
+    {
+        return new SnowflakeIdGenerator(nodeId, nodeBits, sequenceBits, blockSize, maxDriftMillis);
+    }
 }
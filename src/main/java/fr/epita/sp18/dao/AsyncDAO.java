@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * AsyncDAO is the asynchronous variant of the DAO interface. Every method runs
+ * the DAO method of the same name on the JdbcExecutor and returns at once. The
+ * future completes with the result of the DAO method, or exceptionally with its
+ * exception (IamDataAccessException, IamDuplicateKeyException...)
+ *
+ * @author Philip
+ * @param <T>
+ *            Type of the entity
+ * @param <E>
+ *            Type of the entity's primary key
+ *
+ */
+public interface AsyncDAO<T, E>
+{
+    CompletableFuture<Void> createAsync(T entity);
+
+    CompletableFuture<Void> deleteAsync(E uid);
+
+    CompletableFuture<T> getAsync(E uid);
+
+    CompletableFuture<Map<E, T>> getAllAsync(Collection<E> uids);
+
+    CompletableFuture<List<T>> searchAsync(Criteria filter, String sort);
+
+    <R> CompletableFuture<List<R>> searchAsync(Criteria filter, String sort, Projection<R> projection);
+
+    CompletableFuture<Void> updateAsync(T entity);
+}
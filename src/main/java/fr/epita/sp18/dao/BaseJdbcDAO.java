@@ -3,30 +3,38 @@
  */
 package fr.epita.sp18.dao;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Repository;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import fr.epita.sp18.exception.ErrorCode;
 import fr.epita.sp18.exception.IamDataAccessException;
 import fr.epita.sp18.exception.IamDataIntegrityViolationException;
@@ -36,7 +44,8 @@ import fr.epita.sp18.exception.IamUnsupportedDataTypeException;
 /**
  * BaseJdbcDAO is an abstract class with ready-to-used methods that implements
  * DAO interface An entity that implements DAO interface just simply extends
- * this class as DAO's implementation
+ * this class as DAO's implementation. The asynchronous methods of the AsyncDAO
+ * interface run the DAO methods on the JdbcExecutor
  *
  * @author Philip
  *
@@ -44,17 +53,42 @@ import fr.epita.sp18.exception.IamUnsupportedDataTypeException;
 @Repository
 public abstract class BaseJdbcDAO<T, E>
 {
-    private static AtomicLong nextUID = new AtomicLong(System.currentTimeMillis());
+    private final String            table;
+    private final String            primaryKey;
+    private final EntityMetadata<T> metadata;
 
-    private final String   table;
-    private final String   primaryKey;
-    private final Class<T> classT;
+    protected static final String DATA_ACCESS_ERROR_MESSAGE = "SQL execution error: %1$s";
 
-    private static final String DATA_ACCESS_ERROR_MESSAGE = "SQL execution error: %1$s";
+    // Number of times a record is read and written before an update that keeps
+    // finding it changed gives up
+    private static final int UPDATE_ATTEMPTS = 3;
 
     @Autowired
     JdbcTemplate jdbc;
 
+    @Autowired
+    SqlTemplateCache templates;
+
+    @Autowired
+    IdGenerator idGenerator;
+
+    @Autowired
+    JdbcExecutor asyncExecutor;
+
+    /**
+     * Number of rows sent to the database in one JDBC batch by createAll and
+     * updateAll, and number of keys per query of getAll
+     */
+    @Value("${iam.dao.batch-size:500}")
+    int batchSize;
+
+    /**
+     * Number of rows the JDBC driver fetches at once when search streams its
+     * result to a callback
+     */
+    @Value("${iam.dao.fetch-size:200}")
+    int fetchSize;
+
     /**
      * This constructor helps define the table that the DAO is working on
      *
@@ -70,7 +104,7 @@ public abstract class BaseJdbcDAO<T, E>
     {
         table = tableName;
         primaryKey = pkName;
-        classT = clazz;
+        metadata = EntityMetadata.of(clazz, pkName);
     }
 
     /**
@@ -85,13 +119,103 @@ public abstract class BaseJdbcDAO<T, E>
      */
     public T get(E uid) throws IamDataAccessException
     {
-        T result = null;
-        String sql = "";
+        return get(uid, "*", metadata.newRowMapper());
+    }
+
+    /**
+     * This method query the table for the records which primary keys are in the
+     * parameter, by chunks of iam.dao.batch-size keys per query
+     *
+     * @param uids
+     *            Primary keys of the expecting records. A key that appears twice
+     *            is only queried once
+     * @return the found records by primary key. A key that is not found is not in
+     *         the map
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public Map<E, T> getAll(Collection<E> uids) throws IamDataAccessException
+    {
+        final Map<Object, T> found = readAll(new ArrayList<>(new LinkedHashSet<>(uids)));
+        final Map<E, T> result = new HashMap<>(found.size() * 2);
+
+        for (E uid : uids) {
+            final T record = found.get(uid);
+            if (record != null) result.put(uid, record);
+        }
+
+        return result;
+    }
+
+    /**
+     * This method query the projected columns of a unique record that has primary
+     * key equal to the parameter value
+     *
+     * @param uid
+     *            Primary key of the expecting record
+     * @param projection
+     *            The selected columns and their mapper
+     * @return the projected record if found or null when not found
+     * @throws IamDataAccessException
+     *             when a projected column is unknown or any exception occurs
+     *             during the DAO's execution
+     */
+    public <R> R get(E uid, Projection<R> projection) throws IamDataAccessException
+    {
+        return get(uid, renderProjection(projection), projection.getMapper());
+    }
+
+    private <R> R get(E uid, String select, RowMapper<R> mapper) throws IamDataAccessException
+    {
+        R result = null;
+        final SqlTemplate sql = templates.get(table, "get", select + "|" + primaryKey,
+                () -> new SqlTemplate(String.format("SELECT %1$s FROM %2$s WHERE %3$s = ?;", select, table,
+                        primaryKey)));
 
         try {
-            sql = String.format("SELECT * FROM %1$s WHERE %2$s = %3$s;", table, primaryKey, uid);
+            result = jdbc.queryForObject(sql.getSql(), mapper, uid);
+        }
+        catch (final EmptyResultDataAccessException ex) {
+            // No record found. Return null
+        }
+        catch (final DataAccessException ex) {
+            // Read database error. Throw exception
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+
+        return result;
+    }
+
+    /**
+     * This method query the table for a unique record that has a column equal to
+     * the parameter value. The column should have a unique index
+     *
+     * @param column
+     *            Name of the column
+     * @param value
+     *            Expected value of the column
+     * @return the record if found or null when not found
+     * @throws IamDataAccessException
+     *             when the column is unknown, more than one record is found or
+     *             any exception occurs during the DAO's execution
+     */
+    protected T getBy(String column, Object value) throws IamDataAccessException
+    {
+        T result = null;
+        final int index = metadata.indexOf(column);
 
-            result = jdbc.queryForObject(sql, new BeanPropertyRowMapper<>(classT));
+        if (index < 0) {
+            throw new IamDataAccessException(String.format("BaseJdbcDAO.getBy unknown column %1$s", column),
+                    ErrorCode.UNKNOWN_COLUMN);
+        }
+
+        final SqlTemplate sql = templates.get(table, "getBy", metadata.getColumn(index),
+                () -> new SqlTemplate(String.format("SELECT * FROM %1$s WHERE %2$s = ?;", table,
+                        metadata.getColumn(index))));
+
+        try {
+            result = jdbc.queryForObject(sql.getSql(), metadata.newRowMapper(), value);
         }
         catch (final EmptyResultDataAccessException ex) {
             // No record found. Return null
@@ -119,22 +243,13 @@ public abstract class BaseJdbcDAO<T, E>
      */
     public void create(T entity) throws IamDuplicateKeyException, IamDataAccessException
     {
-        String sql = "";
+        final SqlTemplate sql = getInsertTemplate();
 
         try {
             // Generate an UID if it's not ready yet
             setPrimaryKeyValue(entity);
 
-            String[] list = getFieldList(entity, true);
-            String[] values = new String[list.length];
-            Arrays.fill(values, "?");
-
-            // "INSERT INTO table_name(column_name, ...) VALUES(value1, ...);"
-            sql = String.format("INSERT INTO %1$s(%2$s) VALUES(%3$s);", table,
-                    String.join(", ", list),
-                    String.join(", ", values));
-
-            runJdbcUpdate(entity, sql, list);
+            runJdbcUpdate(entity, sql);
         }
         catch (final DuplicateKeyException ex) {
             // Duplicated record
@@ -148,59 +263,419 @@ public abstract class BaseJdbcDAO<T, E>
         }
     }
 
-    private void runJdbcUpdate(T entity, String sql, String[] fields)
+    /**
+     * This method generate new primary keys for the inserting records and insert
+     * them into the table, by JDBC batches of iam.dao.batch-size rows. A failed
+     * row does not abort the batch, it is reported in the result
+     *
+     * @param entities
+     *            The inserting records
+     * @return the rows that could not be inserted, with the reason. A duplicated
+     *         value is reported with ErrorCode.DUPLICATE_KEY_ERROR
+     * @throws IamDataAccessException
+     *             when the batch can not be executed at all
+     */
+    public BatchResult<T> createAll(Collection<T> entities) throws IamDataAccessException
     {
-        jdbc.update(new PreparedStatementCreator() {
-            @Override
-            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException
-            {
-                PreparedStatement ps = connection.prepareStatement(sql, Statement.NO_GENERATED_KEYS);
+        final List<T> rows = new ArrayList<>(entities);
 
-                // Inject the entity's value into the SQL statement
-                int i = 1;
-                final Map<String, Object> map = getMap(entity);
+        for (T entity : rows) {
+            setPrimaryKeyValue(entity);
+        }
+
+        return runJdbcBatch(rows, getInsertTemplate());
+    }
+
+    /**
+     * This method update records with new values, basing on their primary keys, by
+     * JDBC batches of iam.dao.batch-size rows. A failed row does not abort the
+     * batch, it is reported in the result.
+     * <p>
+     * The records are read first, and each record only updates the columns that
+     * changed: the records are batched by set of changed columns, and a record
+     * without any change is not written at all. Each UPDATE also checks that the
+     * columns still have the values read, so that a record changed in between is
+     * read and diffed again rather than silently overwritten
+     *
+     * @param entities
+     *            The updating records
+     * @return the rows that could not be updated, with the reason. A record that
+     *         does not exist is reported with ErrorCode.RECORD_NOT_FOUND, a
+     *         record that kept changing while it was updated with
+     *         ErrorCode.CONCURRENT_UPDATE
+     * @throws IamDataAccessException
+     *             when the batch can not be executed at all
+     */
+    public BatchResult<T> updateAll(Collection<T> entities) throws IamDataAccessException
+    {
+        final List<T> rows = new ArrayList<>(entities);
+        final String[] columns = metadata.getColumns(false);
+        final BatchResult<T> result = new BatchResult<>(rows.size());
+
+        // Position of the rows still to be written
+        List<Integer> pending = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            pending.add(i);
+        }
 
-                for (String field : fields) {
-                    ps.setObject(i++, map.get(field));
+        for (int attempt = 0; attempt < UPDATE_ATTEMPTS && !pending.isEmpty(); attempt++) {
+            final List<Object> keys = new ArrayList<>(pending.size());
+            pending.forEach(i -> keys.add(metadata.getPrimaryKeyValue(rows.get(i))));
+
+            final Map<Object, T> originals = readAll(keys);
+
+            // Position and original of the rows of each UPDATE statement
+            final Map<SqlTemplate, List<Integer>> groups = new LinkedHashMap<>();
+            final Map<Integer, T> read = new HashMap<>(pending.size() * 2);
+            final List<Integer> retry = new ArrayList<>();
+
+            for (int i : pending) {
+                final T original = originals.get(metadata.getPrimaryKeyValue(rows.get(i)));
+
+                if (original == null) {
+                    result.addFailure(i, rows.get(i), ErrorCode.RECORD_NOT_FOUND,
+                            "No record found for this primary key");
+                    continue;
                 }
 
-                return ps;
+                final String[] changed = getChangedColumns(original, rows.get(i), columns);
+                if (changed.length > 0) {
+                    groups.computeIfAbsent(getUpdateTemplate(changed, columns, original), x -> new ArrayList<>())
+                            .add(i);
+                    read.put(i, original);
+                }
             }
-        });
+
+            for (Map.Entry<SqlTemplate, List<Integer>> group : groups.entrySet()) {
+                final List<Integer> positions = group.getValue();
+                final List<T> batch = new ArrayList<>(positions.size());
+                final List<T> batchOriginals = new ArrayList<>(positions.size());
+                positions.forEach(i -> {
+                    batch.add(rows.get(i));
+                    batchOriginals.add(read.get(i));
+                });
+
+                final BatchResult<T> groupResult = runJdbcBatch(batch, batchOriginals, group.getKey());
+
+                for (BatchResult.Failure<T> failure : groupResult.getFailures()) {
+                    if (failure.getCode() == ErrorCode.RECORD_NOT_FOUND) {
+                        // Changed or deleted since it was read: read it again
+                        retry.add(positions.get(failure.getIndex()));
+                    }
+                    else {
+                        result.addFailure(positions.get(failure.getIndex()), failure.getEntity(),
+                                failure.getCode(), failure.getMessage());
+                    }
+                }
+            }
+
+            pending = retry;
+        }
+
+        for (int i : pending) {
+            result.addFailure(i, rows.get(i), ErrorCode.CONCURRENT_UPDATE,
+                    "The record kept changing while it was updated");
+        }
+
+        return result;
     }
 
-    // Convert the object to Map<String, Object> by Jacson library
-    private Map<String, Object> getMap(T entity)
+    // The columns which value differs between the original and the entity, in
+    // the order of the candidate columns
+    private String[] getChangedColumns(T original, T entity, String[] columns)
     {
-        final ObjectMapper mapper = new ObjectMapper();
-        return mapper.convertValue(entity, new TypeReference<Map<String, Object>>() {
+        final List<String> changed = new ArrayList<>(columns.length);
+
+        for (String column : columns) {
+            final int index = metadata.indexOf(column);
+
+            if (!Objects.equals(metadata.getValue(original, index), metadata.getValue(entity, index))) {
+                changed.add(column);
+            }
+        }
+
+        return changed.toArray(new String[0]);
+    }
+
+    // Read the records by primary key, iam.dao.batch-size keys per
+    // "SELECT * FROM table_name WHERE primary_key IN (?, ...);"
+    private Map<Object, T> readAll(List<Object> keys) throws IamDataAccessException
+    {
+        final Map<Object, T> result = new HashMap<>(keys.size() * 2);
+        final int chunk = Math.max(batchSize, 1);
+
+        for (int from = 0; from < keys.size(); from += chunk) {
+            final int to = Math.min(from + chunk, keys.size());
+
+            // Round the key count up to a power of 2, so that few statements are
+            // ever built. The extra parameters repeat the first key
+            final int size = Integer.highestOneBit(to - from) == to - from
+                    ? to - from
+                    : Integer.highestOneBit(to - from) << 1;
+            final Object[] args = new Object[size];
+
+            for (int i = 0; i < size; i++) {
+                args[i] = keys.get(from + (i < to - from ? i : 0));
+            }
+
+            final SqlTemplate sql = templates.get(table, "getAll", Integer.toString(size), () -> {
+                String[] values = new String[size];
+                Arrays.fill(values, "?");
+
+                return new SqlTemplate(String.format("SELECT * FROM %1$s WHERE %2$s IN (%3$s);", table,
+                        primaryKey, String.join(", ", values)));
+            });
+
+            try {
+                for (T record : jdbc.query(sql.getSql(), metadata.newRowMapper(), args)) {
+                    result.put(metadata.getPrimaryKeyValue(record), record);
+                }
+            }
+            catch (final DataAccessException ex) {
+                throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                        ErrorCode.DATA_ACCESS_ERROR);
+            }
+        }
+
+        return result;
+    }
+
+    // "INSERT INTO table_name(column_name, ...) VALUES(?, ...);"
+    private SqlTemplate getInsertTemplate()
+    {
+        return templates.get(table, "insert", "*", () -> {
+            String[] fields = metadata.getColumns(true);
+            String[] values = new String[fields.length];
+            Arrays.fill(values, "?");
+
+            return new SqlTemplate(String.format("INSERT INTO %1$s(%2$s) VALUES(%3$s);", table,
+                    String.join(", ", fields),
+                    String.join(", ", values)), fields);
         });
     }
 
-    private String getPrimaryKeyStringValue(T entity) throws IamDataAccessException
+    // "UPDATE table_name SET column1 = ?, ... WHERE primary_key = ? AND checked1 = ?
+    // AND checked2 IS NULL ...;": the changed columns are written only while the
+    // checked columns still have their original values. The parameters are the
+    // changed columns and the primary key, bound from the entity, then the
+    // checked columns that are not null in the original, bound from the original
+    private SqlTemplate getUpdateTemplate(String[] changed, String[] checked, T original)
+    {
+        final List<String> conditions = new ArrayList<>(checked.length + 1);
+        final List<String> parameters = new ArrayList<>(Arrays.asList(changed));
+        conditions.add(primaryKey + " = ?");
+        parameters.add(primaryKey);
+
+        for (String column : checked) {
+            if (metadata.getValue(original, metadata.indexOf(column)) == null) {
+                conditions.add(column + " IS NULL");
+            }
+            else {
+                conditions.add(column + " = ?");
+                parameters.add(column);
+            }
+        }
+
+        final String where = String.join(" AND ", conditions);
+
+        return templates.get(table, "update", String.join(",", changed) + "|" + where,
+                () -> new SqlTemplate(String.format("UPDATE %1$s SET %2$s = ? WHERE %3$s;", table,
+                        String.join(" = ?, ", changed), where), parameters.toArray(new String[0])));
+    }
+
+    // Bind the parameters of a template of getUpdateTemplate(changed, checked,
+    // original): up to the primary key from the entity, the rest from the
+    // original
+    private void bindUpdate(PreparedStatement ps, SqlTemplate template, T entity, T original) throws SQLException
+    {
+        final String[] parameters = template.getParameters();
+        final int split = Arrays.asList(parameters).indexOf(primaryKey) + 1;
+
+        int parameter = metadata.bind(ps, entity, Arrays.copyOf(parameters, split));
+        for (int i = split; i < parameters.length; i++) {
+            ps.setObject(parameter++, metadata.getValue(original, metadata.indexOf(parameters[i])));
+        }
+    }
+
+    private SqlTemplate buildUpdateTemplate(String[] fields)
     {
-        String result = "";
+        String[] parameters = new String[fields.length + 1];
+
+        for (int i = 0; i < fields.length; i++) {
+            int index = metadata.indexOf(fields[i]);
+            if (index < 0) {
+                throw new IllegalArgumentException(String.format("%1$s has no column %2$s",
+                        metadata.getType().getName(), fields[i]));
+            }
+            parameters[i] = metadata.getColumn(index);
+        }
+        parameters[fields.length] = primaryKey;
+
+        return new SqlTemplate(String.format("UPDATE %1$s SET %2$s = ? WHERE %3$s = ?;", table,
+                String.join(" = ?, ", Arrays.copyOf(parameters, fields.length)), primaryKey), parameters);
+    }
+
+    private BatchResult<T> runJdbcBatch(List<T> rows, SqlTemplate template) throws IamDataAccessException
+    {
+        return runJdbcBatch(rows, null, template);
+    }
+
+    // With originals, the template is an UPDATE of getUpdateTemplate(changed,
+    // checked, original) and each row is bound with its original
+    private BatchResult<T> runJdbcBatch(List<T> rows, List<T> originals, SqlTemplate template)
+            throws IamDataAccessException
+    {
+        final String sql = template.getSql();
+        final String[] fields = template.getParameters();
+
+        final BatchResult<T> result = new BatchResult<>(rows.size());
 
         try {
-            final Method fieldGetter = entity.getClass()
-                    .getMethod("get" + primaryKey.substring(0, 1).toUpperCase() + primaryKey.substring(1));
-            result = fieldGetter.invoke(entity).toString();
+            jdbc.execute((ConnectionCallback<Void>) connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql, Statement.NO_GENERATED_KEYS)) {
+                    int from = 0;
+
+                    while (from < rows.size()) {
+                        final int to = Math.min(from + Math.max(batchSize, 1), rows.size());
+
+                        for (int i = from; i < to; i++) {
+                            if (originals == null) {
+                                metadata.bind(ps, rows.get(i), fields);
+                            }
+                            else {
+                                bindUpdate(ps, template, rows.get(i), originals.get(i));
+                            }
+                            ps.addBatch();
+                        }
+
+                        from = executeBatch(ps, sql, rows, from, to, result);
+                    }
+                }
+
+                return null;
+            });
         }
-        catch (final Exception ex) {
-            throw new IamDataAccessException("BaseJdbcDAO.getPrimaryKeyValue error", ex,
-                    ErrorCode.GET_PRIMARY_KEY_ERROR);
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
         }
 
         return result;
     }
 
+    // Execute the rows [from, to) already added to the statement, record the
+    // failed rows and return the index of the next row to be sent
+    private int executeBatch(PreparedStatement ps, String sql, List<T> rows, int from, int to,
+            BatchResult<T> result) throws SQLException
+    {
+        int[] counts;
+        List<SQLException> errors = new ArrayList<>();
+
+        try {
+            counts = ps.executeBatch();
+        }
+        catch (final BatchUpdateException ex) {
+            ps.clearBatch();
+            counts = ex.getUpdateCounts() != null ? ex.getUpdateCounts() : new int[0];
+            errors = getBatchErrors(ps, ex);
+        }
+
+        // The n-th failed row gets the n-th error
+        int failed = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == Statement.EXECUTE_FAILED) {
+                addFailure(result, from + i, rows.get(from + i), sql, errors, failed++);
+            }
+            else if (counts[i] == 0) {
+                result.addFailure(from + i, rows.get(from + i), ErrorCode.RECORD_NOT_FOUND,
+                        "No record found for this primary key");
+            }
+        }
+
+        if (from + counts.length >= to) return to;
+
+        // The driver stopped at the failed row. Report it and resend the rest
+        addFailure(result, from + counts.length, rows.get(from + counts.length), sql, errors, failed);
+        return from + counts.length + 1;
+    }
+
+    // The error of every failed row of a batch, in the order of the rows: the
+    // chain of getNextException, or the batch exception itself when nothing is
+    // chained. H2 chains the errors last first
+    private static List<SQLException> getBatchErrors(PreparedStatement ps, BatchUpdateException ex)
+            throws SQLException
+    {
+        final List<SQLException> errors = new ArrayList<>();
+
+        for (SQLException next = ex.getNextException(); next != null; next = next.getNextException()) {
+            errors.add(next);
+        }
+
+        if (errors.isEmpty()) {
+            errors.add(ex);
+        }
+        else if ("H2".equals(ps.getConnection().getMetaData().getDatabaseProductName())) {
+            Collections.reverse(errors);
+        }
+
+        return errors;
+    }
+
+    // Record a failed row of a batch with the error at position failed, or the
+    // last one when the driver reported fewer errors than failed rows
+    private void addFailure(BatchResult<T> result, int index, T row, String sql, List<SQLException> errors,
+            int failed)
+    {
+        final SQLException error = errors.isEmpty() ? null : errors.get(Math.min(failed, errors.size() - 1));
+        ErrorCode code = ErrorCode.DATA_ACCESS_ERROR;
+
+        if (error != null) {
+            final DataAccessException translated = jdbc.getExceptionTranslator().translate("batch", sql, error);
+            if (translated instanceof DuplicateKeyException) {
+                code = ErrorCode.DUPLICATE_KEY_ERROR;
+            }
+            else if (translated instanceof DataIntegrityViolationException) {
+                code = ErrorCode.DATA_INTEGRITY_VIOLATION;
+            }
+        }
+
+        result.addFailure(index, row, code, error != null ? error.getMessage() : "");
+    }
+
+    private int runJdbcUpdate(T entity, SqlTemplate template)
+    {
+        return runJdbcUpdate(entity, null, template);
+    }
+
+    // With an original, the template is an UPDATE of getUpdateTemplate(changed,
+    // checked, original)
+    private int runJdbcUpdate(T entity, T original, SqlTemplate template)
+    {
+        return jdbc.update(new PreparedStatementCreator() {
+            @Override
+            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException
+            {
+                PreparedStatement ps = connection.prepareStatement(template.getSql(), Statement.NO_GENERATED_KEYS);
+
+                // Inject the entity's value into the SQL statement
+                if (original == null) {
+                    metadata.bind(ps, entity, template.getParameters());
+                }
+                else {
+                    bindUpdate(ps, template, entity, original);
+                }
+
+                return ps;
+            }
+        });
+    }
+
     private void setPrimaryKeyValue(T entity) throws IamDataAccessException
     {
         try {
-            final Field field = entity.getClass().getDeclaredField(primaryKey);
-            final Object id = transformLongToE(nextUID.getAndIncrement(), field.getType());
-            field.setAccessible(true);
-            field.set(entity, id);
+            final Object id = transformLongToE(idGenerator.nextId(), metadata.getPrimaryKeyType());
+            metadata.setPrimaryKeyValue(entity, id);
         }
         catch (final Exception ex) {
             throw new IamDataAccessException("BaseJdbcDAO.setPrimaryKeyValue error", ex,
@@ -219,25 +694,11 @@ public abstract class BaseJdbcDAO<T, E>
                 ErrorCode.UNSUPPORTED_DATA_TYPE);
     }
 
-    private String[] getFieldList(T entity, boolean includePK)
-    {
-        final Map<String, Object> map = getMap(entity);
-
-        String[] list = new String[map.size() + (includePK ? 0 : -1)];
-        int i = 0;
-
-        for (final Map.Entry<String, Object> entry : map.entrySet()) {
-            if (!includePK && primaryKey.equals(entry.getKey())) {
-                continue;
-            }
-            list[i++] = entry.getKey();
-        }
-
-        return list;
-    }
-
     /**
-     * This method update a record with new value, basing on its primary key
+     * This method update a record with new value, basing on its primary key. The
+     * record is read first and only the columns that changed are written. Nothing
+     * is written when no column changed. When the record changes between the read
+     * and the write, it is read and diffed again
      *
      * @param entity
      *            The updating record
@@ -245,18 +706,19 @@ public abstract class BaseJdbcDAO<T, E>
      *             when the updating record has field(s) with duplicated value,
      *             against the table's unique index restrictions
      * @throws IamDataAccessException
-     *             when an exception occurred during the updating
+     *             when an exception occurred during the updating, with
+     *             ErrorCode.RECORD_NOT_FOUND when the record does not exist, or
+     *             with ErrorCode.CONCURRENT_UPDATE when it kept changing
      */
     public void update(T entity) throws IamDataIntegrityViolationException, IamDataAccessException
     {
-        String[] list = getFieldList(entity, false);
-
-        updateEntity(entity, list);
+        updateChanged(entity, metadata.getColumns(false));
     }
 
     /**
      * This method update some fields of a record with new value, basing on its
-     * primary key and field list defined in parameter
+     * primary key and field list defined in parameter. Like update(entity), only
+     * the fields that changed are written
      *
      * @param entity
      *            The updating record
@@ -267,27 +729,71 @@ public abstract class BaseJdbcDAO<T, E>
      *             when the updating record has field(s) with duplicated value,
      *             against the table's unique index restrictions
      * @throws IamDataAccessException
-     *             when an exception occurred during the updating
+     *             when an exception occurred during the updating, a field is not a
+     *             column of the table, with ErrorCode.RECORD_NOT_FOUND when the
+     *             record does not exist, or with ErrorCode.CONCURRENT_UPDATE when
+     *             it kept changing
      */
     public void update(T entity, String fields) throws IamDataIntegrityViolationException, IamDataAccessException
     {
-        String[] list = fields.trim().split("\\s*,\\s*");
+        final SqlTemplate template;
 
-        updateEntity(entity, list);
+        try {
+            // The field list is only parsed the first time it is used
+            template = templates.get(table, "update", fields,
+                    () -> buildUpdateTemplate(fields.trim().split("\\s*,\\s*")));
+        }
+        catch (final IllegalArgumentException ex) {
+            throw new IamDataAccessException(ex.getMessage(), ex, ErrorCode.UNKNOWN_COLUMN);
+        }
+
+        // The template's parameters are the checked columns, then the primary key
+        final String[] parameters = template.getParameters();
+        updateChanged(entity, Arrays.copyOf(parameters, parameters.length - 1));
     }
 
-    private void updateEntity(T entity, String[] fields)
+    // Read the candidate columns, then write the ones that changed, on condition
+    // that no candidate column changed since it was read. Otherwise the record is
+    // read and diffed again, up to UPDATE_ATTEMPTS times
+    private void updateChanged(T entity, String[] columns)
             throws IamDataAccessException, IamDataIntegrityViolationException
     {
-        String sql = "";
-        try {
-            final String whereClause = String.format("%1$s = %2$s", primaryKey, getPrimaryKeyStringValue(entity));
+        final Object uid = metadata.getPrimaryKeyValue(entity);
+        final String select = primaryKey + ", " + String.join(", ", columns);
+
+        for (int attempt = 0; attempt < UPDATE_ATTEMPTS; attempt++) {
+            final T original = get(transformToE(uid), select, metadata.newRowMapper());
+
+            if (original == null) {
+                throw new IamDataAccessException(String.format("%1$s not found: %2$s", table, uid),
+                        ErrorCode.RECORD_NOT_FOUND);
+            }
+
+            final String[] changed = getChangedColumns(original, entity, columns);
+            if (changed.length == 0
+                    || updateEntity(entity, original, getUpdateTemplate(changed, columns, original)) > 0) {
+                return;
+            }
+
+            // Changed or deleted since it was read: read it again
+        }
+
+        throw new IamDataAccessException(
+                String.format("%1$s kept changing while it was updated: %2$s", table, uid),
+                ErrorCode.CONCURRENT_UPDATE);
+    }
 
-            // "UPDATE table_name SET column1 = ?, column2 = ? ... WHERE primary_key = id;"
-            sql = String.format("UPDATE %1$s SET %2$s WHERE %3$s;", table, String.join(" = ?, ", fields) + " =? ",
-                    whereClause);
+    @SuppressWarnings("unchecked")
+    private E transformToE(Object uid)
+    {
+        return (E) uid;
+    }
 
-            runJdbcUpdate(entity, sql, fields);
+    private int updateEntity(T entity, T original, SqlTemplate sql)
+            throws IamDataAccessException, IamDataIntegrityViolationException
+    {
+        try {
+            return runJdbcUpdate(entity, original, sql);
         }
         catch (final DataIntegrityViolationException ex) {
             // No record found. Return null
@@ -302,31 +808,61 @@ public abstract class BaseJdbcDAO<T, E>
     }
 
     /**
-     * This method query the table with "WHERE clause" and "ORDER BY clause" defined
-     * by parameters
+     * This method query the table with criteria and "ORDER BY clause" defined by
+     * parameters
      *
      * @param filter
-     *            The WHERE clause in String format
+     *            The WHERE clause, null for all records
      * @param sort
-     *            The ORDER BY clause in String format
+     *            The ORDER BY clause in String format: column names, each
+     *            optionally followed by ASC or DESC or prefixed by "-" for a
+     *            descending order, e.g. "name, uid DESC". Checked against the
+     *            entity's columns
      *
      * @return List of found object or null when not found
      *
      * @throws IamDataAccessException
      *             when an exception occurred during the search
      */
-    public List<T> search(String filter, String sort) throws IamDataAccessException
+    public List<T> search(Criteria filter, String sort) throws IamDataAccessException
     {
-        List<T> result = null;
-        String sql = "";
+        return search(filter, sort, "*", metadata.newRowMapper());
+    }
 
-        try {
-            filter = ((filter != null) && !filter.isEmpty()) ? "WHERE " + filter : "";
-            sort = ((sort != null) && !sort.isEmpty()) ? "ORDER BY " + sort : "";
+    /**
+     * Same as search(filter, sort), but only the projected columns are read and
+     * each row is mapped straight into the projection's type
+     *
+     * @param filter
+     *            The WHERE clause, null for all records
+     * @param sort
+     *            The ORDER BY clause in String format: column names, each
+     *            optionally followed by ASC or DESC or prefixed by "-" for a
+     *            descending order, e.g. "name, uid DESC". Checked against the
+     *            entity's columns
+     * @param projection
+     *            The selected columns and their mapper
+     *
+     * @return List of found projected records
+     *
+     * @throws IamDataAccessException
+     *             when a projected column is unknown or an exception occurred
+     *             during the search
+     */
+    public <R> List<R> search(Criteria filter, String sort, Projection<R> projection) throws IamDataAccessException
+    {
+        return search(filter, sort, renderProjection(projection), projection.getMapper());
+    }
 
-            sql = String.format("SELECT * FROM %1$s %2$s %3$s;", table, filter, sort);
+    private <R> List<R> search(Criteria filter, String sort, String select, RowMapper<R> mapper)
+            throws IamDataAccessException
+    {
+        List<R> result = null;
+        final List<Object> args = new ArrayList<>();
+        final SqlTemplate sql = getSearchTemplate(select, filter, sort, args);
 
-            result = jdbc.query(sql, new BeanPropertyRowMapper<>(classT));
+        try {
+            result = jdbc.query(sql.getSql(), mapper, args.toArray());
         }
         catch (final EmptyResultDataAccessException ex) {
             // No record found. Return null
@@ -340,6 +876,303 @@ public abstract class BaseJdbcDAO<T, E>
         return result;
     }
 
+    /**
+     * This method query the table with criteria and "ORDER BY clause" defined by
+     * parameters and hands every found record to the consumer as soon as it is
+     * read. The records are read with a forward-only cursor, iam.dao.fetch-size
+     * rows at a time, so the result is never held in memory as a whole
+     *
+     * @param filter
+     *            The WHERE clause, null for all records
+     * @param sort
+     *            The ORDER BY clause in String format: column names, each
+     *            optionally followed by ASC or DESC or prefixed by "-" for a
+     *            descending order, e.g. "name, uid DESC". Checked against the
+     *            entity's columns
+     * @param consumer
+     *            Called once per found record, in the order of the result. An
+     *            exception thrown by the consumer stops the search
+     *
+     * @return Number of found records
+     *
+     * @throws IamDataAccessException
+     *             when an exception occurred during the search
+     */
+    public int search(Criteria filter, String sort, Consumer<? super T> consumer) throws IamDataAccessException
+    {
+        return search(filter, sort, "*", metadata.newRowMapper(), consumer);
+    }
+
+    /**
+     * Same as search(filter, sort, consumer), but only the projected columns are
+     * read and each row is mapped straight into the projection's type
+     *
+     * @param filter
+     *            The WHERE clause, null for all records
+     * @param sort
+     *            The ORDER BY clause in String format: column names, each
+     *            optionally followed by ASC or DESC or prefixed by "-" for a
+     *            descending order, e.g. "name, uid DESC". Checked against the
+     *            entity's columns
+     * @param projection
+     *            The selected columns and their mapper
+     * @param consumer
+     *            Called once per found record, in the order of the result. An
+     *            exception thrown by the consumer stops the search
+     *
+     * @return Number of found records
+     *
+     * @throws IamDataAccessException
+     *             when a projected column is unknown or an exception occurred
+     *             during the search
+     */
+    public <R> int search(Criteria filter, String sort, Projection<R> projection, Consumer<? super R> consumer)
+            throws IamDataAccessException
+    {
+        return search(filter, sort, renderProjection(projection), projection.getMapper(), consumer);
+    }
+
+    private <R> int search(Criteria filter, String sort, String select, RowMapper<R> mapper,
+            Consumer<? super R> consumer) throws IamDataAccessException
+    {
+        final List<Object> args = new ArrayList<>();
+        final SqlTemplate sql = getSearchTemplate(select, filter, sort, args);
+        final int[] count = { 0 };
+
+        try {
+            jdbc.query(new PreparedStatementCreator() {
+                @Override
+                public PreparedStatement createPreparedStatement(Connection connection) throws SQLException
+                {
+                    PreparedStatement ps = connection.prepareStatement(sql.getSql(), ResultSet.TYPE_FORWARD_ONLY,
+                            ResultSet.CONCUR_READ_ONLY);
+                    ps.setFetchSize(fetchSize);
+
+                    for (int i = 0; i < args.size(); i++) {
+                        ps.setObject(i + 1, args.get(i));
+                    }
+
+                    return ps;
+                }
+            }, (RowCallbackHandler) rs -> consumer.accept(mapper.mapRow(rs, count[0]++)));
+        }
+        catch (final DataAccessException ex) {
+            // Read database error. Throw exception
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+
+        return count[0];
+    }
+
+    /**
+     * This method query one page of the table with criteria defined by parameter,
+     * ordered by a single column and then by primary key. The page starts right
+     * after the last record of the previous page, by a seek predicate on (sort
+     * column, primary key) instead of an OFFSET, so that reading a deep page costs
+     * the same as reading the first one
+     *
+     * @param filter
+     *            The WHERE clause, null for all records
+     * @param sort
+     *            Name of the column the page is ordered by, prefixed by "-" for a
+     *            descending order. Empty or null to order by primary key
+     * @param after
+     *            The last record of the previous page, null for the first page.
+     *            Only its sort column and primary key are used
+     * @param limit
+     *            Maximum number of records of the page
+     *
+     * @return List of found object, empty when there is no more record
+     *
+     * @throws IamDataAccessException
+     *             when the sort column is unknown or an exception occurred during
+     *             the search
+     */
+    public List<T> search(Criteria filter, String sort, T after, int limit) throws IamDataAccessException
+    {
+        return search(filter, sort, after, limit, "*", metadata.newRowMapper());
+    }
+
+    /**
+     * Same as search(filter, sort, after, limit), but only the projected columns
+     * are read and each row is mapped straight into the projection's type
+     *
+     * @param filter
+     *            The WHERE clause, null for all records
+     * @param sort
+     *            Name of the column the page is ordered by, prefixed by "-" for a
+     *            descending order. Empty or null to order by primary key
+     * @param after
+     *            The last record of the previous page, null for the first page.
+     *            Only its sort column and primary key are used
+     * @param limit
+     *            Maximum number of records of the page
+     * @param projection
+     *            The selected columns and their mapper
+     *
+     * @return List of found projected records, empty when there is no more record
+     *
+     * @throws IamDataAccessException
+     *             when the sort column or a projected column is unknown or an
+     *             exception occurred during the search
+     */
+    public <R> List<R> search(Criteria filter, String sort, T after, int limit, Projection<R> projection)
+            throws IamDataAccessException
+    {
+        return search(filter, sort, after, limit, renderProjection(projection), projection.getMapper());
+    }
+
+    private <R> List<R> search(Criteria filter, String sort, T after, int limit, String select, RowMapper<R> mapper)
+            throws IamDataAccessException
+    {
+        final boolean descending = (sort != null) && sort.startsWith("-");
+        final String key = ((sort == null) || sort.isEmpty()) ? primaryKey : sort.substring(descending ? 1 : 0);
+        final int index = metadata.indexOf(key);
+
+        if (index < 0) {
+            throw new IamDataAccessException(String.format("BaseJdbcDAO.search unknown sort key %1$s", key),
+                    ErrorCode.UNSUPPORTED_SORT_KEY);
+        }
+
+        final String column = metadata.getColumn(index);
+        final List<Object> args = new ArrayList<>();
+        final String where = renderCriteria(filter, args);
+
+        if (after != null) {
+            final Object afterKey = metadata.getPrimaryKeyValue(after);
+
+            if (!column.equals(primaryKey)) {
+                final Object afterValue = metadata.getValue(after, index);
+                args.add(afterValue);
+                args.add(afterValue);
+            }
+            args.add(afterKey);
+        }
+        args.add(limit);
+
+        final SqlTemplate sql = templates.get(table, "page",
+                String.join("|", select, where, column, descending ? "desc" : "asc", after != null ? "after" : ""),
+                () -> buildPageTemplate(select, where, column, descending, after != null));
+
+        try {
+            return jdbc.query(sql.getSql(), mapper, args.toArray());
+        }
+        catch (final DataAccessException ex) {
+            // Read database error. Throw exception
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
+
+    private SqlTemplate buildPageTemplate(String select, String filter, String column, boolean descending,
+            boolean seek)
+    {
+        final String direction = descending ? "DESC" : "ASC";
+        final String operator = descending ? "<" : ">";
+        final List<String> where = new ArrayList<>();
+
+        if (!filter.isEmpty()) {
+            where.add(filter);
+        }
+
+        if (seek) {
+            where.add(column.equals(primaryKey)
+                    // "primary_key > ?"
+                    ? String.format("%1$s %2$s ?", primaryKey, operator)
+                    // "column >= ? AND (column > ? OR primary_key > ?)": the first
+                    // term is a range of the (column, primary_key) index
+                    : String.format("%1$s %2$s= ? AND (%1$s %2$s ? OR %3$s %2$s ?)", column, operator,
+                            primaryKey));
+        }
+
+        final String orderBy = column.equals(primaryKey)
+                ? String.format("%1$s %2$s", primaryKey, direction)
+                : String.format("%1$s %2$s, %3$s %2$s", column, direction, primaryKey);
+
+        return new SqlTemplate(String.format("SELECT %1$s FROM %2$s %3$s ORDER BY %4$s LIMIT ?;", select, table,
+                where.isEmpty() ? "" : "WHERE " + String.join(" AND ", where), orderBy));
+    }
+
+    // "SELECT columns FROM table_name WHERE criteria ORDER BY sort;"
+    private SqlTemplate getSearchTemplate(String select, Criteria filter, String sort, List<Object> args)
+            throws IamDataAccessException
+    {
+        final String where = renderCriteria(filter, args);
+        final String order = renderSort(metadata, sort);
+        final String orderBy = order.isEmpty() ? "" : "ORDER BY " + order;
+
+        return templates.get(table, "search", select + "|" + where + "|" + orderBy,
+                () -> new SqlTemplate(String.format("SELECT %1$s FROM %2$s %3$s %4$s;", select, table,
+                        where.isEmpty() ? "" : "WHERE " + where, orderBy)));
+    }
+
+    /**
+     * Check an ORDER BY clause against the entity's columns and write it in its
+     * canonical form, e.g. "name, uid DESC" or "-name" become "name ASC, uid DESC"
+     * and "name DESC". The sort text is never written into the SQL as it is
+     *
+     * @param metadata
+     *            Metadata of the searched entity
+     * @param sort
+     *            The ORDER BY clause, empty or null for no order
+     * @return the canonical clause, empty for no order
+     * @throws IamDataAccessException
+     *             with ErrorCode.UNSUPPORTED_SORT_KEY when a key is not a column of
+     *             the entity or is not followed by ASC or DESC only
+     */
+    static String renderSort(EntityMetadata<?> metadata, String sort) throws IamDataAccessException
+    {
+        if (sort == null || sort.trim().isEmpty()) return "";
+
+        final List<String> keys = new ArrayList<>();
+
+        for (String key : sort.trim().split("\\s*,\\s*")) {
+            final String[] parts = key.split("\\s+");
+            final boolean minus = parts[0].startsWith("-");
+            final int index = metadata.indexOf(parts[0].substring(minus ? 1 : 0));
+            final boolean direction = parts.length == 2 && !minus
+                    && ("ASC".equalsIgnoreCase(parts[1]) || "DESC".equalsIgnoreCase(parts[1]));
+
+            if (index < 0 || (parts.length > 1 && !direction)) {
+                throw new IamDataAccessException(String.format("BaseJdbcDAO.search unknown sort key %1$s", key),
+                        ErrorCode.UNSUPPORTED_SORT_KEY);
+            }
+
+            final boolean descending = minus || (parts.length == 2 && "DESC".equalsIgnoreCase(parts[1]));
+            keys.add(metadata.getColumn(index) + (descending ? " DESC" : " ASC"));
+        }
+
+        return String.join(", ", keys);
+    }
+
+    // Render the select list of the projection
+    private String renderProjection(Projection<?> projection) throws IamDataAccessException
+    {
+        try {
+            return projection.render(metadata);
+        }
+        catch (final IllegalArgumentException ex) {
+            throw new IamDataAccessException(ex.getMessage(), ex, ErrorCode.UNKNOWN_COLUMN);
+        }
+    }
+
+    // Render the criteria with its parameters, empty for no criteria
+    private String renderCriteria(Criteria filter, List<Object> args) throws IamDataAccessException
+    {
+        if (filter == null) return "";
+
+        final StringBuilder where = new StringBuilder();
+        try {
+            filter.render(metadata, where, args);
+        }
+        catch (final IllegalArgumentException ex) {
+            throw new IamDataAccessException(ex.getMessage(), ex, ErrorCode.UNKNOWN_COLUMN);
+        }
+
+        return where.toString();
+    }
+
     /**
      * This method delete a record in table, basing on its primary key defined by
      * parameter
@@ -351,12 +1184,11 @@ public abstract class BaseJdbcDAO<T, E>
      */
     public void delete(E uid) throws IamDataAccessException
     {
-        String sql = "";
+        final SqlTemplate sql = templates.get(table, "delete", primaryKey,
+                () -> new SqlTemplate(String.format("DELETE FROM %1$s WHERE %2$s = ?;", table, primaryKey)));
 
         try {
-            sql = String.format("DELETE FROM %1$s WHERE %2$s = %3$s;", table, primaryKey, uid);
-
-            jdbc.execute(sql);
+            jdbc.update(sql.getSql(), uid);
         }
         catch (final EmptyResultDataAccessException ex) {
             // No record found
@@ -367,4 +1199,69 @@ public abstract class BaseJdbcDAO<T, E>
                     ErrorCode.DATA_ACCESS_ERROR);
         }
     }
+
+    /**
+     * Run create(entity) on the JdbcExecutor
+     */
+    public CompletableFuture<Void> createAsync(T entity)
+    {
+        return asyncExecutor.supply(() -> {
+            create(entity);
+            return null;
+        });
+    }
+
+    /**
+     * Run delete(uid) on the JdbcExecutor
+     */
+    public CompletableFuture<Void> deleteAsync(E uid)
+    {
+        return asyncExecutor.supply(() -> {
+            delete(uid);
+            return null;
+        });
+    }
+
+    /**
+     * Run get(uid) on the JdbcExecutor
+     */
+    public CompletableFuture<T> getAsync(E uid)
+    {
+        return asyncExecutor.supply(() -> get(uid));
+    }
+
+    /**
+     * Run getAll(uids) on the JdbcExecutor
+     */
+    public CompletableFuture<Map<E, T>> getAllAsync(Collection<E> uids)
+    {
+        return asyncExecutor.supply(() -> getAll(uids));
+    }
+
+    /**
+     * Run search(filter, sort) on the JdbcExecutor
+     */
+    public CompletableFuture<List<T>> searchAsync(Criteria filter, String sort)
+    {
+        return asyncExecutor.supply(() -> search(filter, sort));
+    }
+
+    /**
+     * Run search(filter, sort, projection) on the JdbcExecutor
+     */
+    public <R> CompletableFuture<List<R>> searchAsync(Criteria filter, String sort, Projection<R> projection)
+    {
+        return asyncExecutor.supply(() -> search(filter, sort, projection));
+    }
+
+    /**
+     * Run update(entity) on the JdbcExecutor
+     */
+    public CompletableFuture<Void> updateAsync(T entity)
+    {
+        return asyncExecutor.supply(() -> {
+            update(entity);
+            return null;
+        });
+    }
 }
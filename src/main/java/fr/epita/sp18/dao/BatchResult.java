@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fr.epita.sp18.exception.ErrorCode;
+
+/**
+ * Result of a batched DAO operation. A batch does not stop at the first failed
+ * row: every row that could not be written is reported with its position in
+ * the submitted collection, so that the caller can tell which entities were
+ * saved and which were not. Rows that are not listed in the failures are saved
+ * successfully.
+ *
+ * @author Philip
+ *
+ * @param <T>
+ *            Type of the entity
+ */
+public class BatchResult<T>
+{
+    private final int              total;
+    private final List<Failure<T>> failures = new ArrayList<>();
+
+    public BatchResult(int total)
+    {
+        this.total = total;
+    }
+
+    /**
+     * @return number of rows submitted to the batch
+     */
+    public int getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * @return number of rows written successfully
+     */
+    public int getSucceeded()
+    {
+        return total - failures.size();
+    }
+
+    /**
+     * @return the failed rows, ordered by their position in the batch
+     */
+    public List<Failure<T>> getFailures()
+    {
+        return Collections.unmodifiableList(failures);
+    }
+
+    public boolean hasFailures()
+    {
+        return !failures.isEmpty();
+    }
+
+    void addFailure(int index, T entity, ErrorCode code, String message)
+    {
+        failures.add(new Failure<>(index, entity, code, message));
+    }
+
+    /**
+     * A row of the batch that could not be written
+     *
+     * @param <T>
+     *            Type of the entity
+     */
+    public static class Failure<T>
+    {
+        private final int       index;
+        private final T         entity;
+        private final ErrorCode code;
+        private final String    message;
+
+        public Failure(int index, T entity, ErrorCode code, String message)
+        {
+            this.index = index;
+            this.entity = entity;
+            this.code = code;
+            this.message = message;
+        }
+
+        /**
+         * @return position of the row in the submitted collection, starting from 0
+         */
+        public int getIndex()
+        {
+            return index;
+        }
+
+        public T getEntity()
+        {
+            return entity;
+        }
+
+        public ErrorCode getCode()
+        {
+            return code;
+        }
+
+        public String getMessage()
+        {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Criteria is a small typed builder for the WHERE clause of DAO's searches.
+ * Values are never written into the SQL text: every value becomes a "?"
+ * parameter that is bound when the statement is executed. Criteria of the same
+ * shape therefore always render the same SQL text, so the database can reuse
+ * its query plan. Column names are checked against the entity's columns when
+ * the criteria is rendered.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * Criteria.contains("name", "hugo").or(Criteria.contains("email", "hugo"))
+ * </pre>
+ *
+ * renders "(LOWER(name) LIKE ? ESCAPE '\' OR LOWER(email) LIKE ? ESCAPE '\')"
+ * with the parameters "%hugo%", "%hugo%"
+ * <p>
+ * A criteria can also be evaluated against an entity in memory, with the same
+ * meaning as its SQL, for the DAOs that do not store their entities in the
+ * database
+ *
+ * @author Philip
+ *
+ */
+public final class Criteria
+{
+    private static final char LIKE_ESCAPE = '\\';
+
+    @FunctionalInterface
+    private interface Renderer
+    {
+        void render(EntityMetadata<?> metadata, StringBuilder sql, List<Object> args);
+    }
+
+    @FunctionalInterface
+    private interface Matcher
+    {
+        boolean matches(EntityMetadata<?> metadata, Object entity);
+    }
+
+    private final Renderer renderer;
+    private final Matcher  matcher;
+
+    private Criteria(Renderer renderer, Matcher matcher)
+    {
+        this.renderer = renderer;
+        this.matcher = matcher;
+    }
+
+    /**
+     * column = value
+     *
+     * @param column
+     *            Name of the column
+     * @param value
+     *            Expected value of the column
+     * @return the criteria
+     */
+    public static Criteria eq(String column, Object value)
+    {
+        return new Criteria((metadata, sql, args) -> {
+            sql.append(column(metadata, column)).append(" = ?");
+            args.add(value);
+        }, (metadata, entity) -> Objects.equals(value(metadata, column, entity), value));
+    }
+
+    /**
+     * LOWER(column) LIKE '%keyword%'. The keyword is matched literally, case
+     * insensitive: "%" and "_" in the keyword are not wildcards
+     *
+     * @param column
+     *            Name of the column
+     * @param keyword
+     *            The text the column must contain
+     * @return the criteria
+     */
+    public static Criteria contains(String column, String keyword)
+    {
+        final String text = keyword.toLowerCase();
+
+        return like(column, "%" + escapeLike(text) + "%", value -> value.contains(text));
+    }
+
+    private static Criteria like(String column, String pattern, Predicate<String> test)
+    {
+        return new Criteria((metadata, sql, args) -> {
+            sql.append("LOWER(").append(column(metadata, column)).append(") LIKE ? ESCAPE '")
+                    .append(LIKE_ESCAPE).append('\'');
+            args.add(pattern);
+        }, (metadata, entity) -> {
+            final Object value = value(metadata, column, entity);
+            return value != null && test.test(value.toString().toLowerCase());
+        });
+    }
+
+    /**
+     * LOWER(column) LIKE 'prefix%'. The prefix is matched literally, case
+     * insensitive
+     *
+     * @param column
+     *            Name of the column
+     * @param prefix
+     *            The text the column must start with
+     * @return the criteria
+     */
+    public static Criteria startsWith(String column, String prefix)
+    {
+        final String text = prefix.toLowerCase();
+
+        return like(column, escapeLike(text) + "%", value -> value.startsWith(text));
+    }
+
+    /**
+     * (this AND other)
+     *
+     * @param other
+     *            The other criteria
+     * @return the criteria
+     */
+    public Criteria and(Criteria other)
+    {
+        return combine(this, "AND", other);
+    }
+
+    /**
+     * (this OR other)
+     *
+     * @param other
+     *            The other criteria
+     * @return the criteria
+     */
+    public Criteria or(Criteria other)
+    {
+        return combine(this, "OR", other);
+    }
+
+    /**
+     * Write the criteria as SQL into the buffer and its values into the parameter
+     * list, in the order of their "?"
+     *
+     * @param metadata
+     *            Metadata of the searched entity
+     * @param sql
+     *            The buffer for the SQL text
+     * @param args
+     *            The parameter list
+     * @throws IllegalArgumentException
+     *             when a column is not a column of the entity
+     */
+    public void render(EntityMetadata<?> metadata, StringBuilder sql, List<Object> args)
+    {
+        renderer.render(metadata, sql, args);
+    }
+
+    /**
+     * Evaluate the criteria against an entity, as the database would evaluate its
+     * SQL against the entity's row. Values are compared as they are, without the
+     * type conversions of the database
+     *
+     * @param metadata
+     *            Metadata of the searched entity
+     * @param entity
+     *            The entity
+     * @return true when the entity matches the criteria
+     * @throws IllegalArgumentException
+     *             when a column is not a column of the entity
+     */
+    public boolean matches(EntityMetadata<?> metadata, Object entity)
+    {
+        return matcher.matches(metadata, entity);
+    }
+
+    /**
+     * Escape the LIKE wildcards of a text so that it is matched literally
+     *
+     * @param text
+     *            The text
+     * @return the escaped text
+     */
+    public static String escapeLike(String text)
+    {
+        final StringBuilder result = new StringBuilder(text.length() + 8);
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '%' || c == '_' || c == LIKE_ESCAPE) {
+                result.append(LIKE_ESCAPE);
+            }
+            result.append(c);
+        }
+
+        return result.toString();
+    }
+
+    private static Criteria combine(Criteria left, String operator, Criteria right)
+    {
+        return new Criteria((metadata, sql, args) -> {
+            sql.append('(');
+            left.render(metadata, sql, args);
+            sql.append(' ').append(operator).append(' ');
+            right.render(metadata, sql, args);
+            sql.append(')');
+        }, (metadata, entity) -> "AND".equals(operator)
+                ? left.matches(metadata, entity) && right.matches(metadata, entity)
+                : left.matches(metadata, entity) || right.matches(metadata, entity));
+    }
+
+    private static String column(EntityMetadata<?> metadata, String column)
+    {
+        return metadata.getColumn(indexOf(metadata, column));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object value(EntityMetadata<?> metadata, String column, Object entity)
+    {
+        return ((EntityMetadata<Object>) metadata).getValue(entity, indexOf(metadata, column));
+    }
+
+    private static int indexOf(EntityMetadata<?> metadata, String column)
+    {
+        final int index = metadata.indexOf(column);
+
+        if (index < 0) {
+            throw new IllegalArgumentException(String.format("%1$s has no column %2$s",
+                    metadata.getType().getName(), column));
+        }
+
+        return index;
+    }
+}
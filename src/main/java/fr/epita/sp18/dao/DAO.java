@@ -3,7 +3,10 @@
  */
 package fr.epita.sp18.dao;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import fr.epita.sp18.exception.IamDataAccessException;
 import fr.epita.sp18.exception.IamDataIntegrityViolationException;
@@ -24,13 +27,33 @@ public interface DAO<T, E>
 {
     void create(T entity) throws IamDataAccessException, IamDuplicateKeyException;
 
+    BatchResult<T> createAll(Collection<T> entities) throws IamDataAccessException;
+
     void delete(E uid) throws IamDataAccessException, IamDataIntegrityViolationException;
 
     T get(E uid) throws IamDataAccessException;
 
-    List<T> search(String filter, String sort) throws IamDataAccessException;
+    <R> R get(E uid, Projection<R> projection) throws IamDataAccessException;
+
+    Map<E, T> getAll(Collection<E> uids) throws IamDataAccessException;
+
+    List<T> search(Criteria filter, String sort) throws IamDataAccessException;
+
+    <R> List<R> search(Criteria filter, String sort, Projection<R> projection) throws IamDataAccessException;
+
+    int search(Criteria filter, String sort, Consumer<? super T> consumer) throws IamDataAccessException;
+
+    <R> int search(Criteria filter, String sort, Projection<R> projection, Consumer<? super R> consumer)
+            throws IamDataAccessException;
+
+    List<T> search(Criteria filter, String sort, T after, int limit) throws IamDataAccessException;
+
+    <R> List<R> search(Criteria filter, String sort, T after, int limit, Projection<R> projection)
+            throws IamDataAccessException;
 
     void update(T entity) throws IamDataAccessException, IamDataIntegrityViolationException;
 
     void update(T entity, String fields) throws IamDataAccessException, IamDataIntegrityViolationException;
+
+    BatchResult<T> updateAll(Collection<T> entities) throws IamDataAccessException;
 }
@@ -0,0 +1,377 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+
+/**
+ * EntityMetadata keeps everything BaseJdbcDAO needs to know about an entity
+ * class: its column list, the getter/setter of every column and the accessor
+ * of the primary key. The metadata is built once per entity class, with
+ * MethodHandle accessors, and then shared by all DAO calls. It replaces the
+ * Jackson conversion and the reflection lookups that were done on every
+ * create/update and the BeanPropertyRowMapper that was built on every query.
+ * <p>
+ * A column is a property of the entity that has both a getter and a setter.
+ * Columns are ordered as their fields are declared in the entity class.
+ *
+ * @author Philip
+ *
+ * @param <T>
+ *            Type of the entity
+ */
+public final class EntityMetadata<T>
+{
+    private static final Map<Class<?>, EntityMetadata<?>> registry = new ConcurrentHashMap<>();
+
+    private final Class<T>       type;
+    private final String         primaryKey;
+    private final int            primaryKeyIndex;
+    private final String[]       columns;
+    private final String[]       nonKeyColumns;
+    private final Class<?>[]     columnTypes;
+    private final MethodHandle[] getters;
+    private final MethodHandle[] setters;
+    private final MethodHandle   constructor;
+
+    // Column name (case insensitive, because databases return upper case labels)
+    // to its position in the columns array
+    private final Map<String, Integer> columnIndex = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Get the metadata of an entity class. The metadata is built on the first call
+     * and then reused by the next ones
+     *
+     * @param clazz
+     *            Definition of the entity
+     * @param pkName
+     *            Name of the entity's primary key property
+     * @return the metadata of the entity class
+     * @throws IllegalArgumentException
+     *             when the class has no public no-arg constructor, or when the
+     *             primary key is not one of its columns
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> EntityMetadata<T> of(Class<T> clazz, String pkName)
+    {
+        EntityMetadata<T> metadata = (EntityMetadata<T>) registry.computeIfAbsent(clazz,
+                c -> new EntityMetadata<>(clazz, pkName));
+
+        if (!metadata.primaryKey.equals(pkName)) {
+            throw new IllegalArgumentException(String.format(
+                    "EntityMetadata of %1$s is already registered with primary key %2$s",
+                    clazz.getName(), metadata.primaryKey));
+        }
+
+        return metadata;
+    }
+
+    private EntityMetadata(Class<T> clazz, String pkName)
+    {
+        type = clazz;
+        primaryKey = pkName;
+
+        final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        final Map<String, PropertyDescriptor> properties = new HashMap<>();
+
+        try {
+            for (PropertyDescriptor property : Introspector.getBeanInfo(clazz, Object.class)
+                    .getPropertyDescriptors()) {
+                if ((property.getReadMethod() != null) && (property.getWriteMethod() != null)) {
+                    properties.put(property.getName(), property);
+                }
+            }
+
+            constructor = lookup.findConstructor(clazz, MethodType.methodType(void.class));
+        }
+        catch (final IntrospectionException | ReflectiveOperationException ex) {
+            throw new IllegalArgumentException("EntityMetadata can not introspect " + clazz.getName(), ex);
+        }
+
+        // Keep the declaration order of the fields, the same for every JVM run
+        final List<PropertyDescriptor> ordered = new ArrayList<>();
+        for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass()) {
+            int position = 0;
+            for (Field field : c.getDeclaredFields()) {
+                PropertyDescriptor property = properties.remove(field.getName());
+                if (property != null) {
+                    ordered.add(position++, property);
+                }
+            }
+        }
+        ordered.addAll(properties.values());
+
+        final int size = ordered.size();
+        columns = new String[size];
+        columnTypes = new Class<?>[size];
+        getters = new MethodHandle[size];
+        setters = new MethodHandle[size];
+
+        int pkIndex = -1;
+        try {
+            for (int i = 0; i < size; i++) {
+                PropertyDescriptor property = ordered.get(i);
+                columns[i] = property.getName();
+                columnTypes[i] = property.getPropertyType();
+                getters[i] = lookup.unreflect(property.getReadMethod());
+                setters[i] = lookup.unreflect(property.getWriteMethod());
+                columnIndex.put(columns[i], i);
+
+                if (columns[i].equals(pkName)) {
+                    pkIndex = i;
+                }
+            }
+        }
+        catch (final IllegalAccessException ex) {
+            throw new IllegalArgumentException("EntityMetadata can not access " + clazz.getName(), ex);
+        }
+
+        if (pkIndex < 0) {
+            throw new IllegalArgumentException(String.format("%1$s has no primary key property %2$s",
+                    clazz.getName(), pkName));
+        }
+
+        primaryKeyIndex = pkIndex;
+        nonKeyColumns = new String[size - 1];
+        for (int i = 0, j = 0; i < size; i++) {
+            if (i != pkIndex) {
+                nonKeyColumns[j++] = columns[i];
+            }
+        }
+    }
+
+    /**
+     * @return Definition of the entity
+     */
+    public Class<T> getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return Name of the primary key property
+     */
+    public String getPrimaryKey()
+    {
+        return primaryKey;
+    }
+
+    /**
+     * @return Type of the primary key property
+     */
+    public Class<?> getPrimaryKeyType()
+    {
+        return columnTypes[primaryKeyIndex];
+    }
+
+    /**
+     * The column list of the entity. The returned array is shared, callers must not
+     * modify it
+     *
+     * @param includePK
+     *            true to include the primary key column in the list
+     * @return the column names
+     */
+    public String[] getColumns(boolean includePK)
+    {
+        return includePK ? columns : nonKeyColumns;
+    }
+
+    /**
+     * Name of a column, as declared in the entity class
+     *
+     * @param index
+     *            Position of the column in the column list
+     * @return the column name
+     */
+    public String getColumn(int index)
+    {
+        return columns[index];
+    }
+
+    /**
+     * Position of a column in the column list
+     *
+     * @param column
+     *            Name of the column, case insensitive
+     * @return the position, or -1 when the entity does not have this column
+     */
+    public int indexOf(String column)
+    {
+        Integer index = columnIndex.get(column);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Read the primary key value of an entity
+     *
+     * @param entity
+     *            The entity
+     * @return the primary key value
+     */
+    public Object getPrimaryKeyValue(T entity)
+    {
+        return getValue(entity, primaryKeyIndex);
+    }
+
+    /**
+     * Write the primary key value of an entity
+     *
+     * @param entity
+     *            The entity
+     * @param value
+     *            The primary key value, must be the primary key property type
+     */
+    public void setPrimaryKeyValue(T entity, Object value)
+    {
+        setValue(entity, primaryKeyIndex, value);
+    }
+
+    /**
+     * Read the value of a column
+     *
+     * @param entity
+     *            The entity
+     * @param index
+     *            Position of the column in the column list
+     * @return the column value
+     */
+    public Object getValue(T entity, int index)
+    {
+        try {
+            return getters[index].invoke(entity);
+        }
+        catch (final Throwable ex) {
+            throw new IllegalStateException(String.format("Can not read %1$s.%2$s", type.getName(), columns[index]),
+                    ex);
+        }
+    }
+
+    /**
+     * Write the value of a column
+     *
+     * @param entity
+     *            The entity
+     * @param index
+     *            Position of the column in the column list
+     * @param value
+     *            The column value
+     */
+    public void setValue(T entity, int index, Object value)
+    {
+        try {
+            setters[index].invoke(entity, value);
+        }
+        catch (final Throwable ex) {
+            throw new IllegalStateException(String.format("Can not write %1$s.%2$s", type.getName(), columns[index]),
+                    ex);
+        }
+    }
+
+    /**
+     * Inject the entity's values into the parameters of a prepared statement, in
+     * the order of the columns list
+     *
+     * @param ps
+     *            The statement. Its first parameters are the columns values
+     * @param entity
+     *            The entity
+     * @param fields
+     *            The column list
+     * @return index of the next free parameter of the statement
+     * @throws SQLException
+     *             when a column is unknown or can not be set into the statement
+     */
+    public int bind(PreparedStatement ps, T entity, String[] fields) throws SQLException
+    {
+        int parameter = 1;
+
+        for (String field : fields) {
+            int index = indexOf(field);
+            if (index < 0) {
+                throw new SQLException(String.format("%1$s has no column %2$s", type.getName(), field));
+            }
+
+            ps.setObject(parameter++, getValue(entity, index));
+        }
+
+        return parameter;
+    }
+
+    /**
+     * Build a RowMapper that creates the entity from the rows of a query. The
+     * mapper resolves the result set columns once, on the first row, so it must
+     * not be shared between concurrent queries
+     *
+     * @return the row mapper
+     */
+    public RowMapper<T> newRowMapper()
+    {
+        return new EntityRowMapper();
+    }
+
+    private T newInstance()
+    {
+        try {
+            return type.cast(constructor.invoke());
+        }
+        catch (final Throwable ex) {
+            throw new IllegalStateException("Can not instantiate " + type.getName(), ex);
+        }
+    }
+
+    private class EntityRowMapper implements RowMapper<T>
+    {
+        // Result set column (1-based) to entity column index, -1 when not mapped
+        private int[] mapping;
+
+        @Override
+        public T mapRow(ResultSet rs, int rowNum) throws SQLException
+        {
+            if (mapping == null) {
+                ResultSetMetaData meta = rs.getMetaData();
+                mapping = new int[meta.getColumnCount() + 1];
+
+                for (int i = 1; i < mapping.length; i++) {
+                    mapping[i] = indexOf(JdbcUtils.lookupColumnName(meta, i));
+                }
+            }
+
+            final T entity = newInstance();
+
+            for (int i = 1; i < mapping.length; i++) {
+                int index = mapping[i];
+                if (index < 0) {
+                    continue;
+                }
+
+                Object value = JdbcUtils.getResultSetValue(rs, i, columnTypes[index]);
+                if ((value != null) || !columnTypes[index].isPrimitive()) {
+                    setValue(entity, index, value);
+                }
+            }
+
+            return entity;
+        }
+    }
+}
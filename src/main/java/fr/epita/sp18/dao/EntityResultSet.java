@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+
+/**
+ * EntityResultSet presents the projected columns of an entity as the current
+ * row of a read-only ResultSet, so that the mappers of the projections, written
+ * for the rows of a query, also map the entities of a DAO that keeps them in
+ * memory.
+ * <p>
+ * Only the getters a mapper uses are supported: getObject, getString, getLong,
+ * getInt, getBoolean and getDouble, by position or by label, and wasNull. A
+ * result set is moved from an entity to the next one with setRow, it must not
+ * be shared between concurrent queries
+ *
+ * @author Philip
+ *
+ */
+final class EntityResultSet<T> implements InvocationHandler
+{
+    private final EntityMetadata<T> metadata;
+    private final String[]          labels;
+    private final int[]             indexes;
+    private final ResultSet         resultSet;
+
+    private T       row;
+    private boolean wasNull;
+
+    /**
+     * @param metadata
+     *            Metadata of the entity
+     * @param columns
+     *            Names of the columns of the result set, in order
+     * @throws IllegalArgumentException
+     *             when a column is not a column of the entity
+     */
+    EntityResultSet(EntityMetadata<T> metadata, String[] columns)
+    {
+        this.metadata = metadata;
+        this.labels = columns;
+        this.indexes = new int[columns.length];
+
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = metadata.indexOf(columns[i]);
+
+            if (indexes[i] < 0) {
+                throw new IllegalArgumentException(String.format("%1$s has no column %2$s",
+                        metadata.getType().getName(), columns[i]));
+            }
+        }
+
+        resultSet = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, this);
+    }
+
+    /**
+     * Make an entity the current row
+     *
+     * @param entity
+     *            The entity
+     * @return the result set, positioned on the entity
+     */
+    ResultSet setRow(T entity)
+    {
+        row = entity;
+        wasNull = false;
+
+        return resultSet;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        switch (method.getName()) {
+            case "wasNull":
+                return wasNull;
+            case "findColumn":
+                return findColumn((String) args[0]);
+            case "isClosed":
+                return false;
+            case "close":
+                return null;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "EntityResultSet" + Arrays.toString(labels);
+            default:
+                break;
+        }
+
+        if (args == null || args.length != 1 || !method.getName().startsWith("get")) {
+            throw new SQLFeatureNotSupportedException("EntityResultSet does not support " + method.getName());
+        }
+
+        final int column = args[0] instanceof String ? findColumn((String) args[0]) : (Integer) args[0];
+
+        if (column < 1 || column > indexes.length) {
+            throw new SQLException("Invalid column index " + column);
+        }
+
+        final Object value = metadata.getValue(row, indexes[column - 1]);
+        wasNull = value == null;
+
+        switch (method.getName()) {
+            case "getObject":
+                return value;
+            case "getString":
+                return value == null ? null : value.toString();
+            case "getLong":
+                return value == null ? 0L : ((Number) value).longValue();
+            case "getInt":
+                return value == null ? 0 : ((Number) value).intValue();
+            case "getDouble":
+                return value == null ? 0d : ((Number) value).doubleValue();
+            case "getBoolean":
+                return value != null && (Boolean) value;
+            default:
+                throw new SQLFeatureNotSupportedException("EntityResultSet does not support " + method.getName());
+        }
+    }
+
+    private int findColumn(String label) throws SQLException
+    {
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].equalsIgnoreCase(label)) return i + 1;
+        }
+
+        throw new SQLException("Invalid column label " + label);
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import fr.epita.sp18.entity.Group;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+
+/**
+ * This class implements DAO interface by extending the BaseJdbcDAO, so that it
+ * can perform CRUD operation on Groups table, on the GroupMembers link table,
+ * and on the GroupChanges log of the groups and identities whose memberships
+ * changed
+ *
+ * @author Philip
+ *
+ */
+@Component
+public class GroupDAO extends BaseJdbcDAO<Group, Long> implements DAO<Group, Long>
+{
+    /**
+     * Construct GroupDAO class with table name is "Groups" and primary key is
+     * "uid"
+     */
+    public GroupDAO()
+    {
+        super("Groups", "uid", Group.class);
+    }
+
+    /**
+     * Add an identity to a group. Nothing happens when it is already a member
+     *
+     * @param groupUid
+     *            Primary key of the group
+     * @param identityUid
+     *            Primary key of the identity
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void addMember(Long groupUid, Long identityUid) throws IamDataAccessException
+    {
+        link("addMember", "INSERT INTO GroupMembers (groupUid, identityUid) VALUES (?, ?);", groupUid, identityUid);
+    }
+
+    /**
+     * Remove an identity from a group
+     *
+     * @param groupUid
+     *            Primary key of the group
+     * @param identityUid
+     *            Primary key of the identity
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void removeMember(Long groupUid, Long identityUid) throws IamDataAccessException
+    {
+        link("removeMember", "DELETE FROM GroupMembers WHERE groupUid = ? AND identityUid = ?;", groupUid,
+                identityUid);
+    }
+
+    /**
+     * Remove an identity from all groups, e.g. when it is deleted
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void removeIdentity(Long identityUid) throws IamDataAccessException
+    {
+        link("removeIdentity", "DELETE FROM GroupMembers WHERE identityUid = ?;", identityUid);
+    }
+
+    /**
+     * Remove all members of a group, e.g. before it is deleted
+     *
+     * @param groupUid
+     *            Primary key of the group
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void removeMembers(Long groupUid) throws IamDataAccessException
+    {
+        link("removeMembers", "DELETE FROM GroupMembers WHERE groupUid = ?;", groupUid);
+    }
+
+    /**
+     * Read the members of all groups, one row at a time
+     *
+     * @param consumer
+     *            Receives the group uid and the identity uid of every membership,
+     *            sorted by identity uid
+     * @return the number of memberships
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public int readMembers(BiConsumer<Long, Long> consumer) throws IamDataAccessException
+    {
+        final SqlTemplate sql = templates.get("Groups", "readMembers", "groupUid,identityUid",
+                () -> new SqlTemplate("SELECT groupUid, identityUid FROM GroupMembers ORDER BY identityUid;"));
+        final int[] count = new int[1];
+
+        try {
+            jdbc.query(sql.getSql(), rs -> {
+                consumer.accept(rs.getLong(1), rs.getLong(2));
+                count[0]++;
+            });
+
+            return count[0];
+        }
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
+
+    /**
+     * Read the members of some groups, or the groups of some identities, one row
+     * at a time
+     *
+     * @param byGroup
+     *            true when the uids are group uids, false for identity uids
+     * @param uids
+     *            Primary keys of the groups or of the identities
+     * @param consumer
+     *            Receives the group uid and the identity uid of every membership
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void readMembers(boolean byGroup, Collection<Long> uids, BiConsumer<Long, Long> consumer)
+            throws IamDataAccessException
+    {
+        final String column = byGroup ? "groupUid" : "identityUid";
+        final List<Long> keys = new ArrayList<>(uids);
+        final int chunk = Math.max(batchSize, 1);
+
+        for (int from = 0; from < keys.size(); from += chunk) {
+            final int to = Math.min(from + chunk, keys.size());
+
+            // Round the key count up to a power of 2, as getAll does
+            final int size = Integer.highestOneBit(to - from) == to - from
+                    ? to - from
+                    : Integer.highestOneBit(to - from) << 1;
+            final Object[] args = new Object[size];
+
+            for (int i = 0; i < size; i++) {
+                args[i] = keys.get(from + (i < to - from ? i : 0));
+            }
+
+            final SqlTemplate sql = templates.get("Groups", "readMembers", column + "|" + size, () -> {
+                String[] values = new String[size];
+                Arrays.fill(values, "?");
+
+                return new SqlTemplate(String.format(
+                        "SELECT groupUid, identityUid FROM GroupMembers WHERE %1$s IN (%2$s);", column,
+                        String.join(", ", values)));
+            });
+
+            try {
+                jdbc.query(sql.getSql(), (RowCallbackHandler) rs -> consumer.accept(rs.getLong(1), rs.getLong(2)),
+                        args);
+            }
+            catch (final DataAccessException ex) {
+                throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                        ErrorCode.DATA_ACCESS_ERROR);
+            }
+        }
+    }
+
+    /**
+     * Log a change of the memberships, for the other nodes to read them again
+     *
+     * @param groupUid
+     *            Primary key of the group that was created or deleted, or whose
+     *            member changed. null when an identity left all groups
+     * @param identityUid
+     *            Primary key of the identity that joined or left the group, or
+     *            left all groups. null when the group was created or deleted
+     * @param changedAt
+     *            Time of the change, in milliseconds
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void logChange(Long groupUid, Long identityUid, long changedAt) throws IamDataAccessException
+    {
+        link("logChange", "INSERT INTO GroupChanges (uid, groupUid, identityUid, changedAt) VALUES (?, ?, ?, ?);",
+                idGenerator.nextId(), groupUid, identityUid, changedAt);
+    }
+
+    /**
+     * Read the changes logged since a time, one row at a time
+     *
+     * @param since
+     *            Time, in milliseconds, from which the changes are read
+     * @param consumer
+     *            Receives the group uid and the identity uid of every change,
+     *            either of them null as in logChange
+     * @return the number of changes
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public int readChanges(long since, BiConsumer<Long, Long> consumer) throws IamDataAccessException
+    {
+        final SqlTemplate sql = templates.get("Groups", "readChanges", "groupUid,identityUid",
+                () -> new SqlTemplate("SELECT groupUid, identityUid FROM GroupChanges WHERE changedAt >= ?;"));
+        final int[] count = new int[1];
+
+        try {
+            jdbc.query(sql.getSql(), rs -> {
+                final long groupUid = rs.getLong(1);
+                final Long group = rs.wasNull() ? null : groupUid;
+                final long identityUid = rs.getLong(2);
+
+                consumer.accept(group, rs.wasNull() ? null : identityUid);
+                count[0]++;
+            }, since);
+
+            return count[0];
+        }
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
+
+    /**
+     * Delete the changes logged before a time
+     *
+     * @param before
+     *            Time, in milliseconds, before which the changes are deleted
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void deleteChanges(long before) throws IamDataAccessException
+    {
+        link("deleteChanges", "DELETE FROM GroupChanges WHERE changedAt < ?;", before);
+    }
+
+    private void link(String operation, String statement, Object... args) throws IamDataAccessException
+    {
+        final SqlTemplate sql = templates.get("Groups", operation, "", () -> new SqlTemplate(statement));
+
+        try {
+            jdbc.update(sql.getSql(), args);
+        }
+        catch (final DuplicateKeyException ex) {
+            // Already a member
+        }
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
+}
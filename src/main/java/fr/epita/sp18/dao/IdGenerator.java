@@ -0,0 +1,19 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+/**
+ * IdGenerator generates the primary keys of the records inserted by
+ * BaseJdbcDAO. An implementation must be thread safe and must never return the
+ * same value twice, across threads, nodes and restarts. The default
+ * implementation is SnowflakeIdGenerator, see AppConfig
+ *
+ * @author Philip
+ *
+ */
+@FunctionalInterface
+public interface IdGenerator
+{
+    long nextId();
+}
@@ -3,20 +3,33 @@
  */
 package fr.epita.sp18.dao;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Component;
 
 import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
 
 /**
  * This class implements DAO interface by extending the BaseJdbcDAO, so that it
- * can perform CRUD operation on Identity table
+ * can perform CRUD operation on Identity table. It is the storage of the
+ * identities unless iam.storage=memory, see MemoryIdentityDAO
  *
  * @author Philip
  *
  */
 @Component
-public class IdentityDAO extends BaseJdbcDAO<Identity, Long> implements DAO<Identity, Long>
+@ConditionalOnProperty(name = "iam.storage", havingValue = "jdbc", matchIfMissing = true)
+public class IdentityDAO extends BaseJdbcDAO<Identity, Long> implements DAO<Identity, Long>, AsyncDAO<Identity, Long>
 {
+    /**
+     * uid, name and email of the identities, without the password hash
+     */
+    public static final Projection<Identity> NAME_AND_EMAIL = Projection.of(
+            (rs, i) -> new Identity(rs.getLong(1), rs.getString(2), rs.getString(3), null, null),
+            "uid", "name", "email");
+
     /**
      * Construct IdentityDAO class with table name is "Identities" and primary key
      * is "uid"
@@ -25,4 +38,49 @@ public class IdentityDAO extends BaseJdbcDAO<Identity, Long> implements DAO<Iden
     {
         super("Identities", "uid", Identity.class);
     }
+
+    /**
+     * Query the identity by its normalized email, through the unique index
+     * UK_Identities_normalizedEmail
+     *
+     * @param normalizedEmail
+     *            Email of the identity in upper case
+     * @return the identity if found or null when not found
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public Identity getByNormalizedEmail(String normalizedEmail) throws IamDataAccessException
+    {
+        return getBy("normalizedEmail", normalizedEmail);
+    }
+
+    /**
+     * Replace the password hash of an identity, only if it is still the expected
+     * one
+     *
+     * @param uid
+     *            Primary key of the identity
+     * @param expected
+     *            The password hash the identity must have
+     * @param passwordHash
+     *            The new password hash
+     * @return true when the hash was replaced, false when the identity does not
+     *         exist or its hash is not the expected one any more
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public boolean replacePasswordHash(Long uid, String expected, String passwordHash)
+            throws IamDataAccessException
+    {
+        final SqlTemplate sql = templates.get("Identities", "replacePasswordHash", "passwordHash",
+                () -> new SqlTemplate("UPDATE Identities SET passwordHash = ? WHERE uid = ? AND passwordHash = ?;"));
+
+        try {
+            return jdbc.update(sql.getSql(), passwordHash, uid, expected) > 0;
+        }
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
 }
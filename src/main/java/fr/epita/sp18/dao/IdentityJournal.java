@@ -0,0 +1,440 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import fr.epita.sp18.entity.Identity;
+
+/**
+ * IdentityJournal makes the identities of MemoryIdentityDAO durable, in a
+ * directory of the local file system:
+ * <p>
+ * identities.snapshot - all the identities at a sequence number, written from
+ * time to time
+ * <p>
+ * identities-&lt;sequence&gt;.wal - the write-ahead log segments. Every change
+ * is appended to the current segment, with a sequence number and a checksum,
+ * before it is applied in memory, and forced to the disk when sync is set. A
+ * segment is named
+ * after its first sequence number; a new segment is started by roll(), and the
+ * segments a snapshot covers are deleted once the snapshot is written.
+ * <p>
+ * Recovery reads the snapshot, then replays the changes of the segments that
+ * came after it. A change that was not completely written, cut by a crash, ends
+ * the replay of its segment.
+ * <p>
+ * The writing methods are not thread-safe: write and roll must be called under
+ * the write lock of the DAO, and snapshots must not run concurrently
+ *
+ * @author Philip
+ *
+ */
+final class IdentityJournal implements Closeable
+{
+    private static final Logger logger = LogManager.getLogger("IdentityJournal");
+
+    private static final String SNAPSHOT       = "identities.snapshot";
+    private static final String SEGMENT_PREFIX = "identities-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final int    MAGIC          = 0x49414d31;
+
+    private static final byte PUT    = 1;
+    private static final byte DELETE = 2;
+
+    /**
+     * Receives the identities read by the recovery
+     */
+    interface Replay
+    {
+        void put(Identity identity);
+
+        void delete(Long uid);
+    }
+
+    private final Path    directory;
+    private final boolean sync;
+
+    private FileChannel segment;
+    private long        sequence;
+    private IOException failure;
+
+    /**
+     * @param directory
+     *            Directory of the snapshot and log segments, created if needed
+     * @param sync
+     *            true to force every write to the disk before it is acknowledged.
+     *            false leaves it to the operating system: a crash of the host may
+     *            lose the last writes, a crash of the process does not
+     */
+    IdentityJournal(Path directory, boolean sync)
+    {
+        this.directory = directory;
+        this.sync = sync;
+    }
+
+    /**
+     * @return true when the directory has a snapshot. The first snapshot is
+     *         written when the storage is created, a log without snapshot holds no
+     *         change
+     */
+    boolean exists()
+    {
+        return Files.exists(directory.resolve(SNAPSHOT));
+    }
+
+    /**
+     * Read the snapshot and replay the log, then start a new log segment for the
+     * next changes
+     *
+     * @param replay
+     *            Receives the identities of the snapshot and the changes of the
+     *            log, in order
+     * @return the number of changes replayed from the log
+     * @throws IOException
+     *             when the snapshot is corrupted or a file can not be read
+     */
+    int recover(Replay replay) throws IOException
+    {
+        Files.createDirectories(directory);
+
+        final Path snapshot = directory.resolve(SNAPSHOT);
+        sequence = Files.exists(snapshot) ? readSnapshot(snapshot, replay) : 0;
+
+        int replayed = 0;
+        for (Path path : segments()) {
+            replayed += replaySegment(path, replay);
+        }
+
+        // Never append after a change cut by a crash
+        startSegment();
+
+        return replayed;
+    }
+
+    /**
+     * Append changes to the log, as one write
+     *
+     * @param changes
+     *            The changed identities by uid, null for a deleted identity
+     * @throws IOException
+     *             when the changes can not be written. Nothing is logged then. A
+     *             log that can not be restored to its last change refuses the
+     *             next writes
+     */
+    void write(Map<Long, Identity> changes) throws IOException
+    {
+        if (failure != null) {
+            throw new IOException("The identity journal failed, restart to recover", failure);
+        }
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(changes.size() * 256);
+        final DataOutputStream out = new DataOutputStream(buffer);
+        final CRC32 crc = new CRC32();
+        long next = sequence;
+
+        for (Map.Entry<Long, Identity> change : changes.entrySet()) {
+            final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+            final DataOutputStream data = new DataOutputStream(record);
+
+            data.writeLong(++next);
+            if (change.getValue() != null) {
+                data.writeByte(PUT);
+                writeIdentity(data, change.getValue());
+            }
+            else {
+                data.writeByte(DELETE);
+                data.writeLong(change.getKey());
+            }
+
+            crc.reset();
+            crc.update(record.toByteArray());
+
+            out.writeInt(record.size());
+            out.writeInt((int) crc.getValue());
+            record.writeTo(out);
+        }
+
+        final long position = segment.position();
+
+        try {
+            final ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) {
+                segment.write(bytes);
+            }
+
+            if (sync) {
+                segment.force(false);
+            }
+        }
+        catch (final IOException ex) {
+            try {
+                segment.truncate(position);
+                segment.position(position);
+            }
+            catch (final IOException ex2) {
+                failure = ex2;
+            }
+            throw ex;
+        }
+
+        sequence = next;
+    }
+
+    /**
+     * Start a new log segment. The changes written so far are then covered by a
+     * snapshot of the returned sequence number
+     *
+     * @return the sequence number of the last change written
+     * @throws IOException
+     *             when the new segment can not be created
+     */
+    long roll() throws IOException
+    {
+        startSegment();
+
+        return sequence;
+    }
+
+    /**
+     * Write a snapshot, then delete the log segments it covers. The snapshot
+     * replaces the previous one atomically
+     *
+     * @param checkpoint
+     *            Sequence number of the snapshot, returned by roll()
+     * @param identities
+     *            All the identities after the change of this sequence number
+     * @throws IOException
+     *             when the snapshot can not be written. The previous snapshot and
+     *             the log are kept then
+     */
+    void snapshot(long checkpoint, Collection<Identity> identities) throws IOException
+    {
+        final Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            final CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16),
+                    new CRC32());
+            final DataOutputStream out = new DataOutputStream(checked);
+
+            out.writeInt(MAGIC);
+            out.writeLong(checkpoint);
+            out.writeInt(identities.size());
+            for (Identity identity : identities) {
+                writeIdentity(out, identity);
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+
+            file.getFD().sync();
+        }
+
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        for (Path path : segments()) {
+            if (firstSequence(path) <= checkpoint) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (segment != null) {
+            segment.close();
+            segment = null;
+        }
+    }
+
+    private void startSegment() throws IOException
+    {
+        final Path path = directory.resolve(String.format("%1$s%2$020d%3$s", SEGMENT_PREFIX, sequence + 1,
+                SEGMENT_SUFFIX));
+        final FileChannel next = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        close();
+        segment = next;
+    }
+
+    // "MAGIC sequence count identity... checksum"
+    private long readSnapshot(Path path, Replay replay) throws IOException
+    {
+        try (InputStream file = Files.newInputStream(path)) {
+            final CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, 1 << 16),
+                    new CRC32());
+            final DataInputStream in = new DataInputStream(checked);
+
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not an identity snapshot");
+            }
+
+            final long checkpoint = in.readLong();
+            final int count = in.readInt();
+            final List<Identity> identities = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                identities.add(readIdentity(in));
+            }
+
+            final long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException(path + " is corrupted, its checksum does not match");
+            }
+
+            identities.forEach(replay::put);
+            return checkpoint;
+        }
+    }
+
+    // Records "length crc sequence operation data", the changes already in the
+    // snapshot are skipped
+    private int replaySegment(Path path, Replay replay) throws IOException
+    {
+        int replayed = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path),
+                1 << 16))) {
+            while (true) {
+                final int length;
+
+                try {
+                    length = in.readInt();
+                }
+                catch (final EOFException ex) {
+                    // End of the segment
+                    break;
+                }
+
+                final byte[] record = readRecord(in, length);
+                if (record == null) {
+                    logger.warn("Incomplete change at the end of {}, ignored", path);
+                    break;
+                }
+
+                final DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+                final long number = data.readLong();
+                final byte operation = data.readByte();
+
+                if (number <= sequence) continue;
+
+                if (operation == PUT) {
+                    replay.put(readIdentity(data));
+                }
+                else if (operation == DELETE) {
+                    replay.delete(data.readLong());
+                }
+                else {
+                    throw new IOException(String.format("Unknown change %1$d in %2$s", operation, path));
+                }
+
+                sequence = number;
+                replayed++;
+            }
+        }
+
+        return replayed;
+    }
+
+    // The record of a change after its length, null when it was cut or damaged
+    private static byte[] readRecord(DataInputStream in, int length) throws IOException
+    {
+        if (length <= 0 || length > (1 << 20)) return null;
+
+        final byte[] record = new byte[length];
+        final int checksum;
+
+        try {
+            checksum = in.readInt();
+            in.readFully(record);
+        }
+        catch (final EOFException ex) {
+            return null;
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+
+        return (int) crc.getValue() == checksum ? record : null;
+    }
+
+    // The segments ordered by their first sequence number
+    private List<Path> segments() throws IOException
+    {
+        if (!Files.isDirectory(directory)) return Collections.emptyList();
+
+        final List<Path> result = new ArrayList<>();
+
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            paths.forEach(result::add);
+        }
+
+        // The zero padded sequence numbers sort like the numbers
+        Collections.sort(result);
+        return result;
+    }
+
+    private static long firstSequence(Path segment)
+    {
+        final String name = segment.getFileName().toString();
+
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void writeIdentity(DataOutputStream out, Identity identity) throws IOException
+    {
+        out.writeLong(identity.getUid());
+        writeString(out, identity.getName());
+        writeString(out, identity.getEmail());
+        writeString(out, identity.getNormalizedEmail());
+        writeString(out, identity.getPasswordHash());
+    }
+
+    private static Identity readIdentity(DataInputStream in) throws IOException
+    {
+        return new Identity(in.readLong(), readString(in), readString(in), readString(in), readString(in));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
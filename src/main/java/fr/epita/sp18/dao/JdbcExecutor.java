@@ -0,0 +1,116 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * JdbcExecutor runs the queries of the asynchronous DAO methods. It has as many
+ * threads as the connection pool has connections (iam.dao.async.threads, 0
+ * for spring.datasource.hikari.maximum-pool-size), so that a queued query
+ * never waits for a connection, and a queue of iam.dao.async.queue-size
+ * queries. A query that does not fit in the queue fails at once.
+ * <p>
+ * The stages chained to the returned futures run on the JDBC threads unless
+ * they are chained with an executor: they must stay short.
+ * <p>
+ * Metrics: iam.dao.async.queue.wait, iam.dao.async.rejected and
+ * iam.dao.async.queue.size
+ *
+ * @author Philip
+ *
+ */
+@Component
+public class JdbcExecutor
+{
+    private final ThreadPoolExecutor executor;
+    private final Timer              queueWait;
+    private final Counter            rejected;
+
+    public JdbcExecutor(MeterRegistry registry,
+            @Value("${iam.dao.async.threads:0}") int threads,
+            @Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize,
+            @Value("${iam.dao.async.queue-size:256}") int queueSize)
+    {
+        final int size = threads > 0 ? threads : Math.max(poolSize, 1);
+        final AtomicInteger count = new AtomicInteger();
+
+        this.executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(queueSize, 1)),
+                task -> {
+                    Thread thread = new Thread(task, "jdbc-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        queueWait = Timer.builder("iam.dao.async.queue.wait")
+                .description("Time an asynchronous query waits for a JDBC thread")
+                .register(registry);
+        rejected = Counter.builder("iam.dao.async.rejected")
+                .description("Asynchronous queries rejected because the JDBC queue is full")
+                .register(registry);
+        Gauge.builder("iam.dao.async.queue.size", executor, x -> x.getQueue().size())
+                .register(registry);
+    }
+
+    /**
+     * Run a query on a JDBC thread
+     *
+     * @param query
+     *            The query, usually a synchronous DAO method
+     * @return the result of the query. The future completes exceptionally with
+     *         the exception of the query, or with an IamDataAccessException when
+     *         the queue is full
+     */
+    public <R> CompletableFuture<R> supply(Callable<R> query)
+    {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        final long queued = System.nanoTime();
+
+        try {
+            executor.execute(() -> {
+                queueWait.record(System.nanoTime() - queued, TimeUnit.NANOSECONDS);
+
+                try {
+                    future.complete(query.call());
+                }
+                catch (final Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        }
+        catch (final RejectedExecutionException ex) {
+            rejected.increment();
+            future.completeExceptionally(
+                    new IamDataAccessException("JDBC queue is full", ex, ErrorCode.DATA_ACCESS_ERROR));
+        }
+
+        return future;
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
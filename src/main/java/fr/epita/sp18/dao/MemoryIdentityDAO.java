@@ -0,0 +1,810 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+import fr.epita.sp18.exception.IamDataIntegrityViolationException;
+import fr.epita.sp18.exception.IamDuplicateKeyException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * MemoryIdentityDAO keeps all the identities in memory instead of the
+ * Identities table. It replaces IdentityDAO when iam.storage=memory, with the
+ * same methods and the same errors, so that the services work unchanged.
+ * <p>
+ * The identities are held by uid in a concurrent ordered map, with the indexes
+ * of the Identities table: the unique indexes of email and normalizedEmail,
+ * and the (name, uid) index that orders the pages sorted by name. Reads take
+ * no lock and never wait for the writes. They are not isolated from the writes
+ * in progress, like the queries of IdentityDAO outside of a transaction.
+ * <p>
+ * The writes are serialized. A write is appended to the log of IdentityJournal
+ * before it is applied in memory, and a snapshot of all the identities is
+ * written every iam.storage.memory.snapshot-interval-seconds, in
+ * iam.storage.memory.directory. At startup the snapshot is read and the log
+ * replayed. When the directory is empty, the identities are imported from the
+ * Identities table, once: the table is kept across restarts, so the import
+ * moves the identities written with iam.storage=jdbc to the memory storage.
+ * <p>
+ * Metrics: iam.storage.memory.size
+ *
+ * @author Philip
+ *
+ */
+@Component
+@ConditionalOnProperty(name = "iam.storage", havingValue = "memory")
+public class MemoryIdentityDAO extends IdentityDAO
+{
+    private static final Logger logger = LogManager.getLogger("MemoryIdentityDAO");
+
+    private static final EntityMetadata<Identity> metadata = EntityMetadata.of(Identity.class, "uid");
+
+    private static final int UID  = metadata.indexOf("uid");
+    private static final int NAME = metadata.indexOf("name");
+
+    // Columns that can not be null, as declared by the Identities table
+    private static final String[] REQUIRED = metadata.getColumns(false);
+
+    private final ConcurrentSkipListMap<Long, Identity> records          = new ConcurrentSkipListMap<>();
+    private final UniqueIndex                           emails           = new UniqueIndex("email");
+    private final UniqueIndex                           normalizedEmails = new UniqueIndex("normalizedEmail");
+    private final UniqueIndex[]                         uniques          = { emails, normalizedEmails };
+    private final ConcurrentSkipListSet<Identity>       names            = new ConcurrentSkipListSet<>(
+            order(NAME, false));
+
+    // Serializes the writes, their log and their application in memory
+    private final Object writeLock = new Object();
+
+    private final IdentityJournal          journal;
+    private final long                     snapshotInterval;
+    private final ScheduledExecutorService scheduler;
+
+    public MemoryIdentityDAO(MeterRegistry registry,
+            @Value("${iam.storage.memory.directory:./data/identities}") String directory,
+            @Value("${iam.storage.memory.sync:true}") boolean sync,
+            @Value("${iam.storage.memory.snapshot-interval-seconds:300}") long snapshotInterval)
+    {
+        this.journal = new IdentityJournal(Paths.get(directory), sync);
+        this.snapshotInterval = snapshotInterval;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "identity-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("iam.storage.memory.size", records, Map::size)
+                .description("Identities held by the in-memory storage")
+                .register(registry);
+    }
+
+    /**
+     * Read the snapshot and replay the log, or import the Identities table when
+     * there is none yet
+     *
+     * @throws IOException
+     *             when the snapshot or the log can not be read. The application
+     *             does not start then, rather than with missing identities
+     * @throws IamDataAccessException
+     *             when the Identities table can not be imported
+     */
+    @PostConstruct
+    public void recover() throws IOException, IamDataAccessException
+    {
+        final long start = System.nanoTime();
+        final boolean existed = journal.exists();
+
+        final int replayed = journal.recover(new IdentityJournal.Replay() {
+            @Override
+            public void put(Identity identity)
+            {
+                apply(identity.getUid(), identity);
+            }
+
+            @Override
+            public void delete(Long uid)
+            {
+                apply(uid, null);
+            }
+        });
+
+        if (existed) {
+            logger.info("{} identities recovered, {} changes replayed, in {} ms", records.size(), replayed,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return;
+        }
+
+        super.search(null, "", (Consumer<Identity>) identity -> apply(identity.getUid(), identity));
+        snapshot();
+
+        logger.info("{} identities imported from the Identities table in {} ms", records.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start()
+    {
+        final long interval = Math.max(1, snapshotInterval);
+
+        scheduler.scheduleWithFixedDelay(this::snapshot, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Write a last snapshot, so that the next start has no log to replay
+     */
+    @PreDestroy
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+        snapshot();
+
+        try {
+            journal.close();
+        }
+        catch (final IOException ex) {
+            logger.error("Identity journal close error", ex);
+        }
+    }
+
+    /**
+     * Write a snapshot of all the identities and delete the log it covers. The
+     * writes are only blocked while the identities are listed, not while the
+     * snapshot is written
+     */
+    public synchronized void snapshot()
+    {
+        final long start = System.nanoTime();
+        final long checkpoint;
+        final List<Identity> identities;
+
+        try {
+            synchronized (writeLock) {
+                checkpoint = journal.roll();
+                identities = new ArrayList<>(records.values());
+            }
+
+            journal.snapshot(checkpoint, identities);
+        }
+        catch (final IOException ex) {
+            logger.error("Identity snapshot error", ex);
+            return;
+        }
+
+        logger.debug("Identity snapshot of {} identities written in {} ms", identities.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @Override
+    public Identity get(Long uid)
+    {
+        return uid == null ? null : copy(records.get(uid));
+    }
+
+    /**
+     * Completes at once, the identity is read on the calling thread
+     */
+    @Override
+    public CompletableFuture<Identity> getAsync(Long uid)
+    {
+        return CompletableFuture.completedFuture(get(uid));
+    }
+
+    @Override
+    public <R> R get(Long uid, Projection<R> projection) throws IamDataAccessException
+    {
+        final Identity record = uid == null ? null : records.get(uid);
+
+        return record == null ? null : newMapper(projection).map(record, 0);
+    }
+
+    @Override
+    public Map<Long, Identity> getAll(Collection<Long> uids)
+    {
+        final Map<Long, Identity> result = new HashMap<>(uids.size() * 2);
+
+        for (Long uid : uids) {
+            final Identity record = get(uid);
+            if (record != null) result.put(uid, record);
+        }
+
+        return result;
+    }
+
+    /**
+     * Completes at once, the identities are read on the calling thread
+     */
+    @Override
+    public CompletableFuture<Map<Long, Identity>> getAllAsync(Collection<Long> uids)
+    {
+        return CompletableFuture.completedFuture(getAll(uids));
+    }
+
+    @Override
+    public Identity getByNormalizedEmail(String normalizedEmail)
+    {
+        final Long uid = normalizedEmail == null ? null : normalizedEmails.owners.get(normalizedEmail);
+        final Identity record = uid == null ? null : records.get(uid);
+
+        // The email may have changed since the index was read
+        return record != null && normalizedEmail.equals(record.getNormalizedEmail()) ? copy(record) : null;
+    }
+
+    @Override
+    public void create(Identity entity) throws IamDuplicateKeyException, IamDataAccessException
+    {
+        entity.setUid(idGenerator.nextId());
+
+        synchronized (writeLock) {
+            final Changes changes = new Changes();
+            final ErrorCode error = changes.put(copy(entity));
+
+            if (error == ErrorCode.DUPLICATE_KEY_ERROR) {
+                throw new IamDuplicateKeyException("Duplicated identity: " + entity.getEmail(),
+                        ErrorCode.DUPLICATE_KEY_ERROR);
+            }
+            if (error != null) {
+                throw new IamDataAccessException("Incomplete identity: " + entity.getUid(), error);
+            }
+
+            commit(changes);
+        }
+    }
+
+    @Override
+    public BatchResult<Identity> createAll(Collection<Identity> entities) throws IamDataAccessException
+    {
+        final List<Identity> rows = new ArrayList<>(entities);
+        final BatchResult<Identity> result = new BatchResult<>(rows.size());
+
+        for (Identity entity : rows) {
+            entity.setUid(idGenerator.nextId());
+        }
+
+        synchronized (writeLock) {
+            final Changes changes = new Changes();
+
+            for (int i = 0; i < rows.size(); i++) {
+                final ErrorCode error = changes.put(copy(rows.get(i)));
+
+                if (error != null) {
+                    result.addFailure(i, rows.get(i), error, message(error));
+                }
+            }
+
+            commit(changes);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void update(Identity entity) throws IamDataIntegrityViolationException, IamDataAccessException
+    {
+        update(entity, metadata.getColumns(false));
+    }
+
+    @Override
+    public void update(Identity entity, String fields)
+            throws IamDataIntegrityViolationException, IamDataAccessException
+    {
+        final String[] columns = fields.trim().split("\\s*,\\s*");
+
+        for (String column : columns) {
+            if (metadata.indexOf(column) < 0) {
+                throw new IamDataAccessException(String.format("%1$s has no column %2$s",
+                        Identity.class.getName(), column), ErrorCode.UNKNOWN_COLUMN);
+            }
+        }
+
+        update(entity, columns);
+    }
+
+    private void update(Identity entity, String[] columns)
+            throws IamDataIntegrityViolationException, IamDataAccessException
+    {
+        synchronized (writeLock) {
+            final Changes changes = new Changes();
+            final ErrorCode error = changes.update(entity, columns);
+
+            if (error == ErrorCode.RECORD_NOT_FOUND) {
+                throw new IamDataAccessException(String.format("Identities not found: %1$s", entity.getUid()),
+                        ErrorCode.RECORD_NOT_FOUND);
+            }
+            if (error != null) {
+                throw new IamDataIntegrityViolationException(message(error) + ": " + entity.getUid(),
+                        ErrorCode.DATA_INTEGRITY_VIOLATION);
+            }
+
+            commit(changes);
+        }
+    }
+
+    @Override
+    public BatchResult<Identity> updateAll(Collection<Identity> entities) throws IamDataAccessException
+    {
+        final List<Identity> rows = new ArrayList<>(entities);
+        final BatchResult<Identity> result = new BatchResult<>(rows.size());
+        final String[] columns = metadata.getColumns(false);
+
+        synchronized (writeLock) {
+            final Changes changes = new Changes();
+
+            for (int i = 0; i < rows.size(); i++) {
+                final ErrorCode error = changes.update(rows.get(i), columns);
+
+                if (error != null) {
+                    result.addFailure(i, rows.get(i), error, message(error));
+                }
+            }
+
+            commit(changes);
+        }
+
+        return result;
+    }
+
+    @Override
+    public boolean replacePasswordHash(Long uid, String expected, String passwordHash)
+            throws IamDataAccessException
+    {
+        synchronized (writeLock) {
+            final Identity record = records.get(uid);
+
+            if (record == null || !Objects.equals(record.getPasswordHash(), expected)) return false;
+
+            final Identity changed = copy(record);
+            changed.setPasswordHash(passwordHash);
+
+            final Changes changes = new Changes();
+            changes.put(changed);
+            commit(changes);
+
+            return true;
+        }
+    }
+
+    @Override
+    public void delete(Long uid) throws IamDataAccessException
+    {
+        synchronized (writeLock) {
+            if (uid == null || !records.containsKey(uid)) return;
+
+            final Changes changes = new Changes();
+            changes.delete(uid);
+            commit(changes);
+        }
+    }
+
+    @Override
+    public List<Identity> search(Criteria filter, String sort) throws IamDataAccessException
+    {
+        final List<Identity> result = new ArrayList<>();
+
+        for (Identity record : scan(filter, sort)) {
+            result.add(copy(record));
+        }
+
+        return result;
+    }
+
+    @Override
+    public <R> List<R> search(Criteria filter, String sort, Projection<R> projection) throws IamDataAccessException
+    {
+        final List<R> result = new ArrayList<>();
+
+        search(filter, sort, projection, result::add);
+        return result;
+    }
+
+    @Override
+    public int search(Criteria filter, String sort, Consumer<? super Identity> consumer)
+            throws IamDataAccessException
+    {
+        final List<Identity> found = scan(filter, sort);
+
+        for (Identity record : found) {
+            consumer.accept(copy(record));
+        }
+
+        return found.size();
+    }
+
+    @Override
+    public <R> int search(Criteria filter, String sort, Projection<R> projection, Consumer<? super R> consumer)
+            throws IamDataAccessException
+    {
+        final Mapper<R> mapper = newMapper(projection);
+        final List<Identity> found = scan(filter, sort);
+
+        for (int i = 0; i < found.size(); i++) {
+            consumer.accept(mapper.map(found.get(i), i));
+        }
+
+        return found.size();
+    }
+
+    @Override
+    public List<Identity> search(Criteria filter, String sort, Identity after, int limit)
+            throws IamDataAccessException
+    {
+        final List<Identity> result = new ArrayList<>();
+
+        for (Identity record : page(filter, sort, after, limit)) {
+            result.add(copy(record));
+        }
+
+        return result;
+    }
+
+    @Override
+    public <R> List<R> search(Criteria filter, String sort, Identity after, int limit, Projection<R> projection)
+            throws IamDataAccessException
+    {
+        final Mapper<R> mapper = newMapper(projection);
+        final List<Identity> found = page(filter, sort, after, limit);
+        final List<R> result = new ArrayList<>(found.size());
+
+        for (int i = 0; i < found.size(); i++) {
+            result.add(mapper.map(found.get(i), i));
+        }
+
+        return result;
+    }
+
+    // The matching identities, ordered by an ORDER BY clause: "name", "name DESC,
+    // uid", or by uid when empty. "-name" is read as "name DESC"
+    private List<Identity> scan(Criteria filter, String sort) throws IamDataAccessException
+    {
+        checkCriteria(filter);
+
+        final List<Identity> result = new ArrayList<>();
+
+        for (Identity record : records.values()) {
+            if (filter == null || filter.matches(metadata, record)) {
+                result.add(record);
+            }
+        }
+
+        // Checked and written "column ASC|DESC, ..." as for the queries
+        final String order = renderSort(metadata, sort);
+
+        if (!order.isEmpty()) {
+            Comparator<Identity> comparator = null;
+
+            for (String key : order.split(", ")) {
+                final String[] parts = key.split(" ");
+                final boolean descending = "DESC".equals(parts[1]);
+                final int index = metadata.indexOf(parts[0]);
+
+                Comparator<Identity> column = Comparator.comparing(
+                        (Identity record) -> metadata.getValue(record, index), MemoryIdentityDAO::compare);
+                if (descending) column = column.reversed();
+
+                comparator = comparator == null ? column : comparator.thenComparing(column);
+            }
+
+            result.sort(comparator);
+        }
+
+        return result;
+    }
+
+    // Same keyset page as IdentityDAO: "WHERE criteria AND (column, uid) > after
+    // ORDER BY column, uid LIMIT limit"
+    private List<Identity> page(Criteria filter, String sort, Identity after, int limit)
+            throws IamDataAccessException
+    {
+        final boolean descending = (sort != null) && sort.startsWith("-");
+        final String key = ((sort == null) || sort.isEmpty()) ? "uid" : sort.substring(descending ? 1 : 0);
+        final int index = metadata.indexOf(key);
+
+        if (index < 0) {
+            throw new IamDataAccessException(String.format("MemoryIdentityDAO.search unknown sort key %1$s", key),
+                    ErrorCode.UNSUPPORTED_SORT_KEY);
+        }
+
+        checkCriteria(filter);
+
+        final Comparator<Identity> order = order(index, descending);
+        final Iterable<Identity> candidates;
+
+        if (index == UID) {
+            ConcurrentNavigableMap<Long, Identity> view = descending ? records.descendingMap() : records;
+            if (after != null) view = view.tailMap(after.getUid(), false);
+            candidates = view.values();
+        }
+        else if (index == NAME) {
+            candidates = after == null
+                    ? (descending ? names.descendingSet() : names)
+                    : (descending ? names.headSet(after, false).descendingSet() : names.tailSet(after, false));
+        }
+        else {
+            // No index on this column: sort the whole table
+            final List<Identity> sorted = new ArrayList<>(records.values());
+            sorted.sort(order);
+            candidates = sorted;
+        }
+
+        final List<Identity> result = new ArrayList<>(Math.min(Math.max(limit, 0), 1024));
+
+        for (Identity record : candidates) {
+            if (result.size() >= limit) break;
+            if (after != null && order.compare(record, after) <= 0) continue;
+            if (filter == null || filter.matches(metadata, record)) result.add(record);
+        }
+
+        return result;
+    }
+
+    // Order by a column then by uid. Null first, like the database
+    private static Comparator<Identity> order(int index, boolean descending)
+    {
+        final Comparator<Identity> order = Comparator
+                .comparing((Identity record) -> metadata.getValue(record, index), MemoryIdentityDAO::compare)
+                .thenComparing(Identity::getUid);
+
+        return descending ? order.reversed() : order;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compare(Object a, Object b)
+    {
+        if (a == null || b == null) return a == null ? (b == null ? 0 : -1) : 1;
+
+        return ((Comparable) a).compareTo(b);
+    }
+
+    // Same errors as the SQL rendering of the criteria
+    private static void checkCriteria(Criteria filter) throws IamDataAccessException
+    {
+        if (filter == null) return;
+
+        try {
+            filter.render(metadata, new StringBuilder(), new ArrayList<>());
+        }
+        catch (final IllegalArgumentException ex) {
+            throw new IamDataAccessException(ex.getMessage(), ex, ErrorCode.UNKNOWN_COLUMN);
+        }
+    }
+
+    // Log the changes, then apply them in memory. Under the write lock
+    private void commit(Changes changes) throws IamDataAccessException
+    {
+        if (changes.rows.isEmpty()) return;
+
+        try {
+            journal.write(changes.rows);
+        }
+        catch (final IOException ex) {
+            throw new IamDataAccessException("Identity journal write error", ex, ErrorCode.DATA_ACCESS_ERROR);
+        }
+
+        // Release the unique keys of the old rows first: a key can move from a row
+        // to another one in the same changes
+        for (Long uid : changes.rows.keySet()) {
+            final Identity old = records.get(uid);
+
+            if (old != null) {
+                for (UniqueIndex unique : uniques) {
+                    unique.owners.remove(unique.key(old), uid);
+                }
+            }
+        }
+
+        changes.rows.forEach(this::apply);
+    }
+
+    // Replace the row of a uid in the map and the indexes, null to delete it
+    private void apply(Long uid, Identity row)
+    {
+        final Identity old = row != null ? records.put(uid, row) : records.remove(uid);
+
+        if (old != null) {
+            names.remove(old);
+            for (UniqueIndex unique : uniques) {
+                unique.owners.remove(unique.key(old), uid);
+            }
+        }
+
+        if (row != null) {
+            names.add(row);
+            for (UniqueIndex unique : uniques) {
+                unique.owners.put(unique.key(row), uid);
+            }
+        }
+    }
+
+    private static Identity copy(Identity identity)
+    {
+        return identity == null ? null
+                : new Identity(identity.getUid(), identity.getName(), identity.getEmail(),
+                        identity.getNormalizedEmail(), identity.getPasswordHash());
+    }
+
+    private static String message(ErrorCode error)
+    {
+        switch (error) {
+            case DUPLICATE_KEY_ERROR:
+                return "Duplicated unique column";
+            case RECORD_NOT_FOUND:
+                return "No record found for this primary key";
+            default:
+                return "Column can not be null";
+        }
+    }
+
+    private static <R> Mapper<R> newMapper(Projection<R> projection) throws IamDataAccessException
+    {
+        final EntityResultSet<Identity> rs;
+
+        try {
+            rs = new EntityResultSet<>(metadata, projection.getColumns());
+        }
+        catch (final IllegalArgumentException ex) {
+            throw new IamDataAccessException(ex.getMessage(), ex, ErrorCode.UNKNOWN_COLUMN);
+        }
+
+        return (record, rowNum) -> {
+            try {
+                return projection.getMapper().mapRow(rs.setRow(record), rowNum);
+            }
+            catch (final SQLException ex) {
+                throw new IamDataAccessException("Identity projection error", ex, ErrorCode.DATA_ACCESS_ERROR);
+            }
+        };
+    }
+
+    // Maps the stored identities through the mapper of a projection
+    @FunctionalInterface
+    private interface Mapper<R>
+    {
+        R map(Identity record, int rowNum) throws IamDataAccessException;
+    }
+
+    // A unique index: the uid of the row that owns each value of a column
+    private static final class UniqueIndex
+    {
+        private final int                           column;
+        private final ConcurrentHashMap<String, Long> owners = new ConcurrentHashMap<>();
+
+        private UniqueIndex(String column)
+        {
+            this.column = metadata.indexOf(column);
+        }
+
+        private String key(Identity row)
+        {
+            return (String) metadata.getValue(row, column);
+        }
+    }
+
+    // The rows a write changes, checked one after the other against the stored
+    // rows and the rows already changed. Under the write lock
+    private final class Changes
+    {
+        // The changed rows by uid, null for a deleted row
+        private final Map<Long, Identity>        rows   = new LinkedHashMap<>();
+        // The unique keys moved by the changed rows, null for a released key
+        private final List<Map<String, Long>>    owners = new ArrayList<>();
+
+        private Changes()
+        {
+            for (int i = 0; i < uniques.length; i++) {
+                owners.add(new HashMap<>());
+            }
+        }
+
+        // Check and record an inserted or replaced row. Returns the error of the
+        // row, null when it is recorded
+        private ErrorCode put(Identity row)
+        {
+            for (String column : REQUIRED) {
+                if (metadata.getValue(row, metadata.indexOf(column)) == null) {
+                    return ErrorCode.DATA_INTEGRITY_VIOLATION;
+                }
+            }
+
+            for (int i = 0; i < uniques.length; i++) {
+                final Long owner = owner(i, uniques[i].key(row));
+
+                if (owner != null && !owner.equals(row.getUid())) {
+                    return ErrorCode.DUPLICATE_KEY_ERROR;
+                }
+            }
+
+            final Identity old = get(row.getUid());
+
+            for (int i = 0; i < uniques.length; i++) {
+                if (old != null) owners.get(i).put(uniques[i].key(old), null);
+                owners.get(i).put(uniques[i].key(row), row.getUid());
+            }
+
+            rows.put(row.getUid(), row);
+            return null;
+        }
+
+        // Check and record the columns of an entity that differ from its row
+        private ErrorCode update(Identity entity, String[] columns)
+        {
+            final Identity original = entity.getUid() == null ? null : get(entity.getUid());
+
+            if (original == null) return ErrorCode.RECORD_NOT_FOUND;
+
+            final Identity row = copy(original);
+            boolean changed = false;
+
+            for (String column : columns) {
+                final int index = metadata.indexOf(column);
+                final Object value = metadata.getValue(entity, index);
+
+                if (!Objects.equals(metadata.getValue(original, index), value)) {
+                    metadata.setValue(row, index, value);
+                    changed = true;
+                }
+            }
+
+            return changed ? put(row) : null;
+        }
+
+        private void delete(Long uid)
+        {
+            final Identity old = get(uid);
+
+            if (old != null) {
+                for (int i = 0; i < uniques.length; i++) {
+                    owners.get(i).put(uniques[i].key(old), null);
+                }
+            }
+
+            rows.put(uid, null);
+        }
+
+        // The row of a uid after the changes so far
+        private Identity get(Long uid)
+        {
+            return rows.containsKey(uid) ? rows.get(uid) : records.get(uid);
+        }
+
+        private Long owner(int index, String key)
+        {
+            final Map<String, Long> moved = owners.get(index);
+
+            return moved.containsKey(key) ? moved.get(key) : uniques[index].owners.get(key);
+        }
+    }
+}
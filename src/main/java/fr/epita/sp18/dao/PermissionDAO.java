@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.util.BitSet;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import fr.epita.sp18.entity.Permission;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+
+/**
+ * This class implements DAO interface by extending the BaseJdbcDAO, so that it
+ * can perform CRUD operation on Permissions table
+ *
+ * @author Philip
+ *
+ */
+@Component
+public class PermissionDAO extends BaseJdbcDAO<Permission, Long> implements DAO<Permission, Long>
+{
+    /**
+     * Construct PermissionDAO class with table name is "Permissions" and primary
+     * key is "uid"
+     */
+    public PermissionDAO()
+    {
+        super("Permissions", "uid", Permission.class);
+    }
+
+    /**
+     * Query the effective permissions of an identity, the permissions of all its
+     * roles. The Identities table is not read, the identities may be stored
+     * elsewhere, see MemoryIdentityDAO
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @return the bits of the permissions, empty when the identity has none
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public BitSet getBits(Long identityUid) throws IamDataAccessException
+    {
+        final SqlTemplate sql = templates.get("Permissions", "getBits", "bit",
+                () -> new SqlTemplate("SELECT DISTINCT p.bit FROM IdentityRoles ir"
+                        + " JOIN RolePermissions rp ON rp.roleUid = ir.roleUid"
+                        + " JOIN Permissions p ON p.uid = rp.permissionUid"
+                        + " WHERE ir.identityUid = ?;"));
+        final BitSet bits = new BitSet();
+
+        try {
+            jdbc.query(sql.getSql(), rs -> {
+                bits.set(rs.getInt(1));
+            }, identityUid);
+
+            return bits;
+        }
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
+}
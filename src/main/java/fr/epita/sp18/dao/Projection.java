@@ -0,0 +1,100 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Projection is the column subset a DAO query selects, with the mapper that
+ * turns each row straight into the target type. The columns that are not
+ * projected are neither read from the database nor allocated.
+ * <p>
+ * The mapper reads the columns by position, in the order of the projection.
+ * Example:
+ *
+ * <pre>
+ * Projection.of((rs, i) -&gt; new IdentityResponse(rs.getLong(1), rs.getString(2), rs.getString(3)),
+ *         "uid", "name", "email")
+ * </pre>
+ *
+ * renders "SELECT uid, name, email FROM ...". Column names are checked against
+ * the entity's columns when the query is built. Projection is immutable and can
+ * be shared by all the calls of a query
+ *
+ * @author Philip
+ *
+ * @param <R>
+ *            Type of the rows
+ */
+public final class Projection<R>
+{
+    private final String[]     columns;
+    private final RowMapper<R> mapper;
+
+    private Projection(String[] columns, RowMapper<R> mapper)
+    {
+        this.columns = columns;
+        this.mapper = mapper;
+    }
+
+    /**
+     * @param mapper
+     *            Maps one row of the projected columns, by position
+     * @param columns
+     *            Names of the selected columns, at least one
+     * @return the projection
+     */
+    public static <R> Projection<R> of(RowMapper<R> mapper, String... columns)
+    {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("A projection selects at least one column");
+        }
+
+        return new Projection<>(columns.clone(), mapper);
+    }
+
+    public RowMapper<R> getMapper()
+    {
+        return mapper;
+    }
+
+    /**
+     * @return the names of the selected columns, in the order of the mapper. The
+     *         returned array is shared, callers must not modify it
+     */
+    String[] getColumns()
+    {
+        return columns;
+    }
+
+    /**
+     * Write the select list of the projection, e.g. "uid, name, email"
+     *
+     * @param metadata
+     *            Metadata of the queried entity
+     * @return the select list
+     * @throws IllegalArgumentException
+     *             when a column is not a column of the entity
+     */
+    public String render(EntityMetadata<?> metadata)
+    {
+        final StringBuilder result = new StringBuilder();
+
+        for (String column : columns) {
+            final int index = metadata.indexOf(column);
+
+            if (index < 0) {
+                throw new IllegalArgumentException(String.format("%1$s has no column %2$s",
+                        metadata.getType().getName(), column));
+            }
+
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(metadata.getColumn(index));
+        }
+
+        return result.toString();
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Consumer;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import fr.epita.sp18.entity.Revocation;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+
+/**
+ * This class implements DAO interface by extending the BaseJdbcDAO, so that it
+ * can perform CRUD operation on Revocations table, the token deny-list
+ *
+ * @author Philip
+ *
+ */
+@Component
+public class RevocationDAO extends BaseJdbcDAO<Revocation, Long> implements DAO<Revocation, Long>
+{
+    /**
+     * Construct RevocationDAO class with table name is "Revocations" and primary
+     * key is "uid"
+     */
+    public RevocationDAO()
+    {
+        super("Revocations", "uid", Revocation.class);
+    }
+
+    /**
+     * Check whether a token is revoked, by its id or by its subject
+     *
+     * @param tokenId
+     *            Id of the token, null when it has none
+     * @param subject
+     *            Subject of the token
+     * @param issuedAt
+     *            Time the token was issued at, in milliseconds
+     * @param now
+     *            Current time, in milliseconds. Expired revocations are ignored
+     * @return true when the token is revoked
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public boolean isRevoked(String tokenId, String subject, long issuedAt, long now)
+            throws IamDataAccessException
+    {
+        final SqlTemplate sql = templates.get("Revocations", "isRevoked", "",
+                () -> new SqlTemplate("SELECT COUNT(*) FROM Revocations WHERE expiresAt > ?"
+                        + " AND (tokenId = ? OR (subject = ? AND issuedBefore > ?));"));
+
+        try {
+            return jdbc.queryForObject(sql.getSql(), Integer.class, now, tokenId, subject, issuedAt) > 0;
+        }
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
+
+    /**
+     * Stream the revocations that are not expired
+     *
+     * @param now
+     *            Current time, in milliseconds
+     * @param consumer
+     *            Receives the tokenId, subject, issuedBefore and expiresAt of every
+     *            revocation
+     * @return the number of revocations
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public int readLive(long now, Consumer<Revocation> consumer) throws IamDataAccessException
+    {
+        final SqlTemplate sql = templates.get("Revocations", "readLive", "tokenId,subject,issuedBefore,expiresAt",
+                () -> new SqlTemplate("SELECT tokenId, subject, issuedBefore, expiresAt FROM Revocations"
+                        + " WHERE expiresAt > ?;"));
+        final int[] count = new int[1];
+
+        try {
+            jdbc.query(sql.getSql(), rs -> {
+                consumer.accept(read(rs));
+                count[0]++;
+            }, now);
+
+            return count[0];
+        }
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
+
+    /**
+     * Stream the revocations stored since a time that are not expired
+     *
+     * @param since
+     *            Time, in milliseconds, from which the revocations are read
+     * @param now
+     *            Current time, in milliseconds
+     * @param consumer
+     *            Receives the tokenId, subject, issuedBefore and expiresAt of every
+     *            revocation
+     * @return the number of revocations
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public int readSince(long since, long now, Consumer<Revocation> consumer) throws IamDataAccessException
+    {
+        final SqlTemplate sql = templates.get("Revocations", "readSince", "tokenId,subject,issuedBefore,expiresAt",
+                () -> new SqlTemplate("SELECT tokenId, subject, issuedBefore, expiresAt FROM Revocations"
+                        + " WHERE revokedAt >= ? AND expiresAt > ?;"));
+        final int[] count = new int[1];
+
+        try {
+            jdbc.query(sql.getSql(), rs -> {
+                consumer.accept(read(rs));
+                count[0]++;
+            }, since, now);
+
+            return count[0];
+        }
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
+
+    private static Revocation read(ResultSet rs) throws SQLException
+    {
+        return new Revocation(null, rs.getString(1), rs.getString(2), rs.getLong(3), rs.getLong(4), null);
+    }
+
+    /**
+     * Delete the expired revocations
+     *
+     * @param now
+     *            Current time, in milliseconds
+     * @return the number of deleted revocations
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public int deleteExpired(long now) throws IamDataAccessException
+    {
+        final SqlTemplate sql = templates.get("Revocations", "deleteExpired", "",
+                () -> new SqlTemplate("DELETE FROM Revocations WHERE expiresAt <= ?;"));
+
+        try {
+            return jdbc.update(sql.getSql(), now);
+        }
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+
+import fr.epita.sp18.entity.Role;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+
+/**
+ * This class implements DAO interface by extending the BaseJdbcDAO, so that it
+ * can perform CRUD operation on Roles table, and on the RolePermissions and
+ * IdentityRoles link tables
+ *
+ * @author Philip
+ *
+ */
+@Component
+public class RoleDAO extends BaseJdbcDAO<Role, Long> implements DAO<Role, Long>
+{
+    /**
+     * Construct RoleDAO class with table name is "Roles" and primary key is "uid"
+     */
+    public RoleDAO()
+    {
+        super("Roles", "uid", Role.class);
+    }
+
+    /**
+     * Add a permission to a role. Nothing happens when the role already has it
+     *
+     * @param roleUid
+     *            Primary key of the role
+     * @param permissionUid
+     *            Primary key of the permission
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void addPermission(Long roleUid, Long permissionUid) throws IamDataAccessException
+    {
+        link("addPermission", "INSERT INTO RolePermissions (roleUid, permissionUid) VALUES (?, ?);",
+                roleUid, permissionUid);
+    }
+
+    /**
+     * Grant a role to an identity. Nothing happens when the identity already has
+     * it
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @param roleUid
+     *            Primary key of the role
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void grant(Long identityUid, Long roleUid) throws IamDataAccessException
+    {
+        link("grant", "INSERT INTO IdentityRoles (identityUid, roleUid) VALUES (?, ?);", identityUid, roleUid);
+    }
+
+    /**
+     * Take a role back from an identity
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @param roleUid
+     *            Primary key of the role
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void revoke(Long identityUid, Long roleUid) throws IamDataAccessException
+    {
+        link("revoke", "DELETE FROM IdentityRoles WHERE identityUid = ? AND roleUid = ?;", identityUid, roleUid);
+    }
+
+    /**
+     * Take all roles back from an identity, e.g. when it is deleted
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @throws IamDataAccessException
+     *             when there is any exception occurs during the DAO's execution
+     */
+    public void revokeAll(Long identityUid) throws IamDataAccessException
+    {
+        link("revokeAll", "DELETE FROM IdentityRoles WHERE identityUid = ?;", identityUid);
+    }
+
+    private void link(String operation, String statement, Object... args) throws IamDataAccessException
+    {
+        final SqlTemplate sql = templates.get("Roles", operation, "", () -> new SqlTemplate(statement));
+
+        try {
+            jdbc.update(sql.getSql(), args);
+        }
+        catch (final DuplicateKeyException ex) {
+            // Already linked
+        }
+        catch (final DataAccessException ex) {
+            throw new IamDataAccessException(String.format(DATA_ACCESS_ERROR_MESSAGE, sql), ex,
+                    ErrorCode.DATA_ACCESS_ERROR);
+        }
+    }
+}
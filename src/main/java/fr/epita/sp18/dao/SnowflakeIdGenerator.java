@@ -0,0 +1,195 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * SnowflakeIdGenerator builds unique ids from three parts, from the highest to
+ * the lowest bits:
+ * <p>
+ * timestamp - milliseconds since the generator's epoch
+ * <p>
+ * node id - unique per running node, so that nodes never collide
+ * <p>
+ * sequence - distinguishes the ids of the same node and millisecond
+ * <p>
+ * Timestamp and sequence together form a logical clock that never goes
+ * backward: it follows the wall clock, and when the sequence of a millisecond
+ * is exhausted, or the wall clock goes back, the logical clock borrows the next
+ * milliseconds instead. When it gets more than maxDriftMillis ahead of the
+ * wall clock, callers wait for the wall clock to catch up; a sustained load
+ * waits often, so this is logged as a warning at most once per maxDriftMillis.
+ * The logical clock never repeats a value, so ids are unique even when the wall
+ * clock regresses.
+ * A node that restarts must be down longer than maxDriftMillis.
+ * <p>
+ * Threads do not share the logical clock on every call: each thread reserves a
+ * block of blockSize values with a single CAS and hands them out locally.
+ * <p>
+ * With the default layout (41 bits timestamp, 4 bits node, 8 bits sequence)
+ * ids stay below 2^53, so that JavaScript clients can read them exactly.
+ *
+ * @author Philip
+ *
+ */
+public class SnowflakeIdGenerator implements IdGenerator
+{
+    private static final Logger logger = LogManager.getLogger("SnowflakeIdGenerator");
+
+    /**
+     * 2018-01-01T00:00:00Z
+     */
+    public static final long DEFAULT_EPOCH = 1_514_764_800_000L;
+
+    private final long         epoch;
+    private final long         nodeId;
+    private final int          nodeBits;
+    private final int          sequenceBits;
+    private final long         sequenceMask;
+    private final long         maxTimestamp;
+    private final int          blockSize;
+    private final long         maxDriftMillis;
+    private final LongSupplier clock;
+
+    // Logical clock: (milliseconds since epoch << sequenceBits) | sequence. First
+    // value that is not reserved yet
+    private final AtomicLong state = new AtomicLong();
+
+    // Wall clock of the last warning about the drift
+    private final AtomicLong warned = new AtomicLong(Long.MIN_VALUE);
+
+    // Per thread block of reserved values: [next, end)
+    private final ThreadLocal<long[]> blocks = ThreadLocal.withInitial(() -> new long[2]);
+
+    /**
+     * Build a generator that reads the system clock
+     *
+     * @param nodeId
+     *            Id of this node, from 0 to 2^nodeBits - 1
+     * @param nodeBits
+     *            Number of bits of the node id
+     * @param sequenceBits
+     *            Number of bits of the sequence
+     * @param blockSize
+     *            Number of values a thread reserves at once
+     * @param maxDriftMillis
+     *            How far the logical clock may run ahead of the wall clock
+     */
+    public SnowflakeIdGenerator(long nodeId, int nodeBits, int sequenceBits, int blockSize, long maxDriftMillis)
+    {
+        this(DEFAULT_EPOCH, nodeId, nodeBits, sequenceBits, blockSize, maxDriftMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * Build a generator with its own epoch and clock
+     *
+     * @param epoch
+     *            Start of the timestamps, in milliseconds since 1970
+     * @param nodeId
+     *            Id of this node, from 0 to 2^nodeBits - 1
+     * @param nodeBits
+     *            Number of bits of the node id
+     * @param sequenceBits
+     *            Number of bits of the sequence
+     * @param blockSize
+     *            Number of values a thread reserves at once
+     * @param maxDriftMillis
+     *            How far the logical clock may run ahead of the wall clock
+     * @param clock
+     *            The wall clock, in milliseconds since 1970
+     */
+    public SnowflakeIdGenerator(long epoch, long nodeId, int nodeBits, int sequenceBits, int blockSize,
+            long maxDriftMillis, LongSupplier clock)
+    {
+        if (nodeBits < 0 || sequenceBits < 1 || nodeBits + sequenceBits > 22) {
+            throw new IllegalArgumentException("Node and sequence bits must fit in 22 bits, with at least one "
+                    + "sequence bit");
+        }
+        if (nodeId < 0 || nodeId >= (1L << nodeBits)) {
+            throw new IllegalArgumentException(String.format("Node id must be from 0 to %1$d", (1L << nodeBits) - 1));
+        }
+        if (blockSize < 1 || maxDriftMillis < 0) {
+            throw new IllegalArgumentException("Block size must be positive and max drift not negative");
+        }
+
+        this.epoch = epoch;
+        this.nodeId = nodeId;
+        this.nodeBits = nodeBits;
+        this.sequenceBits = sequenceBits;
+        this.sequenceMask = (1L << sequenceBits) - 1;
+        this.maxTimestamp = (1L << (63 - nodeBits - sequenceBits)) - 1;
+        this.blockSize = blockSize;
+        this.maxDriftMillis = maxDriftMillis;
+        this.clock = clock;
+    }
+
+    @Override
+    public long nextId()
+    {
+        final long[] block = blocks.get();
+
+        if (block[0] == block[1]) {
+            reserve(block);
+        }
+
+        final long value = block[0]++;
+
+        return ((value >>> sequenceBits) << (nodeBits + sequenceBits))
+                | (nodeId << sequenceBits)
+                | (value & sequenceMask);
+    }
+
+    private void reserve(long[] block)
+    {
+        boolean waited = false;
+
+        while (true) {
+            final long now = clock.getAsLong() - epoch;
+            final long current = state.get();
+            final long start = Math.max(current, now << sequenceBits);
+            final long end = start + blockSize;
+            final long timestamp = (end - 1) >>> sequenceBits;
+
+            if (timestamp > maxTimestamp) {
+                throw new IllegalStateException("SnowflakeIdGenerator timestamp overflow");
+            }
+
+            if (timestamp - now > maxDriftMillis) {
+                // Too far ahead of the wall clock: high load or clock regression
+                if (!waited) {
+                    warnDrift(now, timestamp - now);
+                    waited = true;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+
+            if (state.compareAndSet(current, end)) {
+                block[0] = start;
+                block[1] = end;
+                return;
+            }
+        }
+    }
+
+    // One warning per maxDriftMillis, the other waits are only traced
+    private void warnDrift(long now, long drift)
+    {
+        final long last = warned.get();
+
+        if ((now - last > maxDriftMillis || last == Long.MIN_VALUE) && warned.compareAndSet(last, now)) {
+            logger.warn(String.format("Id generator is %1$d ms ahead of the clock, waiting", drift));
+        }
+        else if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Id generator is %1$d ms ahead of the clock, waiting", drift));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+/**
+ * A "?"-parameterized SQL statement, with the entity's columns bound to its
+ * parameters, in order. SqlTemplate is immutable and shared by all the calls of
+ * the same DAO operation, see SqlTemplateCache
+ *
+ * @author Philip
+ *
+ */
+public final class SqlTemplate
+{
+    private static final String[] NO_PARAMETER = new String[0];
+
+    private final String   sql;
+    private final String[] parameters;
+
+    public SqlTemplate(String sql)
+    {
+        this(sql, NO_PARAMETER);
+    }
+
+    public SqlTemplate(String sql, String[] parameters)
+    {
+        this.sql = sql;
+        this.parameters = parameters;
+    }
+
+    public String getSql()
+    {
+        return sql;
+    }
+
+    /**
+     * @return the columns bound to the statement parameters. The returned array is
+     *         shared, callers must not modify it
+     */
+    public String[] getParameters()
+    {
+        return parameters;
+    }
+
+    @Override
+    public String toString()
+    {
+        return sql;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package fr.epita.sp18.dao;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * SqlTemplateCache keeps the SQL statements built by the DAOs, keyed by table,
+ * operation and column set, so that each statement is built once and then
+ * reused with the very same text. The database sees a small, stable set of
+ * statements and can reuse their parsed form and query plan.
+ * <p>
+ * The searches make a statement per filter and sort, the cache is bounded by
+ * iam.dao.sql.cache.maximum-size and evicts the statements least used.
+ * <p>
+ * The cache exposes its efficiency as metrics: iam.dao.sql.cache.hits,
+ * iam.dao.sql.cache.misses, iam.dao.sql.cache.size and
+ * iam.dao.sql.cache.hit.ratio
+ *
+ * @author Philip
+ *
+ */
+@Component
+public class SqlTemplateCache
+{
+    private final Cache<String, SqlTemplate> templates;
+    private final LongAdder                  hits   = new LongAdder();
+    private final LongAdder                  misses = new LongAdder();
+
+    public SqlTemplateCache(MeterRegistry registry,
+            @Value("${iam.dao.sql.cache.maximum-size:1000}") long maximumSize)
+    {
+        templates = Caffeine.newBuilder().maximumSize(maximumSize).build();
+
+        FunctionCounter.builder("iam.dao.sql.cache.hits", hits, LongAdder::doubleValue)
+                .description("SQL statements served from the template cache")
+                .register(registry);
+        FunctionCounter.builder("iam.dao.sql.cache.misses", misses, LongAdder::doubleValue)
+                .description("SQL statements built because they were not in the template cache")
+                .register(registry);
+        Gauge.builder("iam.dao.sql.cache.size", templates, Cache::estimatedSize)
+                .register(registry);
+        Gauge.builder("iam.dao.sql.cache.hit.ratio", this, SqlTemplateCache::getHitRatio)
+                .register(registry);
+    }
+
+    /**
+     * Get the statement of an operation, building it on the first call
+     *
+     * @param table
+     *            Table the statement works on
+     * @param operation
+     *            Name of the DAO operation, e.g. "get", "update"
+     * @param columns
+     *            The column set that makes the statement of this operation unique
+     * @param builder
+     *            Builds the statement when it is not in the cache yet
+     * @return the statement
+     */
+    public SqlTemplate get(String table, String operation, String columns, Supplier<SqlTemplate> builder)
+    {
+        final String key = table + '|' + operation + '|' + columns;
+
+        SqlTemplate template = templates.getIfPresent(key);
+        if (template != null) {
+            hits.increment();
+            return template;
+        }
+
+        misses.increment();
+        return templates.get(key, k -> builder.get());
+    }
+
+    /**
+     * @return the ratio of statements served from the cache, from 0 to 1
+     */
+    public double getHitRatio()
+    {
+        final double hit = hits.sum();
+        final double total = hit + misses.sum();
+
+        return total == 0 ? 0 : hit / total;
+    }
+}
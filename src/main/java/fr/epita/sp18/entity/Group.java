@@ -0,0 +1,70 @@
+package fr.epita.sp18.entity;
+
+/**
+ * Define the Group class, a named set of identities. The members of the
+ * groups are kept in the GroupMembers link table. The Group properties are:
+ * <p>
+ * Long uid - Primary key of the group
+ * <p>
+ * String name - Name of the group. Unique value
+ *
+ * @author Philip
+ *
+ */
+public class Group
+{
+    private Long   uid;
+    private String name;
+
+    public Group()
+    {
+    }
+
+    /**
+     * Initialize a group
+     *
+     * @param uid
+     *            Group's unique id
+     * @param name
+     *            Group's name
+     */
+    public Group(Long uid, String name)
+    {
+        this.uid = uid;
+        this.name = name;
+    }
+
+    /**
+     * @return the uid
+     */
+    public Long getUid()
+    {
+        return uid;
+    }
+
+    /**
+     * @return the name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @param uid
+     *            the uid to set
+     */
+    public void setUid(Long uid)
+    {
+        this.uid = uid;
+    }
+
+    /**
+     * @param name
+     *            the name to set
+     */
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+}
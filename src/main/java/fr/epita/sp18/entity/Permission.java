@@ -0,0 +1,95 @@
+package fr.epita.sp18.entity;
+
+/**
+ * Define the Permission class, a right that roles grant to identities. The
+ * Permission properties are:
+ * <p>
+ * Long uid - Primary key of the permission
+ * <p>
+ * String name - Name of the permission, also the name of its GrantedAuthority.
+ * Unique value
+ * <p>
+ * Integer bit - Position of the permission in the permission bitset of the
+ * tokens. Unique value
+ *
+ * @author Philip
+ *
+ */
+public class Permission
+{
+    private Long    uid;
+    private String  name;
+    private Integer bit;
+
+    public Permission()
+    {
+    }
+
+    /**
+     * Initialize a permission
+     *
+     * @param uid
+     *            Permission's unique id
+     * @param name
+     *            Permission's name
+     * @param bit
+     *            Permission's position in the bitset
+     */
+    public Permission(Long uid, String name, Integer bit)
+    {
+        this.uid = uid;
+        this.name = name;
+        this.bit = bit;
+    }
+
+    /**
+     * @return the uid
+     */
+    public Long getUid()
+    {
+        return uid;
+    }
+
+    /**
+     * @return the name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the bit
+     */
+    public Integer getBit()
+    {
+        return bit;
+    }
+
+    /**
+     * @param uid
+     *            the uid to set
+     */
+    public void setUid(Long uid)
+    {
+        this.uid = uid;
+    }
+
+    /**
+     * @param name
+     *            the name to set
+     */
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @param bit
+     *            the bit to set
+     */
+    public void setBit(Integer bit)
+    {
+        this.bit = bit;
+    }
+}
@@ -0,0 +1,168 @@
+package fr.epita.sp18.entity;
+
+/**
+ * Define the Revocation class, an entry of the token deny-list. It revokes
+ * either one token, by its id, or all the tokens of a subject issued before a
+ * time. The Revocation properties are:
+ * <p>
+ * Long uid - Primary key of the revocation
+ * <p>
+ * String tokenId - Id ("jti") of the revoked token, null when a subject is
+ * revoked
+ * <p>
+ * String subject - Subject ("sub") of the revoked tokens, null when a token is
+ * revoked
+ * <p>
+ * Long issuedBefore - The tokens of the subject issued before this time, in
+ * milliseconds, are revoked
+ * <p>
+ * Long expiresAt - Time, in milliseconds, after which every revoked token is
+ * expired anyway. The revocation can be deleted then
+ * <p>
+ * Long revokedAt - Time, in milliseconds, the revocation was stored at
+ *
+ * @author Philip
+ *
+ */
+public class Revocation
+{
+    private Long   uid;
+    private String tokenId;
+    private String subject;
+    private Long   issuedBefore;
+    private Long   expiresAt;
+    private Long   revokedAt;
+
+    public Revocation()
+    {
+    }
+
+    /**
+     * Initialize a revocation
+     *
+     * @param uid
+     *            Revocation's unique id
+     * @param tokenId
+     *            Id of the revoked token
+     * @param subject
+     *            Subject of the revoked tokens
+     * @param issuedBefore
+     *            The subject's tokens issued before this time are revoked
+     * @param expiresAt
+     *            Time after which the revocation can be deleted
+     * @param revokedAt
+     *            Time the revocation was stored at
+     */
+    public Revocation(Long uid, String tokenId, String subject, Long issuedBefore, Long expiresAt,
+            Long revokedAt)
+    {
+        this.uid = uid;
+        this.tokenId = tokenId;
+        this.subject = subject;
+        this.issuedBefore = issuedBefore;
+        this.expiresAt = expiresAt;
+        this.revokedAt = revokedAt;
+    }
+
+    /**
+     * @return the uid
+     */
+    public Long getUid()
+    {
+        return uid;
+    }
+
+    /**
+     * @return the tokenId
+     */
+    public String getTokenId()
+    {
+        return tokenId;
+    }
+
+    /**
+     * @return the subject
+     */
+    public String getSubject()
+    {
+        return subject;
+    }
+
+    /**
+     * @return the issuedBefore
+     */
+    public Long getIssuedBefore()
+    {
+        return issuedBefore;
+    }
+
+    /**
+     * @return the expiresAt
+     */
+    public Long getExpiresAt()
+    {
+        return expiresAt;
+    }
+
+    /**
+     * @return the revokedAt
+     */
+    public Long getRevokedAt()
+    {
+        return revokedAt;
+    }
+
+    /**
+     * @param uid
+     *            the uid to set
+     */
+    public void setUid(Long uid)
+    {
+        this.uid = uid;
+    }
+
+    /**
+     * @param tokenId
+     *            the tokenId to set
+     */
+    public void setTokenId(String tokenId)
+    {
+        this.tokenId = tokenId;
+    }
+
+    /**
+     * @param subject
+     *            the subject to set
+     */
+    public void setSubject(String subject)
+    {
+        this.subject = subject;
+    }
+
+    /**
+     * @param issuedBefore
+     *            the issuedBefore to set
+     */
+    public void setIssuedBefore(Long issuedBefore)
+    {
+        this.issuedBefore = issuedBefore;
+    }
+
+    /**
+     * @param expiresAt
+     *            the expiresAt to set
+     */
+    public void setExpiresAt(Long expiresAt)
+    {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @param revokedAt
+     *            the revokedAt to set
+     */
+    public void setRevokedAt(Long revokedAt)
+    {
+        this.revokedAt = revokedAt;
+    }
+}
@@ -0,0 +1,70 @@
+package fr.epita.sp18.entity;
+
+/**
+ * Define the Role class, a named set of permissions that is granted to
+ * identities. The Role properties are:
+ * <p>
+ * Long uid - Primary key of the role
+ * <p>
+ * String name - Name of the role. Unique value
+ *
+ * @author Philip
+ *
+ */
+public class Role
+{
+    private Long   uid;
+    private String name;
+
+    public Role()
+    {
+    }
+
+    /**
+     * Initialize a role
+     *
+     * @param uid
+     *            Role's unique id
+     * @param name
+     *            Role's name
+     */
+    public Role(Long uid, String name)
+    {
+        this.uid = uid;
+        this.name = name;
+    }
+
+    /**
+     * @return the uid
+     */
+    public Long getUid()
+    {
+        return uid;
+    }
+
+    /**
+     * @return the name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @param uid
+     *            the uid to set
+     */
+    public void setUid(Long uid)
+    {
+        this.uid = uid;
+    }
+
+    /**
+     * @param name
+     *            the name to set
+     */
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+}
@@ -12,5 +12,9 @@ public enum ErrorCode {
     SET_PRIMARY_KEY_ERROR,
     DUPLICATE_KEY_ERROR,
     DATA_INTEGRITY_VIOLATION,
-    UNSUPPORTED_DATA_TYPE
+    UNSUPPORTED_DATA_TYPE,
+    RECORD_NOT_FOUND,
+    UNSUPPORTED_SORT_KEY,
+    UNKNOWN_COLUMN,
+    CONCURRENT_UPDATE
 }
@@ -0,0 +1,50 @@
+package fr.epita.sp18.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Define structure of http request body of Group's API service. Its properties
+ * are:
+ * <p>
+ * Long uid - Primary key of the group, ignored on creation
+ * <p>
+ * String name - Name of the group
+ *
+ * @author Philip
+ *
+ */
+public class GroupRequest
+{
+    @JsonCreator
+    public GroupRequest(
+            @JsonProperty("uid") Long uid,
+            @JsonProperty("name") String name)
+    {
+        this.uid = uid;
+        this.name = name;
+    }
+
+    private Long   uid;
+    private String name;
+
+    public Long getUid()
+    {
+        return uid;
+    }
+
+    public void setUid(Long uid)
+    {
+        this.uid = uid;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+}
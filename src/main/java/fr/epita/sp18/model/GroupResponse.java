@@ -0,0 +1,57 @@
+package fr.epita.sp18.model;
+
+/**
+ * Define which group's data can be sent to API caller. Its properties are:
+ * <p>
+ * Long uid - Primary key of the group
+ * <p>
+ * String name - Name of the group
+ * <p>
+ * int memberCount - Number of identities in the group
+ *
+ * @author Philip
+ *
+ */
+public class GroupResponse
+{
+    public GroupResponse(Long uid, String name, int memberCount)
+    {
+        this.uid = uid;
+        this.name = name;
+        this.memberCount = memberCount;
+    }
+
+    private Long   uid;
+    private String name;
+    private int    memberCount;
+
+    public Long getUid()
+    {
+        return uid;
+    }
+
+    public void setUid(Long uid)
+    {
+        this.uid = uid;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    public int getMemberCount()
+    {
+        return memberCount;
+    }
+
+    public void setMemberCount(int memberCount)
+    {
+        this.memberCount = memberCount;
+    }
+}
@@ -0,0 +1,48 @@
+package fr.epita.sp18.model;
+
+import java.util.List;
+
+/**
+ * Define one page of a paginated identity search. IdentityPage's properties
+ * are:
+ * <p>
+ * List&lt;IdentityResponse&gt; identities - Identities of the page
+ * <p>
+ * String next - Opaque continuation token to be sent back to get the next
+ * page. Null when there is no more page
+ * <p>
+ *
+ * @author Philip
+ *
+ */
+public class IdentityPage
+{
+    private List<IdentityResponse> identities;
+    private String                 next;
+
+    public IdentityPage(List<IdentityResponse> identities, String next)
+    {
+        this.identities = identities;
+        this.next = next;
+    }
+
+    public List<IdentityResponse> getIdentities()
+    {
+        return identities;
+    }
+
+    public void setIdentities(List<IdentityResponse> identities)
+    {
+        this.identities = identities;
+    }
+
+    public String getNext()
+    {
+        return next;
+    }
+
+    public void setNext(String next)
+    {
+        this.next = next;
+    }
+}
@@ -0,0 +1,35 @@
+package fr.epita.sp18.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Define structure of http request body of Permission's API service. Its
+ * properties are:
+ * <p>
+ * String name - Name of the permission, also the name of its authority
+ *
+ * @author Philip
+ *
+ */
+public class PermissionRequest
+{
+    @JsonCreator
+    public PermissionRequest(
+            @JsonProperty("name") String name)
+    {
+        this.name = name;
+    }
+
+    private String name;
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+}
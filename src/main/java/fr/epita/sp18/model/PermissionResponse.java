@@ -0,0 +1,58 @@
+package fr.epita.sp18.model;
+
+/**
+ * Define which permission's data can be sent to API caller. Its properties
+ * are:
+ * <p>
+ * Long uid - Primary key of the permission
+ * <p>
+ * String name - Name of the permission
+ * <p>
+ * int bit - Bit of the permission in the token bitset
+ *
+ * @author Philip
+ *
+ */
+public class PermissionResponse
+{
+    public PermissionResponse(Long uid, String name, int bit)
+    {
+        this.uid = uid;
+        this.name = name;
+        this.bit = bit;
+    }
+
+    private Long   uid;
+    private String name;
+    private int    bit;
+
+    public Long getUid()
+    {
+        return uid;
+    }
+
+    public void setUid(Long uid)
+    {
+        this.uid = uid;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    public int getBit()
+    {
+        return bit;
+    }
+
+    public void setBit(int bit)
+    {
+        this.bit = bit;
+    }
+}
@@ -0,0 +1,52 @@
+package fr.epita.sp18.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Define structure of http request body of Role's API service. Its properties
+ * are:
+ * <p>
+ * String name - Name of the role
+ * <p>
+ * List&lt;String&gt; permissions - Names of the permissions of the role
+ *
+ * @author Philip
+ *
+ */
+public class RoleRequest
+{
+    @JsonCreator
+    public RoleRequest(
+            @JsonProperty("name") String name,
+            @JsonProperty("permissions") List<String> permissions)
+    {
+        this.name = name;
+        this.permissions = permissions;
+    }
+
+    private String       name;
+    private List<String> permissions;
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    public List<String> getPermissions()
+    {
+        return permissions;
+    }
+
+    public void setPermissions(List<String> permissions)
+    {
+        this.permissions = permissions;
+    }
+}
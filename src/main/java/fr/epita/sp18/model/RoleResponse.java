@@ -0,0 +1,59 @@
+package fr.epita.sp18.model;
+
+import java.util.List;
+
+/**
+ * Define which role's data can be sent to API caller. Its properties are:
+ * <p>
+ * Long uid - Primary key of the role
+ * <p>
+ * String name - Name of the role
+ * <p>
+ * List&lt;String&gt; permissions - Names of the permissions of the role
+ *
+ * @author Philip
+ *
+ */
+public class RoleResponse
+{
+    public RoleResponse(Long uid, String name, List<String> permissions)
+    {
+        this.uid = uid;
+        this.name = name;
+        this.permissions = permissions;
+    }
+
+    private Long         uid;
+    private String       name;
+    private List<String> permissions;
+
+    public Long getUid()
+    {
+        return uid;
+    }
+
+    public void setUid(Long uid)
+    {
+        this.uid = uid;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    public List<String> getPermissions()
+    {
+        return permissions;
+    }
+
+    public void setPermissions(List<String> permissions)
+    {
+        this.permissions = permissions;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package fr.epita.sp18.rest;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import fr.epita.sp18.model.ApiResponse;
+import fr.epita.sp18.model.GroupRequest;
+import fr.epita.sp18.model.GroupResponse;
+import fr.epita.sp18.service.GroupService;
+
+/**
+ * API /api/groups manages the groups of identities and answers membership
+ * queries. Same authentication as /api/identities
+ *
+ * @author Philip
+ *
+ */
+@RestController
+@RequestMapping("/api/groups")
+public class GroupController
+{
+    @Autowired
+    GroupService service;
+
+    /**
+     * GET /api/groups?member=1531171542822. List the groups, or the groups of an
+     * identity
+     *
+     * @param member
+     *            An unique id of an identity, optional
+     * @return Search result. Http response sample: {model: [{uid: 1531171542900,
+     *         name: "Admins", memberCount: 2}], message: "", hasError: false,
+     *         errorMessage: ""}
+     */
+    @GetMapping()
+    public ApiResponse<List<GroupResponse>> list(@RequestParam(value = "member", required = false) Long member)
+    {
+        return service.list(member);
+    }
+
+    /**
+     * POST /api/groups. Create an empty group
+     *
+     * @param request
+     *            The group in JSON format. Sample request body: {"uid": 0,
+     *            "name":"Admins"}
+     * @return Create result. Http response sample: {model: {uid: 1531171542900,
+     *         name: "Admins", memberCount: 0}, message: "", hasError: false,
+     *         errorMessage: ""}.
+     *         <p>
+     *         Http response sample when the name is used: {model: null, message:
+     *         "", hasError: true, errorMessage: "This group name is already used.
+     *         Choose a new one"}
+     */
+    @PostMapping()
+    public ApiResponse<GroupResponse> create(@RequestBody GroupRequest request)
+    {
+        return service.create(request);
+    }
+
+    /**
+     * DELETE /api/groups/1531171542900. Delete a group and its memberships
+     *
+     * @param uid
+     *            An unique id of the group. Integer 64 bits
+     * @return Delete result. Http response sample: {model: null, message: "",
+     *         hasError: false, errorMessage: ""}
+     */
+    @DeleteMapping(value = "/{uid}")
+    public ApiResponse<GroupResponse> delete(@PathVariable("uid") Long uid)
+    {
+        return service.delete(uid);
+    }
+
+    /**
+     * GET /api/groups/1531171542900/members. List the uids of the members of a
+     * group
+     *
+     * @param uid
+     *            An unique id of the group. Integer 64 bits
+     * @return Search result. Http response sample: {model: [1531171542822,
+     *         1531171542823], message: "", hasError: false, errorMessage: ""}.
+     *         <p>
+     *         Http response sample when the group does not exist: {model: null,
+     *         message: "", hasError: true, errorMessage: "Group not found"}
+     */
+    @GetMapping(value = "/{uid}/members")
+    public ApiResponse<List<Long>> members(@PathVariable("uid") Long uid)
+    {
+        return service.members(uid);
+    }
+
+    /**
+     * PUT /api/groups/1531171542900/members/1531171542822. Add an identity to a
+     * group
+     *
+     * @param uid
+     *            An unique id of the group. Integer 64 bits
+     * @param identityUid
+     *            An unique id of the identity. Integer 64 bits
+     * @return Update result. Http response sample: {model: {uid: 1531171542900,
+     *         name: "Admins", memberCount: 1}, message: "", hasError: false,
+     *         errorMessage: ""}
+     */
+    @PutMapping(value = "/{uid}/members/{identityUid}")
+    public ApiResponse<GroupResponse> addMember(@PathVariable("uid") Long uid,
+            @PathVariable("identityUid") Long identityUid)
+    {
+        return service.addMember(uid, identityUid);
+    }
+
+    /**
+     * DELETE /api/groups/1531171542900/members/1531171542822. Remove an identity
+     * from a group
+     *
+     * @param uid
+     *            An unique id of the group. Integer 64 bits
+     * @param identityUid
+     *            An unique id of the identity. Integer 64 bits
+     * @return Update result. Http response is same as PUT request
+     */
+    @DeleteMapping(value = "/{uid}/members/{identityUid}")
+    public ApiResponse<GroupResponse> removeMember(@PathVariable("uid") Long uid,
+            @PathVariable("identityUid") Long identityUid)
+    {
+        return service.removeMember(uid, identityUid);
+    }
+
+    /**
+     * GET /api/groups/_intersection?groups=1531171542900,1531171542901. List the
+     * uids of the identities that are members of all the groups
+     *
+     * @param groups
+     *            Unique ids of the groups
+     * @return Search result. Http response is same as GET
+     *         /api/groups/1531171542900/members
+     */
+    @GetMapping(value = "/_intersection")
+    public ApiResponse<List<Long>> intersection(@RequestParam("groups") Long[] groups)
+    {
+        return service.intersection(groups);
+    }
+
+    /**
+     * GET /api/groups/_union?groups=1531171542900,1531171542901. List the uids of
+     * the identities that are members of any of the groups
+     *
+     * @param groups
+     *            Unique ids of the groups
+     * @return Search result. Http response is same as GET
+     *         /api/groups/1531171542900/members
+     */
+    @GetMapping(value = "/_union")
+    public ApiResponse<List<Long>> union(@RequestParam("groups") Long[] groups)
+    {
+        return service.union(groups);
+    }
+}
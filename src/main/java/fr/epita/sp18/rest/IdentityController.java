@@ -3,9 +3,17 @@
  */
 package fr.epita.sp18.rest;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
@@ -17,7 +25,11 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import fr.epita.sp18.model.ApiResponse;
+import fr.epita.sp18.model.IdentityPage;
 import fr.epita.sp18.model.IdentityRequest;
 import fr.epita.sp18.model.IdentityResponse;
 import fr.epita.sp18.service.IdentityService;
@@ -30,6 +42,11 @@ import fr.epita.sp18.service.IdentityService;
  * HTTP header using the Bearer authentication scheme.
  *
  * API token can be acquired via sign in thru URL /login
+ * <p>
+ * Every endpoint but suggest, answered from memory, and _stream returns a
+ * CompletableFuture: the request thread is released while the queries run on
+ * the JdbcExecutor and the passwords are hashed on the common pool, and the
+ * response is written when it completes
  *
  * @author Philip
  *
@@ -41,6 +58,9 @@ public class IdentityController
     @Autowired
     IdentityService service;
 
+    @Autowired
+    ObjectMapper mapper;
+
     /**
      * DELETE /api/identities/1531171542822. Delete the identity base on its primary
      * key
@@ -57,9 +77,9 @@ public class IdentityController
      *         try again"}
      */
     @DeleteMapping(value = "/{uid}")
-    public ApiResponse<IdentityResponse> delete(@PathVariable("uid") Long uid)
+    public CompletableFuture<ApiResponse<IdentityResponse>> delete(@PathVariable("uid") Long uid)
     {
-        return service.delete(uid);
+        return service.deleteAsync(uid);
     }
 
     /**
@@ -78,30 +98,216 @@ public class IdentityController
      *         "", hasError: false, errorMessage: ""}
      */
     @GetMapping(value = "/{uid}")
-    public ApiResponse<IdentityResponse> get(@PathVariable("uid") Long uid)
+    public CompletableFuture<ApiResponse<IdentityResponse>> get(@PathVariable("uid") Long uid)
     {
-        return service.get(uid);
+        return service.getAsync(uid);
+    }
+
+    /**
+     * POST /api/identities/_mget. Get the identities of a list of primary keys
+     * at once
+     *
+     * @param uids
+     *            The unique ids of the identities in JSON format. Sample request
+     *            body: [1531171542822, 1531171542823]
+     * @return Search result. Http response sample: {model: [{model: {uid:
+     *         1531171542822, name: "Hugo Lloris", email: "hugo@email.com"},
+     *         message: "", hasError: false, errorMessage: ""}, {model: null,
+     *         message: "", hasError: true, errorMessage: "Identity not found"}],
+     *         message: "1 of 2 identities found", hasError: false, errorMessage:
+     *         ""}
+     */
+    @PostMapping(value = "/_mget")
+    public CompletableFuture<ApiResponse<List<ApiResponse<IdentityResponse>>>> getAll(
+            @RequestBody List<Long> uids)
+    {
+        return service.getAllAsync(uids);
     }
 
     /**
      * GET /api/identities?filter=xyz. Search for identities name or email that
-     * contain keyword specified in "filter" parameter
+     * contain keyword specified in "filter" parameter. The identities that are not
+     * answered by the search index are written to the http response as they are
+     * read from the database, on the JdbcExecutor
      *
      * @param filter
      *            the keyword for searching. Sample API that search for identities
      *            containing the keyword "go": /api/identities?filter=go
-     * @return Search result. Http response sample: {model: [{uid: 1531171542822,
-     *         name: "Hugo Lloris", email: "hugo@email.com"}], message: "",
-     *         hasError: false, errorMessage: ""}.
+     * @param response
+     *            The http response the search result is written to
+     * @return completes when the search result is written. Http response sample:
+     *         {model: [{uid: 1531171542822, name: "Hugo Lloris", email:
+     *         "hugo@email.com"}], message: "1 identities found", hasError: false,
+     *         errorMessage: ""}.
      *
-     *         Http response sample when no identity found: {model: null, message:
-     *         "", hasError: false, errorMessage: ""}
+     *         Http response sample when no identity found: {model: [], message: "0
+     *         identities found", hasError: false, errorMessage: ""}
+     * @throws IOException
+     *             when the http response can not be written
      */
     @GetMapping()
-    public ApiResponse<List<IdentityResponse>> list(@RequestParam("filter") String filter)
+    public CompletableFuture<Void> list(@RequestParam("filter") String filter, HttpServletResponse response)
+            throws IOException
     {
         final String sort = "";
-        return service.search(filter == null ? "" : filter, sort);
+        final JsonGenerator json = startSearch(response);
+
+        return service.searchAsync(filter == null ? "" : filter, sort, writer(json))
+                .handle((resp, ex) -> {
+                    endSearch(json, resp, ex);
+                    return null;
+                });
+    }
+
+    /**
+     * GET /api/identities?filter=xyz&amp;sort=name&amp;limit=50&amp;after=token.
+     * Search one page of the identities that name or email contain the keyword.
+     * The first page is requested without "after", the next ones with the "next"
+     * token of the previous page, keeping the same filter and sort
+     *
+     * @param filter
+     *            the keyword for searching, optional
+     * @param sort
+     *            sort key, optional: "uid" (default), "name" or "email", prefixed
+     *            by "-" for a descending order
+     * @param limit
+     *            maximum number of identities of the page
+     * @param after
+     *            continuation token of the previous page, optional
+     * @return Search result. Http response sample: {model: {identities: [{uid:
+     *         1531171542822, name: "Hugo Lloris", email: "hugo@email.com"}], next:
+     *         "bmFtZQoxNTMxMTcxNTQyODIyCkh1Z28gTGxvcmlz"}, message: "", hasError:
+     *         false, errorMessage: ""}.
+     *         <p>
+     *         Http response sample on the last page: {model: {identities: [],
+     *         next: null}, message: "", hasError: false, errorMessage: ""}
+     */
+    @GetMapping(params = "limit")
+    public CompletableFuture<ApiResponse<IdentityPage>> page(
+            @RequestParam(value = "filter", required = false) String filter,
+            @RequestParam(value = "sort", required = false) String sort,
+            @RequestParam("limit") int limit,
+            @RequestParam(value = "after", required = false) String after)
+    {
+        return service.searchAsync(filter == null ? "" : filter, sort, after, limit).exceptionally(ex -> {
+            // The search could not start, e.g. the JDBC queue is full
+            ApiResponse<IdentityPage> resp = new ApiResponse<>();
+            resp.setErrorMessage("Error when searching for identities. Please try again");
+            resp.setHasError(true);
+            return resp;
+        });
+    }
+
+    /**
+     * GET /api/identities/_stream?filter=xyz. Same search as GET
+     * /api/identities?filter=xyz, but the identities are written to the http
+     * response as they are read from the database, so that the server memory does
+     * not grow with the number of found identities.
+     * <p>
+     * Http response sample: {model: [{uid: 1531171542822, name: "Hugo Lloris",
+     * email: "hugo@email.com"}], message: "1 identities found", hasError: false,
+     * errorMessage: ""}. An error that occurs during the search is reported in
+     * hasError and errorMessage, after the identities already sent
+     *
+     * @param filter
+     *            the keyword for searching, optional. Without keyword, all
+     *            identities are returned
+     * @param response
+     *            The http response the search result is written to
+     * @throws IOException
+     *             when the http response can not be written
+     */
+    @GetMapping(value = "/_stream")
+    public void stream(@RequestParam(value = "filter", required = false) String filter,
+            HttpServletResponse response) throws IOException
+    {
+        final String sort = "";
+        final JsonGenerator json = startSearch(response);
+        ApiResponse<Integer> resp = null;
+        Throwable error = null;
+
+        try {
+            resp = service.search(filter == null ? "" : filter, sort, writer(json));
+        }
+        catch (final UncheckedIOException ex) {
+            error = ex;
+        }
+
+        endSearch(json, resp, error);
+    }
+
+    // Open the JSON response of a search, up to the start of the model array
+    private JsonGenerator startSearch(HttpServletResponse response) throws IOException
+    {
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+
+        final JsonGenerator json = mapper.getFactory().createGenerator(response.getOutputStream());
+        json.writeStartObject();
+        json.writeArrayFieldStart("model");
+
+        return json;
+    }
+
+    private static Consumer<IdentityResponse> writer(JsonGenerator json)
+    {
+        return identity -> {
+            try {
+                json.writeObject(identity);
+            }
+            catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        };
+    }
+
+    // Close the JSON response of a search. After a write error, usually a client
+    // that went away, nothing more can be written and the response is dropped
+    private static void endSearch(JsonGenerator json, ApiResponse<Integer> resp, Throwable error)
+    {
+        final Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+
+        if (cause instanceof UncheckedIOException) return;
+
+        if (cause != null) {
+            // The search could not start, e.g. the JDBC queue is full
+            resp = new ApiResponse<>();
+            resp.setErrorMessage("Error when searching for identities. Please try again");
+            resp.setHasError(true);
+        }
+
+        try {
+            json.writeEndArray();
+            json.writeStringField("message",
+                    resp.getHasError() ? "" : String.format("%1$d identities found", resp.getModel()));
+            json.writeBooleanField("hasError", resp.getHasError());
+            json.writeStringField("errorMessage", resp.getErrorMessage());
+            json.writeEndObject();
+            json.close();
+        }
+        catch (final IOException ex) {
+            // The client went away at the end of the result
+        }
+    }
+
+    /**
+     * GET /api/identities/suggest?prefix=hu&amp;limit=10. Type-ahead on the
+     * identities: suggest the identities that name, a word of name or email starts
+     * with the prefix
+     *
+     * @param prefix
+     *            the beginning of the name, a word of the name or email
+     * @param limit
+     *            maximum number of suggestions, 10 by default
+     * @return Suggestions. Http response sample: {model: [{uid: 1531171542822,
+     *         name: "Hugo Lloris", email: "hugo@email.com"}], message: "",
+     *         hasError: false, errorMessage: ""}
+     */
+    @GetMapping(value = "/suggest")
+    public ApiResponse<List<IdentityResponse>> suggest(
+            @RequestParam(value = "prefix", required = false) String prefix,
+            @RequestParam(value = "limit", defaultValue = "10") int limit)
+    {
+        return service.suggest(prefix == null ? "" : prefix, limit);
     }
 
     /**
@@ -121,9 +327,44 @@ public class IdentityController
      *         used. Choose a new one"}. Detail error can be found in server's log.
      */
     @PostMapping()
-    public ApiResponse<IdentityResponse> create(@RequestBody IdentityRequest request)
+    public CompletableFuture<ApiResponse<IdentityResponse>> create(@RequestBody IdentityRequest request)
+    {
+        return service.createAsync(request);
+    }
+
+    /**
+     * POST /api/identities/_bulk. Create the identities received in post http
+     * request body, by JDBC batches. A failed identity does not stop the others
+     *
+     * @param requests
+     *            The identities in JSON format. Sample request body: [{"uid": 0,
+     *            "name":"Admin", "email":"admin@email.com", "password":"Admin1234"}]
+     * @return Create result. Http response sample: {model: [{model: {uid:
+     *         1531171542822, name: "Hugo Lloris", email: "hugo@email.com"},
+     *         message: "", hasError: true, errorMessage: "This email is already
+     *         used. Choose a new one"}], message: "0 of 1 identities saved",
+     *         hasError: false, errorMessage: ""}.
+     */
+    @PostMapping(value = "/_bulk")
+    public CompletableFuture<ApiResponse<List<ApiResponse<IdentityResponse>>>> createAll(
+            @RequestBody List<IdentityRequest> requests)
+    {
+        return service.createAllAsync(requests);
+    }
+
+    /**
+     * PUT /api/identities/_bulk. Update the identities received in http request
+     * body, by JDBC batches. A failed identity does not stop the others
+     *
+     * @param requests
+     *            Same as POST /api/identities/_bulk request value
+     * @return Update result. Http response is same as POST /api/identities/_bulk
+     */
+    @PutMapping(value = "/_bulk")
+    public CompletableFuture<ApiResponse<List<ApiResponse<IdentityResponse>>>> updateAll(
+            @RequestBody List<IdentityRequest> requests)
     {
-        return service.create(request);
+        return service.updateAllAsync(requests);
     }
 
     /**
@@ -135,9 +376,9 @@ public class IdentityController
      * @return Update result. Http response is same as POST request
      */
     @PutMapping(value = "/{uid}")
-    public ApiResponse<IdentityResponse> update(@RequestBody IdentityRequest request)
+    public CompletableFuture<ApiResponse<IdentityResponse>> update(@RequestBody IdentityRequest request)
     {
-        return service.update(request);
+        return service.updateAsync(request);
     }
 
     /**
@@ -149,8 +390,8 @@ public class IdentityController
      * @return Patch result. Http response is same as POST request
      */
     @PatchMapping(value = "/{uid}")
-    public ApiResponse<IdentityResponse> patch(@RequestBody IdentityRequest request)
+    public CompletableFuture<ApiResponse<IdentityResponse>> patch(@RequestBody IdentityRequest request)
     {
-        return service.patch(request);
+        return service.patchAsync(request);
     }
 }
@@ -0,0 +1,264 @@
+/**
+ *
+ */
+package fr.epita.sp18.rest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.epita.sp18.model.ApiResponse;
+import fr.epita.sp18.model.IdentityPage;
+import fr.epita.sp18.model.IdentityResponse;
+import fr.epita.sp18.service.IdentityService;
+
+/**
+ * API /api/stream/identities streams the identity searches to slow clients,
+ * such as the edge gateway, without holding a thread per connection. It is
+ * only enabled by the "reactive" profile, next to /api/identities.
+ * <p>
+ * The response is written with the non blocking servlet output: a page of
+ * iam.stream.page-size identities is only read from the database, on the
+ * JdbcExecutor, when the client consumed the previous one. A slow client slows
+ * the reads down instead of filling the server memory, and while it reads no
+ * thread is held, only its connection.
+ * <p>
+ * Same authentication as /api/identities
+ *
+ * @author Philip
+ *
+ */
+@Profile("reactive")
+@RestController
+@RequestMapping("/api/stream/identities")
+public class IdentityStreamController
+{
+    private static final Logger logger = LogManager.getLogger("IdentityStreamController");
+
+    @Autowired
+    IdentityService service;
+
+    @Autowired
+    ObjectMapper mapper;
+
+    /**
+     * Identities read from the database at once
+     */
+    @Value("${iam.stream.page-size:100}")
+    int pageSize;
+
+    /**
+     * Longest time a stream may take, 0 for no limit
+     */
+    @Value("${iam.stream.timeout-ms:300000}")
+    long timeoutMillis;
+
+    /**
+     * GET /api/stream/identities?filter=xyz&amp;sort=name. Stream the identities
+     * that name or email contain the keyword, one JSON object per line
+     * (application/stream+json).
+     * <p>
+     * Http response sample: {"uid":1531171542822,"name":"Hugo
+     * Lloris","email":"hugo@email.com"}. An error is written as the last line, as
+     * an ApiResponse: {"model":null,"message":"","hasError":true,"errorMessage":
+     * "Invalid sort key. Use uid, name or email"}
+     *
+     * @param filter
+     *            the keyword for searching, optional. Without keyword, all
+     *            identities are returned
+     * @param sort
+     *            sort key, optional: "uid" (default), "name" or "email", prefixed
+     *            by "-" for a descending order
+     * @param request
+     *            The http request, put in asynchronous mode
+     * @param response
+     *            The http response the identities are written to
+     * @throws IOException
+     *             when the http response can not be written
+     */
+    @GetMapping()
+    public void search(@RequestParam(value = "filter", required = false) String filter,
+            @RequestParam(value = "sort", required = false) String sort,
+            HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        response.setContentType(MediaType.APPLICATION_STREAM_JSON_VALUE);
+
+        final AsyncContext async = request.startAsync();
+        async.setTimeout(timeoutMillis);
+
+        final Stream stream = new Stream(async, filter == null ? "" : filter, sort);
+        async.addListener(stream);
+        response.getOutputStream().setWriteListener(stream);
+    }
+
+    // Writes the identities while the output is ready, and reads the next page
+    // when the current one is written. The container calls onWritePossible again
+    // once a write that was not ready can go on
+    private class Stream implements WriteListener, AsyncListener
+    {
+        private final AsyncContext        async;
+        private final ServletOutputStream out;
+        private final String              filter;
+        private final String              sort;
+
+        private Iterator<IdentityResponse> page = Collections.emptyIterator();
+        private String                     next = "";
+        private ApiResponse<?>             error;
+        private boolean                    reading;
+        private boolean                    done;
+
+        private Stream(AsyncContext async, String filter, String sort) throws IOException
+        {
+            this.async = async;
+            this.out = async.getResponse().getOutputStream();
+            this.filter = filter;
+            this.sort = sort;
+        }
+
+        @Override
+        public synchronized void onWritePossible() throws IOException
+        {
+            while (!done && out.isReady()) {
+                if (page.hasNext()) {
+                    write(page.next());
+                }
+                else if (error != null) {
+                    write(error);
+                    finish();
+                }
+                else if (next == null) {
+                    finish();
+                }
+                else {
+                    if (!reading) read();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onError(Throwable ex)
+        {
+            // Usually the client went away
+            logger.debug("Identity stream error", ex);
+            finish();
+        }
+
+        @Override
+        public synchronized void onTimeout(AsyncEvent event)
+        {
+            finish();
+        }
+
+        @Override
+        public synchronized void onError(AsyncEvent event)
+        {
+            done = true;
+        }
+
+        @Override
+        public synchronized void onComplete(AsyncEvent event)
+        {
+            done = true;
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event)
+        {
+        }
+
+        private void read()
+        {
+            reading = true;
+
+            service.searchAsync(filter, sort, next, pageSize).whenComplete((resp, ex) -> {
+                synchronized (this) {
+                    reading = false;
+
+                    if (ex != null) {
+                        logger.error("Identity stream search error", ex);
+                        error = searchError();
+                    }
+                    else if (resp.getHasError()) {
+                        error = resp;
+                    }
+                    else {
+                        final IdentityPage found = resp.getModel();
+
+                        page = found.getIdentities().iterator();
+                        next = found.getNext();
+                    }
+
+                    if (done) return;
+                }
+
+                // Write on a container thread, the JDBC threads must stay free
+                try {
+                    async.start(this::resume);
+                }
+                catch (final IllegalStateException ex2) {
+                    // Completed in the meantime
+                }
+            });
+        }
+
+        private void resume()
+        {
+            try {
+                onWritePossible();
+            }
+            catch (final IOException ex) {
+                onError(ex);
+            }
+        }
+
+        // One write per line: a second write could find the output not ready
+        private void write(Object value) throws IOException
+        {
+            final byte[] json = mapper.writeValueAsBytes(value);
+            final byte[] line = Arrays.copyOf(json, json.length + 1);
+
+            line[json.length] = '\n';
+            out.write(line);
+        }
+
+        private void finish()
+        {
+            if (!done) {
+                done = true;
+                async.complete();
+            }
+        }
+
+        private ApiResponse<Void> searchError()
+        {
+            final ApiResponse<Void> resp = new ApiResponse<>();
+            resp.setErrorMessage("Error when searching for identities. Please try again");
+            resp.setHasError(true);
+
+            return resp;
+        }
+    }
+}
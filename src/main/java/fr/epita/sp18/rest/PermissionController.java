@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package fr.epita.sp18.rest;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import fr.epita.sp18.model.ApiResponse;
+import fr.epita.sp18.model.PermissionRequest;
+import fr.epita.sp18.model.PermissionResponse;
+import fr.epita.sp18.model.RoleRequest;
+import fr.epita.sp18.model.RoleResponse;
+import fr.epita.sp18.service.PermissionService;
+
+/**
+ * API /api/permissions manages the permissions, the roles and the roles of the
+ * identities. Only the identities with the iam.admin permission in their token
+ * can call it, see WebSecurityConfig. A change of roles applies to the tokens
+ * issued after it
+ *
+ * @author Philip
+ *
+ */
+@RestController
+@RequestMapping("/api/permissions")
+public class PermissionController
+{
+    @Autowired
+    PermissionService service;
+
+    /**
+     * GET /api/permissions. List the permissions, by bit
+     *
+     * @return Search result. Http response sample: {model: [{uid: 1531171543000,
+     *         name: "iam.admin", bit: 0}], message: "", hasError: false,
+     *         errorMessage: ""}
+     */
+    @GetMapping()
+    public ApiResponse<List<PermissionResponse>> list()
+    {
+        return service.listPermissions();
+    }
+
+    /**
+     * POST /api/permissions. Create a permission
+     *
+     * @param request
+     *            The permission in JSON format. Sample request body:
+     *            {"name":"identities.write"}
+     * @return Create result. Http response sample: {model: {uid: 1531171543001,
+     *         name: "identities.write", bit: 1}, message: "", hasError: false,
+     *         errorMessage: ""}
+     */
+    @PostMapping()
+    public ApiResponse<PermissionResponse> create(@RequestBody PermissionRequest request)
+    {
+        return service.createPermission(request);
+    }
+
+    /**
+     * POST /api/permissions/roles. Create a role with permissions
+     *
+     * @param request
+     *            The role in JSON format. Sample request body:
+     *            {"name":"editor", "permissions":["identities.write"]}
+     * @return Create result. Http response sample: {model: {uid: 1531171543002,
+     *         name: "editor", permissions: ["identities.write"]}, message: "",
+     *         hasError: false, errorMessage: ""}.
+     *         <p>
+     *         Http response sample when a permission does not exist: {model:
+     *         null, message: "", hasError: true, errorMessage: "Unknown
+     *         permission identities.write"}
+     */
+    @PostMapping(value = "/roles")
+    public ApiResponse<RoleResponse> createRole(@RequestBody RoleRequest request)
+    {
+        return service.createRole(request);
+    }
+
+    /**
+     * PUT /api/permissions/roles/editor/identities/1531171542822. Grant a role to
+     * an identity
+     *
+     * @param role
+     *            Name of the role
+     * @param identityUid
+     *            An unique id of the identity. Integer 64 bits
+     * @return Update result. Http response sample: {model: null, message: "",
+     *         hasError: false, errorMessage: ""}
+     */
+    @PutMapping(value = "/roles/{role}/identities/{identityUid}")
+    public ApiResponse<RoleResponse> grant(@PathVariable("role") String role,
+            @PathVariable("identityUid") Long identityUid)
+    {
+        return service.grantRole(identityUid, role);
+    }
+
+    /**
+     * DELETE /api/permissions/roles/editor/identities/1531171542822. Take a role
+     * back from an identity
+     *
+     * @param role
+     *            Name of the role
+     * @param identityUid
+     *            An unique id of the identity. Integer 64 bits
+     * @return Update result. Http response is same as PUT request
+     */
+    @DeleteMapping(value = "/roles/{role}/identities/{identityUid}")
+    public ApiResponse<RoleResponse> revoke(@PathVariable("role") String role,
+            @PathVariable("identityUid") Long identityUid)
+    {
+        return service.revokeRole(identityUid, role);
+    }
+}
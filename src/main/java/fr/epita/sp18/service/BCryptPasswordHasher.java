@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+/**
+ * BCrypt hashes: "$2a$10$salt+hash". The cost is the log2 of the number of
+ * rounds, from 4 to 31: each cost step doubles the hashing time
+ *
+ * @author Philip
+ *
+ */
+public class BCryptPasswordHasher implements PasswordHasher
+{
+    public static final String ALGORITHM    = "bcrypt";
+    public static final int    DEFAULT_COST = 10;
+
+    private static final Pattern HASH = Pattern.compile("^\\$2[aby]?\\$(\\d{2})\\$.{53}$");
+
+    private final int                   cost;
+    private final BCryptPasswordEncoder encoder;
+
+    public BCryptPasswordHasher(int cost)
+    {
+        this.cost = cost;
+        this.encoder = new BCryptPasswordEncoder(cost);
+    }
+
+    @Override
+    public String getAlgorithm()
+    {
+        return ALGORITHM;
+    }
+
+    @Override
+    public int getCost()
+    {
+        return cost;
+    }
+
+    @Override
+    public PasswordHasher withCost(int cost)
+    {
+        return new BCryptPasswordHasher(cost);
+    }
+
+    @Override
+    public int scale(double factor)
+    {
+        // floor(log2(factor)) more rounds
+        return Math.min(31, cost + Math.max(0, (int) Math.floor(Math.log(factor) / Math.log(2))));
+    }
+
+    @Override
+    public String hash(CharSequence rawPassword)
+    {
+        return encoder.encode(rawPassword);
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String hash)
+    {
+        return encoder.matches(rawPassword, hash);
+    }
+
+    @Override
+    public boolean supports(String hash)
+    {
+        return hash != null && HASH.matcher(hash).matches();
+    }
+
+    @Override
+    public int getCost(String hash)
+    {
+        final Matcher matcher = HASH.matcher(hash);
+
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+}
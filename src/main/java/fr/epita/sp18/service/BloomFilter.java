@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of strings: mightContain never misses a key that was put, and
+ * answers true for a key that was not put with about the false positive
+ * probability it was sized for, as long as it holds at most the expected number
+ * of keys. Keys can not be removed: the filter is rebuilt instead.
+ * <p>
+ * The k bit positions are derived from one 64 bits hash of the key (double
+ * hashing). The filter is thread safe and lock free
+ *
+ * @author Philip
+ *
+ */
+public final class BloomFilter
+{
+    private final AtomicLongArray bits;
+    private final long            bitSize;
+    private final int             hashes;
+
+    /**
+     * @param expectedInsertions
+     *            Number of keys the filter is sized for
+     * @param fpp
+     *            Wanted false positive probability, between 0 and 1
+     */
+    public BloomFilter(int expectedInsertions, double fpp)
+    {
+        final int n = Math.max(1, expectedInsertions);
+        final long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+
+        bits = new AtomicLongArray((int) Math.max(1, (m + 63) / 64));
+        bitSize = bits.length() * 64L;
+        hashes = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+    }
+
+    public void put(String key)
+    {
+        final long hash = hash(key);
+        final long step = Long.rotateLeft(hash, 32) | 1;
+
+        for (int i = 0; i < hashes; i++) {
+            final long bit = Math.floorMod(hash + i * step, bitSize);
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+
+            long old;
+            do {
+                old = bits.get(word);
+                if ((old & mask) != 0) break;
+            }
+            while (!bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    public boolean mightContain(String key)
+    {
+        final long hash = hash(key);
+        final long step = Long.rotateLeft(hash, 32) | 1;
+
+        for (int i = 0; i < hashes; i++) {
+            final long bit = Math.floorMod(hash + i * step, bitSize);
+
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the size of the filter, in bytes
+     */
+    public long getByteSize()
+    {
+        return bitSize / 8;
+    }
+
+    // FNV-1a, then the MurmurHash3 finalizer to spread the bits
+    private static long hash(String key)
+    {
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+}
@@ -0,0 +1,499 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non negative ints, in the manner of Roaring bitmaps. The
+ * values are split by their 16 high bits into chunks of 65536 values. A chunk
+ * holds a sorted array of its 16 low bits while it has at most 4096 values, and
+ * a 65536 bits bitmap (8 KB) beyond. Sparse and dense sets are both compact,
+ * and intersections and unions work chunk by chunk, on arrays or on 64 bits
+ * words.
+ * <p>
+ * A CompressedBitmap is not thread safe
+ *
+ * @author Philip
+ *
+ */
+public final class CompressedBitmap
+{
+    // Largest array chunk, an array chunk is then as big as a bitmap chunk
+    private static final int ARRAY_MAX = 4096;
+
+    private char[]      keys       = new char[4];
+    private Container[] containers = new Container[4];
+    private int         size;
+
+    /**
+     * @return true when the value was not in the set
+     */
+    public boolean add(int value)
+    {
+        final char high = (char) (value >>> 16);
+        int i = indexOf(high);
+
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, high, new ArrayContainer(new char[4], 0));
+        }
+
+        final Container container = containers[i];
+        final int before = container.cardinality();
+
+        containers[i] = container.add((char) value);
+
+        return containers[i].cardinality() > before;
+    }
+
+    /**
+     * @return true when the value was in the set
+     */
+    public boolean remove(int value)
+    {
+        final int i = indexOf((char) (value >>> 16));
+        if (i < 0) return false;
+
+        final Container container = containers[i];
+        final int before = container.cardinality();
+
+        containers[i] = container.remove((char) value);
+
+        if (containers[i].cardinality() == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            containers[--size] = null;
+            return true;
+        }
+
+        return containers[i].cardinality() < before;
+    }
+
+    public boolean contains(int value)
+    {
+        final int i = indexOf((char) (value >>> 16));
+
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    public int getCardinality()
+    {
+        int cardinality = 0;
+
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+
+        return cardinality;
+    }
+
+    /**
+     * @return the memory used by the values, in bytes
+     */
+    public long getSizeInBytes()
+    {
+        long bytes = keys.length * 2L + containers.length * 8L;
+
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i].bytes();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Call the consumer with every value, in increasing order
+     */
+    public void forEach(IntConsumer consumer)
+    {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, consumer);
+        }
+    }
+
+    /**
+     * @return the values that are in both sets, as a new set
+     */
+    public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b)
+    {
+        final CompressedBitmap result = new CompressedBitmap();
+        int i = 0;
+        int j = 0;
+
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            }
+            else if (a.keys[i] > b.keys[j]) {
+                j++;
+            }
+            else {
+                final Container container = a.containers[i].and(b.containers[j]);
+
+                if (container.cardinality() > 0) result.insert(result.size, a.keys[i], container);
+                i++;
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the values that are in any of the sets, as a new set
+     */
+    public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b)
+    {
+        final CompressedBitmap result = new CompressedBitmap();
+        int i = 0;
+        int j = 0;
+
+        while (i < a.size || j < b.size) {
+            if (j >= b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.insert(result.size, a.keys[i], a.containers[i].copy());
+                i++;
+            }
+            else if (i >= a.size || a.keys[i] > b.keys[j]) {
+                result.insert(result.size, b.keys[j], b.containers[j].copy());
+                j++;
+            }
+            else {
+                result.insert(result.size, a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+    private int indexOf(char high)
+    {
+        return Arrays.binarySearch(keys, 0, size, high);
+    }
+
+    private void insert(int i, char high, Container container)
+    {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = high;
+        containers[i] = container;
+        size++;
+    }
+
+    // The 16 low bits of the values of a chunk. add and remove return the
+    // container that holds the result, this one or a converted one
+    private abstract static class Container
+    {
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        abstract Container add(char value);
+
+        abstract Container remove(char value);
+
+        abstract Container and(Container other);
+
+        abstract Container or(Container other);
+
+        abstract Container copy();
+
+        abstract void forEach(int high, IntConsumer consumer);
+
+        abstract long bytes();
+    }
+
+    private static final class ArrayContainer extends Container
+    {
+        private char[] values;
+        private int    cardinality;
+
+        private ArrayContainer(char[] values, int cardinality)
+        {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality()
+        {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value)
+        {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        Container add(char value)
+        {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) return this;
+
+            if (cardinality == ARRAY_MAX) return toBitmap().add(value);
+
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, cardinality * 2)));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality++;
+
+            return this;
+        }
+
+        @Override
+        Container remove(char value)
+        {
+            final int i = Arrays.binarySearch(values, 0, cardinality, value);
+
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+                cardinality--;
+            }
+
+            return this;
+        }
+
+        @Override
+        Container and(Container other)
+        {
+            final char[] result = new char[Math.min(cardinality, other.cardinality())];
+            int count = 0;
+
+            if (other instanceof ArrayContainer) {
+                final ArrayContainer array = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+
+                while (i < cardinality && j < array.cardinality) {
+                    if (values[i] < array.values[j]) {
+                        i++;
+                    }
+                    else if (values[i] > array.values[j]) {
+                        j++;
+                    }
+                    else {
+                        result[count++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) result[count++] = values[i];
+                }
+            }
+
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        Container or(Container other)
+        {
+            if (other instanceof BitmapContainer) return other.or(this);
+
+            final ArrayContainer array = (ArrayContainer) other;
+            final char[] result = new char[cardinality + array.cardinality];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+
+            while (i < cardinality || j < array.cardinality) {
+                if (j >= array.cardinality || (i < cardinality && values[i] < array.values[j])) {
+                    result[count++] = values[i++];
+                }
+                else if (i >= cardinality || values[i] > array.values[j]) {
+                    result[count++] = array.values[j++];
+                }
+                else {
+                    result[count++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+
+            final ArrayContainer union = new ArrayContainer(result, count);
+
+            return count > ARRAY_MAX ? union.toBitmap() : union;
+        }
+
+        @Override
+        Container copy()
+        {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(4, cardinality)), cardinality);
+        }
+
+        @Override
+        void forEach(int high, IntConsumer consumer)
+        {
+            for (int i = 0; i < cardinality; i++) {
+                consumer.accept(high | values[i]);
+            }
+        }
+
+        @Override
+        long bytes()
+        {
+            return 16 + values.length * 2L;
+        }
+
+        private BitmapContainer toBitmap()
+        {
+            final long[] words = new long[1024];
+
+            for (int i = 0; i < cardinality; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+
+            return new BitmapContainer(words, cardinality);
+        }
+    }
+
+    private static final class BitmapContainer extends Container
+    {
+        private final long[] words;
+        private int          cardinality;
+
+        private BitmapContainer(long[] words, int cardinality)
+        {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality()
+        {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value)
+        {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(char value)
+        {
+            final long word = words[value >>> 6];
+            final long updated = word | (1L << value);
+
+            if (updated != word) {
+                words[value >>> 6] = updated;
+                cardinality++;
+            }
+
+            return this;
+        }
+
+        @Override
+        Container remove(char value)
+        {
+            final long word = words[value >>> 6];
+            final long updated = word & ~(1L << value);
+
+            if (updated != word) {
+                words[value >>> 6] = updated;
+                cardinality--;
+            }
+
+            return cardinality > ARRAY_MAX ? this : toArray();
+        }
+
+        @Override
+        Container and(Container other)
+        {
+            if (other instanceof ArrayContainer) return other.and(this);
+
+            final long[] result = new long[1024];
+            final long[] others = ((BitmapContainer) other).words;
+            int count = 0;
+
+            for (int i = 0; i < result.length; i++) {
+                result[i] = words[i] & others[i];
+                count += Long.bitCount(result[i]);
+            }
+
+            final BitmapContainer intersection = new BitmapContainer(result, count);
+
+            return count > ARRAY_MAX ? intersection : intersection.toArray();
+        }
+
+        @Override
+        Container or(Container other)
+        {
+            final long[] result = words.clone();
+            int count = 0;
+
+            if (other instanceof ArrayContainer) {
+                final ArrayContainer array = (ArrayContainer) other;
+
+                for (int i = 0; i < array.cardinality; i++) {
+                    result[array.values[i] >>> 6] |= 1L << array.values[i];
+                }
+            }
+            else {
+                final long[] others = ((BitmapContainer) other).words;
+
+                for (int i = 0; i < result.length; i++) {
+                    result[i] |= others[i];
+                }
+            }
+
+            for (long word : result) {
+                count += Long.bitCount(word);
+            }
+
+            return new BitmapContainer(result, count);
+        }
+
+        @Override
+        Container copy()
+        {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        void forEach(int high, IntConsumer consumer)
+        {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+
+                while (word != 0) {
+                    consumer.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        long bytes()
+        {
+            return 16 + words.length * 8L;
+        }
+
+        private ArrayContainer toArray()
+        {
+            final char[] values = new char[Math.max(4, cardinality)];
+            final int[] count = new int[1];
+
+            forEach(0, value -> values[count[0]++] = (char) value);
+
+            return new ArrayContainer(values, count[0]);
+        }
+    }
+}
@@ -0,0 +1,729 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import fr.epita.sp18.dao.GroupDAO;
+import fr.epita.sp18.dao.IdentityDAO;
+import fr.epita.sp18.entity.Group;
+import fr.epita.sp18.exception.IamDataAccessException;
+import fr.epita.sp18.exception.IamDuplicateKeyException;
+import fr.epita.sp18.model.ApiResponse;
+import fr.epita.sp18.model.GroupRequest;
+import fr.epita.sp18.model.GroupResponse;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * GroupService manages the groups of identities. The groups are stored in the
+ * Groups and GroupMembers tables, and the members of every group are held in
+ * memory as a CompressedBitmap, so that membership tests, member counts and
+ * the intersection or union of groups are answered without a query.
+ * <p>
+ * The bitmaps do not hold the identity uids, which are 64 bits and sparse, but
+ * a dense ordinal given to every identity that is a member of a group. A
+ * deleted identity frees its ordinal for the next identity.
+ * <p>
+ * The memberships are loaded when the application is ready. A change is
+ * written to the database first, then applied in memory, one change at a time.
+ * The queries run concurrently under a read lock.
+ * <p>
+ * The changes made on other nodes are picked up every
+ * iam.groups.reload-interval-seconds (0 for a single node, no reload). Every
+ * change is then also logged in GroupChanges, and the reload only reads again
+ * the groups and identities named by the changes logged since the previous
+ * one, from iam.groups.reload-overlap-ms before it. The changes older than
+ * iam.groups.change-retention-seconds are deleted; a node that did not reload
+ * for that long reads all groups and memberships again
+ *
+ * @author Philip
+ *
+ */
+@Service
+public class GroupService implements BaseService
+{
+    private static final Logger logger = LogManager.getLogger("GroupService");
+
+    private final GroupDAO      dao;
+    private final IdentityDAO   identities;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final long                     reloadInterval;
+    private final long                     reloadOverlap;
+    private final long                     changeRetention;
+    private final ScheduledExecutorService scheduler;
+
+    // Guarded by this
+    private long reloadedUntil;
+
+    // Guarded by lock
+    private Map<Long, Group>            groups   = new HashMap<>();
+    private Map<Long, CompressedBitmap> members  = new HashMap<>();
+    private Map<Long, Integer>          ordinals = new HashMap<>();
+    private long[]                      uids     = new long[16];
+    private int[]                       free     = new int[16];
+    private int                         freeCount;
+    private int                         nextOrdinal;
+
+    private volatile boolean loaded;
+
+    public GroupService(GroupDAO dao, IdentityDAO identities, MeterRegistry registry,
+            @Value("${iam.groups.reload-interval-seconds:0}") long reloadInterval,
+            @Value("${iam.groups.reload-overlap-ms:5000}") long reloadOverlap,
+            @Value("${iam.groups.change-retention-seconds:3600}") long changeRetention)
+    {
+        this.dao = dao;
+        this.identities = identities;
+        this.reloadInterval = reloadInterval;
+        this.reloadOverlap = reloadOverlap;
+        this.changeRetention = TimeUnit.SECONDS.toMillis(changeRetention);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "group-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Gauge.builder("iam.groups.count", this, x -> x.read(() -> x.groups.size()))
+                .description("Number of groups")
+                .register(registry);
+        Gauge.builder("iam.groups.memberships.size", this, GroupService::getSizeInBytes)
+                .description("Memory used by the group member bitmaps")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady()
+    {
+        try {
+            load();
+        }
+        catch (final IamDataAccessException ex) {
+            logger.error("Group load error", ex);
+        }
+
+        if (reloadInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::refresh, reloadInterval, reloadInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Read again the groups and identities whose memberships changed since the
+     * previous refresh, on any node
+     */
+    public void refresh()
+    {
+        try {
+            reloadChanges();
+        }
+        catch (final Exception ex) {
+            logger.error("Group reload error", ex);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * List the groups, or the groups of an identity
+     *
+     * @param member
+     *            Primary key of an identity, null for all groups
+     * @return ApiResponse object that has ApiResponse.model = the groups, sorted
+     *         by name
+     */
+    public ApiResponse<List<GroupResponse>> list(Long member)
+    {
+        final ApiResponse<List<GroupResponse>> resp = new ApiResponse<>();
+
+        try {
+            ensureLoaded();
+
+            resp.setModel(read(() -> {
+                final Integer ordinal = member == null ? null : ordinals.get(member);
+                final List<GroupResponse> found = new ArrayList<>();
+
+                if (member != null && ordinal == null) return found;
+
+                for (Group group : groups.values()) {
+                    if (ordinal == null || members.get(group.getUid()).contains(ordinal)) {
+                        found.add(toResponse(group));
+                    }
+                }
+
+                found.sort(Comparator.comparing(GroupResponse::getName));
+                return found;
+            }));
+        }
+        catch (final Exception ex) {
+            logger.error("Group list() error", ex);
+            resp.setErrorMessage("Error when listing groups. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    /**
+     * Create an empty group
+     *
+     * @param request
+     *            The group, its uid is ignored
+     * @return ApiResponse object that has ApiResponse.model = the new group when
+     *         creating successfully. Otherwise, the ApiResponse.errorMessage will
+     *         have the explanation for error and ApiResponse.hasError = true
+     */
+    public ApiResponse<GroupResponse> create(GroupRequest request)
+    {
+        final ApiResponse<GroupResponse> resp = new ApiResponse<>();
+
+        if (request == null || request.getName() == null || request.getName().trim().isEmpty()) {
+            resp.setErrorMessage("Invalid group name");
+            resp.setHasError(true);
+            return resp; // The request is not valid
+        }
+
+        try {
+            final Group group = new Group(0L, request.getName().trim());
+
+            synchronized (this) {
+                ensureLoaded();
+                dao.create(group);
+                logChange(group.getUid(), null);
+                write(() -> {
+                    groups.put(group.getUid(), group);
+                    return members.put(group.getUid(), new CompressedBitmap());
+                });
+            }
+
+            resp.setModel(new GroupResponse(group.getUid(), group.getName(), 0));
+        }
+        catch (final IamDuplicateKeyException ex) {
+            resp.setErrorMessage("This group name is already used. Choose a new one");
+            resp.setHasError(true);
+        }
+        catch (final Exception ex) {
+            logger.error("Group create() error", ex);
+            resp.setErrorMessage("Error when creating a new group. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    /**
+     * Delete a group and its memberships
+     *
+     * @param uid
+     *            Primary key of the group
+     * @return ApiResponse object that has ApiResponse.hasError = false when
+     *         deleting successfully. Otherwise, the ApiResponse.errorMessage will
+     *         have the explanation for error
+     */
+    public ApiResponse<GroupResponse> delete(Long uid)
+    {
+        final ApiResponse<GroupResponse> resp = new ApiResponse<>();
+
+        try {
+            synchronized (this) {
+                ensureLoaded();
+                dao.removeMembers(uid);
+                dao.delete(uid);
+                logChange(uid, null);
+                write(() -> {
+                    groups.remove(uid);
+                    return members.remove(uid);
+                });
+            }
+        }
+        catch (final Exception ex) {
+            logger.error("Group delete() error", ex);
+            resp.setErrorMessage("Error when deleting group. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    /**
+     * List the members of a group
+     *
+     * @param uid
+     *            Primary key of the group
+     * @return ApiResponse object that has ApiResponse.model = the uids of the
+     *         members, sorted, or ApiResponse.hasError = true when the group does
+     *         not exist
+     */
+    public ApiResponse<List<Long>> members(Long uid)
+    {
+        return combine(new Long[] { uid }, true);
+    }
+
+    /**
+     * @param uid
+     *            Primary key of the group
+     * @param identityUid
+     *            Primary key of the identity
+     * @return true when the identity is a member of the group
+     * @throws IamDataAccessException
+     *             when the groups can not be loaded
+     */
+    public boolean isMember(Long uid, Long identityUid) throws IamDataAccessException
+    {
+        ensureLoaded();
+
+        return read(() -> {
+            final CompressedBitmap bitmap = members.get(uid);
+            final Integer ordinal = ordinals.get(identityUid);
+
+            return bitmap != null && ordinal != null && bitmap.contains(ordinal);
+        });
+    }
+
+    /**
+     * Add an identity to a group. Nothing happens when it is already a member
+     *
+     * @param uid
+     *            Primary key of the group
+     * @param identityUid
+     *            Primary key of the identity
+     * @return ApiResponse object that has ApiResponse.model = the group when
+     *         adding successfully. Otherwise, the ApiResponse.errorMessage will
+     *         have the explanation for error and ApiResponse.hasError = true
+     */
+    public ApiResponse<GroupResponse> addMember(Long uid, Long identityUid)
+    {
+        final ApiResponse<GroupResponse> resp = new ApiResponse<>();
+
+        try {
+            synchronized (this) {
+                ensureLoaded();
+
+                if (!read(() -> groups.containsKey(uid))) {
+                    return notFound(resp, "Group not found");
+                }
+                if (identities.get(identityUid) == null) {
+                    return notFound(resp, "Identity not found");
+                }
+
+                dao.addMember(uid, identityUid);
+                logChange(uid, identityUid);
+                resp.setModel(write(() -> {
+                    members.get(uid).add(ordinal(identityUid));
+                    return toResponse(groups.get(uid));
+                }));
+            }
+        }
+        catch (final Exception ex) {
+            logger.error("Group addMember() error", ex);
+            resp.setErrorMessage("Error when adding a group member. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    /**
+     * Remove an identity from a group
+     *
+     * @param uid
+     *            Primary key of the group
+     * @param identityUid
+     *            Primary key of the identity
+     * @return ApiResponse object that has ApiResponse.model = the group when
+     *         removing successfully. Otherwise, the ApiResponse.errorMessage will
+     *         have the explanation for error and ApiResponse.hasError = true
+     */
+    public ApiResponse<GroupResponse> removeMember(Long uid, Long identityUid)
+    {
+        final ApiResponse<GroupResponse> resp = new ApiResponse<>();
+
+        try {
+            synchronized (this) {
+                ensureLoaded();
+
+                if (!read(() -> groups.containsKey(uid))) {
+                    return notFound(resp, "Group not found");
+                }
+
+                dao.removeMember(uid, identityUid);
+                logChange(uid, identityUid);
+                resp.setModel(write(() -> {
+                    final Integer ordinal = ordinals.get(identityUid);
+
+                    if (ordinal != null) members.get(uid).remove(ordinal);
+                    return toResponse(groups.get(uid));
+                }));
+            }
+        }
+        catch (final Exception ex) {
+            logger.error("Group removeMember() error", ex);
+            resp.setErrorMessage("Error when removing a group member. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    /**
+     * Remove an identity from all groups, when it is deleted
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @throws IamDataAccessException
+     *             when the memberships can not be removed
+     */
+    public synchronized void removeIdentity(Long identityUid) throws IamDataAccessException
+    {
+        ensureLoaded();
+        dao.removeIdentity(identityUid);
+        logChange(null, identityUid);
+        write(() -> release(identityUid));
+    }
+
+    /**
+     * List the identities that are members of all groups
+     *
+     * @param groupUids
+     *            Primary keys of the groups
+     * @return ApiResponse object that has ApiResponse.model = the uids of the
+     *         identities, sorted, or ApiResponse.hasError = true when a group does
+     *         not exist
+     */
+    public ApiResponse<List<Long>> intersection(Long... groupUids)
+    {
+        return combine(groupUids, true);
+    }
+
+    /**
+     * List the identities that are members of any group
+     *
+     * @param groupUids
+     *            Primary keys of the groups
+     * @return ApiResponse object that has ApiResponse.model = the uids of the
+     *         identities, sorted, or ApiResponse.hasError = true when a group does
+     *         not exist
+     */
+    public ApiResponse<List<Long>> union(Long... groupUids)
+    {
+        return combine(groupUids, false);
+    }
+
+    private ApiResponse<List<Long>> combine(Long[] groupUids, boolean intersection)
+    {
+        final ApiResponse<List<Long>> resp = new ApiResponse<>();
+
+        if (groupUids == null || groupUids.length == 0) {
+            resp.setErrorMessage("No group");
+            resp.setHasError(true);
+            return resp; // The request is not valid
+        }
+
+        try {
+            ensureLoaded();
+
+            resp.setModel(read(() -> {
+                final CompressedBitmap[] bitmaps = new CompressedBitmap[groupUids.length];
+
+                for (int i = 0; i < bitmaps.length; i++) {
+                    bitmaps[i] = members.get(groupUids[i]);
+                    if (bitmaps[i] == null) return null;
+                }
+
+                // The smallest sets first, an intersection can only shrink
+                Arrays.sort(bitmaps, Comparator.comparingInt(CompressedBitmap::getCardinality));
+
+                CompressedBitmap result = bitmaps[0];
+                for (int i = 1; i < bitmaps.length; i++) {
+                    if (intersection && result.getCardinality() == 0) break;
+                    result = intersection ? CompressedBitmap.and(result, bitmaps[i])
+                            : CompressedBitmap.or(result, bitmaps[i]);
+                }
+
+                return toUids(result);
+            }));
+
+            if (resp.getModel() == null) notFound(resp, "Group not found");
+        }
+        catch (final Exception ex) {
+            logger.error("Group combine() error", ex);
+            resp.setErrorMessage("Error when reading group members. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    private void ensureLoaded() throws IamDataAccessException
+    {
+        if (!loaded) load();
+    }
+
+    private synchronized void load() throws IamDataAccessException
+    {
+        if (!loaded) reload();
+    }
+
+    // The other nodes read the change from GroupChanges. Called under this
+    // monitor, after the change is written
+    private void logChange(Long groupUid, Long identityUid) throws IamDataAccessException
+    {
+        if (reloadInterval > 0) dao.logChange(groupUid, identityUid, System.currentTimeMillis());
+    }
+
+    // Read again the groups and identities named by the changes logged since the
+    // previous reload, then update their bitmaps. The changes of this node are
+    // made under the same monitor, so none is overwritten by an older read
+    private synchronized void reloadChanges() throws IamDataAccessException
+    {
+        final long now = System.currentTimeMillis();
+
+        if (!loaded || now - reloadedUntil > changeRetention) {
+            reload(); // Changes may have been deleted before they were read
+            return;
+        }
+
+        final Set<Long> changedGroups = new HashSet<>();
+        final Set<Long> changedIdentities = new HashSet<>();
+        final int count = dao.readChanges(reloadedUntil - reloadOverlap, (groupUid, identityUid) -> {
+            if (identityUid == null) changedGroups.add(groupUid);
+            else changedIdentities.add(identityUid);
+        });
+
+        final Map<Long, Group> found = changedGroups.isEmpty() ? Collections.emptyMap()
+                : dao.getAll(changedGroups);
+        final Map<Long, List<Long>> groupMembers = new HashMap<>();
+        final Map<Long, Set<Long>> identityGroups = new HashMap<>();
+
+        dao.readMembers(true, changedGroups,
+                (groupUid, identityUid) -> groupMembers.computeIfAbsent(groupUid, x -> new ArrayList<>())
+                        .add(identityUid));
+        dao.readMembers(false, changedIdentities,
+                (groupUid, identityUid) -> identityGroups.computeIfAbsent(identityUid, x -> new HashSet<>())
+                        .add(groupUid));
+
+        write(() -> {
+            for (Long uid : changedGroups) {
+                final Group group = found.get(uid);
+
+                if (group == null) {
+                    groups.remove(uid);
+                    members.remove(uid);
+                    continue;
+                }
+
+                final CompressedBitmap bitmap = new CompressedBitmap();
+                for (Long identityUid : groupMembers.getOrDefault(uid, Collections.emptyList())) {
+                    bitmap.add(ordinal(identityUid));
+                }
+
+                groups.put(uid, group);
+                members.put(uid, bitmap);
+            }
+
+            for (Long identityUid : changedIdentities) {
+                final Set<Long> joined = identityGroups.getOrDefault(identityUid, Collections.emptySet());
+
+                if (joined.isEmpty()) {
+                    release(identityUid);
+                    continue;
+                }
+
+                final int ordinal = ordinal(identityUid);
+                for (Map.Entry<Long, CompressedBitmap> entry : members.entrySet()) {
+                    if (joined.contains(entry.getKey())) entry.getValue().add(ordinal);
+                    else entry.getValue().remove(ordinal);
+                }
+            }
+
+            return null;
+        });
+
+        reloadedUntil = now;
+        dao.deleteChanges(now - changeRetention);
+
+        if (count > 0) {
+            logger.debug(String.format("%1$d group changes reloaded: %2$d groups, %3$d identities", count,
+                    changedGroups.size(), changedIdentities.size()));
+        }
+    }
+
+    // Read all groups and memberships, then replace the bitmaps. The changes of
+    // this node are made under the same monitor, so none is lost by the swap
+    private synchronized void reload() throws IamDataAccessException
+    {
+        final long now = System.currentTimeMillis();
+        final Map<Long, Group> loadedGroups = new HashMap<>();
+        final Map<Long, CompressedBitmap> loadedMembers = new HashMap<>();
+        final Map<Long, Integer> loadedOrdinals = new HashMap<>();
+        final long[][] loadedUids = { new long[16] };
+
+        for (Group group : dao.search(null, "uid")) {
+            loadedGroups.put(group.getUid(), group);
+            loadedMembers.put(group.getUid(), new CompressedBitmap());
+        }
+
+        // Sorted by identity, the ordinals follow the uids
+        final int count = dao.readMembers((groupUid, identityUid) -> {
+            final CompressedBitmap bitmap = loadedMembers.get(groupUid);
+            if (bitmap == null) return;
+
+            Integer ordinal = loadedOrdinals.get(identityUid);
+            if (ordinal == null) {
+                ordinal = loadedOrdinals.size();
+                if (ordinal == loadedUids[0].length) loadedUids[0] = Arrays.copyOf(loadedUids[0], ordinal * 2);
+                loadedUids[0][ordinal] = identityUid;
+                loadedOrdinals.put(identityUid, ordinal);
+            }
+            bitmap.add(ordinal);
+        });
+
+        // The queries only wait for the swap
+        lock.writeLock().lock();
+        try {
+            groups = loadedGroups;
+            members = loadedMembers;
+            ordinals = loadedOrdinals;
+            uids = loadedUids[0];
+            freeCount = 0;
+            nextOrdinal = loadedOrdinals.size();
+
+            reloadedUntil = now;
+            loaded = true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+
+        logger.info(String.format("%1$d groups loaded, %2$d memberships in %3$d bytes", loadedGroups.size(),
+                count, getSizeInBytes()));
+    }
+
+    // Called under the write lock
+    private int ordinal(Long identityUid)
+    {
+        Integer ordinal = ordinals.get(identityUid);
+
+        if (ordinal == null) {
+            ordinal = freeCount > 0 ? free[--freeCount] : nextOrdinal++;
+            if (ordinal == uids.length) uids = Arrays.copyOf(uids, uids.length * 2);
+            uids[ordinal] = identityUid;
+            ordinals.put(identityUid, ordinal);
+        }
+
+        return ordinal;
+    }
+
+    // Called under the write lock. Remove an identity from all groups and free
+    // its ordinal
+    private Void release(Long identityUid)
+    {
+        final Integer ordinal = ordinals.remove(identityUid);
+        if (ordinal == null) return null;
+
+        for (CompressedBitmap bitmap : members.values()) {
+            bitmap.remove(ordinal);
+        }
+
+        if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = ordinal;
+        return null;
+    }
+
+    // Called under the read lock
+    private List<Long> toUids(CompressedBitmap bitmap)
+    {
+        final long[] found = new long[bitmap.getCardinality()];
+        final int[] count = new int[1];
+
+        bitmap.forEach(ordinal -> found[count[0]++] = uids[ordinal]);
+        Arrays.sort(found);
+
+        final List<Long> result = new ArrayList<>(found.length);
+        for (long uid : found) {
+            result.add(uid);
+        }
+
+        return result;
+    }
+
+    // Called under the read lock
+    private GroupResponse toResponse(Group group)
+    {
+        return new GroupResponse(group.getUid(), group.getName(), members.get(group.getUid()).getCardinality());
+    }
+
+    private long getSizeInBytes()
+    {
+        return read(() -> {
+            long bytes = uids.length * 8L + free.length * 4L;
+
+            for (CompressedBitmap bitmap : members.values()) {
+                bytes += bitmap.getSizeInBytes();
+            }
+
+            return bytes;
+        });
+    }
+
+    private static <T> ApiResponse<T> notFound(ApiResponse<T> resp, String message)
+    {
+        resp.setModel(null);
+        resp.setErrorMessage(message);
+        resp.setHasError(true);
+
+        return resp;
+    }
+
+    private <T> T read(Supplier<T> query)
+    {
+        lock.readLock().lock();
+        try {
+            return query.get();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private <T> T write(Supplier<T> update)
+    {
+        lock.writeLock().lock();
+        try {
+            return update.get();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,478 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.exception.IamDataAccessException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * IdentityCache is a bounded, in-process read-through cache of identities,
+ * keyed by uid. Entries are evicted by size (W-TinyLFU) and expire after
+ * iam.cache.identity.ttl-seconds. A uid that is not found can be cached too,
+ * for iam.cache.identity.negative-ttl-seconds (0 disables negative caching).
+ * <p>
+ * It also keeps a normalized email to uid lookup, so that a login resolves the
+ * identity without a query. A mapping may be stale after the email of an
+ * identity changes: callers must check that the identity found by uid still
+ * has this email, see IdentityService.findByEmail. An email that is not found
+ * is cached too, for iam.cache.identity.unknown-email-ttl-seconds (0 disables
+ * it), so that logins with unknown emails do not query the database each time.
+ * <p>
+ * IdentityService must invalidate an identity right after writing it. The
+ * database is read outside of the cache, and a load only caches its result when
+ * its uid was not invalidated since the load started, so that a stale value
+ * read before the write is never left in the cache. The invalidations are
+ * counted per stripe of uids: a write only discards the loads in flight of its
+ * stripe.
+ * <p>
+ * The concurrent misses of the same uid, or of the same email, share one
+ * load through a SingleFlight, even when the identity is not found and
+ * nothing is cached. An invalidation lets the next misses load again instead
+ * of sharing a load that started before the write. The coalesced misses are
+ * counted by the iam.singleflight metrics, named as the caches.
+ * <p>
+ * Hit, miss and eviction counters are published as the "identities" cache
+ * metrics (cache.gets, cache.evictions...)
+ *
+ * @author Philip
+ *
+ */
+@Component
+public class IdentityCache
+{
+    /**
+     * Read an identity from the database when it is not cached
+     */
+    @FunctionalInterface
+    public interface Loader
+    {
+        Identity load(Long uid) throws IamDataAccessException;
+    }
+
+    /**
+     * Read the uid of a normalized email from the database when it is not cached
+     */
+    @FunctionalInterface
+    public interface EmailLoader
+    {
+        /**
+         * @return the uid, or null when no identity has this email
+         */
+        Long load(String normalizedEmail) throws IamDataAccessException;
+    }
+
+    /**
+     * Read the identities of several uids from the database
+     */
+    @FunctionalInterface
+    public interface BulkLoader
+    {
+        /**
+         * @return the found identities by uid
+         */
+        Map<Long, Identity> load(Collection<Long> uids) throws IamDataAccessException;
+    }
+
+    // Cached uid of an email that is not found
+    private static final Long UNKNOWN = 0L;
+
+    private final Cache<Long, Optional<Identity>> cache;
+    private final Cache<String, Long>             emails;
+    private final boolean                         negativeCaching;
+    private final boolean                         unknownEmailCaching;
+    private final SingleFlight<Long, Identity>    loads;
+    private final SingleFlight<String, Long>      emailLoads;
+
+    // Number of version stripes of the uids, and of the emails. A power of 2
+    private static final int VERSION_STRIPES = 1024;
+
+    // Incremented by the invalidations of the uids (emails) of a stripe, before
+    // the entries are removed
+    private final AtomicLongArray versions      = new AtomicLongArray(VERSION_STRIPES);
+    private final AtomicLongArray emailVersions = new AtomicLongArray(VERSION_STRIPES);
+
+    // Incremented by every invalidation, before the entries are removed. Only
+    // checked by put, which uid is not known before its load
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public IdentityCache(MeterRegistry registry,
+            @Value("${iam.cache.identity.maximum-size:10000}") long maximumSize,
+            @Value("${iam.cache.identity.ttl-seconds:300}") long ttlSeconds,
+            @Value("${iam.cache.identity.negative-ttl-seconds:0}") long negativeTtlSeconds,
+            @Value("${iam.cache.identity.unknown-email-ttl-seconds:30}") long unknownEmailTtlSeconds)
+    {
+        final long ttl = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        final long negativeTtl = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+        final long unknownEmailTtl = TimeUnit.SECONDS.toNanos(unknownEmailTtlSeconds);
+
+        negativeCaching = negativeTtlSeconds > 0;
+        unknownEmailCaching = unknownEmailTtlSeconds > 0;
+        cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new Expiry<Long, Optional<Identity>>() {
+                    @Override
+                    public long expireAfterCreate(Long key, Optional<Identity> value, long currentTime)
+                    {
+                        return value.isPresent() ? ttl : negativeTtl;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(Long key, Optional<Identity> value, long currentTime,
+                            long currentDuration)
+                    {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(Long key, Optional<Identity> value, long currentTime,
+                            long currentDuration)
+                    {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+
+        emails = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new Expiry<String, Long>() {
+                    @Override
+                    public long expireAfterCreate(String key, Long value, long currentTime)
+                    {
+                        return UNKNOWN.equals(value) ? unknownEmailTtl : ttl;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Long value, long currentTime, long currentDuration)
+                    {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Long value, long currentTime, long currentDuration)
+                    {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(registry, cache, "identities");
+        CaffeineCacheMetrics.monitor(registry, emails, "identityEmails");
+
+        loads = new SingleFlight<>(registry, "identities");
+        emailLoads = new SingleFlight<>(registry, "identityEmails");
+    }
+
+    /**
+     * Get an identity from the cache, or from the loader when it is not cached
+     *
+     * @param uid
+     *            Primary key of the identity
+     * @param loader
+     *            Reads the identity from the database
+     * @return the identity, or null when not found. The returned identity is
+     *         shared with the other callers and must not be modified
+     * @throws IamDataAccessException
+     *             when the loader fails. Nothing is cached then
+     */
+    public Identity get(Long uid, Loader loader) throws IamDataAccessException
+    {
+        final Optional<Identity> cached = cache.getIfPresent(uid);
+
+        return cached != null ? cached.orElse(null) : loads.execute(uid, () -> load(uid, loader));
+    }
+
+    // The query runs outside of the cache, not to hold a lock of its map. The miss
+    // is already recorded by getIfPresent
+    private Identity load(Long uid, Loader loader) throws IamDataAccessException
+    {
+        final long version = versions.get(stripe(uid));
+        final Identity identity = loader.load(uid);
+
+        fill(uid, identity, version);
+
+        return identity;
+    }
+
+    /**
+     * Get several identities, from the cache or from one loader call for all the
+     * uids that are not cached. A loaded identity is cached, unless its uid was
+     * invalidated during the load: it may then be stale
+     *
+     * @param uids
+     *            Primary keys of the identities
+     * @param loader
+     *            Reads the identities from the database
+     * @return the found identities by uid. A uid that is not found is not in the
+     *         map. The returned identities are shared with the other callers and
+     *         must not be modified
+     * @throws IamDataAccessException
+     *             when the loader fails
+     */
+    public Map<Long, Identity> getAll(Collection<Long> uids, BulkLoader loader) throws IamDataAccessException
+    {
+        final Map<Long, Identity> result = new HashMap<>(uids.size() * 2);
+        final Set<Long> missing = getCached(uids, result);
+
+        if (missing.isEmpty()) return result;
+
+        final long[] loading = getVersions(missing);
+        fill(missing, loader.load(missing), loading, result);
+
+        return result;
+    }
+
+    /**
+     * Same as get(uid, loader), with an asynchronous loader. The concurrent misses
+     * of the same uid share one load, synchronous or not
+     *
+     * @param uid
+     *            Primary key of the identity
+     * @param loader
+     *            Reads the identity from the database, e.g. AsyncDAO.getAsync
+     * @return the identity, or null when not found
+     */
+    public CompletableFuture<Identity> getAsync(Long uid, Function<Long, CompletableFuture<Identity>> loader)
+    {
+        final Optional<Identity> cached = cache.getIfPresent(uid);
+
+        if (cached != null) return CompletableFuture.completedFuture(cached.orElse(null));
+
+        return loads.executeAsync(uid, () -> {
+            final long version = versions.get(stripe(uid));
+
+            return loader.apply(uid).thenApply(identity -> {
+                fill(uid, identity, version);
+                return identity;
+            });
+        });
+    }
+
+    /**
+     * Same as getAll(uids, loader), with an asynchronous loader
+     *
+     * @param uids
+     *            Primary keys of the identities
+     * @param loader
+     *            Reads the identities from the database, e.g.
+     *            AsyncDAO.getAllAsync
+     * @return the found identities by uid
+     */
+    public CompletableFuture<Map<Long, Identity>> getAllAsync(Collection<Long> uids,
+            Function<Collection<Long>, CompletableFuture<Map<Long, Identity>>> loader)
+    {
+        final Map<Long, Identity> result = new HashMap<>(uids.size() * 2);
+        final Set<Long> missing = getCached(uids, result);
+
+        if (missing.isEmpty()) return CompletableFuture.completedFuture(result);
+
+        final long[] loading = getVersions(missing);
+
+        return loader.apply(missing).thenApply(loaded -> fill(missing, loaded, loading, result));
+    }
+
+    // Put the cached identities in result, and return the uids that are not cached
+    private Set<Long> getCached(Collection<Long> uids, Map<Long, Identity> result)
+    {
+        final Set<Long> missing = new LinkedHashSet<>();
+
+        for (Long uid : uids) {
+            final Optional<Identity> cached = cache.getIfPresent(uid);
+
+            if (cached == null) {
+                missing.add(uid);
+            }
+            else if (cached.isPresent()) {
+                result.put(uid, cached.get());
+            }
+        }
+
+        return missing;
+    }
+
+    // The versions of the uids before their load, in the order of the set
+    private long[] getVersions(Set<Long> uids)
+    {
+        final long[] result = new long[uids.size()];
+        int i = 0;
+
+        for (Long uid : uids) {
+            result[i++] = versions.get(stripe(uid));
+        }
+
+        return result;
+    }
+
+    private Map<Long, Identity> fill(Set<Long> missing, Map<Long, Identity> loaded, long[] loading,
+            Map<Long, Identity> result)
+    {
+        int i = 0;
+
+        for (Long uid : missing) {
+            final Identity identity = loaded.get(uid);
+
+            if (identity != null) result.put(uid, identity);
+            fill(uid, identity, loading[i++]);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the count of invalidations so far, to be read before loading an
+     *         identity outside of the cache, see put
+     */
+    public long getGeneration()
+    {
+        return invalidations.get();
+    }
+
+    /**
+     * Cache an identity loaded outside of the cache, e.g. by another unique key
+     * that gave its uid. Skipped when any invalidation ran since the load started,
+     * the identity may then be stale, or when the uid is already cached
+     *
+     * @param uid
+     *            Primary key of the identity
+     * @param identity
+     *            The loaded identity, null when not found
+     * @param generation
+     *            getGeneration() read before the load started
+     */
+    public void put(Long uid, Identity identity, long generation)
+    {
+        if (identity == null && !negativeCaching) return;
+
+        cache.asMap().compute(uid, (key, current) -> current != null || invalidations.get() != generation
+                ? current
+                : Optional.ofNullable(identity));
+    }
+
+    // Cache an identity loaded by its uid. Skipped when the stripe of the uid was
+    // invalidated since the load started: the identity may be stale
+    private void fill(Long uid, Identity identity, long version)
+    {
+        if (identity == null && !negativeCaching) return;
+
+        final int stripe = stripe(uid);
+        cache.asMap().compute(uid, (key, current) -> current != null || versions.get(stripe) != version
+                ? current
+                : Optional.ofNullable(identity));
+    }
+
+    private static int stripe(Object key)
+    {
+        final int hash = key.hashCode();
+
+        return (hash ^ (hash >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    /**
+     * Get the uid of an identity from its normalized email, or from the loader
+     * when the email is not cached. As for the identities, a load in flight when
+     * the email is invalidated does not cache its result
+     *
+     * @param normalizedEmail
+     *            Email of the identity in upper case
+     * @param loader
+     *            Reads the uid from the database
+     * @return the uid, or null when no identity has this email. The uid may be
+     *         stale
+     * @throws IamDataAccessException
+     *             when the loader fails. Nothing is cached then
+     */
+    public Long getUid(String normalizedEmail, EmailLoader loader) throws IamDataAccessException
+    {
+        final Long cached = emails.getIfPresent(normalizedEmail);
+
+        if (cached != null) return UNKNOWN.equals(cached) ? null : cached;
+
+        return emailLoads.execute(normalizedEmail, () -> loadUid(normalizedEmail, loader));
+    }
+
+    private Long loadUid(String normalizedEmail, EmailLoader loader) throws IamDataAccessException
+    {
+        final int stripe = stripe(normalizedEmail);
+        final long version = emailVersions.get(stripe);
+        final Long uid = loader.load(normalizedEmail);
+        final Long value = uid != null ? uid : (unknownEmailCaching ? UNKNOWN : null);
+
+        if (value != null) {
+            emails.asMap().compute(normalizedEmail, (key, current) -> current != null
+                    || emailVersions.get(stripe) != version ? current : value);
+        }
+
+        return uid;
+    }
+
+    /**
+     * Forget the uid of a normalized email
+     *
+     * @param normalizedEmail
+     *            Email of the identity in upper case
+     */
+    public void invalidateEmail(String normalizedEmail)
+    {
+        if (normalizedEmail != null) {
+            emailVersions.incrementAndGet(stripe(normalizedEmail));
+            emails.invalidate(normalizedEmail);
+            emailLoads.forget(normalizedEmail);
+        }
+    }
+
+    /**
+     * Remove an identity from the cache. Must be called after every write of this
+     * identity in the database
+     *
+     * @param uid
+     *            Primary key of the identity
+     */
+    public void invalidate(Long uid)
+    {
+        if (uid != null) {
+            invalidations.incrementAndGet();
+            versions.incrementAndGet(stripe(uid));
+            cache.invalidate(uid);
+            loads.forget(uid);
+        }
+    }
+
+    /**
+     * Remove all identities from the cache
+     */
+    public void invalidateAll()
+    {
+        invalidations.incrementAndGet();
+        for (int i = 0; i < VERSION_STRIPES; i++) {
+            versions.incrementAndGet(i);
+            emailVersions.incrementAndGet(i);
+        }
+        cache.invalidateAll();
+        emails.invalidateAll();
+        loads.forgetAll();
+        emailLoads.forgetAll();
+    }
+}
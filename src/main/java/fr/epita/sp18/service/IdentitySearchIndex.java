@@ -0,0 +1,409 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import fr.epita.sp18.dao.IdentityDAO;
+import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.exception.IamDataAccessException;
+import fr.epita.sp18.model.IdentityResponse;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * IdentitySearchIndex is an in-memory trigram inverted index over the lower
+ * cased name and email of the identities. It answers the substring search of
+ * GET /api/identities?filter= without scanning the table: "LOWER(name) LIKE
+ * '%x%'" can not use a database index.
+ * <p>
+ * Every 3 characters window of a name or email is a trigram, and each trigram
+ * has the sorted list of the uids that contain it. A keyword of 3 characters or
+ * more is looked up by intersecting the lists of its trigrams, then each
+ * candidate is checked to really contain the keyword, so the result is exactly
+ * the one of the LIKE search. A shorter keyword is checked against every
+ * identity, in memory.
+ * <p>
+ * The index is built from IdentityDAO once the application is ready, then
+ * IdentityService keeps it up to date on each write. search() returns null
+ * until the index is built, or when iam.search.index.enabled=false, and the
+ * caller must search the database then.
+ * <p>
+ * The index publishes iam.search.index.identities, iam.search.index.trigrams
+ * and its estimated heap size iam.search.index.bytes
+ *
+ * @author Philip
+ *
+ */
+@Component
+public class IdentitySearchIndex
+{
+    private static final Logger logger = LogManager.getLogger("IdentitySearchIndex");
+
+    /**
+     * Read all identities, one by one, into the consumer
+     */
+    @FunctionalInterface
+    public interface Source
+    {
+        int read(Consumer<Identity> consumer) throws IamDataAccessException;
+    }
+
+    // Name and email of an identity, as returned and as searched
+    private static class Entry
+    {
+        final Long   uid;
+        final String name;
+        final String email;
+        final String lowerName;
+        final String lowerEmail;
+
+        Entry(Long uid, String name, String email)
+        {
+            this.uid = uid;
+            this.name = name;
+            this.email = email;
+            this.lowerName = name.toLowerCase();
+            this.lowerEmail = email.toLowerCase();
+        }
+
+        boolean contains(String keyword)
+        {
+            return lowerName.contains(keyword) || lowerEmail.contains(keyword);
+        }
+    }
+
+    // Sorted uids of the identities that contain a trigram
+    private static class Postings
+    {
+        long[] uids = new long[2];
+        int    size;
+
+        void add(long uid)
+        {
+            int i = Arrays.binarySearch(uids, 0, size, uid);
+            if (i >= 0) return;
+
+            i = -i - 1;
+            if (size == uids.length) {
+                uids = Arrays.copyOf(uids, size * 2);
+            }
+            System.arraycopy(uids, i, uids, i + 1, size - i);
+            uids[i] = uid;
+            size++;
+        }
+
+        void remove(long uid)
+        {
+            int i = Arrays.binarySearch(uids, 0, size, uid);
+            if (i < 0) return;
+
+            System.arraycopy(uids, i + 1, uids, i, size - i - 1);
+            size--;
+        }
+    }
+
+    private final TreeMap<Long, Entry> entries  = new TreeMap<>();
+    private final Map<Long, Postings>  trigrams = new HashMap<>();
+    private final ReadWriteLock        lock     = new ReentrantReadWriteLock();
+    private volatile boolean           ready;
+
+    @Autowired
+    IdentityDAO dao;
+
+    @Value("${iam.search.index.enabled:true}")
+    boolean enabled = true;
+
+    public IdentitySearchIndex(MeterRegistry registry)
+    {
+        Gauge.builder("iam.search.index.identities", this, IdentitySearchIndex::size)
+                .register(registry);
+        Gauge.builder("iam.search.index.trigrams", this, x -> x.read(() -> x.trigrams.size()))
+                .register(registry);
+        Gauge.builder("iam.search.index.bytes", this, IdentitySearchIndex::getMemoryFootprint)
+                .description("Estimated heap size of the search index")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Build the index from the database once the application is started
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void build()
+    {
+        if (!enabled) return;
+
+        try {
+            build(consumer -> dao.search(null, "uid", IdentityDAO.NAME_AND_EMAIL, consumer));
+        }
+        catch (final Exception ex) {
+            logger.error("IdentitySearchIndex build() error, the database will be searched", ex);
+        }
+    }
+
+    /**
+     * Clear the index and fill it with the identities of the source. Writes wait
+     * until the index is built, so that none of them is lost
+     *
+     * @param source
+     *            Reads all identities
+     * @throws IamDataAccessException
+     *             when the source fails. The index is not ready then
+     */
+    public void build(Source source) throws IamDataAccessException
+    {
+        final long start = System.nanoTime();
+
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            entries.clear();
+            trigrams.clear();
+
+            source.read(this::add);
+            ready = true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+
+        logger.info(String.format("IdentitySearchIndex built: %1$d identities, %2$d trigrams, %3$d KB in %4$d ms",
+                size(), trigrams.size(), getMemoryFootprint() / 1024, (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /**
+     * @return true when the index is built and can be searched
+     */
+    public boolean isReady()
+    {
+        return ready;
+    }
+
+    /**
+     * Add an identity to the index, or replace it. Must be called after every
+     * successful insert or update of this identity in the database, with the row
+     * read back after the write: see IdentityService, which serializes the calls
+     * of one uid
+     *
+     * @param identity
+     *            The identity as it is stored
+     */
+    public void put(Identity identity)
+    {
+        if (!enabled) return;
+
+        lock.writeLock().lock();
+        try {
+            remove(entries.get(identity.getUid()));
+            add(identity);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an identity from the index. Must be called after every delete of
+     * this identity in the database
+     *
+     * @param uid
+     *            Primary key of the identity
+     */
+    public void remove(Long uid)
+    {
+        if (!enabled) return;
+
+        lock.writeLock().lock();
+        try {
+            remove(entries.get(uid));
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Search for identities that name or email contain keyword, case insensitive.
+     * Same result as "LOWER(name) LIKE '%keyword%' OR LOWER(email) LIKE
+     * '%keyword%'", ordered by uid
+     *
+     * @param keyword
+     *            Searching keyword, empty for all identities
+     * @return the found identities, or null when the index is not ready
+     */
+    public List<IdentityResponse> search(String keyword)
+    {
+        if (!ready) return null;
+
+        final String lower = keyword == null ? "" : keyword.toLowerCase();
+        final List<IdentityResponse> result = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            if (!ready) return null;
+
+            if (lower.length() < 3) {
+                for (Entry entry : entries.values()) {
+                    if (entry.contains(lower)) {
+                        result.add(new IdentityResponse(entry.uid, entry.name, entry.email));
+                    }
+                }
+                return result;
+            }
+
+            // Intersect the postings of the keyword's trigrams, shortest first
+            final List<Postings> lists = new ArrayList<>();
+            for (Long trigram : trigrams(lower)) {
+                Postings postings = trigrams.get(trigram);
+                if (postings == null || postings.size == 0) return result;
+                lists.add(postings);
+            }
+            lists.sort((a, b) -> Integer.compare(a.size, b.size));
+
+            final Postings first = lists.get(0);
+            for (int i = 0; i < first.size; i++) {
+                final long uid = first.uids[i];
+
+                boolean candidate = true;
+                for (int j = 1; j < lists.size() && candidate; j++) {
+                    Postings other = lists.get(j);
+                    candidate = Arrays.binarySearch(other.uids, 0, other.size, uid) >= 0;
+                }
+
+                Entry entry = candidate ? entries.get(uid) : null;
+                if (entry != null && entry.contains(lower)) {
+                    result.add(new IdentityResponse(entry.uid, entry.name, entry.email));
+                }
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the number of indexed identities
+     */
+    public int size()
+    {
+        return read(entries::size);
+    }
+
+    /**
+     * Estimate the heap used by the index: the entries with their strings, the
+     * trigram map and the postings arrays. Object headers are counted as 16 bytes
+     * and references as 8 bytes
+     *
+     * @return the estimated size, in bytes
+     */
+    public long getMemoryFootprint()
+    {
+        lock.readLock().lock();
+        try {
+            // TreeMap.Entry + Long key + Entry
+            long bytes = entries.size() * (40L + 24 + 56);
+            for (Entry entry : entries.values()) {
+                bytes += stringSize(entry.name) + stringSize(entry.email);
+                bytes += (entry.lowerName == entry.name ? 0 : stringSize(entry.lowerName))
+                        + (entry.lowerEmail == entry.email ? 0 : stringSize(entry.lowerEmail));
+            }
+
+            // Map table slot + HashMap.Node + Long key + Postings + long[]
+            for (Postings postings : trigrams.values()) {
+                bytes += 8 + 32 + 24 + 24 + 16 + 8L * postings.uids.length;
+            }
+
+            return bytes;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(Identity identity)
+    {
+        final Entry entry = new Entry(identity.getUid(), identity.getName(), identity.getEmail());
+
+        entries.put(entry.uid, entry);
+        for (Long trigram : trigrams(entry)) {
+            trigrams.computeIfAbsent(trigram, x -> new Postings()).add(entry.uid);
+        }
+    }
+
+    private void remove(Entry entry)
+    {
+        if (entry == null) return;
+
+        entries.remove(entry.uid);
+        for (Long trigram : trigrams(entry)) {
+            Postings postings = trigrams.get(trigram);
+            if (postings != null) {
+                postings.remove(entry.uid);
+                if (postings.size == 0) {
+                    trigrams.remove(trigram);
+                }
+            }
+        }
+    }
+
+    private static Set<Long> trigrams(Entry entry)
+    {
+        final Set<Long> result = trigrams(entry.lowerName);
+        result.addAll(trigrams(entry.lowerEmail));
+
+        return result;
+    }
+
+    // The 3 chars of each window, packed in the low 48 bits of a long
+    private static Set<Long> trigrams(String text)
+    {
+        if (text.length() < 3) return new HashSet<>();
+
+        final Set<Long> result = new HashSet<>(text.length() * 2);
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            result.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+        }
+
+        return result;
+    }
+
+    private static long stringSize(String text)
+    {
+        // String + char[]
+        return 24 + 16 + 2L * text.length();
+    }
+
+    private <R> R read(Supplier<R> reader)
+    {
+        lock.readLock().lock();
+        try {
+            return reader.get();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -3,22 +3,37 @@
  */
 package fr.epita.sp18.service;
 
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import fr.epita.sp18.dao.BatchResult;
+import fr.epita.sp18.dao.Criteria;
 import fr.epita.sp18.dao.IdentityDAO;
+import fr.epita.sp18.dao.JdbcExecutor;
+import fr.epita.sp18.dao.Projection;
 import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
 import fr.epita.sp18.exception.IamDataIntegrityViolationException;
 import fr.epita.sp18.exception.IamDuplicateKeyException;
 import fr.epita.sp18.model.ApiResponse;
+import fr.epita.sp18.model.IdentityPage;
 import fr.epita.sp18.model.IdentityRequest;
 import fr.epita.sp18.model.IdentityResponse;
 
@@ -42,24 +57,61 @@ import fr.epita.sp18.model.IdentityResponse;
 @Service
 public class IdentityService implements BaseService
 {
-    private static final Logger   logger = LogManager.getLogger("IdentityService");
-    private BCryptPasswordEncoder bCryptPasswordEncoder;
+    private static final Logger logger = LogManager.getLogger("IdentityService");
+    private PasswordService     passwordService;
 
     /**
-     * Construct the IdentityService with an BCryptPasswordEncoder to hash
-     * identity's raw password receiving from controller
+     * Construct the IdentityService with a PasswordService to hash identity's raw
+     * password receiving from controller
      *
-     * @param bCryptPasswordEncoder
+     * @param passwordService
      *            The encoder for raw password
      */
-    public IdentityService(BCryptPasswordEncoder bCryptPasswordEncoder)
+    public IdentityService(PasswordService passwordService)
     {
-        this.bCryptPasswordEncoder = bCryptPasswordEncoder;
+        this.passwordService = passwordService;
     }
 
     @Autowired
     IdentityDAO dao;
 
+    @Autowired
+    IdentityCache cache;
+
+    @Autowired
+    IdentitySearchIndex index;
+
+    @Autowired
+    IdentitySuggestIndex suggestions;
+
+    @Autowired
+    TokenRevocationService revocations;
+
+    @Autowired
+    PermissionService permissions;
+
+    @Autowired
+    GroupService groups;
+
+    @Autowired
+    JdbcExecutor jdbcExecutor;
+
+    /**
+     * Largest page a paginated search can return
+     */
+    @Value("${iam.identities.max-page-size:1000}")
+    int maxPageSize;
+
+    private static final List<String> SORT_KEYS = Arrays.asList("uid", "name", "email");
+
+    // The indexes of a uid are updated under one of these locks, see reindex()
+    private final Object[] indexLocks = newLocks(64);
+
+    // The columns of IdentityResponse, read straight from the database
+    private static final Projection<IdentityResponse> RESPONSE = Projection.of(
+            (rs, i) -> new IdentityResponse(rs.getLong(1), rs.getString(2), rs.getString(3)),
+            "uid", "name", "email");
+
     /**
      * Query identity by primary key. Example when calling it from the controller:
      *
@@ -86,7 +138,7 @@ public class IdentityService implements BaseService
         }
 
         try {
-            Identity search = dao.get(uid);
+            Identity search = cache.get(uid, dao::get);
 
             if (search != null) {
                 resp.setModel(new IdentityResponse(search.getUid(), search.getName(), search.getEmail()));
@@ -102,7 +154,36 @@ public class IdentityService implements BaseService
     }
 
     /**
-     * Search for identities that name or email contain keyword
+     * Same as get(uid), but an identity that is not cached is read on the
+     * JdbcExecutor: the calling thread is not blocked by the query
+     *
+     * @param uid
+     *            Primary key of the expected identity
+     * @return the get() response, once read
+     */
+    public CompletableFuture<ApiResponse<IdentityResponse>> getAsync(Long uid)
+    {
+        if (uid <= 0) return CompletableFuture.completedFuture(get(uid));
+
+        return cache.getAsync(uid, dao::getAsync).handle((search, ex) -> {
+            ApiResponse<IdentityResponse> resp = new ApiResponse<>();
+
+            if (ex != null) {
+                logger.error("Identity getAsync() error", ex);
+                resp.setErrorMessage("Error when geting identity. Please try again");
+                resp.setHasError(true);
+            }
+            else if (search != null) {
+                resp.setModel(new IdentityResponse(search.getUid(), search.getName(), search.getEmail()));
+            }
+
+            return resp;
+        });
+    }
+
+    /**
+     * Search for identities that name or email contain keyword. Without sort
+     * order, the search is answered by IdentitySearchIndex once it is built
      *
      * @param filter
      *            Searching keyword in String format
@@ -118,24 +199,272 @@ public class IdentityService implements BaseService
         ApiResponse<List<IdentityResponse>> resp = new ApiResponse<>();
 
         List<IdentityResponse> result = Collections.emptyList();
-        List<Identity> search = Collections.emptyList();
 
         try {
-            if (filter != null && !filter.isEmpty()) {
-                filter = String.format("LOWER(name) LIKE '%%%1$s%%' OR LOWER(email) LIKE '%%%1$s%%'",
-                        filter.toLowerCase());
+            result = (sort == null || sort.isEmpty()) ? index.search(filter) : null;
+            if (result == null) {
+                result = dao.search(getSearchFilter(filter), sort, RESPONSE);
             }
 
-            search = dao.search(filter, sort);
+            resp.setModel(result);
+        }
+        catch (final Exception ex) {
+            logger.error("Identity search() error", ex);
+            resp.setErrorMessage("Error when searching for identities. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
 
-            if (search != null) {
-                result = search
-                        .stream()
-                        .map(x -> new IdentityResponse(x.getUid(), x.getName(), x.getEmail()))
-                        .collect(Collectors.toList());
-                resp.setModel(result);
+    /**
+     * Same as search(filter, sort), but a search that IdentitySearchIndex can not
+     * answer is queried on the JdbcExecutor: the calling thread is not blocked by
+     * the query
+     *
+     * @param filter
+     *            Searching keyword in String format
+     * @param sort
+     *            Sort order String format
+     * @return the search() response, once read
+     */
+    public CompletableFuture<ApiResponse<List<IdentityResponse>>> searchAsync(String filter, String sort)
+    {
+        List<IdentityResponse> indexed = (sort == null || sort.isEmpty()) ? index.search(filter) : null;
+
+        CompletableFuture<List<IdentityResponse>> result = indexed != null
+                ? CompletableFuture.completedFuture(indexed)
+                : dao.searchAsync(getSearchFilter(filter), sort, RESPONSE);
+
+        return result.handle((found, ex) -> {
+            ApiResponse<List<IdentityResponse>> resp = new ApiResponse<>();
+
+            if (ex != null) {
+                logger.error("Identity searchAsync() error", ex);
+                resp.setErrorMessage("Error when searching for identities. Please try again");
+                resp.setHasError(true);
+            }
+            else {
+                resp.setModel(found);
+            }
+
+            return resp;
+        });
+    }
+
+    /**
+     * Search one page of the identities that name or email contain keyword. Pages
+     * are read by keyset: the continuation token of a page carries the sort value
+     * and uid of its last identity, and the next page starts right after them.
+     *
+     * @param filter
+     *            Searching keyword in String format
+     * @param sort
+     *            Sort key: "uid", "name" or "email", prefixed by "-" for a
+     *            descending order. Empty for "uid". Must be the same for all the
+     *            pages of a search
+     * @param after
+     *            Continuation token returned with the previous page. Empty for the
+     *            first page
+     * @param limit
+     *            Maximum number of identities of the page, from 1 to
+     *            iam.identities.max-page-size
+     *
+     * @return ApiResponse object that has ApiResponse.model = the page. Its next
+     *         token is null on the last page
+     */
+    public ApiResponse<IdentityPage> search(String filter, String sort, String after, int limit)
+    {
+        ApiResponse<IdentityPage> resp = new ApiResponse<>();
+
+        sort = (sort == null || sort.isEmpty()) ? "uid" : sort;
+        if (!SORT_KEYS.contains(sort.startsWith("-") ? sort.substring(1) : sort)) {
+            resp.setErrorMessage("Invalid sort key. Use uid, name or email");
+            resp.setHasError(true);
+            return resp; // The request is not valid
+        }
+
+        if (limit <= 0 || limit > maxPageSize) {
+            resp.setErrorMessage(String.format("Invalid limit. Use a value from 1 to %1$d", maxPageSize));
+            resp.setHasError(true);
+            return resp; // The request is not valid
+        }
+
+        Identity last = null;
+        if (after != null && !after.isEmpty()) {
+            last = decodePageToken(after, sort);
+
+            if (last == null) {
+                resp.setErrorMessage("Invalid continuation token");
+                resp.setHasError(true);
+                return resp; // The request is not valid
+            }
+        }
+
+        try {
+            // Read one more identity to know if there is a next page
+            List<IdentityResponse> search = dao.search(getSearchFilter(filter), sort, last, limit + 1, RESPONSE);
+
+            String next = null;
+            if (search.size() > limit) {
+                search = search.subList(0, limit);
+                next = encodePageToken(search.get(limit - 1), sort);
+            }
+
+            resp.setModel(new IdentityPage(search, next));
+        }
+        catch (final Exception ex) {
+            logger.error("Identity search() error", ex);
+            resp.setErrorMessage("Error when searching for identities. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    /**
+     * Same as search(filter, sort, after, limit), run on the JdbcExecutor: the
+     * calling thread is not blocked by the query
+     *
+     * @return the search() response, once read. The future completes
+     *         exceptionally when the JdbcExecutor queue is full
+     */
+    public CompletableFuture<ApiResponse<IdentityPage>> searchAsync(String filter, String sort, String after,
+            int limit)
+    {
+        return jdbcExecutor.supply(() -> search(filter, sort, after, limit));
+    }
+
+    /**
+     * Suggest the identities that name, a word of name or email starts with the
+     * prefix, case insensitive. The suggestions are answered by
+     * IdentitySuggestIndex once it is built, by the database before
+     *
+     * @param prefix
+     *            Beginning of the name, a word of the name or email
+     * @param limit
+     *            Maximum number of suggestions, from 1 to
+     *            iam.identities.max-page-size
+     *
+     * @return ApiResponse object that has ApiResponse.model = the suggestions
+     */
+    public ApiResponse<List<IdentityResponse>> suggest(String prefix, int limit)
+    {
+        ApiResponse<List<IdentityResponse>> resp = new ApiResponse<>();
+
+        if (limit <= 0 || limit > maxPageSize) {
+            resp.setErrorMessage(String.format("Invalid limit. Use a value from 1 to %1$d", maxPageSize));
+            resp.setHasError(true);
+            return resp; // The request is not valid
+        }
+
+        try {
+            List<IdentityResponse> result = suggestions.suggest(prefix, limit);
+
+            if (result == null) {
+                // "name LIKE 'x%' OR name LIKE '% x%' OR email LIKE 'x%'"
+                Criteria filter = Criteria.startsWith("name", prefix)
+                        .or(Criteria.contains("name", " " + prefix))
+                        .or(Criteria.startsWith("email", prefix));
+
+                result = dao.search(filter, "name", null, limit, RESPONSE);
+            }
+
+            resp.setModel(result);
+        }
+        catch (final Exception ex) {
+            logger.error("Identity suggest() error", ex);
+            resp.setErrorMessage("Error when suggesting identities. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    // Token = base64url("sort\nuid\nsort value")
+    private String encodePageToken(IdentityResponse last, String sort)
+    {
+        String value;
+
+        switch (sort.startsWith("-") ? sort.substring(1) : sort) {
+        case "name":
+            value = last.getName();
+            break;
+        case "email":
+            value = last.getEmail();
+            break;
+        default:
+            value = last.getUid().toString();
+            break;
+        }
+
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(String.join("\n", sort, last.getUid().toString(), value)
+                        .getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Rebuild the last identity of the previous page, null when the token is not
+    // valid or was issued for another sort key
+    private Identity decodePageToken(String token, String sort)
+    {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)
+                    .split("\n", 3);
+
+            if (parts.length != 3 || !parts[0].equals(sort)) return null;
+
+            Identity last = new Identity();
+            last.setUid(Long.valueOf(parts[1]));
+
+            // The DAO only reads the sort column, whichever it is
+            last.setName(parts[2]);
+            last.setEmail(parts[2]);
+
+            return last;
+        }
+        catch (final IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Search for identities that name or email contain keyword and hand them one
+     * by one to the consumer, as they are read from the database. Unlike
+     * search(filter, sort), the result of the database is never held in memory as
+     * a whole. Without sort order, the search is answered by IdentitySearchIndex
+     * once it is built
+     *
+     * @param filter
+     *            Searching keyword in String format
+     * @param sort
+     *            Sort order String format
+     * @param consumer
+     *            Called once per found identity. An UncheckedIOException it throws,
+     *            usually a client that went away, stops the search and is rethrown
+     *
+     * @return ApiResponse object that has ApiResponse.model = number of found
+     *         identities. ApiResponse.hasError = true when the search stopped on
+     *         an error, the consumer may have received part of the result already
+     */
+    public ApiResponse<Integer> search(String filter, String sort, Consumer<IdentityResponse> consumer)
+    {
+        ApiResponse<Integer> resp = new ApiResponse<>();
+
+        try {
+            List<IdentityResponse> indexed = (sort == null || sort.isEmpty()) ? index.search(filter) : null;
+
+            if (indexed != null) {
+                indexed.forEach(consumer);
+                resp.setModel(indexed.size());
+            }
+            else {
+                resp.setModel(dao.search(getSearchFilter(filter), sort, RESPONSE, consumer));
             }
         }
+        catch (final UncheckedIOException ex) {
+            // Not a search error, the consumer can not go on
+            throw ex;
+        }
         catch (final Exception ex) {
             logger.error("Identity search() error", ex);
             resp.setErrorMessage("Error when searching for identities. Please try again");
@@ -145,9 +474,156 @@ public class IdentityService implements BaseService
         return resp;
     }
 
+    /**
+     * Same as search(filter, sort, consumer), but a search that
+     * IdentitySearchIndex can not answer is read on the JdbcExecutor: the calling
+     * thread is not blocked by the query, and the consumer is called on a JDBC
+     * thread
+     *
+     * @param filter
+     *            Searching keyword in String format
+     * @param sort
+     *            Sort order String format
+     * @param consumer
+     *            Called once per found identity
+     * @return the search(filter, sort, consumer) response, once all identities
+     *         are handed to the consumer. The future completes exceptionally with
+     *         the UncheckedIOException of the consumer
+     */
+    public CompletableFuture<ApiResponse<Integer>> searchAsync(String filter, String sort,
+            Consumer<IdentityResponse> consumer)
+    {
+        if ((sort == null || sort.isEmpty()) && index.isReady()) {
+            try {
+                return CompletableFuture.completedFuture(search(filter, sort, consumer));
+            }
+            catch (final UncheckedIOException ex) {
+                CompletableFuture<ApiResponse<Integer>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(ex);
+                return failed;
+            }
+        }
+
+        return jdbcExecutor.supply(() -> search(filter, sort, consumer));
+    }
+
+    // "LOWER(name) LIKE '%filter%' OR LOWER(email) LIKE '%filter%'", null for all
+    private Criteria getSearchFilter(String filter)
+    {
+        if (filter == null || filter.isEmpty()) return null;
+
+        return Criteria.contains("name", filter).or(Criteria.contains("email", filter));
+    }
+
+    /**
+     * Get several identities at once. The cached identities are served from the
+     * identity cache, the others are read by IN-list queries
+     *
+     * @param uids
+     *            Primary keys of the expected identities, at most
+     *            iam.identities.max-page-size
+     * @return ApiResponse object that has ApiResponse.model = one ApiResponse per
+     *         uid, in the same order, with the same content as the get() response,
+     *         or ApiResponse.hasError = true and ApiResponse.errorMessage =
+     *         "Identity not found" when the identity does not exist
+     */
+    public ApiResponse<List<ApiResponse<IdentityResponse>>> getAll(List<Long> uids)
+    {
+        ApiResponse<List<ApiResponse<IdentityResponse>>> resp = new ApiResponse<>();
+
+        if (uids == null || uids.size() > maxPageSize) {
+            resp.setErrorMessage(String.format("Invalid uid list. Use from 0 to %1$d uids", maxPageSize));
+            resp.setHasError(true);
+            return resp; // The request is not valid
+        }
+
+        try {
+            setRows(resp, uids, cache.getAll(getValidUids(uids), dao::getAll));
+        }
+        catch (final Exception ex) {
+            logger.error("Identity getAll() error", ex);
+            resp.setErrorMessage("Error when geting identities. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    /**
+     * Same as getAll(uids), but the identities that are not cached are read on
+     * the JdbcExecutor: the calling thread is not blocked by the queries
+     *
+     * @param uids
+     *            Primary keys of the expected identities
+     * @return the getAll() response, once read
+     */
+    public CompletableFuture<ApiResponse<List<ApiResponse<IdentityResponse>>>> getAllAsync(List<Long> uids)
+    {
+        if (uids == null || uids.size() > maxPageSize) return CompletableFuture.completedFuture(getAll(uids));
+
+        return cache.getAllAsync(getValidUids(uids), dao::getAllAsync).handle((found, ex) -> {
+            ApiResponse<List<ApiResponse<IdentityResponse>>> resp = new ApiResponse<>();
+
+            if (ex != null) {
+                logger.error("Identity getAllAsync() error", ex);
+                resp.setErrorMessage("Error when geting identities. Please try again");
+                resp.setHasError(true);
+            }
+            else {
+                setRows(resp, uids, found);
+            }
+
+            return resp;
+        });
+    }
+
+    private static List<Long> getValidUids(List<Long> uids)
+    {
+        List<Long> valid = new ArrayList<>(uids.size());
+        uids.stream().filter(uid -> uid != null && uid > 0).forEach(valid::add);
+
+        return valid;
+    }
+
+    // One row per requested uid, in order
+    private static void setRows(ApiResponse<List<ApiResponse<IdentityResponse>>> resp, List<Long> uids,
+            Map<Long, Identity> found)
+    {
+        List<ApiResponse<IdentityResponse>> rows = new ArrayList<>(uids.size());
+        int count = 0;
+
+        for (Long uid : uids) {
+            ApiResponse<IdentityResponse> row = new ApiResponse<>();
+            Identity identity = uid == null ? null : found.get(uid);
+
+            if (identity != null) {
+                row.setModel(new IdentityResponse(identity.getUid(), identity.getName(), identity.getEmail()));
+                count++;
+            }
+            else {
+                row.setErrorMessage(uid == null || uid <= 0 ? "Invalid identity uid" : "Identity not found");
+                row.setHasError(true);
+            }
+            rows.add(row);
+        }
+
+        resp.setModel(rows);
+        resp.setMessage(String.format("%1$d of %2$d identities found", count, uids.size()));
+    }
+
     /**
      * Find the identity by its email address. Email is an unique index of Identity
-     * entity
+     * entity.
+     * <p>
+     * The uid of the email is looked up in the cache first, then the identity is
+     * read through the identity cache, so that a login does not query the
+     * database. The identity read to resolve an email is cached only when no
+     * invalidation ran since before that read, a write may have made it stale.
+     * An unknown email is cached too, for a short time. The mapping of
+     * the previous email is not invalidated when the email of an identity
+     * changes, so the identity found is checked to still have this email. A stale
+     * mapping is dropped and the identity is queried by the
+     * UK_Identities_normalizedEmail index
      *
      * @param email
      *            Email address of the expected identity
@@ -155,28 +631,71 @@ public class IdentityService implements BaseService
      */
     public Identity findByEmail(String email)
     {
-        final String filter = String.format("normalizedEmail='%1$s'", email.toUpperCase());
-        final String sort = "";
-
-        Identity result = null;
-        List<Identity> search = Collections.emptyList();
+        final String normalizedEmail = email.toUpperCase();
 
         try {
-            search = dao.search(filter, sort);
+            // A second attempt when the cached uid was stale
+            for (int attempt = 0; attempt < 2; attempt++) {
+                final Identity[] loaded = new Identity[1];
+                final long generation = cache.getGeneration();
+                final Long uid = cache.getUid(normalizedEmail, key -> {
+                    loaded[0] = dao.getByNormalizedEmail(key);
+                    return loaded[0] == null ? null : loaded[0].getUid();
+                });
+
+                if (uid == null) return null;
+
+                // Not cached after a write, the identity is then read again
+                if (loaded[0] != null) cache.put(uid, loaded[0], generation);
+
+                final Identity result = cache.get(uid, dao::get);
 
-            if (!search.isEmpty()) {
-                result = search.get(0);
+                if (result != null && normalizedEmail.equals(result.getNormalizedEmail())) return result;
+
+                // The identity was deleted or its email changed
+                cache.invalidateEmail(normalizedEmail);
             }
         }
         catch (final Exception ex) {
-            logger.error("Identity search() error", ex);
+            logger.error("Identity findByEmail() error", ex);
         }
 
-        return result;
+        return null;
+    }
+
+    /**
+     * Replace the password hash of an identity by a hash of the current algorithm
+     * and cost. Called after a successful login, when PasswordService.needsRehash
+     * tells that the stored hash is outdated. The hash is not replaced when the
+     * password was changed in the meantime
+     *
+     * @param email
+     *            Email address of the identity
+     * @param rawPassword
+     *            The password the identity just logged in with
+     */
+    public void rehashPassword(String email, CharSequence rawPassword)
+    {
+        final Identity identity = findByEmail(email);
+        if (identity == null) return;
+
+        try {
+            if (dao.replacePasswordHash(identity.getUid(), identity.getPasswordHash(),
+                    passwordService.encode(rawPassword))) {
+                logger.info(String.format("Password of identity %1$d rehashed", identity.getUid()));
+            }
+        }
+        catch (final Exception ex) {
+            logger.error("Identity rehashPassword() error", ex);
+        }
+        finally {
+            cache.invalidate(identity.getUid());
+        }
     }
 
     /**
-     * Delete the identity base on its primary key
+     * Delete the identity base on its primary key. The tokens issued to the
+     * identity and its roles are revoked
      *
      * @param uid
      *            Primary key of the to-be-deleted identity. Integer 64 bits
@@ -193,18 +712,50 @@ public class IdentityService implements BaseService
             return resp; // The request is not valid
         }
 
+        Identity identity = null;
+
         try {
+            identity = cache.get(uid, dao::get);
+
             dao.delete(uid);
+            permissions.revokeAll(uid);
+            groups.removeIdentity(uid);
+            reindex(uid, null);
+
+            // The tokens of the identity must not outlive it, whatever email they
+            // were issued to. A token without uid claim is revoked by its email
+            revocations.revokeSubject(uid.toString());
+            if (identity != null) revocations.revokeSubject(identity.getEmail());
         }
         catch (final Exception ex) {
             logger.error("Identity delete() error", ex);
             resp.setErrorMessage("Error when deleting identity. Please try again");
             resp.setHasError(true);
         }
+        finally {
+            cache.invalidate(uid);
+            if (identity != null) cache.invalidateEmail(identity.getNormalizedEmail());
+        }
 
         return resp;
     }
 
+    /**
+     * Same as delete(uid), run on the JdbcExecutor: the calling thread is not
+     * blocked by the queries
+     *
+     * @param uid
+     *            Primary key of the to-be-deleted identity
+     * @return the delete() response, once deleted
+     */
+    public CompletableFuture<ApiResponse<IdentityResponse>> deleteAsync(Long uid)
+    {
+        if (uid <= 0) return CompletableFuture.completedFuture(delete(uid));
+
+        return jdbcExecutor.supply(() -> delete(uid))
+                .exceptionally(ex -> failed("deleteAsync", ex, "Error when deleting identity. Please try again"));
+    }
+
     /**
      * Insert a new identity into the database. A new identity primary key will be
      * generated regardless existing uid value of identity object in the parameter
@@ -254,6 +805,242 @@ public class IdentityService implements BaseService
         return save(request, "patch");
     }
 
+    /**
+     * Same as create(request), but the password is hashed on the common pool and
+     * the identity is inserted on the JdbcExecutor: the calling thread is not
+     * blocked
+     *
+     * @param request
+     *            An IdentityRequest object, carries identity's value to be inserted
+     * @return the create() response, once inserted
+     */
+    public CompletableFuture<ApiResponse<IdentityResponse>> createAsync(IdentityRequest request)
+    {
+        return saveAsync(request, "create");
+    }
+
+    /**
+     * Same as update(request), but the password is hashed on the common pool and
+     * the identity is updated on the JdbcExecutor
+     *
+     * @param request
+     *            An IdentityRequest object, carries identity's value to be updated
+     * @return the update() response, once updated
+     */
+    public CompletableFuture<ApiResponse<IdentityResponse>> updateAsync(IdentityRequest request)
+    {
+        return saveAsync(request, "update");
+    }
+
+    /**
+     * Same as patch(request), run on the JdbcExecutor. There is no password to
+     * hash
+     *
+     * @param request
+     *            An IdentityRequest object, carries identity's value to be updated.
+     *            IdentityRequest.password will be ignored
+     * @return the patch() response, once updated
+     */
+    public CompletableFuture<ApiResponse<IdentityResponse>> patchAsync(IdentityRequest request)
+    {
+        return saveAsync(request, "patch");
+    }
+
+    /**
+     * Insert a list of identities into the database by JDBC batches. A failed
+     * identity (invalid request, duplicated email...) does not stop the others
+     *
+     * @param requests
+     *            The identities to be inserted
+     * @return ApiResponse object that has ApiResponse.model = one ApiResponse per
+     *         request, in the same order, with the same content as the create()
+     *         response. ApiResponse.hasError = true only when the batch can not be
+     *         executed at all
+     */
+    public ApiResponse<List<ApiResponse<IdentityResponse>>> createAll(List<IdentityRequest> requests)
+    {
+        return saveAll(requests, "create");
+    }
+
+    /**
+     * Update a list of identities in the database by JDBC batches, including their
+     * passwords. A failed identity does not stop the others
+     *
+     * @param requests
+     *            The identities to be updated
+     * @return Same as createAll()
+     */
+    public ApiResponse<List<ApiResponse<IdentityResponse>>> updateAll(List<IdentityRequest> requests)
+    {
+        return saveAll(requests, "update");
+    }
+
+    /**
+     * Same as createAll(requests), but the passwords are hashed on the common pool
+     * and the batches are run on the JdbcExecutor: the calling thread is not
+     * blocked
+     *
+     * @param requests
+     *            The identities to be inserted
+     * @return the createAll() response, once inserted
+     */
+    public CompletableFuture<ApiResponse<List<ApiResponse<IdentityResponse>>>> createAllAsync(
+            List<IdentityRequest> requests)
+    {
+        return saveAllAsync(requests, "create");
+    }
+
+    /**
+     * Same as updateAll(requests), but the passwords are hashed on the common pool
+     * and the batches are run on the JdbcExecutor
+     *
+     * @param requests
+     *            The identities to be updated
+     * @return the updateAll() response, once updated
+     */
+    public CompletableFuture<ApiResponse<List<ApiResponse<IdentityResponse>>>> updateAllAsync(
+            List<IdentityRequest> requests)
+    {
+        return saveAllAsync(requests, "update");
+    }
+
+    private ApiResponse<List<ApiResponse<IdentityResponse>>> saveAll(List<IdentityRequest> requests, String method)
+    {
+        return writeAll(prepareAll(requests), method);
+    }
+
+    private CompletableFuture<ApiResponse<List<ApiResponse<IdentityResponse>>>> saveAllAsync(
+            List<IdentityRequest> requests, String method)
+    {
+        return CompletableFuture.supplyAsync(() -> prepareAll(requests))
+                .thenCompose(batch -> jdbcExecutor.supply(() -> writeAll(batch, method)))
+                .exceptionally(ex -> failed("saveAllAsync", ex, "Error when saving identities. Please try again"));
+    }
+
+    // The rows of a batch response, and the identities of the valid requests with
+    // their position in the request list
+    private static class Batch
+    {
+        final int                                 size;
+        final List<ApiResponse<IdentityResponse>> rows;
+        final List<Identity>                      identities;
+        final List<Integer>                       positions;
+
+        Batch(int size)
+        {
+            this.size = size;
+            this.rows = new ArrayList<>(size);
+            this.identities = new ArrayList<>(size);
+            this.positions = new ArrayList<>(size);
+        }
+    }
+
+    // Validate the requests and hash the passwords of the valid ones
+    private Batch prepareAll(List<IdentityRequest> requests)
+    {
+        Batch batch = new Batch(requests.size());
+        List<ApiResponse<IdentityResponse>> rows = batch.rows;
+        List<Identity> identities = batch.identities;
+        List<Integer> positions = batch.positions;
+
+        for (IdentityRequest request : requests) {
+            ApiResponse<IdentityResponse> row = new ApiResponse<>();
+            row.setErrorMessage(validateIdentityRequest(request));
+
+            if (row.getErrorMessage().length() > 0) {
+                row.setHasError(true);
+            }
+            else {
+                positions.add(rows.size());
+                identities.add(null);
+            }
+            rows.add(row);
+        }
+
+        // Hash the passwords on all cores, hashing is the slowest part of the batch
+        IntStream.range(0, identities.size()).parallel()
+                .forEach(i -> identities.set(i, newIdentity(requests.get(positions.get(i)), true)));
+
+        return batch;
+    }
+
+    // Run the JDBC batches of the valid requests and report each one in its row
+    private ApiResponse<List<ApiResponse<IdentityResponse>>> writeAll(Batch batch, String method)
+    {
+        ApiResponse<List<ApiResponse<IdentityResponse>>> resp = new ApiResponse<>();
+        List<ApiResponse<IdentityResponse>> rows = batch.rows;
+        List<Identity> identities = batch.identities;
+        List<Integer> positions = batch.positions;
+
+        try {
+            BatchResult<Identity> result;
+            try {
+                result = "create".equals(method)
+                        ? dao.createAll(identities)
+                        : dao.updateAll(identities);
+            }
+            finally {
+                identities.forEach(x -> {
+                    cache.invalidate(x.getUid());
+                    cache.invalidateEmail(x.getNormalizedEmail());
+                });
+            }
+
+            for (int i = 0; i < identities.size(); i++) {
+                Identity identity = identities.get(i);
+                rows.get(positions.get(i))
+                        .setModel(new IdentityResponse(identity.getUid(), identity.getName(), identity.getEmail()));
+            }
+
+            for (BatchResult.Failure<Identity> failure : result.getFailures()) {
+                logger.error("Identity saveAll() error: " + failure.getMessage());
+
+                ApiResponse<IdentityResponse> row = rows.get(positions.get(failure.getIndex()));
+                row.setHasError(true);
+
+                switch (failure.getCode()) {
+                case DUPLICATE_KEY_ERROR:
+                case DATA_INTEGRITY_VIOLATION:
+                    row.setErrorMessage("This email is already used. Choose a new one");
+                    break;
+                case RECORD_NOT_FOUND:
+                    row.setErrorMessage("Identity not found");
+                    break;
+                default:
+                    row.setErrorMessage("Error when saving identity. Please try again");
+                    break;
+                }
+            }
+
+            for (int i = 0; i < identities.size(); i++) {
+                if (!rows.get(positions.get(i)).getHasError()) {
+                    reindex(identities.get(i).getUid(), identities.get(i));
+                }
+            }
+
+            resp.setModel(rows);
+            resp.setMessage(String.format("%1$d of %2$d identities saved", result.getSucceeded(), batch.size));
+        }
+        catch (final Exception ex) {
+            logger.error("Identity saveAll() error", ex);
+            resp.setErrorMessage("Error when saving identities. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    // The password is only hashed when the passwordHash column is written
+    private Identity newIdentity(IdentityRequest request, boolean withPassword)
+    {
+        return new Identity(
+                request.getUid(),
+                request.getName(),
+                request.getEmail(),
+                request.getEmail().toUpperCase(),
+                withPassword ? passwordService.encode(request.getPassword()) : null);
+    }
+
     private ApiResponse<IdentityResponse> save(IdentityRequest request, String method)
     {
         ApiResponse<IdentityResponse> resp = new ApiResponse<>();
@@ -265,14 +1052,11 @@ public class IdentityService implements BaseService
         }
 
         Identity identity = null;
+        Exception error = null;
 
         try {
-            identity = new Identity(
-                    request.getUid(),
-                    request.getName(),
-                    request.getEmail(),
-                    request.getEmail().toUpperCase(),
-                    bCryptPasswordEncoder.encode(request.getPassword()));
+            // PATCH does not write the password
+            identity = newIdentity(request, !"patch".equals(method));
 
             switch (method) {
             case "create":
@@ -286,24 +1070,121 @@ public class IdentityService implements BaseService
                 break;
             }
         }
-        catch (final IamDuplicateKeyException | IamDataIntegrityViolationException ex) {
-            logger.error("Identity save() error", ex);
+        catch (final Exception ex) {
+            error = ex;
+        }
+
+        return saved(identity, error);
+    }
+
+    // The password is hashed on the common pool, not to hold a JDBC thread while
+    // hashing. PATCH has no password and is a single query on the JdbcExecutor
+    private CompletableFuture<ApiResponse<IdentityResponse>> saveAsync(IdentityRequest request, String method)
+    {
+        if (validateIdentityRequest(request).length() > 0) {
+            return CompletableFuture.completedFuture(save(request, method)); // The request is not valid
+        }
+
+        if ("patch".equals(method)) {
+            return jdbcExecutor.supply(() -> save(request, method))
+                    .exceptionally(ex -> failed("saveAsync", ex, "Error when creating a new identity. Please try again"));
+        }
+
+        return CompletableFuture.supplyAsync(() -> newIdentity(request, true))
+                .thenCompose(identity -> ("create".equals(method)
+                        ? dao.createAsync(identity)
+                        : dao.updateAsync(identity))
+                                .handle((nothing, ex) -> saved(identity, ex)))
+                .exceptionally(ex -> saved(null, ex));
+    }
+
+    // Report a write of save() or saveAsync(). The identity is indexed when it is
+    // written, and dropped from the cache in any case
+    private ApiResponse<IdentityResponse> saved(Identity identity, Throwable error)
+    {
+        ApiResponse<IdentityResponse> resp = new ApiResponse<>();
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+
+        if (cause == null) {
+            reindex(identity.getUid(), identity);
+        }
+        else if (cause instanceof IamDuplicateKeyException || cause instanceof IamDataIntegrityViolationException) {
             resp.setErrorMessage("This email is already used. Choose a new one");
-            resp.setHasError(true);
         }
-        catch (final Exception ex) {
-            logger.error("Identity save() error", ex);
+        else if (cause instanceof IamDataAccessException
+                && ((IamDataAccessException) cause).getCode() == ErrorCode.RECORD_NOT_FOUND) {
+            resp.setErrorMessage("Identity not found");
+        }
+        else {
             resp.setErrorMessage("Error when creating a new identity. Please try again");
+        }
+
+        if (cause != null) {
+            logger.error("Identity save() error", cause);
             resp.setHasError(true);
         }
 
         if (identity != null) {
+            cache.invalidate(identity.getUid());
+            cache.invalidateEmail(identity.getNormalizedEmail());
             resp.setModel(new IdentityResponse(identity.getUid(), identity.getName(), identity.getEmail()));
         }
 
         return resp;
     }
 
+    // Response of an asynchronous call that could not run, e.g. the JdbcExecutor
+    // queue is full
+    private static <T> ApiResponse<T> failed(String method, Throwable ex, String message)
+    {
+        logger.error("Identity " + method + "() error", ex);
+
+        ApiResponse<T> resp = new ApiResponse<>();
+        resp.setErrorMessage(message);
+        resp.setHasError(true);
+
+        return resp;
+    }
+
+    // Update the search and suggest indexes of an identity after a write, from the row that is stored
+    // now. Two writes of one uid can commit in one order and call this in the
+    // other: under the lock of the uid, the last call reads the last committed row
+    // and the indexes end up with it. When the row can not be read, the written
+    // one is indexed (null for a delete)
+    private void reindex(Long uid, Identity written)
+    {
+        synchronized (indexLocks[(Long.hashCode(uid) & 0x7fffffff) % indexLocks.length]) {
+            Identity stored = written;
+
+            try {
+                stored = dao.get(uid, IdentityDAO.NAME_AND_EMAIL);
+            }
+            catch (final IamDataAccessException ex) {
+                logger.error("Identity reindex() error", ex);
+            }
+
+            if (stored == null) {
+                index.remove(uid);
+                suggestions.remove(uid);
+            }
+            else {
+                index.put(stored);
+                suggestions.put(stored);
+            }
+        }
+    }
+
+    private static Object[] newLocks(int size)
+    {
+        Object[] locks = new Object[size];
+
+        for (int i = 0; i < size; i++) {
+            locks[i] = new Object();
+        }
+
+        return locks;
+    }
+
     private String validateIdentityRequest(IdentityRequest request)
     {
         List<String> err = new ArrayList<>();
@@ -0,0 +1,468 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import fr.epita.sp18.dao.IdentityDAO;
+import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.exception.IamDataAccessException;
+import fr.epita.sp18.model.IdentityResponse;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * IdentitySuggestIndex answers the type-ahead of GET
+ * /api/identities/suggest?prefix= from a radix trie (a trie whose single-child
+ * chains are merged into one edge) of lower cased terms. The terms of an
+ * identity are its name, each word of its name and its email, so that "llo"
+ * suggests "Hugo Lloris".
+ * <p>
+ * Suggestions are ordered by term (lexicographic), then uid: "abc" comes
+ * before "az". Only the first "limit" identities of the prefix's subtree are
+ * visited.
+ * <p>
+ * The trie is built from IdentityDAO in a background thread once the
+ * application is ready, then IdentityService keeps it up to date on each
+ * write. suggest() returns null until the trie is built, or when
+ * iam.suggest.index.enabled=false, and the caller must search the database
+ * then.
+ *
+ * @author Philip
+ *
+ */
+@Component
+public class IdentitySuggestIndex
+{
+    private static final Logger logger = LogManager.getLogger("IdentitySuggestIndex");
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final long[] NO_UIDS     = new long[0];
+
+    // Name and email of an identity, as returned
+    private static class Entry
+    {
+        final String name;
+        final String email;
+
+        Entry(String name, String email)
+        {
+            this.name = name;
+            this.email = email;
+        }
+    }
+
+    // A trie node. The label is the part of the term on the edge from the parent
+    private static class Node
+    {
+        String label;
+        Node[] children = NO_CHILDREN; // Sorted by the first char of their label
+        long[] uids     = NO_UIDS;     // Sorted uids of the terms that end here
+        int    size;
+
+        Node(String label)
+        {
+            this.label = label;
+        }
+
+        int find(char c)
+        {
+            int low = 0;
+            int high = children.length - 1;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char m = children[mid].label.charAt(0);
+
+                if (m < c) low = mid + 1;
+                else if (m > c) high = mid - 1;
+                else return mid;
+            }
+
+            return -(low + 1);
+        }
+
+        void addUid(long uid)
+        {
+            int i = Arrays.binarySearch(uids, 0, size, uid);
+            if (i >= 0) return;
+
+            i = -i - 1;
+            if (size == uids.length) {
+                uids = Arrays.copyOf(uids, Math.max(1, size * 2));
+            }
+            System.arraycopy(uids, i, uids, i + 1, size - i);
+            uids[i] = uid;
+            size++;
+        }
+
+        void removeUid(long uid)
+        {
+            int i = Arrays.binarySearch(uids, 0, size, uid);
+            if (i < 0) return;
+
+            System.arraycopy(uids, i + 1, uids, i, size - i - 1);
+            size--;
+            if (size == 0) {
+                uids = NO_UIDS;
+            }
+        }
+    }
+
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final ReadWriteLock    lock    = new ReentrantReadWriteLock();
+    private Node                   root    = new Node("");
+    private volatile boolean       ready;
+
+    @Autowired
+    IdentityDAO dao;
+
+    @Value("${iam.suggest.index.enabled:true}")
+    boolean enabled = true;
+
+    public IdentitySuggestIndex(MeterRegistry registry)
+    {
+        Gauge.builder("iam.suggest.index.identities", this, IdentitySuggestIndex::size)
+                .register(registry);
+    }
+
+    /**
+     * Build the trie from the database in a background thread, once the
+     * application is started
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void build()
+    {
+        if (!enabled) return;
+
+        Thread thread = new Thread(() -> {
+            try {
+                build(consumer -> dao.search(null, "uid", IdentityDAO.NAME_AND_EMAIL, consumer));
+            }
+            catch (final Exception ex) {
+                logger.error("IdentitySuggestIndex build() error, the database will be searched", ex);
+            }
+        }, "suggest-index-build");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Clear the trie and fill it with the identities of the source. Writes wait
+     * until the trie is built, so that none of them is lost
+     *
+     * @param source
+     *            Reads all identities
+     * @throws IamDataAccessException
+     *             when the source fails. The trie is not ready then
+     */
+    public void build(IdentitySearchIndex.Source source) throws IamDataAccessException
+    {
+        final long start = System.nanoTime();
+
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            entries.clear();
+            root = new Node("");
+
+            source.read(this::add);
+            ready = true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+
+        logger.info(String.format("IdentitySuggestIndex built: %1$d identities in %2$d ms", size(),
+                (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /**
+     * @return true when the trie is built and can be searched
+     */
+    public boolean isReady()
+    {
+        return ready;
+    }
+
+    /**
+     * Add an identity to the trie, or replace it. Must be called after every
+     * successful insert or update of this identity in the database, with the row
+     * read back after the write: see IdentityService, which serializes the calls
+     * of one uid
+     *
+     * @param identity
+     *            The identity as it is stored
+     */
+    public void put(Identity identity)
+    {
+        if (!enabled) return;
+
+        lock.writeLock().lock();
+        try {
+            remove(identity.getUid(), entries.get(identity.getUid()));
+            add(identity);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an identity from the trie. Must be called after every delete of this
+     * identity in the database
+     *
+     * @param uid
+     *            Primary key of the identity
+     */
+    public void remove(Long uid)
+    {
+        if (!enabled) return;
+
+        lock.writeLock().lock();
+        try {
+            remove(uid, entries.get(uid));
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Suggest the identities that name, a word of name or email starts with the
+     * prefix, case insensitive
+     *
+     * @param prefix
+     *            Beginning of the term, empty for all identities
+     * @param limit
+     *            Maximum number of suggestions
+     * @return the suggestions, or null when the trie is not ready
+     */
+    public List<IdentityResponse> suggest(String prefix, int limit)
+    {
+        if (!ready) return null;
+
+        final String lower = prefix == null ? "" : prefix.toLowerCase();
+        final Set<Long> uids = new LinkedHashSet<>();
+        final List<IdentityResponse> result = new ArrayList<>(limit);
+
+        lock.readLock().lock();
+        try {
+            if (!ready) return null;
+
+            // Visit the subtree of the prefix in term order, until limit identities
+            final Node node = find(lower);
+            final Deque<Node> stack = new ArrayDeque<>();
+            if (node != null) {
+                stack.push(node);
+            }
+
+            while (!stack.isEmpty() && uids.size() < limit) {
+                Node next = stack.pop();
+
+                for (int i = 0; i < next.size && uids.size() < limit; i++) {
+                    uids.add(next.uids[i]);
+                }
+                for (int i = next.children.length - 1; i >= 0; i--) {
+                    stack.push(next.children[i]);
+                }
+            }
+
+            for (Long uid : uids) {
+                Entry entry = entries.get(uid);
+                result.add(new IdentityResponse(uid, entry.name, entry.email));
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the number of indexed identities
+     */
+    public int size()
+    {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(Identity identity)
+    {
+        entries.put(identity.getUid(), new Entry(identity.getName(), identity.getEmail()));
+
+        for (String term : terms(identity.getName(), identity.getEmail())) {
+            insert(term, identity.getUid());
+        }
+    }
+
+    private void remove(Long uid, Entry entry)
+    {
+        if (entry == null) return;
+
+        entries.remove(uid);
+        for (String term : terms(entry.name, entry.email)) {
+            delete(term, uid);
+        }
+    }
+
+    // Lower cased name, words of name and email
+    private static Set<String> terms(String name, String email)
+    {
+        final Set<String> result = new LinkedHashSet<>();
+        final String lowerName = name.toLowerCase();
+
+        result.add(lowerName);
+        for (String word : lowerName.split(" ")) {
+            if (!word.isEmpty()) {
+                result.add(word);
+            }
+        }
+        result.add(email.toLowerCase());
+
+        return result;
+    }
+
+    private void insert(String term, long uid)
+    {
+        Node node = root;
+        int i = 0;
+
+        while (i < term.length()) {
+            int c = node.find(term.charAt(i));
+
+            if (c < 0) {
+                Node leaf = new Node(term.substring(i));
+                leaf.addUid(uid);
+
+                Node[] children = new Node[node.children.length + 1];
+                c = -c - 1;
+                System.arraycopy(node.children, 0, children, 0, c);
+                System.arraycopy(node.children, c, children, c + 1, node.children.length - c);
+                children[c] = leaf;
+                node.children = children;
+                return;
+            }
+
+            Node child = node.children[c];
+            int common = commonPrefix(child.label, term, i);
+
+            if (common < child.label.length()) {
+                // Split the edge where the term leaves it
+                Node middle = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                middle.children = new Node[] { child };
+                node.children[c] = middle;
+                child = middle;
+            }
+
+            node = child;
+            i += common;
+        }
+
+        node.addUid(uid);
+    }
+
+    private void delete(String term, long uid)
+    {
+        final Deque<Node> path = new ArrayDeque<>();
+        Node node = root;
+        int i = 0;
+
+        while (i < term.length()) {
+            int c = node.find(term.charAt(i));
+            if (c < 0) return;
+
+            Node child = node.children[c];
+            if (!term.startsWith(child.label, i)) return;
+
+            path.push(node);
+            node = child;
+            i += child.label.length();
+        }
+
+        node.removeUid(uid);
+
+        // Drop the empty leaves, then merge a node left with a single child
+        while (!path.isEmpty() && node.size == 0 && node.children.length <= 1) {
+            Node parent = path.pop();
+            int c = parent.find(node.label.charAt(0));
+
+            if (node.children.length == 0) {
+                Node[] children = new Node[parent.children.length - 1];
+                System.arraycopy(parent.children, 0, children, 0, c);
+                System.arraycopy(parent.children, c + 1, children, c, children.length - c);
+                parent.children = children.length == 0 ? NO_CHILDREN : children;
+            }
+            else {
+                Node only = node.children[0];
+                only.label = node.label + only.label;
+                parent.children[c] = only;
+            }
+
+            node = parent;
+        }
+    }
+
+    // Node that holds the prefix's subtree, null when no term starts with prefix
+    private Node find(String prefix)
+    {
+        Node node = root;
+        int i = 0;
+
+        while (i < prefix.length()) {
+            int c = node.find(prefix.charAt(i));
+            if (c < 0) return null;
+
+            Node child = node.children[c];
+            int common = commonPrefix(child.label, prefix, i);
+
+            if (i + common == prefix.length()) return child;
+            if (common < child.label.length()) return null;
+
+            node = child;
+            i += common;
+        }
+
+        return node;
+    }
+
+    private static int commonPrefix(String label, String term, int offset)
+    {
+        final int max = Math.min(label.length(), term.length() - offset);
+
+        int i = 0;
+        while (i < max && label.charAt(i) == term.charAt(offset + i)) {
+            i++;
+        }
+
+        return i;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+/**
+ * PasswordHasher is one password hashing algorithm with a work factor, the
+ * "cost". A hash must carry its algorithm and cost, so that PasswordService can
+ * verify the hashes of any algorithm and detect the ones that use an outdated
+ * cost. An implementation must be thread safe
+ *
+ * @author Philip
+ *
+ */
+public interface PasswordHasher
+{
+    /**
+     * @return the name of the algorithm, as set in iam.password.algorithm
+     */
+    String getAlgorithm();
+
+    /**
+     * @return the cost of the new hashes
+     */
+    int getCost();
+
+    /**
+     * @param cost
+     *            The cost of the new hashes
+     * @return a hasher of the same algorithm with this cost
+     */
+    PasswordHasher withCost(int cost);
+
+    /**
+     * Estimate the cost that makes hashing "factor" times slower than with the
+     * current cost
+     *
+     * @param factor
+     *            The wanted slowdown, greater than 1
+     * @return the cost, never lower than the current cost
+     */
+    int scale(double factor);
+
+    String hash(CharSequence rawPassword);
+
+    boolean matches(CharSequence rawPassword, String hash);
+
+    /**
+     * @param hash
+     *            A stored hash
+     * @return true when the hash was made by this algorithm
+     */
+    boolean supports(String hash);
+
+    /**
+     * @param hash
+     *            A hash of this algorithm
+     * @return the cost the hash was made with, -1 when it can not be read
+     */
+    int getCost(String hash);
+}
@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * PasswordService hashes the identities' passwords with the algorithm and cost
+ * of iam.password.algorithm and iam.password.cost (0 for the default cost of
+ * the algorithm), and verifies the hashes of every supported algorithm (bcrypt,
+ * pbkdf2), whatever their cost.
+ * <p>
+ * When iam.password.target-ms is set, the cost is calibrated at startup: it is
+ * raised until a hash takes about target-ms on this host. iam.password.cost is
+ * then the minimum cost. needsRehash() tells the hashes that were made with
+ * another algorithm or a lower cost, so that they are replaced on the next
+ * successful login.
+ * <p>
+ * Hashing and verifying times are published as the iam.password.hash and
+ * iam.password.verify timers
+ *
+ * @author Philip
+ *
+ */
+@Service
+public class PasswordService implements PasswordEncoder
+{
+    private static final Logger logger = LogManager.getLogger("PasswordService");
+
+    private final PasswordHasher       hasher;
+    private final List<PasswordHasher> verifiers;
+    private final Timer                hashTimer;
+    private final Timer                verifyTimer;
+
+    public PasswordService(MeterRegistry registry,
+            @Value("${iam.password.algorithm:bcrypt}") String algorithm,
+            @Value("${iam.password.cost:0}") int cost,
+            @Value("${iam.password.target-ms:0}") long targetMillis)
+    {
+        PasswordHasher configured;
+
+        switch (algorithm) {
+        case BCryptPasswordHasher.ALGORITHM:
+            configured = new BCryptPasswordHasher(cost > 0 ? cost : BCryptPasswordHasher.DEFAULT_COST);
+            break;
+        case Pbkdf2PasswordHasher.ALGORITHM:
+            configured = new Pbkdf2PasswordHasher(cost > 0 ? cost : Pbkdf2PasswordHasher.DEFAULT_COST);
+            break;
+        default:
+            throw new IllegalArgumentException(String.format("Unknown iam.password.algorithm %1$s", algorithm));
+        }
+
+        hasher = targetMillis > 0 ? calibrate(configured, targetMillis) : configured;
+        verifiers = Arrays.asList(hasher, new BCryptPasswordHasher(BCryptPasswordHasher.DEFAULT_COST),
+                new Pbkdf2PasswordHasher(Pbkdf2PasswordHasher.DEFAULT_COST));
+
+        hashTimer = Timer.builder("iam.password.hash")
+                .tag("algorithm", hasher.getAlgorithm())
+                .register(registry);
+        verifyTimer = Timer.builder("iam.password.verify")
+                .register(registry);
+    }
+
+    /**
+     * @return the hasher of the new hashes, with its calibrated cost
+     */
+    public PasswordHasher getHasher()
+    {
+        return hasher;
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword)
+    {
+        return hashTimer.record(() -> hasher.hash(rawPassword));
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword)
+    {
+        for (PasswordHasher verifier : verifiers) {
+            if (verifier.supports(encodedPassword)) {
+                return verifyTimer.record(() -> verifier.matches(rawPassword, encodedPassword));
+            }
+        }
+
+        logger.warn("Unknown password hash format");
+        return false;
+    }
+
+    /**
+     * @param encodedPassword
+     *            A stored hash
+     * @return true when the hash was not made with the current algorithm and at
+     *         least the current cost
+     */
+    public boolean needsRehash(String encodedPassword)
+    {
+        return !hasher.supports(encodedPassword) || hasher.getCost(encodedPassword) < hasher.getCost();
+    }
+
+    // Raise the cost until a hash takes about targetMillis, never below the
+    // configured cost
+    private static PasswordHasher calibrate(PasswordHasher configured, long targetMillis)
+    {
+        // Warm up, then keep the fastest of a few runs
+        configured.hash("calibration");
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            final long start = System.nanoTime();
+            configured.hash("calibration");
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        final double factor = targetMillis * 1e6 / best;
+        final PasswordHasher result = factor > 1 ? configured.withCost(configured.scale(factor)) : configured;
+
+        logger.info(String.format("Password hashing calibrated: %1$s cost %2$d (%3$d at %4$.1f ms, target %5$d ms)",
+                result.getAlgorithm(), result.getCost(), configured.getCost(), best / 1e6, targetMillis));
+
+        return result;
+    }
+}
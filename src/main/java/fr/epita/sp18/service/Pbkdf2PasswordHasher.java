@@ -0,0 +1,139 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * PBKDF2 with HMAC-SHA256 hashes: "$pbkdf2-sha256$iterations$salt$hash", salt
+ * and hash in base64. The cost is the number of iterations: the hashing time
+ * grows linearly with it
+ *
+ * @author Philip
+ *
+ */
+public class Pbkdf2PasswordHasher implements PasswordHasher
+{
+    public static final String ALGORITHM    = "pbkdf2";
+    public static final int    DEFAULT_COST = 310_000;
+
+    private static final String PREFIX     = "$pbkdf2-sha256$";
+    private static final int    SALT_BYTES = 16;
+    private static final int    HASH_BITS  = 256;
+    private static final int    MIN_COST   = 10_000;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int cost;
+
+    public Pbkdf2PasswordHasher(int cost)
+    {
+        if (cost < MIN_COST) {
+            throw new IllegalArgumentException(String.format("PBKDF2 needs at least %1$d iterations", MIN_COST));
+        }
+
+        this.cost = cost;
+    }
+
+    @Override
+    public String getAlgorithm()
+    {
+        return ALGORITHM;
+    }
+
+    @Override
+    public int getCost()
+    {
+        return cost;
+    }
+
+    @Override
+    public PasswordHasher withCost(int cost)
+    {
+        return new Pbkdf2PasswordHasher(cost);
+    }
+
+    @Override
+    public int scale(double factor)
+    {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(cost, (long) (cost * factor)));
+    }
+
+    @Override
+    public String hash(CharSequence rawPassword)
+    {
+        final byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+
+        final Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + cost + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(pbkdf2(rawPassword, salt, cost));
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String hash)
+    {
+        final String[] parts = split(hash);
+        if (parts == null) return false;
+
+        try {
+            final byte[] salt = Base64.getDecoder().decode(parts[1]);
+            final byte[] expected = Base64.getDecoder().decode(parts[2]);
+
+            return MessageDigest.isEqual(expected, pbkdf2(rawPassword, salt, Integer.parseInt(parts[0])));
+        }
+        catch (final IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean supports(String hash)
+    {
+        return split(hash) != null;
+    }
+
+    @Override
+    public int getCost(String hash)
+    {
+        final String[] parts = split(hash);
+
+        try {
+            return parts == null ? -1 : Integer.parseInt(parts[0]);
+        }
+        catch (final NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // Iterations, salt and hash, null when the hash is not a PBKDF2 hash
+    private static String[] split(String hash)
+    {
+        if (hash == null || !hash.startsWith(PREFIX)) return null;
+
+        final String[] parts = hash.substring(PREFIX.length()).split("\\$");
+        return parts.length == 3 ? parts : null;
+    }
+
+    private static byte[] pbkdf2(CharSequence rawPassword, byte[] salt, int iterations)
+    {
+        final PBEKeySpec spec = new PBEKeySpec(rawPassword.toString().toCharArray(), salt, iterations, HASH_BITS);
+
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        }
+        catch (final GeneralSecurityException ex) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", ex);
+        }
+        finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,556 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.stereotype.Service;
+
+import fr.epita.sp18.dao.Criteria;
+import fr.epita.sp18.dao.IdentityDAO;
+import fr.epita.sp18.dao.PermissionDAO;
+import fr.epita.sp18.dao.RoleDAO;
+import fr.epita.sp18.entity.Permission;
+import fr.epita.sp18.entity.Role;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+import fr.epita.sp18.exception.IamDuplicateKeyException;
+import fr.epita.sp18.model.ApiResponse;
+import fr.epita.sp18.model.PermissionRequest;
+import fr.epita.sp18.model.PermissionResponse;
+import fr.epita.sp18.model.RoleRequest;
+import fr.epita.sp18.model.RoleResponse;
+
+/**
+ * PermissionService manages the roles and permissions of the identities. An
+ * identity has roles, and a role has permissions. Every permission owns a bit,
+ * so that the effective permissions of an identity are compiled into a bitset
+ * when its token is issued. The requests are then authorized from the token,
+ * without a query.
+ * <p>
+ * The permission to bit dictionary is cached. Its version, a checksum of the
+ * permissions in bit order, is written in the tokens next to the bitset. A
+ * permission is always added on the next free bit, so the versions of the
+ * dictionary before an addition are checksums of a prefix of it: the tokens
+ * of these versions stay valid. A token of any other version is stale, its
+ * bits may not mean the same permissions any more, and it grants no
+ * permission. The dictionary is reloaded when this node changes it, and when
+ * a token of an unknown version is decoded, at most once every
+ * iam.permissions.reload-interval-ms: a permission added by another node is
+ * then known as soon as its tokens are used.
+ * <p>
+ * A change of the roles of an identity through /api/permissions revokes the
+ * tokens issued to it before the change (see TokenRevocationService), so that
+ * its next token is compiled with its new roles
+ * <p>
+ * The permissions and roles are managed through /api/permissions, which
+ * requires the iam.admin permission. At startup, the iam.admin permission and
+ * the admin role that has it are created when missing, and the role is granted
+ * to the identity of iam.permissions.admin-uid (0 for none)
+ *
+ * @author Philip
+ *
+ */
+@Service
+public class PermissionService implements BaseService
+{
+    private static final Logger logger = LogManager.getLogger("PermissionService");
+
+    /**
+     * The permission of the administrators of the permissions and roles
+     */
+    public static final String ADMIN = "iam.admin";
+
+    /**
+     * The role that has the ADMIN permission
+     */
+    public static final String ADMIN_ROLE = "admin";
+
+    private final PermissionDAO permissions;
+    private final RoleDAO       roles;
+    private final IdentityDAO            identities;
+    private final TokenRevocationService revocations;
+    private final long                   adminUid;
+    private final long                   reloadInterval;
+
+    // Time of the last reload for an unknown token version, in milliseconds
+    private final AtomicLong lastReload = new AtomicLong();
+
+    private volatile Dictionary dictionary;
+
+    public PermissionService(PermissionDAO permissions, RoleDAO roles, IdentityDAO identities,
+            TokenRevocationService revocations,
+            @Value("${iam.permissions.admin-uid:0}") long adminUid,
+            @Value("${iam.permissions.reload-interval-ms:1000}") long reloadInterval)
+    {
+        this.permissions = permissions;
+        this.roles = roles;
+        this.identities = identities;
+        this.revocations = revocations;
+        this.adminUid = adminUid;
+        this.reloadInterval = reloadInterval;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load()
+    {
+        try {
+            reload();
+            seed();
+        }
+        catch (final IamDuplicateKeyException ex) {
+            // Seeded by another node at the same time
+            logger.warn("Permission seeding conflict: " + ex.getMessage());
+        }
+        catch (final IamDataAccessException ex) {
+            logger.error("Permission dictionary load error", ex);
+        }
+    }
+
+    // The administration permission and role, and their first administrator
+    private void seed() throws IamDuplicateKeyException, IamDataAccessException
+    {
+        if (!getDictionary().byName.containsKey(ADMIN)) {
+            definePermission(ADMIN);
+        }
+        if (roles.search(Criteria.eq("name", ADMIN_ROLE), null).isEmpty()) {
+            defineRole(ADMIN_ROLE, ADMIN);
+        }
+        if (adminUid > 0) {
+            grant(adminUid, ADMIN_ROLE);
+        }
+    }
+
+    /**
+     * Compile the effective permissions of an identity, to be written in its token
+     *
+     * @param identityUid
+     *            Primary key of the identity, as resolved by the login
+     * @return the permissions, empty when the identity has none
+     * @throws IamDataAccessException
+     *             when the permissions can not be read
+     */
+    public PermissionSet compile(Long identityUid) throws IamDataAccessException
+    {
+        final Dictionary current = getDictionary();
+
+        return current.toSet(permissions.getBits(identityUid));
+    }
+
+    /**
+     * Read the permissions of a token, without a query unless its version is
+     * unknown to this node
+     *
+     * @param claim
+     *            The bitset claim of the token, null when it has none
+     * @param version
+     *            The dictionary version claim of the token
+     * @return the permissions, empty when the token has none or is stale
+     */
+    public PermissionSet decode(String claim, Integer version)
+    {
+        Dictionary current = dictionary != null ? dictionary : Dictionary.EMPTY;
+
+        if (version != null && !current.prefixes.contains(version)) {
+            // Possibly a permission added by another node
+            current = refresh(current);
+        }
+
+        if (claim == null || version == null || !current.prefixes.contains(version)) {
+            return current.toSet(new BitSet());
+        }
+
+        try {
+            return current.toSet(PermissionSet.decode(claim));
+        }
+        catch (final IllegalArgumentException ex) {
+            return current.toSet(new BitSet());
+        }
+    }
+
+    /**
+     * Create a permission, on the next free bit
+     *
+     * @param name
+     *            Name of the permission
+     * @return the permission
+     * @throws IamDuplicateKeyException
+     *             when the name is already used
+     * @throws IamDataAccessException
+     *             when the permission can not be created
+     */
+    public synchronized Permission definePermission(String name)
+            throws IamDuplicateKeyException, IamDataAccessException
+    {
+        final Permission permission = new Permission(0L, name, getDictionary().names.length);
+
+        try {
+            permissions.create(permission);
+        }
+        finally {
+            reload();
+        }
+
+        return permission;
+    }
+
+    /**
+     * Create a role with permissions
+     *
+     * @param name
+     *            Name of the role
+     * @param permissionNames
+     *            Names of the permissions of the role
+     * @return the role
+     * @throws IamDuplicateKeyException
+     *             when the name is already used
+     * @throws IamDataAccessException
+     *             when a permission does not exist (RECORD_NOT_FOUND) or the role
+     *             can not be created
+     */
+    public Role defineRole(String name, String... permissionNames)
+            throws IamDuplicateKeyException, IamDataAccessException
+    {
+        final Dictionary current = getDictionary();
+
+        for (String permission : permissionNames) {
+            if (!current.byName.containsKey(permission)) {
+                throw new IamDataAccessException("Unknown permission " + permission, ErrorCode.RECORD_NOT_FOUND);
+            }
+        }
+
+        final Role role = new Role(0L, name);
+        roles.create(role);
+
+        for (String permission : permissionNames) {
+            roles.addPermission(role.getUid(), current.byName.get(permission).getUid());
+        }
+
+        return role;
+    }
+
+    /**
+     * Grant a role to an identity
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @param roleName
+     *            Name of the role
+     * @throws IamDataAccessException
+     *             when the role does not exist (RECORD_NOT_FOUND) or can not be
+     *             granted
+     */
+    public void grant(Long identityUid, String roleName) throws IamDataAccessException
+    {
+        roles.grant(identityUid, getRole(roleName).getUid());
+    }
+
+    /**
+     * Take a role back from an identity
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @param roleName
+     *            Name of the role
+     * @throws IamDataAccessException
+     *             when the role does not exist (RECORD_NOT_FOUND) or can not be
+     *             taken back
+     */
+    public void revoke(Long identityUid, String roleName) throws IamDataAccessException
+    {
+        roles.revoke(identityUid, getRole(roleName).getUid());
+    }
+
+    /**
+     * Take all roles back from an identity
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @throws IamDataAccessException
+     *             when the roles can not be taken back
+     */
+    public void revokeAll(Long identityUid) throws IamDataAccessException
+    {
+        roles.revokeAll(identityUid);
+    }
+
+    /**
+     * List the permissions, by bit
+     *
+     * @return ApiResponse object that has ApiResponse.model = the permissions
+     */
+    public ApiResponse<List<PermissionResponse>> listPermissions()
+    {
+        final ApiResponse<List<PermissionResponse>> resp = new ApiResponse<>();
+
+        try {
+            final List<PermissionResponse> found = new ArrayList<>();
+
+            for (Permission permission : permissions.search(null, "bit")) {
+                found.add(new PermissionResponse(permission.getUid(), permission.getName(), permission.getBit()));
+            }
+            resp.setModel(found);
+        }
+        catch (final Exception ex) {
+            logger.error("Permission listPermissions() error", ex);
+            resp.setErrorMessage("Error when listing the permissions. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    /**
+     * Create a permission, on the next free bit
+     *
+     * @param request
+     *            The permission
+     * @return ApiResponse object that has ApiResponse.model = the new permission
+     *         when creating successfully. Otherwise, the ApiResponse.errorMessage
+     *         will have the explanation for error and ApiResponse.hasError = true
+     */
+    public ApiResponse<PermissionResponse> createPermission(PermissionRequest request)
+    {
+        final ApiResponse<PermissionResponse> resp = new ApiResponse<>();
+
+        if (request == null || request.getName() == null || request.getName().trim().isEmpty()) {
+            resp.setErrorMessage("Invalid permission name");
+            resp.setHasError(true);
+            return resp; // The request is not valid
+        }
+
+        try {
+            final Permission permission = definePermission(request.getName().trim());
+
+            resp.setModel(new PermissionResponse(permission.getUid(), permission.getName(), permission.getBit()));
+        }
+        catch (final IamDuplicateKeyException ex) {
+            resp.setErrorMessage("This permission name is already used. Choose a new one");
+            resp.setHasError(true);
+        }
+        catch (final Exception ex) {
+            logger.error("Permission createPermission() error", ex);
+            resp.setErrorMessage("Error when creating a new permission. Please try again");
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    /**
+     * Create a role with permissions
+     *
+     * @param request
+     *            The role and the names of its permissions
+     * @return ApiResponse object that has ApiResponse.model = the new role when
+     *         creating successfully. Otherwise, the ApiResponse.errorMessage will
+     *         have the explanation for error and ApiResponse.hasError = true
+     */
+    public ApiResponse<RoleResponse> createRole(RoleRequest request)
+    {
+        final ApiResponse<RoleResponse> resp = new ApiResponse<>();
+
+        if (request == null || request.getName() == null || request.getName().trim().isEmpty()) {
+            resp.setErrorMessage("Invalid role name");
+            resp.setHasError(true);
+            return resp; // The request is not valid
+        }
+
+        final List<String> names = request.getPermissions() != null ? request.getPermissions()
+                : Collections.emptyList();
+
+        try {
+            final Role role = defineRole(request.getName().trim(), names.toArray(new String[names.size()]));
+
+            resp.setModel(new RoleResponse(role.getUid(), role.getName(), names));
+        }
+        catch (final IamDuplicateKeyException ex) {
+            resp.setErrorMessage("This role name is already used. Choose a new one");
+            resp.setHasError(true);
+        }
+        catch (final IamDataAccessException ex) {
+            if (ex.getCode() == ErrorCode.RECORD_NOT_FOUND) {
+                resp.setErrorMessage(ex.getMessage());
+            }
+            else {
+                logger.error("Permission createRole() error", ex);
+                resp.setErrorMessage("Error when creating a new role. Please try again");
+            }
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    /**
+     * Grant a role to an identity. Nothing happens when the identity already has
+     * it. The tokens of the identity are revoked, and the tokens issued after it
+     * have the permissions of the role
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @param roleName
+     *            Name of the role
+     * @return ApiResponse object that has ApiResponse.hasError = false when
+     *         granting successfully. Otherwise, the ApiResponse.errorMessage will
+     *         have the explanation for error
+     */
+    public ApiResponse<RoleResponse> grantRole(Long identityUid, String roleName)
+    {
+        return changeRole(identityUid, roleName, true);
+    }
+
+    /**
+     * Take a role back from an identity. The tokens of the identity are revoked,
+     * and the tokens issued after it do not have the permissions of the role
+     *
+     * @param identityUid
+     *            Primary key of the identity
+     * @param roleName
+     *            Name of the role
+     * @return ApiResponse object that has ApiResponse.hasError = false when taking
+     *         back successfully. Otherwise, the ApiResponse.errorMessage will have
+     *         the explanation for error
+     */
+    public ApiResponse<RoleResponse> revokeRole(Long identityUid, String roleName)
+    {
+        return changeRole(identityUid, roleName, false);
+    }
+
+    private ApiResponse<RoleResponse> changeRole(Long identityUid, String roleName, boolean granted)
+    {
+        final ApiResponse<RoleResponse> resp = new ApiResponse<>();
+
+        try {
+            if (identities.get(identityUid) == null) {
+                resp.setErrorMessage("Identity not found");
+                resp.setHasError(true);
+                return resp;
+            }
+
+            if (granted) grant(identityUid, roleName);
+            else revoke(identityUid, roleName);
+
+            // The tokens already issued carry the former permissions
+            revocations.revokeSubject(identityUid.toString());
+        }
+        catch (final IamDataAccessException ex) {
+            if (ex.getCode() == ErrorCode.RECORD_NOT_FOUND) {
+                resp.setErrorMessage(ex.getMessage());
+            }
+            else {
+                logger.error("Permission changeRole() error", ex);
+                resp.setErrorMessage("Error when changing the roles of an identity. Please try again");
+            }
+            resp.setHasError(true);
+        }
+
+        return resp;
+    }
+
+    private Role getRole(String name) throws IamDataAccessException
+    {
+        final List<Role> found = roles.search(Criteria.eq("name", name), null);
+
+        if (found.isEmpty()) {
+            throw new IamDataAccessException("Unknown role " + name, ErrorCode.RECORD_NOT_FOUND);
+        }
+
+        return found.get(0);
+    }
+
+    private Dictionary getDictionary() throws IamDataAccessException
+    {
+        final Dictionary current = dictionary;
+
+        return current != null ? current : reload();
+    }
+
+    // Reload the dictionary, unless it was reloaded for the same reason less than
+    // reloadInterval ago
+    private Dictionary refresh(Dictionary current)
+    {
+        final long now = System.currentTimeMillis();
+        final long last = lastReload.get();
+
+        if (now - last < reloadInterval || !lastReload.compareAndSet(last, now)) {
+            return current;
+        }
+
+        try {
+            return reload();
+        }
+        catch (final IamDataAccessException ex) {
+            logger.error("Permission dictionary reload error", ex);
+            return current;
+        }
+    }
+
+    private synchronized Dictionary reload() throws IamDataAccessException
+    {
+        dictionary = new Dictionary(permissions.search(null, "bit"));
+
+        return dictionary;
+    }
+
+    // The permission to bit dictionary of one version
+    private static class Dictionary
+    {
+        private static final Dictionary EMPTY = new Dictionary(Collections.emptyList());
+
+        private final int                     version;
+        private final Set<Integer>            prefixes = new HashSet<>();
+        private final String[]                names;
+        private final GrantedAuthority[]      authorities;
+        private final Map<String, Permission> byName = new HashMap<>();
+        private final Map<String, Integer>    bits   = new HashMap<>();
+
+        // The permissions are sorted by bit
+        private Dictionary(List<Permission> permissions)
+        {
+            final int size = permissions.isEmpty() ? 0 : permissions.get(permissions.size() - 1).getBit() + 1;
+            final CRC32 checksum = new CRC32();
+
+            names = new String[size];
+            authorities = new GrantedAuthority[size];
+            prefixes.add((int) checksum.getValue());
+
+            for (Permission permission : permissions) {
+                names[permission.getBit()] = permission.getName();
+                authorities[permission.getBit()] = new SimpleGrantedAuthority(permission.getName());
+                byName.put(permission.getName(), permission);
+                bits.put(permission.getName(), permission.getBit());
+                checksum.update((permission.getBit() + ":" + permission.getName() + ";")
+                        .getBytes(StandardCharsets.UTF_8));
+
+                // The version of the dictionary when this was its last permission
+                prefixes.add((int) checksum.getValue());
+            }
+
+            version = (int) checksum.getValue();
+        }
+
+        private PermissionSet toSet(BitSet set)
+        {
+            return new PermissionSet(set, version, bits, authorities);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * The effective permissions of an identity, as a bitset of the permission bits
+ * of a PermissionService dictionary. A permission check is a bit test. The
+ * bitset is carried by the tokens, see PermissionService.
+ * <p>
+ * A PermissionSet is immutable and is set as the details of the authentication
+ * of a request
+ *
+ * @author Philip
+ *
+ */
+public final class PermissionSet
+{
+    private final BitSet                 bits;
+    private final int                    version;
+    private final Map<String, Integer>   dictionary;
+    private final List<GrantedAuthority> authorities;
+
+    PermissionSet(BitSet bits, int version, Map<String, Integer> dictionary, GrantedAuthority[] authorityByBit)
+    {
+        final List<GrantedAuthority> granted = new ArrayList<>(bits.cardinality());
+
+        for (int bit = bits.nextSetBit(0); bit >= 0; bit = bits.nextSetBit(bit + 1)) {
+            if (bit < authorityByBit.length && authorityByBit[bit] != null) granted.add(authorityByBit[bit]);
+        }
+
+        this.bits = bits;
+        this.version = version;
+        this.dictionary = dictionary;
+        this.authorities = Collections.unmodifiableList(granted);
+    }
+
+    /**
+     * @param bit
+     *            Bit of the permission
+     * @return true when the permission is granted
+     */
+    public boolean has(int bit)
+    {
+        return bits.get(bit);
+    }
+
+    /**
+     * @param permission
+     *            Name of the permission
+     * @return true when the permission is granted
+     */
+    public boolean has(String permission)
+    {
+        final Integer bit = dictionary.get(permission);
+
+        return bit != null && bits.get(bit);
+    }
+
+    /**
+     * @return a GrantedAuthority per granted permission, named as the permission
+     */
+    public List<GrantedAuthority> getAuthorities()
+    {
+        return authorities;
+    }
+
+    /**
+     * @return the version of the dictionary the bits refer to
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @return the bitset as a token claim, in URL safe Base64
+     */
+    public String encode()
+    {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bits.toByteArray());
+    }
+
+    static BitSet decode(String claim)
+    {
+        return BitSet.valueOf(Base64.getUrlDecoder().decode(claim));
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import fr.epita.sp18.exception.IamDataAccessException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * SingleFlight coalesces the concurrent calls of the same key: the first
+ * caller runs the call, the callers that arrive while it is in flight wait for
+ * it and get the same result, or the same exception. A call that arrives after
+ * the flight landed runs again, nothing is cached here.
+ * <p>
+ * An asynchronous call is coalesced the same way by executeAsync: the callers
+ * get futures of the same result, without waiting. Synchronous and
+ * asynchronous calls of the same key share their flights.
+ * <p>
+ * Metrics: iam.singleflight.calls (calls run) and iam.singleflight.coalesced
+ * (calls that waited for a flight), tagged with the name of the flights
+ *
+ * @author Philip
+ *
+ * @param <K>
+ *            Type of the keys
+ * @param <V>
+ *            Type of the results
+ */
+public class SingleFlight<K, V>
+{
+    /**
+     * The call to run once for all concurrent callers
+     */
+    @FunctionalInterface
+    public interface Call<V>
+    {
+        V call() throws IamDataAccessException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final Counter                                    calls;
+    private final Counter                                    coalesced;
+
+    public SingleFlight(MeterRegistry registry, String name)
+    {
+        calls = Counter.builder("iam.singleflight.calls")
+                .description("Calls run for their key")
+                .tag("name", name)
+                .register(registry);
+        coalesced = Counter.builder("iam.singleflight.coalesced")
+                .description("Calls that shared the result of a call in flight for their key")
+                .tag("name", name)
+                .register(registry);
+    }
+
+    /**
+     * Run the call, or wait for the call of the same key that is in flight
+     *
+     * @param key
+     *            The key of the call
+     * @param call
+     *            The call, only run when no call of this key is in flight
+     * @return the result of the call that ran
+     * @throws IamDataAccessException
+     *             when the call that ran failed
+     */
+    public V execute(K key, Call<V> call) throws IamDataAccessException
+    {
+        final CompletableFuture<V> flight = new CompletableFuture<>();
+        final CompletableFuture<V> current = flights.putIfAbsent(key, flight);
+
+        if (current != null) {
+            coalesced.increment();
+            return await(current);
+        }
+
+        calls.increment();
+
+        try {
+            final V result = call.call();
+
+            flight.complete(result);
+            return result;
+        }
+        catch (final Throwable ex) {
+            // The waiters must not wait forever, whatever failed
+            flight.completeExceptionally(ex);
+            throw ex;
+        }
+        finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Start the asynchronous call, or share the call of the same key that is in
+     * flight
+     *
+     * @param key
+     *            The key of the call
+     * @param call
+     *            Starts the call, only run when no call of this key is in flight
+     * @return a future of the result of the call that ran. It fails as the call
+     *         does. Completing or cancelling it has no effect on the other
+     *         callers
+     */
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call)
+    {
+        final CompletableFuture<V> flight = new CompletableFuture<>();
+        final CompletableFuture<V> current = flights.putIfAbsent(key, flight);
+
+        if (current != null) {
+            coalesced.increment();
+            return current.thenApply(Function.identity());
+        }
+
+        calls.increment();
+
+        try {
+            call.get().whenComplete((result, ex) -> {
+                flights.remove(key, flight);
+
+                if (ex != null) flight.completeExceptionally(ex);
+                else flight.complete(result);
+            });
+        }
+        catch (final Throwable ex) {
+            flights.remove(key, flight);
+            flight.completeExceptionally(ex);
+        }
+
+        return flight.thenApply(Function.identity());
+    }
+
+    /**
+     * Let the next calls of a key run again instead of waiting for the call in
+     * flight, e.g. after the data of this key changed. The call in flight still
+     * completes for its waiters
+     *
+     * @param key
+     *            The key of the call
+     */
+    public void forget(K key)
+    {
+        flights.remove(key);
+    }
+
+    /**
+     * Forget the calls in flight of all keys
+     */
+    public void forgetAll()
+    {
+        flights.clear();
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) throws IamDataAccessException
+    {
+        try {
+            return flight.join();
+        }
+        catch (final CompletionException ex) {
+            final Throwable cause = ex.getCause();
+
+            if (cause instanceof IamDataAccessException) throw (IamDataAccessException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw ex;
+        }
+    }
+}
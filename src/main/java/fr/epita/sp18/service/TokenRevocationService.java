@@ -0,0 +1,328 @@
+/**
+ *
+ */
+package fr.epita.sp18.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import fr.epita.sp18.authentication.Constants;
+import fr.epita.sp18.dao.RevocationDAO;
+import fr.epita.sp18.entity.Revocation;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+import fr.epita.sp18.exception.IamDuplicateKeyException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * TokenRevocationService keeps the token deny-list: a token is revoked by its
+ * id, or all the tokens of a subject issued before a time are revoked. The
+ * revocations are stored in the Revocations table.
+ * <p>
+ * The subject revocations are few (a role change, a deleted identity): they
+ * are all kept in memory, the latest issuedBefore of each subject, and a token
+ * is compared to them without a query. A token issued after the revocation of
+ * its subject is not revoked, and does not cost a query either.
+ * <p>
+ * A Bloom filter of the revoked token ids answers the common case, a token
+ * that is not revoked, without a query. Only the tokens that hit the filter are
+ * looked up in the database. Every check is a query until the filter and the
+ * subjects are loaded at startup. Every iam.revocation.refresh-interval-seconds,
+ * the revocations stored since the previous refresh, by any node, are added to
+ * them. They are read from iam.revocation.refresh-overlap-ms before it, to
+ * allow for the clock skew between the nodes and for the revocations still
+ * being written. Every iam.revocation.compaction-interval-seconds, the expired
+ * revocations are deleted, the filter is rebuilt from the remaining ones and
+ * the expired subjects are forgotten.
+ * <p>
+ * A token whose revocation can not be checked is considered revoked.
+ * <p>
+ * Metrics: iam.revocation.lookups (checks that reached the database) and
+ * iam.revocation.revoked
+ *
+ * @author Philip
+ *
+ */
+@Service
+public class TokenRevocationService
+{
+    private static final Logger logger = LogManager.getLogger("TokenRevocationService");
+
+    private static final String TOKEN = "jti:";
+
+    private final RevocationDAO            dao;
+    private final int                      expectedInsertions;
+    private final double                   fpp;
+    private final long                     compactionInterval;
+    private final long                     refreshInterval;
+    private final long                     refreshOverlap;
+    private final ScheduledExecutorService scheduler;
+    private final Counter                  lookups;
+    private final Counter                  revoked;
+
+    private volatile BloomFilter filter;
+
+    // Latest live revocation of each subject
+    private final Map<String, SubjectRevocation> subjects = new ConcurrentHashMap<>();
+
+    // Keys revoked while the filter is rebuilt, null when not rebuilding. Guarded
+    // by this
+    private List<String> pending;
+
+    // Time up to which the revocations of every node are in the filter. Only
+    // used by the scheduler thread
+    private long refreshedUntil;
+
+    public TokenRevocationService(RevocationDAO dao, MeterRegistry registry,
+            @Value("${iam.revocation.expected-insertions:100000}") int expectedInsertions,
+            @Value("${iam.revocation.fpp:0.001}") double fpp,
+            @Value("${iam.revocation.compaction-interval-seconds:600}") long compactionInterval,
+            @Value("${iam.revocation.refresh-interval-seconds:5}") long refreshInterval,
+            @Value("${iam.revocation.refresh-overlap-ms:5000}") long refreshOverlap)
+    {
+        this.dao = dao;
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+        this.compactionInterval = compactionInterval;
+        this.refreshInterval = refreshInterval;
+        this.refreshOverlap = refreshOverlap;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "revocation-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lookups = Counter.builder("iam.revocation.lookups")
+                .description("Token revocation checks that queried the database")
+                .register(registry);
+        revoked = Counter.builder("iam.revocation.revoked")
+                .description("Tokens and subjects revoked")
+                .register(registry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start()
+    {
+        scheduler.scheduleWithFixedDelay(this::compact, 0, Math.max(1, compactionInterval), TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(this::refresh, Math.max(1, refreshInterval), Math.max(1, refreshInterval),
+                TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Check whether a token is revoked
+     *
+     * @param tokenId
+     *            Id of the token, null when it has none
+     * @param subject
+     *            Subject of the token: the uid of its identity, or its email when
+     *            the token has no uid claim
+     * @param issuedAt
+     *            Time the token was issued at, in milliseconds. 0 when unknown
+     * @return true when the token is revoked, or when it can not be checked
+     */
+    public boolean isRevoked(String tokenId, String subject, long issuedAt)
+    {
+        final BloomFilter current = filter;
+        final long now = System.currentTimeMillis();
+
+        if (current != null) {
+            final SubjectRevocation revocation = subject == null ? null : subjects.get(subject);
+
+            if (revocation != null && revocation.expiresAt > now && revocation.issuedBefore > issuedAt) {
+                return true;
+            }
+            if (tokenId == null || !current.mightContain(TOKEN + tokenId)) return false;
+        }
+
+        lookups.increment();
+
+        try {
+            // The subject is checked in memory once the subjects are loaded
+            return dao.isRevoked(tokenId, current == null ? subject : null, issuedAt, now);
+        }
+        catch (final IamDataAccessException ex) {
+            logger.error("Token revocation check error", ex);
+            return true;
+        }
+    }
+
+    /**
+     * Revoke one token
+     *
+     * @param tokenId
+     *            Id of the token
+     * @param expiresAt
+     *            Expiration of the token, in milliseconds
+     * @throws IamDataAccessException
+     *             when the revocation can not be stored
+     */
+    public void revokeToken(String tokenId, long expiresAt) throws IamDataAccessException
+    {
+        add(new Revocation(0L, tokenId, null, Long.MAX_VALUE, expiresAt, System.currentTimeMillis()));
+    }
+
+    /**
+     * Revoke all the tokens of a subject issued until now. The "iat" claim of a
+     * token is in seconds, so a token issued within the second before the
+     * revocation is revoked too
+     *
+     * @param subject
+     *            Subject of the tokens: the uid of the identity, or its email for
+     *            the tokens without uid claim
+     * @throws IamDataAccessException
+     *             when the revocation can not be stored
+     */
+    public void revokeSubject(String subject) throws IamDataAccessException
+    {
+        final long now = System.currentTimeMillis();
+
+        add(new Revocation(0L, null, subject, now, now + Constants.EXPIRATION_TIME, now));
+    }
+
+    /**
+     * Add the revocations stored since the previous refresh, by any node, to the
+     * filter and to the subjects
+     */
+    public void refresh()
+    {
+        if (filter == null) {
+            return; // Every check is a query until the first compaction
+        }
+
+        try {
+            final long now = System.currentTimeMillis();
+            final List<String> keys = new ArrayList<>();
+
+            dao.readSince(refreshedUntil - refreshOverlap, now, revocation -> {
+                if (revocation.getTokenId() != null) {
+                    keys.add(TOKEN + revocation.getTokenId());
+                }
+                else {
+                    addSubject(revocation);
+                }
+            });
+
+            synchronized (this) {
+                keys.forEach(filter::put);
+            }
+            refreshedUntil = now;
+        }
+        catch (final Exception ex) {
+            logger.error("Revocation refresh error", ex);
+        }
+    }
+
+    /**
+     * Delete the expired revocations, rebuild the filter from the remaining ones
+     * and forget the expired subjects
+     */
+    public void compact()
+    {
+        try {
+            final long now = System.currentTimeMillis();
+            final int deleted = dao.deleteExpired(now);
+            final List<String> keys = new ArrayList<>();
+
+            synchronized (this) {
+                pending = new ArrayList<>();
+            }
+
+            dao.readLive(now, revocation -> {
+                if (revocation.getTokenId() != null) {
+                    keys.add(TOKEN + revocation.getTokenId());
+                }
+                else {
+                    addSubject(revocation);
+                }
+            });
+            subjects.values().removeIf(x -> x.expiresAt <= now);
+
+            final BloomFilter rebuilt = new BloomFilter(Math.max(expectedInsertions, keys.size() * 2), fpp);
+            keys.forEach(rebuilt::put);
+
+            synchronized (this) {
+                pending.forEach(rebuilt::put);
+                pending = null;
+                filter = rebuilt;
+            }
+            refreshedUntil = now;
+
+            logger.info(String.format("Revocations compacted: %1$d deleted, %2$d tokens and %3$d subjects live,"
+                    + " filter of %4$d bytes", deleted, keys.size(), subjects.size(), rebuilt.getByteSize()));
+        }
+        catch (final Exception ex) {
+            logger.error("Revocation compaction error", ex);
+
+            synchronized (this) {
+                pending = null;
+            }
+        }
+    }
+
+    // Keep the latest revocation of the subject. The subjects are never replaced
+    // as a whole, a revocation added during a compaction is not lost
+    private void addSubject(Revocation revocation)
+    {
+        subjects.merge(revocation.getSubject(),
+                new SubjectRevocation(revocation.getIssuedBefore(), revocation.getExpiresAt()),
+                (x, y) -> x.issuedBefore >= y.issuedBefore ? x : y);
+    }
+
+    private void add(Revocation revocation) throws IamDataAccessException
+    {
+        try {
+            dao.create(revocation);
+        }
+        catch (final IamDuplicateKeyException ex) {
+            // Revocations have no unique column but their uid
+            throw new IamDataAccessException(ex.getMessage(), ex, ErrorCode.DUPLICATE_KEY_ERROR);
+        }
+
+        revoked.increment();
+
+        if (revocation.getTokenId() == null) {
+            addSubject(revocation);
+            return;
+        }
+
+        final String key = TOKEN + revocation.getTokenId();
+
+        synchronized (this) {
+            if (filter != null) filter.put(key);
+            if (pending != null) pending.add(key);
+        }
+    }
+
+    private static final class SubjectRevocation
+    {
+        final long issuedBefore;
+        final long expiresAt;
+
+        SubjectRevocation(long issuedBefore, long expiresAt)
+        {
+            this.issuedBefore = issuedBefore;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 CREATE SCHEMA IF NOT EXISTS IAM_Philip;
 SET SCHEMA IAM_Philip;
 
+DROP TABLE IdentityRoles IF EXISTS;
+DROP TABLE GroupMembers IF EXISTS;
 DROP TABLE Identities IF EXISTS;
 
 CREATE TABLE Identities
@@ -14,3 +16,101 @@ CREATE TABLE Identities
 
 CREATE UNIQUE INDEX UK_Identities_email
 	on Identities (email);
+
+CREATE INDEX IX_Identities_name_uid
+	on Identities (name, uid);
+
+
+CREATE UNIQUE INDEX UK_Identities_normalizedEmail
+	on Identities (normalizedEmail);
+
+CREATE TABLE IF NOT EXISTS Revocations
+(
+   uid long primary key not null,
+   tokenId varchar(64),
+   subject varchar(255),
+   issuedBefore long not null,
+   expiresAt long not null,
+   revokedAt long default 0 not null
+);
+
+CREATE INDEX IF NOT EXISTS IX_Revocations_tokenId
+	on Revocations (tokenId);
+
+CREATE INDEX IF NOT EXISTS IX_Revocations_subject
+	on Revocations (subject);
+
+CREATE INDEX IF NOT EXISTS IX_Revocations_expiresAt
+	on Revocations (expiresAt);
+
+CREATE INDEX IF NOT EXISTS IX_Revocations_revokedAt
+	on Revocations (revokedAt);
+
+
+CREATE TABLE IF NOT EXISTS Permissions
+(
+   uid long primary key not null,
+   name varchar(64) not null,
+   bit int not null
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS UK_Permissions_name
+	on Permissions (name);
+
+CREATE UNIQUE INDEX IF NOT EXISTS UK_Permissions_bit
+	on Permissions (bit);
+
+CREATE TABLE IF NOT EXISTS Roles
+(
+   uid long primary key not null,
+   name varchar(64) not null
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS UK_Roles_name
+	on Roles (name);
+
+CREATE TABLE IF NOT EXISTS RolePermissions
+(
+   roleUid long not null,
+   permissionUid long not null,
+   primary key (roleUid, permissionUid)
+);
+
+CREATE TABLE IdentityRoles
+(
+   identityUid long not null,
+   roleUid long not null,
+   primary key (identityUid, roleUid)
+);
+
+CREATE TABLE IF NOT EXISTS Groups
+(
+   uid long primary key not null,
+   name varchar(64) not null
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS UK_Groups_name
+	on Groups (name);
+
+CREATE TABLE GroupMembers
+(
+   groupUid long not null,
+   identityUid long not null,
+   primary key (groupUid, identityUid)
+);
+
+CREATE INDEX IX_GroupMembers_identityUid
+	on GroupMembers (identityUid);
+
+DROP TABLE GroupChanges IF EXISTS;
+
+CREATE TABLE GroupChanges
+(
+   uid long primary key not null,
+   groupUid long,
+   identityUid long,
+   changedAt long not null
+);
+
+CREATE INDEX IX_GroupChanges_changedAt
+	on GroupChanges (changedAt);
\ No newline at end of file
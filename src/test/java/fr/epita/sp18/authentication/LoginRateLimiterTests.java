@@ -0,0 +1,67 @@
+package fr.epita.sp18.authentication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test LoginRateLimiter:
+ * <p>
+ * - Allow a burst, then throttle each client and each account separately
+ * <p>
+ * - Count the rejected logins
+ *
+ * @author Philip
+ *
+ */
+public class LoginRateLimiterTests
+{
+    @Test
+    public void TestBurst()
+    {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        final LoginRateLimiter limiter = new LoginRateLimiter(registry, 4, 6, 2, 1, 100);
+
+        assertEquals(0, limiter.tryAcquire("10.0.0.1", "a@b.com"));
+        assertEquals("The email is not case sensitive", 0, limiter.tryAcquire("10.0.0.1", "A@B.COM"));
+
+        final long retryAfter = limiter.tryAcquire("10.0.0.1", "a@b.com");
+        assertTrue("The account waits for its next token, a minute", retryAfter > 50 && retryAfter <= 60);
+
+        assertEquals("Another account is not throttled", 0, limiter.tryAcquire("10.0.0.1", "c@d.com"));
+        assertTrue("The client used its burst", limiter.tryAcquire("10.0.0.1", "e@f.com") > 0);
+        assertEquals("Another client is not throttled", 0, limiter.tryAcquire("10.0.0.2", "e@f.com"));
+
+        assertEquals(1, registry.get("iam.login.rate.rejected").tag("limit", "account").counter().count(), 0);
+        assertEquals(1, registry.get("iam.login.rate.rejected").tag("limit", "client").counter().count(), 0);
+    }
+
+    @Test
+    public void TestContention() throws InterruptedException
+    {
+        final LoginRateLimiter limiter = new LoginRateLimiter(new SimpleMeterRegistry(), 1000, 1, 1000, 1, 100);
+        final int[] allowed = new int[8];
+        final Thread[] threads = new Thread[allowed.length];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    if (limiter.tryAcquire("10.0.0.1", "a@b.com") == 0) allowed[index]++;
+                }
+            });
+            threads[t].start();
+        }
+
+        int total = 0;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            total += allowed[t];
+        }
+
+        assertEquals("Exactly the burst is allowed", 1000, total);
+    }
+}
@@ -0,0 +1,128 @@
+package fr.epita.sp18.authentication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SignatureException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test TokenCache:
+ * <p>
+ * - Reject the tokens that are badly signed or expired, cached or not
+ * <p>
+ * - Read the uid claim of a token, and no uid from a token without it
+ * <p>
+ * - Check that a cached verification costs less than a fifth of an uncached
+ * one
+ *
+ * @author Philip
+ *
+ */
+public class TokenCacheTests
+{
+    private static String token(String subject, long validity, String secret)
+    {
+        return Jwts.builder()
+                .setSubject(subject)
+                .setExpiration(new Date(System.currentTimeMillis() + validity))
+                .signWith(SignatureAlgorithm.HS512, secret)
+                .compact();
+    }
+
+    @Test
+    public void TestVerify()
+    {
+        final TokenCache cache = new TokenCache(new SimpleMeterRegistry(), 100);
+        final String token = token("a@b.com", 60_000, Constants.SECRET);
+
+        assertEquals("a@b.com", cache.verify(token).getSubject());
+        assertEquals("a@b.com", cache.verify(token).getSubject());
+
+        try {
+            cache.verify(token("a@b.com", 60_000, "AnotherKey"));
+            fail("A token signed with another key is rejected");
+        }
+        catch (final SignatureException ex) {
+        }
+    }
+
+    @Test
+    public void TestUidClaim()
+    {
+        final TokenCache cache = new TokenCache(new SimpleMeterRegistry(), 100);
+        final long now = System.currentTimeMillis();
+
+        for (long uid : new long[] { 42L, 1L << 50 }) {
+            final String token = Jwts.builder()
+                    .setSubject("a@b.com")
+                    .setExpiration(new Date(now + 60_000))
+                    .claim(Constants.UID_CLAIM, uid)
+                    .signWith(SignatureAlgorithm.HS512, Constants.SECRET)
+                    .compact();
+
+            assertEquals(Long.valueOf(uid), cache.verify(token).getUid());
+        }
+
+        assertNull(cache.verify(token("a@b.com", 60_000, Constants.SECRET)).getUid());
+    }
+
+    @Test
+    public void TestExpiry() throws InterruptedException
+    {
+        final TokenCache cache = new TokenCache(new SimpleMeterRegistry(), 100);
+        // "exp" is in seconds
+        final String token = token("a@b.com", 2_000, Constants.SECRET);
+
+        assertEquals("a@b.com", cache.verify(token).getSubject());
+        Thread.sleep(2_100);
+
+        try {
+            cache.verify(token);
+            fail("A cached token is rejected once expired");
+        }
+        catch (final ExpiredJwtException ex) {
+        }
+    }
+
+    @Test
+    public void TestCachedCost()
+    {
+        final TokenCache cache = new TokenCache(new SimpleMeterRegistry(), 100);
+        final String token = token("a@b.com", 60_000, Constants.SECRET);
+        final int count = 20_000;
+
+        for (int i = 0; i < count; i++) {
+            cache.verify(token);
+            cache.invalidate(token);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            cache.verify(token);
+            cache.invalidate(token);
+        }
+        final double uncached = (System.nanoTime() - start) / 1e3 / count;
+
+        cache.verify(token);
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            cache.verify(token);
+        }
+        final double cached = (System.nanoTime() - start) / 1e3 / count;
+
+        System.out.println(String.format("Token verification: %1$.2f us uncached, %2$.2f us cached", uncached,
+                cached));
+
+        // A cached verification skips the HMAC and the JSON parsing: far cheaper
+        assertTrue(String.format("cached %1$.2f us, uncached %2$.2f us", cached, uncached), cached < uncached / 5);
+    }
+}
@@ -0,0 +1,103 @@
+package fr.epita.sp18.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+
+/**
+ * Test Criteria and the ORDER BY check of BaseJdbcDAO:
+ * <p>
+ * - Escape the LIKE wildcards and the escape character of a keyword
+ * <p>
+ * - Render AND/OR combinations with one "?" per value, in order, and evaluate
+ * them in memory with the same meaning
+ * <p>
+ * - Refuse an unknown column, and a sort key that is not a column or is
+ * followed by anything but ASC or DESC
+ *
+ * @author Philip
+ *
+ */
+public class CriteriaTests
+{
+    private final EntityMetadata<Identity> metadata = EntityMetadata.of(Identity.class, "uid");
+
+    @Test
+    public void TestEscapeLike()
+    {
+        assertEquals("hugo", Criteria.escapeLike("hugo"));
+        assertEquals("100\\%", Criteria.escapeLike("100%"));
+        assertEquals("a\\_b", Criteria.escapeLike("a_b"));
+        assertEquals("c:\\\\dir", Criteria.escapeLike("c:\\dir"));
+        assertEquals("", Criteria.escapeLike(""));
+    }
+
+    @Test
+    public void TestRender()
+    {
+        final Criteria criteria = Criteria.contains("name", "Hu_go")
+                .or(Criteria.startsWith("email", "50%"))
+                .and(Criteria.eq("uid", 7L));
+
+        final StringBuilder sql = new StringBuilder();
+        final List<Object> args = new ArrayList<>();
+        criteria.render(metadata, sql, args);
+
+        assertEquals("((LOWER(name) LIKE ? ESCAPE '\\' OR LOWER(email) LIKE ? ESCAPE '\\') AND uid = ?)",
+                sql.toString());
+        assertEquals(Arrays.asList("%hu\\_go%", "50\\%%", 7L), args);
+
+        // Same shape, other values: same SQL text
+        final StringBuilder other = new StringBuilder();
+        Criteria.contains("name", "x").or(Criteria.startsWith("email", "y")).and(Criteria.eq("uid", 8L))
+                .render(metadata, other, new ArrayList<>());
+        assertEquals(sql.toString(), other.toString());
+
+        assertTrue(criteria.matches(metadata, new Identity(7L, "Mr HU_GO", "x@email.com", "X@EMAIL.COM", "")));
+        assertTrue(criteria.matches(metadata, new Identity(7L, "Hugo", "50%@email.com", "50%@EMAIL.COM", "")));
+        assertFalse(criteria.matches(metadata, new Identity(7L, "Hugo", "500@email.com", "500@EMAIL.COM", "")));
+        assertFalse(criteria.matches(metadata, new Identity(8L, "Hu_go", "x@email.com", "X@EMAIL.COM", "")));
+    }
+
+    @Test
+    public void TestUnknownColumn()
+    {
+        try {
+            Criteria.eq("password", "x").render(metadata, new StringBuilder(), new ArrayList<>());
+            fail("An unknown column must be refused");
+        }
+        catch (final IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void TestSort() throws Exception
+    {
+        assertEquals("", BaseJdbcDAO.renderSort(metadata, " "));
+        assertEquals("name ASC, uid DESC", BaseJdbcDAO.renderSort(metadata, "name, uid DESC"));
+        assertEquals("name DESC", BaseJdbcDAO.renderSort(metadata, "-name"));
+
+        for (String sort : new String[] { "password", "name; DROP TABLE Identities", "name DESC, 1",
+                "-name DESC", "name ASC uid" }) {
+            try {
+                BaseJdbcDAO.renderSort(metadata, sort);
+                fail("The sort key must be refused: " + sort);
+            }
+            catch (final IamDataAccessException ex) {
+                assertEquals(ErrorCode.UNSUPPORTED_SORT_KEY, ex.getCode());
+            }
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package fr.epita.sp18.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+import fr.epita.sp18.model.ApiResponse;
+import fr.epita.sp18.model.IdentityPage;
+import fr.epita.sp18.model.IdentityResponse;
+import fr.epita.sp18.service.IdentityService;
+
+/**
+ * Test IdentityDAO against the H2 database:
+ * <p>
+ * - Page by name, in both directions, with names shared by several identities,
+ * and check that the pages chained with after list the same identities as the
+ * sorted search
+ * <p>
+ * - Chain the continuation tokens of IdentityService pages to the last page
+ * <p>
+ * - Report a duplicated email and a missing name in the middle of a createAll
+ * batch, each with its own error code, and an unknown uid and a duplicated
+ * email in an updateAll batch, at their position, while the other rows are
+ * written
+ * <p>
+ * - Write only the changed columns on update and updateAll, and nothing for an
+ * unchanged identity, by recording the statements the DAO prepares
+ * <p>
+ * - Read and diff again a record changed between the read and the UPDATE of
+ * update and updateAll, report a record that keeps changing as a conflict and
+ * a record deleted in between as not found
+ * <p>
+ * - Read getAll by chunks of iam.dao.batch-size keys, with the key count
+ * rounded up to a power of 2, once per duplicated key, without the missing keys
+ *
+ * @author Philip
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class IdentityDAOTests
+{
+    @Autowired
+    JdbcTemplate jdbc;
+
+    @Autowired
+    IdentityDAO dao;
+
+    @Autowired
+    IdentityService service;
+
+    @Autowired
+    SqlTemplateCache templates;
+
+    @Autowired
+    IdGenerator idGenerator;
+
+    private final String     suffix = Long.toString(System.nanoTime());
+    private final List<Long> uids   = new ArrayList<>();
+
+    @After
+    public void tearDown()
+    {
+        for (Long uid : uids) {
+            jdbc.update("DELETE FROM Identities WHERE uid = ?;", uid);
+        }
+    }
+
+    @Test
+    public void TestSeekOrder() throws Exception
+    {
+        // Three names, shared by several identities: the pages cut inside a name
+        for (int i = 0; i < 10; i++) {
+            create("Seek " + (char) ('c' - i % 3) + " " + suffix, i);
+        }
+
+        final Criteria filter = Criteria.contains("name", suffix);
+
+        for (String sort : new String[] { "name", "-name" }) {
+            final Comparator<Identity> byName = Comparator.comparing(Identity::getName)
+                    .thenComparing(Identity::getUid);
+            final List<Long> expected = dao.search(filter, null).stream()
+                    .sorted(sort.startsWith("-") ? byName.reversed() : byName)
+                    .map(Identity::getUid)
+                    .collect(Collectors.toList());
+            final List<Long> paged = new ArrayList<>();
+
+            Identity after = null;
+            while (true) {
+                final List<Identity> page = dao.search(filter, sort, after, 3);
+                if (page.isEmpty()) break;
+
+                page.forEach(x -> paged.add(x.getUid()));
+                after = page.get(page.size() - 1);
+            }
+
+            assertEquals(10, expected.size());
+            assertEquals(sort, expected, paged);
+        }
+    }
+
+    @Test
+    public void TestPageTokens() throws Exception
+    {
+        for (int i = 0; i < 7; i++) {
+            create("Token " + (char) ('a' + i % 2) + " " + suffix, i);
+        }
+
+        final List<Long> expected = dao.search(Criteria.contains("name", suffix), "name DESC, uid DESC").stream()
+                .map(Identity::getUid)
+                .collect(Collectors.toList());
+        final List<Long> paged = new ArrayList<>();
+
+        String after = "";
+        int pages = 0;
+        while (after != null) {
+            final ApiResponse<IdentityPage> resp = service.search(suffix, "-name", after, 2);
+            assertFalse(resp.getErrorMessage(), resp.getHasError());
+
+            resp.getModel().getIdentities().stream().map(IdentityResponse::getUid).forEach(paged::add);
+            after = resp.getModel().getNext();
+            pages++;
+        }
+
+        assertEquals(expected, paged);
+        assertEquals(4, pages);
+
+        // A token of another sort key is refused
+        final String next = service.search(suffix, "-name", "", 2).getModel().getNext();
+        assertNull(service.search(suffix, "email", next, 2).getModel());
+    }
+
+    @Test
+    public void TestCreateAllFailures() throws Exception
+    {
+        final Identity existing = create("Existing " + suffix, 0);
+
+        final List<Identity> batch = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            batch.add(identity("Batch " + suffix, i));
+        }
+        // The middle row takes the email of an existing identity, the fourth one has
+        // no name: each is reported with its own error
+        batch.get(2).setEmail(existing.getEmail());
+        batch.get(2).setNormalizedEmail(existing.getNormalizedEmail());
+        batch.get(3).setName(null);
+
+        final BatchResult<Identity> result = dao.createAll(batch);
+        batch.forEach(x -> uids.add(x.getUid()));
+
+        assertEquals(5, result.getTotal());
+        assertEquals(3, result.getSucceeded());
+        assertEquals(2, result.getFailures().size());
+        assertEquals(2, result.getFailures().get(0).getIndex());
+        assertEquals(batch.get(2), result.getFailures().get(0).getEntity());
+        assertEquals(ErrorCode.DUPLICATE_KEY_ERROR, result.getFailures().get(0).getCode());
+        assertEquals(3, result.getFailures().get(1).getIndex());
+        assertEquals(ErrorCode.DATA_INTEGRITY_VIOLATION, result.getFailures().get(1).getCode());
+
+        // The rows around the failed ones are written, the failed ones are not
+        for (int i = 0; i < batch.size(); i++) {
+            final Identity stored = dao.get(batch.get(i).getUid());
+
+            if (i == 2 || i == 3) {
+                assertNull(stored);
+            }
+            else {
+                assertEquals(batch.get(i).getEmail(), stored.getEmail());
+            }
+        }
+        assertEquals("Existing " + suffix, dao.get(existing.getUid()).getName());
+    }
+
+    @Test
+    public void TestUpdateAllFailures() throws Exception
+    {
+        final List<Identity> batch = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Identity identity = create("Before " + suffix, i);
+            batch.add(new Identity(identity.getUid(), "After " + suffix, identity.getEmail(),
+                    identity.getNormalizedEmail(), identity.getPasswordHash()));
+        }
+        // An unknown uid, and a row that takes the email of another one
+        batch.add(1, identity("Missing " + suffix, 9));
+        batch.get(1).setUid(-System.nanoTime());
+        batch.get(3).setEmail(batch.get(0).getEmail());
+
+        final BatchResult<Identity> result = dao.updateAll(batch);
+
+        assertEquals(5, result.getTotal());
+        assertEquals(3, result.getSucceeded());
+        assertEquals(2, result.getFailures().size());
+
+        final BatchResult.Failure<Identity> missing = result.getFailures().stream()
+                .filter(x -> x.getIndex() == 1).findFirst().get();
+        assertEquals(ErrorCode.RECORD_NOT_FOUND, missing.getCode());
+
+        final BatchResult.Failure<Identity> duplicate = result.getFailures().stream()
+                .filter(x -> x.getIndex() == 3).findFirst().get();
+        assertTrue(duplicate.getCode().toString(),
+                Arrays.asList(ErrorCode.DUPLICATE_KEY_ERROR, ErrorCode.DATA_INTEGRITY_VIOLATION)
+                        .contains(duplicate.getCode()));
+
+        for (int i : new int[] { 0, 2, 4 }) {
+            assertEquals("After " + suffix, dao.get(batch.get(i).getUid()).getName());
+        }
+        assertEquals("Before " + suffix, dao.get(batch.get(3).getUid()).getName());
+    }
+
+    @Test
+    public void TestUpdateChangedColumns() throws Exception
+    {
+        final Identity stored = create("Changed " + suffix, 0);
+        final List<String> statements = Collections.synchronizedList(new ArrayList<>());
+        final IdentityDAO recording = recordingDao(statements, 500);
+
+        // Nothing changed: the row is read, not written
+        recording.update(copy(stored));
+        recording.update(copy(stored), "name, email, normalizedEmail");
+        assertEquals(Collections.emptyList(), updates(statements));
+
+        final Identity renamed = copy(stored);
+        renamed.setName("Renamed " + suffix);
+        recording.update(renamed);
+        assertEquals(Arrays.asList("UPDATE Identities SET name = ? WHERE uid = ? AND name = ? AND email = ? AND normalizedEmail = ? AND passwordHash = ?;"),
+                updates(statements));
+        assertEquals("Renamed " + suffix, dao.get(stored.getUid()).getName());
+
+        // A changed column outside of the field list is not written
+        statements.clear();
+        final Identity patched = copy(renamed);
+        patched.setName("Patched " + suffix);
+        patched.setPasswordHash("other hash");
+        recording.update(patched, "name, email, normalizedEmail");
+        assertEquals(Arrays.asList("UPDATE Identities SET name = ? WHERE uid = ? AND name = ? AND email = ? AND normalizedEmail = ?;"), updates(statements));
+        assertEquals("hash", dao.get(stored.getUid()).getPasswordHash());
+
+        // updateAll skips the unchanged row and batches the others by changed columns
+        final Identity other = create("Other " + suffix, 1);
+        statements.clear();
+        final Identity moved = copy(other);
+        moved.setPasswordHash("moved hash");
+        final BatchResult<Identity> result = recording
+                .updateAll(Arrays.asList(copy(dao.get(stored.getUid())), moved));
+        assertEquals(2, result.getSucceeded());
+        assertEquals(Arrays.asList("UPDATE Identities SET passwordHash = ? WHERE uid = ? AND name = ? AND email = ? AND normalizedEmail = ? AND passwordHash = ?;"),
+                updates(statements));
+        assertEquals("moved hash", dao.get(other.getUid()).getPasswordHash());
+    }
+
+    @Test
+    public void TestUpdateConcurrentChange() throws Exception
+    {
+        final Identity stored = create("Concurrent " + suffix, 0);
+        final List<String> statements = Collections.synchronizedList(new ArrayList<>());
+
+        // Another writer changes the password between the read and the first
+        // UPDATE: the UPDATE matches no row, and the record is read and diffed
+        // again, so that the password of the entity is written too
+        final Identity renamed = copy(stored);
+        renamed.setName("Renamed " + suffix);
+        recordingDao(statements, 500, sql -> {
+            if (updates(statements).size() == 1) {
+                jdbc.update("UPDATE Identities SET passwordHash = 'concurrent' WHERE uid = ?;", stored.getUid());
+            }
+        }).update(renamed);
+
+        assertEquals(2, updates(statements).size());
+        assertEquals("Renamed " + suffix, dao.get(stored.getUid()).getName());
+        assertEquals("hash", dao.get(stored.getUid()).getPasswordHash());
+
+        // A writer that changes the record before every UPDATE: a conflict
+        statements.clear();
+        renamed.setName("Conflict " + suffix);
+        try {
+            recordingDao(statements, 500, sql -> jdbc.update("UPDATE Identities SET passwordHash = ? WHERE uid = ?;",
+                    "concurrent " + statements.size(), stored.getUid())).update(renamed);
+            fail("A record that keeps changing must be reported");
+        }
+        catch (final IamDataAccessException ex) {
+            assertEquals(ErrorCode.CONCURRENT_UPDATE, ex.getCode());
+        }
+
+        // A record deleted between the read and the UPDATE is not found
+        statements.clear();
+        renamed.setName("Deleted " + suffix);
+        try {
+            recordingDao(statements, 500, sql -> jdbc.update("DELETE FROM Identities WHERE uid = ?;",
+                    stored.getUid())).update(renamed);
+            fail("A deleted record must be reported");
+        }
+        catch (final IamDataAccessException ex) {
+            assertEquals(ErrorCode.RECORD_NOT_FOUND, ex.getCode());
+        }
+    }
+
+    @Test
+    public void TestUpdateAllConcurrentChange() throws Exception
+    {
+        final List<Identity> batch = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            batch.add(copy(create("Before " + suffix, i)));
+            batch.get(i).setName("After " + suffix);
+        }
+        final List<String> statements = Collections.synchronizedList(new ArrayList<>());
+
+        // Between the read and the first batch, the first row gets another
+        // password and the second one is deleted
+        final BatchResult<Identity> result = recordingDao(statements, 500, sql -> {
+            if (updates(statements).size() == 1) {
+                jdbc.update("UPDATE Identities SET passwordHash = 'concurrent' WHERE uid = ?;",
+                        batch.get(0).getUid());
+                jdbc.update("DELETE FROM Identities WHERE uid = ?;", batch.get(1).getUid());
+            }
+        }).updateAll(batch);
+
+        assertEquals(2, result.getSucceeded());
+        assertEquals(1, result.getFailures().size());
+        assertEquals(1, result.getFailures().get(0).getIndex());
+        assertEquals(ErrorCode.RECORD_NOT_FOUND, result.getFailures().get(0).getCode());
+
+        // The first row was read again, and its password written back
+        assertEquals("After " + suffix, dao.get(batch.get(0).getUid()).getName());
+        assertEquals("hash", dao.get(batch.get(0).getUid()).getPasswordHash());
+        assertEquals("After " + suffix, dao.get(batch.get(2).getUid()).getName());
+    }
+
+    @Test
+    public void TestGetAllChunks() throws Exception
+    {
+        final List<Long> keys = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            keys.add(create("GetAll " + suffix, i).getUid());
+        }
+        final Long missing = -System.nanoTime();
+        keys.add(missing);
+        keys.add(keys.get(0));
+        keys.add(keys.get(5));
+
+        // 11 distinct keys by chunks of 4: 4, 4 and 3 keys rounded up to 4
+        final List<String> statements = Collections.synchronizedList(new ArrayList<>());
+        final Map<Long, Identity> found = recordingDao(statements, 4).getAll(keys);
+
+        assertEquals(Collections.nCopies(3, "SELECT * FROM Identities WHERE uid IN (?, ?, ?, ?);"), statements);
+        assertEquals(10, found.size());
+        assertFalse(found.containsKey(missing));
+        for (Long uid : keys.subList(0, 10)) {
+            assertEquals(uid, found.get(uid).getUid());
+        }
+
+        // 5 keys in one chunk are rounded up to 8
+        statements.clear();
+        assertEquals(5, recordingDao(statements, 8).getAll(keys.subList(0, 5)).size());
+        assertEquals(1, statements.size());
+        assertEquals(8, statements.get(0).chars().filter(c -> c == '?').count());
+    }
+
+    // A DAO on the same database and statement cache, that records the SQL of
+    // every statement it prepares
+    private IdentityDAO recordingDao(List<String> statements, int batchSize)
+    {
+        return recordingDao(statements, batchSize, sql -> {
+        });
+    }
+
+    // Same, and runs prepared on the SQL of every statement, once it is recorded
+    private IdentityDAO recordingDao(List<String> statements, int batchSize, Consumer<String> prepared)
+    {
+        final IdentityDAO recording = new IdentityDAO();
+
+        recording.jdbc = new JdbcTemplate(new DelegatingDataSource(jdbc.getDataSource()) {
+            @Override
+            public Connection getConnection() throws SQLException
+            {
+                final Connection connection = super.getConnection();
+
+                return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                            if (method.getName().equals("prepareStatement")) {
+                                statements.add((String) args[0]);
+                                prepared.accept((String) args[0]);
+                            }
+
+                            try {
+                                return method.invoke(connection, args);
+                            }
+                            catch (final InvocationTargetException ex) {
+                                throw ex.getCause();
+                            }
+                        });
+            }
+        });
+        recording.templates = templates;
+        recording.idGenerator = idGenerator;
+        recording.batchSize = batchSize;
+
+        return recording;
+    }
+
+    private static List<String> updates(List<String> statements)
+    {
+        return statements.stream().filter(x -> x.startsWith("UPDATE")).collect(Collectors.toList());
+    }
+
+    private static Identity copy(Identity identity)
+    {
+        return new Identity(identity.getUid(), identity.getName(), identity.getEmail(),
+                identity.getNormalizedEmail(), identity.getPasswordHash());
+    }
+
+    private Identity identity(String name, int i)
+    {
+        final String email = "dao" + i + "." + suffix + "@email.com";
+
+        return new Identity(0L, name, email, email.toUpperCase(), "hash");
+    }
+
+    private Identity create(String name, int i) throws Exception
+    {
+        final Identity identity = identity(name, i);
+
+        dao.create(identity);
+        uids.add(identity.getUid());
+
+        return identity;
+    }
+}
@@ -0,0 +1,179 @@
+package fr.epita.sp18.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.epita.sp18.entity.Identity;
+
+/**
+ * Test IdentityJournal:
+ * <p>
+ * - Write changes, a snapshot, then more changes, and check that the recovery
+ * restores all of them and deletes the log the snapshot covers
+ * <p>
+ * - Cut the last change of the log, as a crash would, and check that the
+ * recovery ignores it and that the next changes are recovered
+ *
+ * @author Philip
+ *
+ */
+public class IdentityJournalTests
+{
+    private static final Logger logger = LogManager.getLogger("IdentityJournalTests");
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("identity-journal");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void TestRecoverSnapshotAndLog() throws IOException
+    {
+        final IdentityJournal journal = new IdentityJournal(directory, true);
+        final Map<Long, Identity> expected = new TreeMap<>();
+
+        assertFalse(journal.exists());
+        journal.recover(replayInto(expected));
+
+        for (long uid = 1; uid <= 100; uid++) {
+            write(journal, expected, uid, identity(uid, "Identity " + uid));
+        }
+        write(journal, expected, 7L, null);
+        write(journal, expected, 8L, identity(8, "Renamed"));
+
+        final long checkpoint = journal.roll();
+        journal.snapshot(checkpoint, expected.values());
+
+        write(journal, expected, 9L, null);
+        write(journal, expected, 101L, identity(101, "After the snapshot"));
+        journal.close();
+
+        assertTrue(journal.exists());
+        assertEquals("Only the log after the snapshot is kept", 1, segments().size());
+
+        final Map<Long, Identity> recovered = new TreeMap<>();
+        final int replayed = new IdentityJournal(directory, true).recover(replayInto(recovered));
+
+        logger.info(String.format("%1$d identities recovered, %2$d changes replayed", recovered.size(),
+                replayed));
+        assertEquals(2, replayed);
+        assertEquals(toString(expected), toString(recovered));
+    }
+
+    @Test
+    public void TestIncompleteChange() throws IOException
+    {
+        final IdentityJournal journal = new IdentityJournal(directory, false);
+        final Map<Long, Identity> expected = new TreeMap<>();
+
+        journal.recover(replayInto(expected));
+        write(journal, expected, 1L, identity(1, "First"));
+        write(journal, expected, 2L, identity(2, "Second"));
+        journal.close();
+
+        // A change cut by a crash: its length, and not all of its bytes
+        final List<Path> segments = segments();
+        Files.write(segments.get(segments.size() - 1), new byte[] { 0, 0, 0, 64, 1, 2, 3 },
+                StandardOpenOption.APPEND);
+
+        final Map<Long, Identity> recovered = new TreeMap<>();
+        final IdentityJournal next = new IdentityJournal(directory, false);
+
+        assertEquals(2, next.recover(replayInto(recovered)));
+        assertEquals(toString(expected), toString(recovered));
+
+        write(next, recovered, 3L, identity(3, "Third"));
+        write(next, recovered, 1L, null);
+        next.close();
+
+        final Map<Long, Identity> last = new TreeMap<>();
+        new IdentityJournal(directory, false).recover(replayInto(last));
+
+        logger.info(String.format("%1$d identities recovered after an incomplete change", last.size()));
+        assertNull(last.get(1L));
+        assertEquals(toString(recovered), toString(last));
+    }
+
+    private static void write(IdentityJournal journal, Map<Long, Identity> state, Long uid, Identity identity)
+            throws IOException
+    {
+        final Map<Long, Identity> changes = new LinkedHashMap<>();
+        changes.put(uid, identity);
+        journal.write(changes);
+
+        if (identity != null) state.put(uid, identity);
+        else state.remove(uid);
+    }
+
+    private static IdentityJournal.Replay replayInto(Map<Long, Identity> state)
+    {
+        return new IdentityJournal.Replay() {
+            @Override
+            public void put(Identity identity)
+            {
+                state.put(identity.getUid(), identity);
+            }
+
+            @Override
+            public void delete(Long uid)
+            {
+                state.remove(uid);
+            }
+        };
+    }
+
+    private static Identity identity(long uid, String name)
+    {
+        return new Identity(uid, name, uid + "@email.com", uid + "@EMAIL.COM", "hash" + uid);
+    }
+
+    private static String toString(Map<Long, Identity> state)
+    {
+        return state.values().toString();
+    }
+
+    private List<Path> segments() throws IOException
+    {
+        try (Stream<Path> paths = Files.list(directory)) {
+            final List<Path> result = paths.filter(path -> path.toString().endsWith(".wal"))
+                    .collect(Collectors.toList());
+
+            Collections.sort(result);
+            return result;
+        }
+    }
+}
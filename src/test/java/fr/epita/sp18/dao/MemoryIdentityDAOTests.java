@@ -0,0 +1,311 @@
+package fr.epita.sp18.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+import fr.epita.sp18.exception.IamDataIntegrityViolationException;
+import fr.epita.sp18.exception.IamDuplicateKeyException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test MemoryIdentityDAO, on an empty storage directory:
+ * <p>
+ * - Refuse a duplicated email and a duplicated normalizedEmail, on create,
+ * createAll and update
+ * <p>
+ * - Move a unique key from a row to another one in one updateAll
+ * <p>
+ * - Refuse an unknown column in update(entity, fields)
+ * <p>
+ * - Page by uid and by name, in both directions, and check that the pages
+ * chained with after list the same identities as the sorted search
+ * <p>
+ * - Delete an identity, and check that the recovery from the log, then from
+ * the snapshot, does not restore it
+ *
+ * @author Philip
+ *
+ */
+public class MemoryIdentityDAOTests
+{
+    private final AtomicLong              ids  = new AtomicLong();
+    private final List<MemoryIdentityDAO> daos = new ArrayList<>();
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("memory-identity-dao");
+
+        // An empty snapshot: the storage is not imported from the Identities table
+        final IdentityJournal journal = new IdentityJournal(directory, true);
+        journal.recover(new IdentityJournal.Replay() {
+            @Override
+            public void put(Identity identity)
+            {
+            }
+
+            @Override
+            public void delete(Long uid)
+            {
+            }
+        });
+        journal.snapshot(journal.roll(), Collections.emptyList());
+        journal.close();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (MemoryIdentityDAO dao : daos) {
+            dao.shutdown();
+        }
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void TestDuplicateKeys() throws Exception
+    {
+        final MemoryIdentityDAO dao = newDAO();
+        final Identity first = create(dao, "First", "first@email.com");
+        final Identity second = create(dao, "Second", "second@email.com");
+
+        try {
+            dao.create(identity("Same email", "first@email.com", "OTHER@EMAIL.COM"));
+            fail("Duplicated email created");
+        }
+        catch (final IamDuplicateKeyException ex) {
+            assertEquals(ErrorCode.DUPLICATE_KEY_ERROR, ex.getCode());
+        }
+
+        try {
+            dao.create(identity("Same normalized email", "First@Email.com", "FIRST@EMAIL.COM"));
+            fail("Duplicated normalizedEmail created");
+        }
+        catch (final IamDuplicateKeyException ex) {
+            assertEquals(ErrorCode.DUPLICATE_KEY_ERROR, ex.getCode());
+        }
+
+        // In a batch: against the stored rows and against the rows before it
+        final BatchResult<Identity> created = dao.createAll(Arrays.asList(
+                identity("Third", "third@email.com", "THIRD@EMAIL.COM"),
+                identity("Third again", "Third@email.com", "THIRD@EMAIL.COM"),
+                identity("Second again", "second@email.com", "SECOND.AGAIN@EMAIL.COM")));
+
+        assertEquals(1, created.getSucceeded());
+        assertEquals(Arrays.asList(1, 2), created.getFailures().stream().map(BatchResult.Failure::getIndex)
+                .collect(Collectors.toList()));
+        for (BatchResult.Failure<Identity> failure : created.getFailures()) {
+            assertEquals(ErrorCode.DUPLICATE_KEY_ERROR, failure.getCode());
+        }
+
+        second.setEmail("first@email.com");
+        try {
+            dao.update(second, "email");
+            fail("Duplicated email updated");
+        }
+        catch (final IamDataIntegrityViolationException ex) {
+            assertEquals(ErrorCode.DATA_INTEGRITY_VIOLATION, ex.getCode());
+        }
+
+        second.setNormalizedEmail("FIRST@EMAIL.COM");
+        try {
+            dao.update(second, "normalizedEmail");
+            fail("Duplicated normalizedEmail updated");
+        }
+        catch (final IamDataIntegrityViolationException ex) {
+            assertEquals(ErrorCode.DATA_INTEGRITY_VIOLATION, ex.getCode());
+        }
+
+        assertEquals(3, dao.search(null, "").size());
+        assertEquals("second@email.com", dao.get(second.getUid()).getEmail());
+        assertEquals(first.getUid(), dao.getByNormalizedEmail("FIRST@EMAIL.COM").getUid());
+        assertEquals(second.getUid(), dao.getByNormalizedEmail("SECOND@EMAIL.COM").getUid());
+    }
+
+    @Test
+    public void TestUniqueKeyMoved() throws Exception
+    {
+        final MemoryIdentityDAO dao = newDAO();
+        final Identity first = create(dao, "First", "first@email.com");
+        final Identity second = create(dao, "Second", "second@email.com");
+
+        // The second row releases its email, then the first row takes it
+        second.setEmail("third@email.com");
+        second.setNormalizedEmail("THIRD@EMAIL.COM");
+        first.setEmail("second@email.com");
+        first.setNormalizedEmail("SECOND@EMAIL.COM");
+
+        final BatchResult<Identity> moved = dao.updateAll(Arrays.asList(second, first));
+
+        assertFalse(moved.hasFailures());
+        assertEquals(first.getUid(), dao.getByNormalizedEmail("SECOND@EMAIL.COM").getUid());
+        assertEquals(second.getUid(), dao.getByNormalizedEmail("THIRD@EMAIL.COM").getUid());
+        assertNull(dao.getByNormalizedEmail("FIRST@EMAIL.COM"));
+
+        // Taken before it is released: only the row that takes it fails
+        first.setEmail("third@email.com");
+        first.setNormalizedEmail("THIRD@EMAIL.COM");
+        second.setEmail("fourth@email.com");
+        second.setNormalizedEmail("FOURTH@EMAIL.COM");
+
+        final BatchResult<Identity> taken = dao.updateAll(Arrays.asList(first, second));
+
+        assertEquals(1, taken.getFailures().size());
+        assertEquals(0, taken.getFailures().get(0).getIndex());
+        assertEquals(ErrorCode.DUPLICATE_KEY_ERROR, taken.getFailures().get(0).getCode());
+        assertEquals(first.getUid(), dao.getByNormalizedEmail("SECOND@EMAIL.COM").getUid());
+        assertEquals(second.getUid(), dao.getByNormalizedEmail("FOURTH@EMAIL.COM").getUid());
+        assertNull(dao.getByNormalizedEmail("THIRD@EMAIL.COM"));
+
+        // The moved keys are recovered as they were written
+        final MemoryIdentityDAO recovered = newDAO();
+        assertEquals(first.getUid(), recovered.getByNormalizedEmail("SECOND@EMAIL.COM").getUid());
+        assertEquals(second.getUid(), recovered.getByNormalizedEmail("FOURTH@EMAIL.COM").getUid());
+    }
+
+    @Test
+    public void TestUnknownColumn() throws Exception
+    {
+        final MemoryIdentityDAO dao = newDAO();
+        final Identity identity = create(dao, "First", "first@email.com");
+
+        identity.setName("Renamed");
+        try {
+            dao.update(identity, "name, nope");
+            fail("Unknown column updated");
+        }
+        catch (final IamDataAccessException ex) {
+            assertEquals(ErrorCode.UNKNOWN_COLUMN, ex.getCode());
+        }
+
+        assertEquals("First", dao.get(identity.getUid()).getName());
+
+        dao.update(identity, " name ");
+        assertEquals("Renamed", dao.get(identity.getUid()).getName());
+    }
+
+    @Test
+    public void TestKeysetPages() throws Exception
+    {
+        final MemoryIdentityDAO dao = newDAO();
+
+        // Few names, so that the pages by name are ordered by uid within a name
+        for (int i = 0; i < 40; i++) {
+            create(dao, "Name " + (i % 7), "identity" + i + "@email.com");
+        }
+
+        assertPages(dao, "uid", "uid");
+        assertPages(dao, "-uid", "-uid");
+        assertPages(dao, "name", "name, uid");
+        assertPages(dao, "-name", "-name, -uid");
+    }
+
+    @Test
+    public void TestDeleteRecovered() throws Exception
+    {
+        final MemoryIdentityDAO dao = newDAO();
+        final Identity kept = create(dao, "Kept", "kept@email.com");
+        final Identity deleted = create(dao, "Deleted", "deleted@email.com");
+
+        dao.delete(deleted.getUid());
+        assertNull(dao.get(deleted.getUid()));
+
+        // From the log
+        final MemoryIdentityDAO replayed = newDAO();
+        assertNull(replayed.get(deleted.getUid()));
+        assertNull(replayed.getByNormalizedEmail("DELETED@EMAIL.COM"));
+        assertEquals("Kept", replayed.get(kept.getUid()).getName());
+
+        // From the snapshot
+        dao.snapshot();
+        final MemoryIdentityDAO restored = newDAO();
+        assertNull(restored.get(deleted.getUid()));
+        assertEquals(1, restored.search(null, "").size());
+
+        // The deleted email can be used again
+        final Identity again = create(restored, "Again", "deleted@email.com");
+        assertEquals(again.getUid(), restored.getByNormalizedEmail("DELETED@EMAIL.COM").getUid());
+    }
+
+    // Chain the pages of a sort and compare them with the sorted search
+    private static void assertPages(MemoryIdentityDAO dao, String sort, String orderBy) throws Exception
+    {
+        final List<Long> expected = uids(dao.search(null, orderBy));
+        final List<Long> paged = new ArrayList<>();
+        Identity after = null;
+
+        while (true) {
+            final List<Identity> page = dao.search(null, sort, after, 6);
+            if (page.isEmpty()) break;
+
+            assertTrue(sort, page.size() <= 6);
+            paged.addAll(uids(page));
+            after = page.get(page.size() - 1);
+        }
+
+        assertEquals(sort, expected, paged);
+
+        // After any identity, not only the last one of a page
+        final Identity middle = dao.get(expected.get(10));
+        assertEquals(sort, expected.subList(11, 16), uids(dao.search(null, sort, middle, 5)));
+    }
+
+    private static List<Long> uids(List<Identity> identities)
+    {
+        return identities.stream().map(Identity::getUid).collect(Collectors.toList());
+    }
+
+    private MemoryIdentityDAO newDAO() throws Exception
+    {
+        final MemoryIdentityDAO dao = new MemoryIdentityDAO(new SimpleMeterRegistry(), directory.toString(), true,
+                300);
+
+        dao.idGenerator = ids::incrementAndGet;
+        dao.recover();
+        daos.add(dao);
+
+        return dao;
+    }
+
+    private static Identity create(MemoryIdentityDAO dao, String name, String email) throws Exception
+    {
+        final Identity identity = identity(name, email, email.toUpperCase());
+
+        dao.create(identity);
+        return identity;
+    }
+
+    private static Identity identity(String name, String email, String normalizedEmail)
+    {
+        return new Identity(null, name, email, normalizedEmail, "hash");
+    }
+}
@@ -0,0 +1,159 @@
+package fr.epita.sp18.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+/**
+ * Test SnowflakeIdGenerator:
+ * <p>
+ * - Generate ids from many threads at once and check that none is repeated
+ * <p>
+ * - Move the clock backward and check that ids are still unique
+ * <p>
+ * - Check that two nodes never generate the same id
+ * <p>
+ * - Measure the throughput of the generator, and check that the ids of each
+ * thread increase
+ *
+ * @author Philip
+ *
+ */
+public class SnowflakeIdGeneratorTests
+{
+    private static final Logger logger = LogManager.getLogger("SnowflakeIdGeneratorTests");
+
+    private static final int THREADS        = 8;
+    private static final int IDS_PER_THREAD = 100_000;
+
+    @Test
+    public void TestUniqueAcrossThreads() throws Exception
+    {
+        // 1024 ids per ms: the threads stay within the drift of the wall clock
+        final SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1, 4, 10, 16, 1000);
+        final ConcurrentHashMap<Long, Boolean> ids = new ConcurrentHashMap<>(THREADS * IDS_PER_THREAD * 2);
+
+        run(THREADS, IDS_PER_THREAD, () -> {
+            for (int i = 0; i < IDS_PER_THREAD; i++) {
+                long id = generator.nextId();
+                assertTrue("Id must be positive", id > 0);
+                assertTrue("Id must fit in 53 bits", id < (1L << 53));
+                assertTrue("Duplicated id " + id, ids.putIfAbsent(id, Boolean.TRUE) == null);
+            }
+        });
+
+        assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+    }
+
+    @Test
+    public void TestClockRegression()
+    {
+        final AtomicLong clock = new AtomicLong(SnowflakeIdGenerator.DEFAULT_EPOCH + 1_000_000);
+        final SnowflakeIdGenerator generator = new SnowflakeIdGenerator(SnowflakeIdGenerator.DEFAULT_EPOCH, 0, 4,
+                8, 16, 1000, clock::get);
+        final List<Long> ids = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            ids.add(generator.nextId());
+        }
+
+        // The clock goes 500 ms back, then jumps forward again
+        clock.addAndGet(-500);
+        for (int i = 0; i < 1000; i++) {
+            ids.add(generator.nextId());
+        }
+        clock.addAndGet(2000);
+        for (int i = 0; i < 1000; i++) {
+            ids.add(generator.nextId());
+        }
+
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue("Ids of a single thread must increase", ids.get(i) > ids.get(i - 1));
+        }
+    }
+
+    @Test
+    public void TestNodesDoNotCollide()
+    {
+        final AtomicLong clock = new AtomicLong(SnowflakeIdGenerator.DEFAULT_EPOCH + 1_000_000);
+        final SnowflakeIdGenerator node1 = new SnowflakeIdGenerator(SnowflakeIdGenerator.DEFAULT_EPOCH, 1, 4, 8,
+                16, 1000, clock::get);
+        final SnowflakeIdGenerator node2 = new SnowflakeIdGenerator(SnowflakeIdGenerator.DEFAULT_EPOCH, 2, 4, 8,
+                16, 1000, clock::get);
+        final ConcurrentHashMap<Long, Boolean> ids = new ConcurrentHashMap<>();
+
+        // Same millisecond, same sequence, on both nodes
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(ids.putIfAbsent(node1.nextId(), Boolean.TRUE) == null);
+            assertTrue(ids.putIfAbsent(node2.nextId(), Boolean.TRUE) == null);
+        }
+    }
+
+    @Test
+    public void TestThroughput() throws Exception
+    {
+        final SnowflakeIdGenerator generator = new SnowflakeIdGenerator(0, 0, 22, 256, 60_000);
+        final AtomicLong count = new AtomicLong();
+        final Runnable task = () -> {
+            long previous = 0;
+            for (int i = 0; i < IDS_PER_THREAD * 10; i++) {
+                final long id = generator.nextId();
+                assertTrue("Ids of a single thread must increase", id > previous);
+                previous = id;
+            }
+            count.addAndGet(IDS_PER_THREAD * 10);
+        };
+
+        // Warm up
+        run(THREADS, IDS_PER_THREAD * 10, task);
+
+        final long start = System.nanoTime();
+        final long total = run(THREADS, IDS_PER_THREAD * 10, task);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(2 * total, count.get());
+        logger.info(String.format("Throughput: %1$.0f ids/s with %2$d threads", total / seconds, THREADS));
+    }
+
+    // Run the task on the threads at once and return the number of ids the
+    // threads generated
+    private long run(int threads, int idsPerThread, Runnable task) throws Exception
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    task.run();
+                    return null;
+                }));
+            }
+
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(2, TimeUnit.MINUTES);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return (long) threads * idsPerThread;
+    }
+}
@@ -0,0 +1,358 @@
+package fr.epita.sp18.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.epita.sp18.authentication.Constants;
+import fr.epita.sp18.model.ApiResponse;
+import fr.epita.sp18.model.IdentityPage;
+import fr.epita.sp18.model.IdentityRequest;
+import fr.epita.sp18.model.IdentityResponse;
+import fr.epita.sp18.service.IdentityService;
+
+/**
+ * Test IdentityStreamController:
+ * <p>
+ * - Stream the identities of a search through the embedded server of the
+ * "reactive" profile, by pages of 2, and an invalid sort key as an error line
+ * <p>
+ * - Drive the WriteListener and AsyncListener of a stream with a client that
+ * reads one line at a time: the next page is only read once the previous one
+ * is written, an error is written as the last line, and a timeout or a client
+ * that went away completes the stream without writing the page read meanwhile
+ *
+ * @author Philip
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "iam.stream.page-size=2")
+@ActiveProfiles("reactive")
+public class IdentityStreamControllerTests
+{
+    private static final String PASSWORD = "Stream-Password1";
+
+    @Autowired
+    TestRestTemplate rest;
+
+    @Autowired
+    IdentityService identityService;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final String       suffix = Long.toString(System.nanoTime());
+    private final List<Long>   uids   = new ArrayList<>();
+
+    @After
+    public void tearDown()
+    {
+        for (Long uid : uids) {
+            identityService.delete(uid);
+        }
+    }
+
+    @Test
+    public void TestStream() throws Exception
+    {
+        for (int i = 0; i < 5; i++) {
+            uids.add(identityService.create(new IdentityRequest(0L, "Stream " + suffix,
+                    "stream" + i + "." + suffix + "@email.com", PASSWORD)).getModel().getUid());
+        }
+        final String token = login("stream0." + suffix + "@email.com");
+
+        // 5 identities by pages of 2, in uid order
+        final List<JsonNode> lines = stream(token, "/api/stream/identities?filter=" + suffix + "&sort=uid");
+        assertEquals(5, lines.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(uids.stream().sorted().toArray()[i].toString(), lines.get(i).get("uid").asText());
+        }
+
+        final List<JsonNode> error = stream(token, "/api/stream/identities?sort=password");
+        assertEquals(1, error.size());
+        assertTrue(error.get(0).get("hasError").asBoolean());
+        assertFalse(error.get(0).get("errorMessage").asText().isEmpty());
+    }
+
+    @Test
+    public void TestBackpressure() throws Exception
+    {
+        final Harness harness = new Harness();
+
+        // The first page is read once the output is ready
+        harness.out.capacity = 1;
+        harness.writer.onWritePossible();
+        assertEquals(1, harness.reads.size());
+
+        // The client reads one line, then one more: the next page is not read
+        harness.reads.get(0).complete(page("t1", "a", "b"));
+        assertEquals(Arrays.asList("a"), harness.names());
+        harness.out.capacity = 1;
+        harness.writer.onWritePossible();
+        assertEquals(Arrays.asList("a", "b"), harness.names());
+        assertEquals(1, harness.reads.size());
+
+        // The page is written: the next one is read after the token of the first
+        harness.out.capacity = 10;
+        harness.writer.onWritePossible();
+        assertEquals(2, harness.reads.size());
+        assertEquals(Arrays.asList("", "t1"), harness.afters);
+
+        harness.reads.get(1).complete(page(null, "c"));
+        assertEquals(Arrays.asList("a", "b", "c"), harness.names());
+        verify(harness.async).complete();
+        verify(harness.async).setTimeout(1000L);
+    }
+
+    @Test
+    public void TestErrorLine() throws Exception
+    {
+        final Harness harness = new Harness();
+        harness.out.capacity = 10;
+
+        harness.writer.onWritePossible();
+        harness.reads.get(0).complete(page("t1", "a"));
+        harness.writer.onWritePossible();
+
+        final ApiResponse<IdentityPage> invalid = new ApiResponse<>();
+        invalid.setErrorMessage("Invalid sort key");
+        invalid.setHasError(true);
+        harness.reads.get(1).complete(invalid);
+
+        assertEquals(2, harness.lines().size());
+        assertEquals("Invalid sort key", harness.lines().get(1).get("errorMessage").asText());
+        verify(harness.async).complete();
+
+        // A failed read is written as a search error
+        final Harness failed = new Harness();
+        failed.out.capacity = 10;
+
+        failed.writer.onWritePossible();
+        failed.reads.get(0).completeExceptionally(new IllegalStateException("JdbcExecutor queue full"));
+
+        assertEquals(1, failed.lines().size());
+        assertEquals("Error when searching for identities. Please try again",
+                failed.lines().get(0).get("errorMessage").asText());
+        verify(failed.async).complete();
+    }
+
+    @Test
+    public void TestTimeout() throws Exception
+    {
+        final Harness harness = new Harness();
+        harness.out.capacity = 10;
+
+        harness.writer.onWritePossible();
+        harness.listener.onTimeout(null);
+        verify(harness.async).complete();
+
+        // The page read meanwhile is dropped, no write is resumed
+        harness.reads.get(0).complete(page("t1", "a"));
+        verify(harness.async, never()).start(any());
+        assertTrue(harness.lines().isEmpty());
+
+        harness.listener.onTimeout(null);
+        verify(harness.async, times(1)).complete();
+    }
+
+    @Test
+    public void TestClientGone() throws Exception
+    {
+        final Harness harness = new Harness();
+        harness.out.capacity = 1;
+
+        harness.writer.onWritePossible();
+        harness.reads.get(0).complete(page("t1", "a", "b"));
+        assertEquals(Arrays.asList("a"), harness.names());
+
+        // The client went away: nothing more is written or read
+        harness.writer.onError(new IOException("Broken pipe"));
+        harness.listener.onComplete(null);
+        verify(harness.async).complete();
+
+        harness.out.capacity = 10;
+        harness.writer.onWritePossible();
+        assertEquals(Arrays.asList("a"), harness.names());
+        assertEquals(1, harness.reads.size());
+    }
+
+    private List<JsonNode> stream(String token, String path) throws IOException
+    {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set(Constants.HEADER_STRING, token);
+
+        final ResponseEntity<String> response = rest.exchange(path, HttpMethod.GET, new HttpEntity<>(headers),
+                String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        final List<JsonNode> lines = new ArrayList<>();
+        for (String line : response.getBody().split("\n")) {
+            if (!line.isEmpty()) lines.add(mapper.readTree(line));
+        }
+
+        return lines;
+    }
+
+    private String login(String email)
+    {
+        final ResponseEntity<String> response = rest.postForEntity("/login",
+                "{\"email\": \"" + email + "\", \"password\": \"" + PASSWORD + "\"}", String.class);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        return response.getHeaders().getFirst(Constants.HEADER_STRING);
+    }
+
+    private static ApiResponse<IdentityPage> page(String next, String... names)
+    {
+        final List<IdentityResponse> identities = new ArrayList<>();
+        for (String name : names) {
+            identities.add(new IdentityResponse((long) identities.size(), name, name + "@email.com"));
+        }
+
+        final ApiResponse<IdentityPage> resp = new ApiResponse<>();
+        resp.setModel(new IdentityPage(identities, next));
+
+        return resp;
+    }
+
+    // An output that is ready for capacity more writes
+    private static class Output extends ServletOutputStream
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private int           capacity;
+        private WriteListener listener;
+
+        @Override
+        public boolean isReady()
+        {
+            return capacity > 0;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public void write(int b)
+        {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            capacity--;
+            bytes.write(b, off, len);
+        }
+    }
+
+    // A stream of a controller on a mocked search, request and async context.
+    // The async context runs the resumed writes at once
+    private class Harness
+    {
+        private final Output                                             out    = new Output();
+        private final AsyncContext                                       async  = mock(AsyncContext.class);
+        private final List<CompletableFuture<ApiResponse<IdentityPage>>> reads  = new ArrayList<>();
+        private final List<String>                                       afters = new ArrayList<>();
+        private final WriteListener                                      writer;
+        private final AsyncListener                                      listener;
+
+        private Harness() throws IOException
+        {
+            final IdentityStreamController controller = new IdentityStreamController();
+            controller.service = mock(IdentityService.class);
+            controller.mapper = mapper;
+            controller.pageSize = 2;
+            controller.timeoutMillis = 1000;
+
+            when(controller.service.searchAsync(eq("x"), eq("uid"), anyString(), anyInt())).thenAnswer(call -> {
+                final CompletableFuture<ApiResponse<IdentityPage>> read = new CompletableFuture<>();
+                reads.add(read);
+                afters.add(call.getArgument(2));
+                return read;
+            });
+
+            final HttpServletRequest request = mock(HttpServletRequest.class);
+            final HttpServletResponse response = mock(HttpServletResponse.class);
+            when(request.startAsync()).thenReturn(async);
+            when(async.getResponse()).thenReturn(response);
+            when(response.getOutputStream()).thenReturn(out);
+            doAnswer(call -> {
+                ((Runnable) call.getArgument(0)).run();
+                return null;
+            }).when(async).start(any());
+
+            controller.search("x", "uid", request, response);
+
+            final ArgumentCaptor<AsyncListener> listeners = ArgumentCaptor.forClass(AsyncListener.class);
+            verify(async).addListener(listeners.capture());
+            listener = listeners.getValue();
+            writer = out.listener;
+        }
+
+        private List<JsonNode> lines() throws IOException
+        {
+            final List<JsonNode> lines = new ArrayList<>();
+            for (String line : new String(out.bytes.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+                if (!line.isEmpty()) lines.add(mapper.readTree(line));
+            }
+
+            return lines;
+        }
+
+        private List<String> names() throws IOException
+        {
+            final List<String> names = new ArrayList<>();
+            for (JsonNode line : lines()) {
+                names.add(line.get("name").asText());
+            }
+
+            return names;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test BloomFilter:
+ * <p>
+ * - Never miss a key that was put
+ * <p>
+ * - Keep the false positive rate near the one the filter is sized for
+ *
+ * @author Philip
+ *
+ */
+public class BloomFilterTests
+{
+    @Test
+    public void TestFalsePositiveRate()
+    {
+        final int count = 100_000;
+        final BloomFilter filter = new BloomFilter(count, 0.01);
+
+        for (int i = 0; i < count; i++) {
+            filter.put("jti:" + i);
+        }
+
+        for (int i = 0; i < count; i++) {
+            assertTrue(filter.mightContain("jti:" + i));
+        }
+
+        int positives = 0;
+        for (int i = count; i < 2 * count; i++) {
+            if (filter.mightContain("jti:" + i)) positives++;
+        }
+
+        final double rate = (double) positives / count;
+        System.out.println(String.format("Bloom filter of %1$d KB: false positive rate %2$.4f", filter.getByteSize() / 1024,
+                rate));
+
+        assertTrue(rate < 0.02);
+    }
+}
@@ -0,0 +1,100 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test CompressedBitmap:
+ * <p>
+ * - Hold the same values as a BitSet after random adds and removes, through the
+ * array to bitmap chunk conversions
+ * <p>
+ * - Intersect and unite like a BitSet
+ *
+ * @author Philip
+ *
+ */
+public class CompressedBitmapTests
+{
+    @Test
+    public void TestAddRemove()
+    {
+        final Random random = new Random(42);
+        final CompressedBitmap bitmap = new CompressedBitmap();
+        final BitSet expected = new BitSet();
+
+        // A dense chunk, a sparse one and a far one
+        for (int i = 0; i < 200_000; i++) {
+            final int value = random.nextBoolean() ? random.nextInt(10_000) : random.nextInt(1 << 20);
+
+            assertEquals(!expected.get(value), bitmap.add(value));
+            expected.set(value);
+        }
+
+        for (int i = 0; i < 100_000; i++) {
+            final int value = random.nextInt(10_000);
+
+            assertEquals(expected.get(value), bitmap.remove(value));
+            expected.clear(value);
+        }
+
+        assertEquals(expected, toBitSet(bitmap));
+        assertEquals(expected.cardinality(), bitmap.getCardinality());
+
+        for (int i = 0; i < 1 << 20; i += 7) {
+            assertEquals(expected.get(i), bitmap.contains(i));
+        }
+
+        System.out.println(String.format("%1$d values in %2$d KB", bitmap.getCardinality(),
+                bitmap.getSizeInBytes() / 1024));
+    }
+
+    @Test
+    public void TestAndOr()
+    {
+        final Random random = new Random(7);
+        final CompressedBitmap a = new CompressedBitmap();
+        final CompressedBitmap b = new CompressedBitmap();
+        final BitSet expectedA = new BitSet();
+        final BitSet expectedB = new BitSet();
+
+        for (int i = 0; i < 50_000; i++) {
+            final int dense = random.nextInt(1 << 16);
+            final int sparse = random.nextInt(1 << 22);
+
+            a.add(dense);
+            expectedA.set(dense);
+            b.add(sparse);
+            expectedB.set(sparse);
+            if (i % 3 == 0) {
+                b.add(dense);
+                expectedB.set(dense);
+            }
+        }
+
+        final BitSet and = (BitSet) expectedA.clone();
+        and.and(expectedB);
+        final BitSet or = (BitSet) expectedA.clone();
+        or.or(expectedB);
+
+        assertEquals(and, toBitSet(CompressedBitmap.and(a, b)));
+        assertEquals(and, toBitSet(CompressedBitmap.and(b, a)));
+        assertEquals(or, toBitSet(CompressedBitmap.or(a, b)));
+        assertEquals(or.cardinality(), CompressedBitmap.or(b, a).getCardinality());
+        assertTrue(CompressedBitmap.and(a, new CompressedBitmap()).getCardinality() == 0);
+    }
+
+    private static BitSet toBitSet(CompressedBitmap bitmap)
+    {
+        final BitSet set = new BitSet();
+
+        bitmap.forEach(set::set);
+
+        return set;
+    }
+}
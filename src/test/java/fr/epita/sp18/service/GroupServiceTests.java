@@ -0,0 +1,125 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import fr.epita.sp18.dao.GroupDAO;
+import fr.epita.sp18.dao.IdentityDAO;
+import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.model.GroupRequest;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test the reload of the group changes made on another node:
+ * <p>
+ * - Create a group, add and remove members and delete the group on one node,
+ * and check that another node sees each change after a refresh
+ * <p>
+ * - Check that a refresh only reads again the groups and identities of the
+ * logged changes: a group written without a change is not picked up
+ *
+ * @author Philip
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class GroupServiceTests
+{
+    @Autowired
+    JdbcTemplate jdbc;
+
+    @Autowired
+    GroupDAO dao;
+
+    @Autowired
+    IdentityDAO identityDAO;
+
+    private final String     suffix     = Long.toString(System.nanoTime());
+    private final List<Long> identities = new ArrayList<>();
+    private final List<Long> groups     = new ArrayList<>();
+
+    @After
+    public void tearDown()
+    {
+        for (Long uid : groups) {
+            jdbc.update("DELETE FROM GroupMembers WHERE groupUid = ?;", uid);
+            jdbc.update("DELETE FROM Groups WHERE uid = ?;", uid);
+        }
+        for (Long uid : identities) {
+            jdbc.update("DELETE FROM Identities WHERE uid = ?;", uid);
+        }
+    }
+
+    @Test
+    public void TestRefresh() throws Exception
+    {
+        final GroupService node = node();
+        final GroupService other = node();
+        final Long first = identity(1);
+        final Long second = identity(2);
+
+        // Both nodes are loaded before the changes
+        assertFalse(other.list(null).getHasError());
+
+        final Long group = node.create(new GroupRequest(0L, "Refresh " + suffix)).getModel().getUid();
+        groups.add(group);
+        node.addMember(group, first);
+        node.addMember(group, second);
+        other.refresh();
+        assertEquals(Arrays.asList(Math.min(first, second), Math.max(first, second)),
+                other.members(group).getModel());
+
+        node.removeMember(group, first);
+        other.refresh();
+        assertFalse(other.isMember(group, first));
+        assertTrue(other.isMember(group, second));
+
+        node.removeIdentity(second);
+        other.refresh();
+        assertEquals(Arrays.asList(), other.members(group).getModel());
+
+        // A group written without a logged change is not read: the refresh does not
+        // read all groups again
+        final Long unlogged = -System.nanoTime();
+        groups.add(unlogged);
+        jdbc.update("INSERT INTO Groups (uid, name) VALUES (?, ?);", unlogged, "Unlogged " + suffix);
+        jdbc.update("INSERT INTO GroupMembers (groupUid, identityUid) VALUES (?, ?);", unlogged, first);
+        other.refresh();
+        assertTrue(other.members(unlogged).getHasError());
+
+        node.delete(group);
+        other.refresh();
+        assertTrue(other.members(group).getHasError());
+    }
+
+    // A node that reloads the changes of the others, without a schedule
+    private GroupService node()
+    {
+        return new GroupService(dao, identityDAO, new SimpleMeterRegistry(), 1, 5000, 3600);
+    }
+
+    private Long identity(int i) throws Exception
+    {
+        final String email = "group" + i + "." + suffix + "@email.com";
+        final Identity identity = new Identity(0L, "Group " + i, email, email.toUpperCase(), "hash");
+
+        identityDAO.create(identity);
+        identities.add(identity.getUid());
+
+        return identity.getUid();
+    }
+}
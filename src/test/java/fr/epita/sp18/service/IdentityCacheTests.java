@@ -0,0 +1,221 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import fr.epita.sp18.entity.Identity;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test IdentityCache:
+ * <p>
+ * - Cache an identity loaded outside of the cache, and not when an
+ * invalidation ran since its load started
+ * <p>
+ * - Share one asynchronous load between the concurrent misses of a uid, and
+ * load again after an invalidation
+ * <p>
+ * - Cache the asynchronous and bulk loads of a uid unless this uid was
+ * invalidated during the load, whatever the writes of the other uids
+ * <p>
+ * - Run a synchronous load outside of the cache map: the cache can be read
+ * and invalidated while it runs, and its result is dropped when its uid was
+ * invalidated meanwhile
+ *
+ * @author Philip
+ *
+ */
+public class IdentityCacheTests
+{
+    private static IdentityCache newCache()
+    {
+        return new IdentityCache(new SimpleMeterRegistry(), 100, 300, 0, 30);
+    }
+
+    private static Identity identity(long uid, String name)
+    {
+        return new Identity(uid, name, uid + "@email.com", uid + "@EMAIL.COM", "hash" + uid);
+    }
+
+    @Test
+    public void TestPutAfterInvalidation() throws Exception
+    {
+        final IdentityCache cache = newCache();
+        final AtomicInteger loads = new AtomicInteger();
+        final Identity stored = identity(1, "Stored");
+
+        // Loaded and nothing written since: cached
+        long generation = cache.getGeneration();
+        cache.put(1L, identity(1, "Loaded"), generation);
+        assertEquals("Loaded", cache.get(1L, uid -> {
+            loads.incrementAndGet();
+            return stored;
+        }).getName());
+        assertEquals(0, loads.get());
+
+        // Loaded, then the identity is written and invalidated: not cached
+        cache.invalidate(1L);
+        generation = cache.getGeneration();
+        final Identity stale = identity(1, "Stale");
+        cache.invalidate(1L);
+        cache.put(1L, stale, generation);
+
+        assertSame(stored, cache.get(1L, uid -> {
+            loads.incrementAndGet();
+            return stored;
+        }));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void TestLoadPerUid() throws Exception
+    {
+        final IdentityCache cache = newCache();
+        final AtomicInteger loads = new AtomicInteger();
+
+        // Another uid is written during the load: cached anyway
+        final CompletableFuture<Identity> load = new CompletableFuture<>();
+        final CompletableFuture<Identity> async = cache.getAsync(1L, uid -> load);
+        cache.invalidate(2L);
+        load.complete(identity(1, "Loaded"));
+        assertEquals("Loaded", async.get().getName());
+        assertEquals("Loaded", cache.get(1L, uid -> {
+            loads.incrementAndGet();
+            return null;
+        }).getName());
+
+        // The uid itself is written during the load: not cached
+        final CompletableFuture<Identity> reload = new CompletableFuture<>();
+        cache.invalidate(1L);
+        final CompletableFuture<Identity> stale = cache.getAsync(1L, uid -> reload);
+        cache.invalidate(1L);
+        reload.complete(identity(1, "Stale"));
+        assertEquals("Stale", stale.get().getName());
+        assertEquals("Stored", cache.get(1L, uid -> {
+            loads.incrementAndGet();
+            return identity(1, "Stored");
+        }).getName());
+        assertEquals(1, loads.get());
+
+        // Bulk: only the invalidated uid is not cached
+        final Map<Long, Identity> found = cache.getAll(Arrays.asList(3L, 4L), uids -> {
+            cache.invalidate(4L);
+            final Map<Long, Identity> loaded = new HashMap<>();
+            uids.forEach(uid -> loaded.put(uid, identity(uid, "Bulk")));
+            return loaded;
+        });
+        assertEquals(2, found.size());
+
+        final Map<Long, Identity> again = cache.getAllAsync(Arrays.asList(3L, 4L), uids -> {
+            assertEquals(Collections.singleton(4L), new HashSet<>(uids));
+            return CompletableFuture.completedFuture(Collections.singletonMap(4L, identity(4, "Again")));
+        }).get();
+        assertEquals("Bulk", again.get(3L).getName());
+        assertEquals("Again", again.get(4L).getName());
+    }
+
+    @Test
+    public void TestLoadOutsideOfMap() throws Exception
+    {
+        final IdentityCache cache = newCache();
+        final AtomicInteger loads = new AtomicInteger();
+        final Identity other = identity(2, "Other");
+
+        // A write of the uid lands during its load: the stale result is not cached
+        final Identity stale = cache.get(1L, uid -> {
+            loads.incrementAndGet();
+            assertSame(other, cache.get(2L, key -> other));
+            cache.invalidate(1L);
+            return identity(1, "Stale");
+        });
+        assertEquals("Stale", stale.getName());
+
+        final Identity stored = identity(1, "Stored");
+        assertSame(stored, cache.get(1L, uid -> {
+            loads.incrementAndGet();
+            return stored;
+        }));
+        assertSame(stored, cache.get(1L, uid -> {
+            loads.incrementAndGet();
+            return null;
+        }));
+        assertEquals(2, loads.get());
+
+        // The uid read during the load of the other one is cached
+        assertSame(other, cache.get(2L, key -> null));
+
+        // Same for an email
+        assertEquals(Long.valueOf(2), cache.getUid("ONE@EMAIL.COM", email -> {
+            cache.invalidateEmail(email);
+            return 2L;
+        }));
+        assertEquals(Long.valueOf(1), cache.getUid("ONE@EMAIL.COM", email -> 1L));
+        assertEquals(Long.valueOf(1), cache.getUid("ONE@EMAIL.COM", email -> 3L));
+    }
+
+    @Test
+    public void TestGetAsyncCoalesced() throws Exception
+    {
+        final IdentityCache cache = newCache();
+        final AtomicInteger loads = new AtomicInteger();
+        final CompletableFuture<Identity> load = new CompletableFuture<>();
+        final List<CompletableFuture<Identity>> results = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            results.add(cache.getAsync(1L, uid -> {
+                loads.incrementAndGet();
+                return load;
+            }));
+        }
+
+        // A synchronous miss joins the flight too
+        final CompletableFuture<Identity> sync = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.get(1L, uid -> {
+                    loads.incrementAndGet();
+                    return null;
+                });
+            }
+            catch (final Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+
+        final Identity loaded = identity(1, "Loaded");
+        Thread.sleep(100);
+        load.complete(loaded);
+
+        for (CompletableFuture<Identity> result : results) {
+            assertSame(loaded, result.get());
+        }
+        assertSame(loaded, sync.get());
+        assertEquals(1, loads.get());
+
+        // Cached: no load
+        assertSame(loaded, cache.getAsync(1L, uid -> {
+            loads.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }).get());
+        assertEquals(1, loads.get());
+
+        cache.invalidate(1L);
+        final Identity renamed = identity(1, "Renamed");
+        assertSame(renamed, cache.getAsync(1L, uid -> {
+            loads.incrementAndGet();
+            return CompletableFuture.completedFuture(renamed);
+        }).get());
+        assertEquals(2, loads.get());
+    }
+}
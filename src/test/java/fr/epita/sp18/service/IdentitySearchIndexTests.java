@@ -0,0 +1,111 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.model.IdentityResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test IdentitySearchIndex:
+ * <p>
+ * - Compare the index's result with a plain "contains" over random identities
+ * and keywords, including wildcards and short keywords
+ * <p>
+ * - Check that put and remove keep the index up to date
+ *
+ * @author Philip
+ *
+ */
+public class IdentitySearchIndexTests
+{
+    private static final String[] NAMES = { "Hugo Lloris", "Kylian Mbappé", "N'Golo Kanté", "Paul Pogba",
+            "Antoine Griezmann", "Raphaël Varane", "Olivier Giroud", "Blaise Matuidi", "100%_Real" };
+
+    @Test
+    public void TestSameResultAsLike() throws Exception
+    {
+        final Random random = new Random(42);
+        final List<Identity> identities = new ArrayList<>();
+
+        for (long uid = 1; uid <= 2000; uid++) {
+            String name = NAMES[random.nextInt(NAMES.length)] + " " + random.nextInt(100);
+            String email = name.replaceAll("[^A-Za-z0-9]", "").toLowerCase() + uid + "@Email.com";
+            identities.add(new Identity(uid, name, email, email.toUpperCase(), "hash"));
+        }
+
+        final IdentitySearchIndex index = newIndex(identities);
+        final String[] keywords = { "", "o", "HU", "go ", "lloris", "mbappé", "email.com", "%", "_re", "0%_", "ZZZ",
+                "n'golo", "ris 4", "A1" };
+
+        for (String keyword : keywords) {
+            List<Long> expected = identities.stream()
+                    .filter(x -> x.getName().toLowerCase().contains(keyword.toLowerCase())
+                            || x.getEmail().toLowerCase().contains(keyword.toLowerCase()))
+                    .map(Identity::getUid)
+                    .collect(Collectors.toList());
+
+            assertEquals("Keyword " + keyword, expected, uids(index.search(keyword)));
+        }
+
+        System.out.println(String.format("%1$d identities indexed in about %2$d KB", index.size(),
+                index.getMemoryFootprint() / 1024));
+    }
+
+    @Test
+    public void TestPutAndRemove() throws Exception
+    {
+        final List<Identity> identities = new ArrayList<>();
+        identities.add(new Identity(1L, "Hugo Lloris", "hugo@email.com", "HUGO@EMAIL.COM", "hash"));
+        identities.add(new Identity(2L, "Paul Pogba", "paul@email.com", "PAUL@EMAIL.COM", "hash"));
+
+        final IdentitySearchIndex index = newIndex(identities);
+        assertEquals(1, index.search("lloris").size());
+
+        index.put(new Identity(1L, "Hugo Lloris", "captain@email.com", "CAPTAIN@EMAIL.COM", "hash"));
+        assertEquals(0, index.search("hugo@").size());
+        assertEquals(1, index.search("captain").size());
+
+        index.put(new Identity(3L, "Kylian Mbappé", "kylian@email.com", "KYLIAN@EMAIL.COM", "hash"));
+        assertEquals(3, index.search("@email").size());
+
+        index.remove(2L);
+        assertEquals(0, index.search("pogba").size());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void TestNotReady()
+    {
+        final IdentitySearchIndex index = new IdentitySearchIndex(new SimpleMeterRegistry());
+
+        assertNull("The database must be searched until the index is built", index.search("hugo"));
+        assertTrue(!index.isReady());
+    }
+
+    private IdentitySearchIndex newIndex(List<Identity> identities) throws Exception
+    {
+        final IdentitySearchIndex index = new IdentitySearchIndex(new SimpleMeterRegistry());
+
+        index.build(consumer -> {
+            identities.forEach(consumer);
+            return identities.size();
+        });
+
+        return index;
+    }
+
+    private List<Long> uids(List<IdentityResponse> identities)
+    {
+        return identities.stream().map(IdentityResponse::getUid).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,124 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import fr.epita.sp18.model.ApiResponse;
+import fr.epita.sp18.model.IdentityRequest;
+import fr.epita.sp18.model.IdentityResponse;
+
+/**
+ * Test IdentityService:
+ * <p>
+ * - Create, update, patch and delete an identity with the asynchronous methods,
+ * and check that their errors are reported as by the synchronous ones
+ * <p>
+ * - Report each uid of getAll and getAllAsync in its own row, in order: found,
+ * not found or invalid
+ *
+ * @author Philip
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class IdentityServiceTests
+{
+    private static final String PASSWORD = "Service1234";
+
+    @Autowired
+    JdbcTemplate jdbc;
+
+    @Autowired
+    IdentityService service;
+
+    private final String     suffix = Long.toString(System.nanoTime());
+    private final List<Long> uids   = new ArrayList<>();
+
+    @After
+    public void tearDown()
+    {
+        for (Long uid : uids) {
+            jdbc.update("DELETE FROM Identities WHERE uid = ?;", uid);
+        }
+    }
+
+    @Test
+    public void TestAsyncWrites() throws Exception
+    {
+        final String email = "async." + suffix + "@email.com";
+
+        final ApiResponse<IdentityResponse> create = service
+                .createAsync(new IdentityRequest(0L, "Async", email, PASSWORD)).get();
+        assertFalse(create.getErrorMessage(), create.getHasError());
+        final Long uid = create.getModel().getUid();
+        uids.add(uid);
+
+        final ApiResponse<IdentityResponse> duplicate = service
+                .createAsync(new IdentityRequest(0L, "Duplicate", email, PASSWORD)).get();
+        assertTrue(duplicate.getHasError());
+        assertEquals("This email is already used. Choose a new one", duplicate.getErrorMessage());
+
+        final ApiResponse<IdentityResponse> patch = service
+                .patchAsync(new IdentityRequest(uid, "Async patched", email, "")).get();
+        assertFalse(patch.getErrorMessage(), patch.getHasError());
+        assertEquals("Async patched", service.getAsync(uid).get().getModel().getName());
+
+        final ApiResponse<IdentityResponse> missing = service
+                .updateAsync(new IdentityRequest(Long.MAX_VALUE, "Missing", "missing." + email, PASSWORD)).get();
+        assertTrue(missing.getHasError());
+        assertEquals("Identity not found", missing.getErrorMessage());
+
+        final ApiResponse<List<ApiResponse<IdentityResponse>>> bulk = service.createAllAsync(Arrays.asList(
+                new IdentityRequest(0L, "Bulk", "bulk." + email, PASSWORD),
+                new IdentityRequest(0L, "Bulk duplicate", email, PASSWORD))).get();
+        assertFalse(bulk.getErrorMessage(), bulk.getHasError());
+        uids.add(bulk.getModel().get(0).getModel().getUid());
+        assertFalse(bulk.getModel().get(0).getHasError());
+        assertTrue(bulk.getModel().get(1).getHasError());
+        assertEquals("1 of 2 identities saved", bulk.getMessage());
+
+        final ApiResponse<IdentityResponse> delete = service.deleteAsync(uid).get();
+        assertFalse(delete.getErrorMessage(), delete.getHasError());
+        assertNull(service.getAsync(uid).get().getModel());
+    }
+
+    @Test
+    public void TestGetAll() throws Exception
+    {
+        final String email = "getall." + suffix + "@email.com";
+        final Long uid = service.create(new IdentityRequest(0L, "GetAll", email, PASSWORD)).getModel().getUid();
+        uids.add(uid);
+
+        final List<Long> request = Arrays.asList(uid, -System.nanoTime() - 1, null, System.nanoTime(), uid);
+
+        for (ApiResponse<List<ApiResponse<IdentityResponse>>> resp : Arrays.asList(service.getAll(request),
+                service.getAllAsync(request).get())) {
+            assertFalse(resp.getErrorMessage(), resp.getHasError());
+            assertEquals("2 of 5 identities found", resp.getMessage());
+
+            final List<ApiResponse<IdentityResponse>> rows = resp.getModel();
+            assertEquals(5, rows.size());
+            assertEquals(email, rows.get(0).getModel().getEmail());
+            assertEquals("Invalid identity uid", rows.get(1).getErrorMessage());
+            assertEquals("Invalid identity uid", rows.get(2).getErrorMessage());
+            assertTrue(rows.get(3).getHasError());
+            assertNull(rows.get(3).getModel());
+            assertEquals("Identity not found", rows.get(3).getErrorMessage());
+            assertEquals(uid, rows.get(4).getModel().getUid());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import fr.epita.sp18.entity.Identity;
+import fr.epita.sp18.model.IdentityResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test IdentitySuggestIndex:
+ * <p>
+ * - Compare the suggestions with a plain "startsWith" over the terms of random
+ * identities, after random updates and deletes
+ * <p>
+ * - Measure the time of a suggestion
+ *
+ * @author Philip
+ *
+ */
+public class IdentitySuggestIndexTests
+{
+    private static final String[] FIRST_NAMES = { "Hugo", "Kylian", "Paul", "Antoine", "Raphaël", "Olivier",
+            "Blaise", "Benjamin", "Lucas", "Samuel", "Adil", "Thomas" };
+    private static final String[] LAST_NAMES  = { "Lloris", "Mbappé", "Pogba", "Griezmann", "Varane", "Giroud",
+            "Matuidi", "Pavard", "Hernandez", "Umtiti", "Rami", "Lemar" };
+
+    @Test
+    public void TestSameResultAsStartsWith() throws Exception
+    {
+        final Random random = new Random(42);
+        final Map<Long, Identity> identities = new TreeMap<>();
+
+        for (long uid = 1; uid <= 3000; uid++) {
+            identities.put(uid, newIdentity(uid, random));
+        }
+
+        final IdentitySuggestIndex index = new IdentitySuggestIndex(new SimpleMeterRegistry());
+        index.build(consumer -> {
+            identities.values().forEach(consumer);
+            return identities.size();
+        });
+
+        // Rename and delete some identities
+        for (int i = 0; i < 1000; i++) {
+            long uid = 1 + random.nextInt(3000);
+
+            if (random.nextBoolean()) {
+                Identity identity = newIdentity(uid, random);
+                identities.put(uid, identity);
+                index.put(identity);
+            }
+            else {
+                identities.remove(uid);
+                index.remove(uid);
+            }
+        }
+
+        final String[] prefixes = { "", "h", "hu", "hugo", "hugo l", "llo", "pa", "paul pogba", "raphaël",
+                "thomas lemar", "x", "lucas1", "zz", "adil rami2" };
+
+        for (String prefix : prefixes) {
+            for (int limit : new int[] { 1, 10, 5000 }) {
+                assertEquals("Prefix " + prefix + " limit " + limit, expected(identities, prefix, limit),
+                        index.suggest(prefix, limit).stream().map(IdentityResponse::getUid)
+                                .collect(Collectors.toList()));
+            }
+        }
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            index.suggest(prefixes[i % prefixes.length], 10);
+        }
+        System.out.println(String.format("Suggestion: %1$d ns", (System.nanoTime() - start) / 10_000));
+    }
+
+    @Test
+    public void TestNotReady()
+    {
+        final IdentitySuggestIndex index = new IdentitySuggestIndex(new SimpleMeterRegistry());
+
+        assertNull("The database must be searched until the trie is built", index.suggest("hu", 10));
+    }
+
+    private Identity newIdentity(long uid, Random random)
+    {
+        String name = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        String email = name.replace(" ", ".").toLowerCase() + uid + "@email.com";
+
+        return new Identity(uid, name, email, email.toUpperCase(), "hash");
+    }
+
+    // Identities ordered by their smallest matching term, then uid
+    private List<Long> expected(Map<Long, Identity> identities, String prefix, int limit)
+    {
+        final List<SimpleEntry<String, Long>> matches = new ArrayList<>();
+
+        for (Identity identity : identities.values()) {
+            String name = identity.getName().toLowerCase();
+            Optional<String> term = Stream
+                    .concat(Stream.of(name, identity.getEmail().toLowerCase()), Stream.of(name.split(" ")))
+                    .filter(x -> x.startsWith(prefix))
+                    .min(Comparator.naturalOrder());
+
+            term.ifPresent(x -> matches.add(new SimpleEntry<>(x, identity.getUid())));
+        }
+
+        return matches.stream()
+                .sorted(Comparator.comparing(SimpleEntry<String, Long>::getKey)
+                        .thenComparing(SimpleEntry::getValue))
+                .limit(limit)
+                .map(SimpleEntry::getValue)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,73 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test PasswordService:
+ * <p>
+ * - Verify the hashes of every algorithm, whatever the configured one
+ * <p>
+ * - Detect the hashes that need a rehash
+ * <p>
+ * - Calibrate the cost for a target time
+ *
+ * @author Philip
+ *
+ */
+public class PasswordServiceTests
+{
+    @Test
+    public void TestVerifyAllAlgorithms()
+    {
+        final PasswordService bcrypt = new PasswordService(new SimpleMeterRegistry(), "bcrypt", 4, 0);
+        final PasswordService pbkdf2 = new PasswordService(new SimpleMeterRegistry(), "pbkdf2", 10_000, 0);
+
+        final String bcryptHash = bcrypt.encode("secret");
+        final String pbkdf2Hash = pbkdf2.encode("secret");
+        final String legacyHash = new BCryptPasswordEncoder().encode("secret");
+
+        for (PasswordService service : new PasswordService[] { bcrypt, pbkdf2 }) {
+            assertTrue(service.matches("secret", bcryptHash));
+            assertTrue(service.matches("secret", pbkdf2Hash));
+            assertTrue(service.matches("secret", legacyHash));
+            assertFalse(service.matches("Secret", bcryptHash));
+            assertFalse(service.matches("Secret", pbkdf2Hash));
+            assertFalse(service.matches("secret", "not a hash"));
+        }
+    }
+
+    @Test
+    public void TestNeedsRehash()
+    {
+        final PasswordService service = new PasswordService(new SimpleMeterRegistry(), "bcrypt", 5, 0);
+
+        assertFalse(service.needsRehash(service.encode("secret")));
+        assertFalse("A higher cost is kept", service.needsRehash(new BCryptPasswordEncoder(6).encode("secret")));
+        assertTrue("A lower cost is replaced", service.needsRehash(new BCryptPasswordEncoder(4).encode("secret")));
+        assertTrue("Another algorithm is replaced",
+                service.needsRehash(new Pbkdf2PasswordHasher(10_000).hash("secret")));
+    }
+
+    @Test
+    public void TestCalibration()
+    {
+        final PasswordService service = new PasswordService(new SimpleMeterRegistry(), "bcrypt", 4, 20);
+        final PasswordHasher hasher = service.getHasher();
+
+        assertTrue("The cost is never lower than the configured one", hasher.getCost() >= 4);
+
+        final long start = System.nanoTime();
+        service.encode("secret");
+        System.out.println(String.format("Calibrated bcrypt cost %1$d: %2$.1f ms per hash", hasher.getCost(),
+                (System.nanoTime() - start) / 1e6));
+
+        assertEquals(hasher.getCost(), hasher.getCost(service.encode("secret")));
+    }
+}
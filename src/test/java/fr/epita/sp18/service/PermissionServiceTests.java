@@ -0,0 +1,248 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import fr.epita.sp18.authentication.Constants;
+import fr.epita.sp18.authentication.TokenCache;
+import fr.epita.sp18.dao.IdentityDAO;
+import fr.epita.sp18.dao.PermissionDAO;
+import fr.epita.sp18.dao.RoleDAO;
+import fr.epita.sp18.entity.Permission;
+import fr.epita.sp18.entity.Role;
+import fr.epita.sp18.model.IdentityRequest;
+
+/**
+ * Test PermissionService:
+ * <p>
+ * - Compile the permissions of an identity, then add a permission, and check
+ * that the bits compiled before still decode to the same permissions
+ * <p>
+ * - Check that a token of an unknown dictionary version grants nothing
+ * <p>
+ * - Add a permission on another node, and check that its tokens are decoded
+ * <p>
+ * - Check that a role change revokes the tokens of the identity
+ * <p>
+ * - Log in, create a permission and a role and grant it through
+ * /api/permissions, log in again, and check that the token decodes to the
+ * granted authorities. A token without iam.admin can not call /api/permissions
+ *
+ * @author Philip
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class PermissionServiceTests
+{
+    private static final String PASSWORD = "Secret-Password1";
+
+    @Autowired
+    JdbcTemplate jdbc;
+
+    @Autowired
+    PermissionService service;
+
+    @Autowired
+    IdentityService identityService;
+
+    @Autowired
+    TokenCache tokenCache;
+
+    @Autowired
+    TokenRevocationService revocations;
+
+    @Autowired
+    PermissionDAO permissionDAO;
+
+    @Autowired
+    RoleDAO roleDAO;
+
+    @Autowired
+    IdentityDAO identityDAO;
+
+    @Autowired
+    TestRestTemplate rest;
+
+    private final List<Permission> permissions = new ArrayList<>();
+    private final List<Role>       roles       = new ArrayList<>();
+    private final List<Long>       grantees    = new ArrayList<>();
+    private final List<Long>       identities  = new ArrayList<>();
+
+    @After
+    public void tearDown()
+    {
+        for (Long uid : grantees) {
+            jdbc.update("DELETE FROM IdentityRoles WHERE identityUid = ?;", uid);
+        }
+        for (Role role : roles) {
+            jdbc.update("DELETE FROM RolePermissions WHERE roleUid = ?;", role.getUid());
+            jdbc.update("DELETE FROM Roles WHERE uid = ?;", role.getUid());
+        }
+        for (Permission permission : permissions) {
+            jdbc.update("DELETE FROM Permissions WHERE uid = ?;", permission.getUid());
+        }
+        for (Long uid : identities) {
+            identityService.delete(uid);
+        }
+
+        service.load();
+    }
+
+    @Test
+    public void TestAppendKeepsVersion() throws Exception
+    {
+        final String suffix = Long.toString(System.nanoTime());
+        final Long identityUid = System.nanoTime();
+
+        permissions.add(service.definePermission("test.read." + suffix));
+        roles.add(service.defineRole("reader." + suffix, "test.read." + suffix));
+        grantees.add(identityUid);
+        service.grant(identityUid, "reader." + suffix);
+
+        final PermissionSet issued = service.compile(identityUid);
+        assertTrue(issued.has("test.read." + suffix));
+
+        // A permission is added after the token was issued
+        permissions.add(service.definePermission("test.write." + suffix));
+
+        final PermissionSet decoded = service.decode(issued.encode(), issued.getVersion());
+        assertTrue(decoded.has("test.read." + suffix));
+        assertFalse(decoded.has("test.write." + suffix));
+        assertEquals(issued.getAuthorities(), decoded.getAuthorities());
+
+        assertTrue(service.decode(issued.encode(), issued.getVersion() + 1).getAuthorities().isEmpty());
+    }
+
+    @Test
+    public void TestOtherNodeVersion() throws Exception
+    {
+        final String suffix = Long.toString(System.nanoTime());
+        final Long identityUid = System.nanoTime();
+        final PermissionService nodeA = new PermissionService(permissionDAO, roleDAO, identityDAO, revocations, 0, 0);
+        final PermissionService nodeB = new PermissionService(permissionDAO, roleDAO, identityDAO, revocations, 0, 0);
+
+        // Node A loads its dictionary before node B adds a permission
+        nodeA.compile(identityUid);
+
+        permissions.add(nodeB.definePermission("test.remote." + suffix));
+        roles.add(nodeB.defineRole("remote." + suffix, "test.remote." + suffix));
+        grantees.add(identityUid);
+        nodeB.grant(identityUid, "remote." + suffix);
+
+        final PermissionSet issued = nodeB.compile(identityUid);
+        final PermissionSet decoded = nodeA.decode(issued.encode(), issued.getVersion());
+
+        assertTrue(decoded.has("test.remote." + suffix));
+        assertEquals(issued.getAuthorities(), decoded.getAuthorities());
+    }
+
+    @Test
+    public void TestRoleChangeRevokesTokens() throws Exception
+    {
+        final String suffix = Long.toString(System.nanoTime());
+        final String email = "revoked" + suffix + "@email.com";
+        final Long uid = identityService.create(new IdentityRequest(0L, "Revoked", email, PASSWORD))
+                .getModel().getUid();
+        identities.add(uid);
+        grantees.add(uid);
+
+        final TokenCache.Token before = tokenCache.verify(login(email).replace(Constants.TOKEN_PREFIX, ""));
+        assertFalse(revocations.isRevoked(before.getId(), uid.toString(), before.getIssuedAt()));
+
+        assertFalse(service.grantRole(uid, PermissionService.ADMIN_ROLE).getHasError());
+        assertTrue(revocations.isRevoked(before.getId(), uid.toString(), before.getIssuedAt()));
+
+        // The tokens issued after a grant are revoked by the next change only
+        Thread.sleep(1100);
+        final TokenCache.Token granted = tokenCache.verify(login(email).replace(Constants.TOKEN_PREFIX, ""));
+        assertFalse(revocations.isRevoked(granted.getId(), uid.toString(), granted.getIssuedAt()));
+
+        assertFalse(service.revokeRole(uid, PermissionService.ADMIN_ROLE).getHasError());
+        assertTrue(revocations.isRevoked(granted.getId(), uid.toString(), granted.getIssuedAt()));
+    }
+
+    @Test
+    public void TestIssueCompileDecode() throws Exception
+    {
+        final String suffix = Long.toString(System.nanoTime());
+        final String email = "permissions" + suffix + "@email.com";
+        final Long uid = identityService.create(new IdentityRequest(0L, "Permissions", email, PASSWORD))
+                .getModel().getUid();
+        identities.add(uid);
+        grantees.add(uid);
+
+        // Not an administrator yet
+        assertEquals(HttpStatus.FORBIDDEN,
+                call(HttpMethod.GET, "/api/permissions", login(email), null).getStatusCode());
+
+        service.grant(uid, PermissionService.ADMIN_ROLE);
+        final String admin = login(email);
+
+        final ResponseEntity<String> permission = call(HttpMethod.POST, "/api/permissions", admin,
+                "{\"name\": \"test.write." + suffix + "\"}");
+        assertEquals(HttpStatus.OK, permission.getStatusCode());
+        assertFalse(permission.getBody(), permission.getBody().contains("\"hasError\":true"));
+        permissions.addAll(jdbc.query("SELECT * FROM Permissions WHERE name = ?;",
+                (rs, row) -> new Permission(rs.getLong("uid"), rs.getString("name"), rs.getInt("bit")),
+                "test.write." + suffix));
+
+        final ResponseEntity<String> role = call(HttpMethod.POST, "/api/permissions/roles", admin,
+                "{\"name\": \"writer." + suffix + "\", \"permissions\": [\"test.write." + suffix + "\"]}");
+        assertFalse(role.getBody(), role.getBody().contains("\"hasError\":true"));
+        roles.addAll(jdbc.query("SELECT * FROM Roles WHERE name = ?;",
+                (rs, row) -> new Role(rs.getLong("uid"), rs.getString("name")), "writer." + suffix));
+
+        final ResponseEntity<String> grant = call(HttpMethod.PUT,
+                "/api/permissions/roles/writer." + suffix + "/identities/" + uid, admin, null);
+        assertFalse(grant.getBody(), grant.getBody().contains("\"hasError\":true"));
+
+        // The roles apply to the next token
+        final TokenCache.Token token = tokenCache.verify(login(email).replace(Constants.TOKEN_PREFIX, ""));
+        final PermissionSet granted = service.decode(token.getPermissions(), token.getPermissionsVersion());
+
+        assertEquals(uid, token.getUid());
+        assertEquals(Arrays.asList(PermissionService.ADMIN, "test.write." + suffix).stream().sorted()
+                .collect(Collectors.toList()),
+                granted.getAuthorities().stream().map(Object::toString).sorted().collect(Collectors.toList()));
+    }
+
+    private String login(String email)
+    {
+        final ResponseEntity<String> response = rest.postForEntity("/login",
+                "{\"email\": \"" + email + "\", \"password\": \"" + PASSWORD + "\"}", String.class);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        return response.getHeaders().getFirst(Constants.HEADER_STRING);
+    }
+
+    private ResponseEntity<String> call(HttpMethod method, String path, String token, String body)
+    {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set(Constants.HEADER_STRING, token);
+        headers.setContentType(MediaType.APPLICATION_JSON);
+
+        return rest.exchange(path, method, new HttpEntity<>(body, headers), String.class);
+    }
+}
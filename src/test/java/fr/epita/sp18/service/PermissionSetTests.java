@@ -0,0 +1,57 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+/**
+ * Test PermissionSet:
+ * <p>
+ * - Encode the bitset as a token claim and decode it back
+ * <p>
+ * - Check the permissions by name and by bit
+ *
+ * @author Philip
+ *
+ */
+public class PermissionSetTests
+{
+    @Test
+    public void TestEncodeDecode()
+    {
+        final String[] names = { "identities.read", "identities.write", null, "roles.write" };
+        final Map<String, Integer> dictionary = new HashMap<>();
+        final GrantedAuthority[] authorities = new GrantedAuthority[names.length];
+
+        for (int bit = 0; bit < names.length; bit++) {
+            if (names[bit] == null) continue;
+            dictionary.put(names[bit], bit);
+            authorities[bit] = new SimpleGrantedAuthority(names[bit]);
+        }
+
+        final BitSet bits = new BitSet();
+        bits.set(0);
+        bits.set(3);
+
+        final String claim = new PermissionSet(bits, 7, dictionary, authorities).encode();
+        final PermissionSet decoded = new PermissionSet(PermissionSet.decode(claim), 7, dictionary, authorities);
+
+        System.out.println("Permission claim: " + claim);
+
+        assertTrue(decoded.has("identities.read"));
+        assertFalse(decoded.has("identities.write"));
+        assertTrue(decoded.has("roles.write"));
+        assertFalse(decoded.has("unknown"));
+        assertTrue(decoded.has(3));
+        assertEquals(2, decoded.getAuthorities().size());
+        assertEquals("roles.write", decoded.getAuthorities().get(1).getAuthority());
+    }
+}
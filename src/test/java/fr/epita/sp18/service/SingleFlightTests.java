@@ -0,0 +1,112 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import fr.epita.sp18.exception.ErrorCode;
+import fr.epita.sp18.exception.IamDataAccessException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test SingleFlight:
+ * <p>
+ * - Run one call for all the concurrent callers of a key, and give them its
+ * result
+ * <p>
+ * - Give its exception to all the callers when the call fails
+ * <p>
+ * - Run again once the flight landed
+ *
+ * @author Philip
+ *
+ */
+public class SingleFlightTests
+{
+    private static final int CALLERS = 16;
+
+    @Test
+    public void TestCoalesce() throws Exception
+    {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        final SingleFlight<Long, String> flights = new SingleFlight<>(registry, "test");
+        final AtomicInteger calls = new AtomicInteger();
+        final List<Future<String>> results = run(flights, () -> {
+            calls.incrementAndGet();
+            return "identity";
+        });
+
+        for (Future<String> result : results) {
+            assertEquals("identity", result.get());
+        }
+        assertEquals(1, calls.get());
+        assertEquals(CALLERS - 1, registry.get("iam.singleflight.coalesced").counter().count(), 0);
+
+        flights.execute(1L, () -> "again");
+        assertEquals(2, (int) registry.get("iam.singleflight.calls").counter().count());
+    }
+
+    @Test
+    public void TestFailure() throws Exception
+    {
+        final SingleFlight<Long, String> flights = new SingleFlight<>(new SimpleMeterRegistry(), "test");
+        final List<Future<String>> results = run(flights, () -> {
+            throw new IamDataAccessException(ErrorCode.DATA_ACCESS_ERROR);
+        });
+
+        int failures = 0;
+        for (Future<String> result : results) {
+            try {
+                result.get();
+            }
+            catch (final ExecutionException ex) {
+                if (ex.getCause() instanceof IamDataAccessException) failures++;
+            }
+        }
+        assertEquals(CALLERS, failures);
+    }
+
+    // Every caller calls key 1 while the first call is held in flight
+    private static List<Future<String>> run(SingleFlight<Long, String> flights, SingleFlight.Call<String> call)
+            throws InterruptedException
+    {
+        final ExecutorService pool = Executors.newFixedThreadPool(CALLERS);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Future<String>> results = new ArrayList<>();
+
+        results.add(pool.submit(() -> flights.execute(1L, () -> {
+            started.countDown();
+            try {
+                release.await();
+            }
+            catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return call.call();
+        })));
+        started.await();
+
+        for (int i = 1; i < CALLERS; i++) {
+            results.add(pool.submit(() -> flights.execute(1L, call)));
+        }
+
+        // Let the callers reach the flight
+        Thread.sleep(200);
+        release.countDown();
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+
+        return results;
+    }
+}
@@ -0,0 +1,102 @@
+package fr.epita.sp18.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import fr.epita.sp18.authentication.Constants;
+import fr.epita.sp18.dao.RevocationDAO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test TokenRevocationService:
+ * <p>
+ * - Store a revocation as another node would, and check that the filter misses
+ * it until the next refresh, and that a refresh adds it without a compaction
+ * <p>
+ * - Check the tokens of a revoked subject in memory: the tokens issued before
+ * the revocation are revoked, the ones issued after are not, without a query.
+ * A revoked token id is still confirmed by the database
+ *
+ * @author Philip
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class TokenRevocationServiceTests
+{
+    @Autowired
+    JdbcTemplate jdbc;
+
+    @Autowired
+    RevocationDAO dao;
+
+    private final String subject = "other-node-" + System.nanoTime();
+
+    @After
+    public void tearDown()
+    {
+        jdbc.update("DELETE FROM Revocations WHERE subject = ?;", subject);
+    }
+
+    @Test
+    public void TestSubjectInMemory() throws Exception
+    {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        final TokenRevocationService service = new TokenRevocationService(dao, registry, 1000, 0.001, 600, 5,
+                5000);
+        service.compact();
+
+        final long before = System.currentTimeMillis() - 1000;
+        service.revokeSubject(subject);
+        final long after = System.currentTimeMillis() + 1000;
+
+        assertTrue(service.isRevoked(null, subject, before));
+        assertFalse(service.isRevoked(null, subject, after));
+        assertFalse(service.isRevoked("new-token-" + subject, subject, after));
+        assertEquals(0, registry.counter("iam.revocation.lookups").count(), 0);
+
+        // Still known after a compaction
+        service.compact();
+        assertTrue(service.isRevoked(null, subject, before));
+        assertFalse(service.isRevoked(null, subject, after));
+
+        final String tokenId = "token-" + subject;
+        jdbc.update("INSERT INTO Revocations (uid, tokenId, subject, issuedBefore, expiresAt, revokedAt)"
+                + " VALUES (?, ?, NULL, ?, ?, ?);", System.nanoTime(), tokenId, Long.MAX_VALUE,
+                after + Constants.EXPIRATION_TIME, after);
+        service.compact();
+        assertTrue(service.isRevoked(tokenId, subject, after));
+        assertEquals(1, registry.counter("iam.revocation.lookups").count(), 0);
+
+        jdbc.update("DELETE FROM Revocations WHERE tokenId = ?;", tokenId);
+    }
+
+    @Test
+    public void TestRefreshOtherNode() throws Exception
+    {
+        // Not started: no scheduled compaction or refresh
+        final TokenRevocationService service = new TokenRevocationService(dao, new SimpleMeterRegistry(), 1000,
+                0.001, 600, 5, 5000);
+        service.compact();
+
+        final long now = System.currentTimeMillis();
+        jdbc.update("INSERT INTO Revocations (uid, tokenId, subject, issuedBefore, expiresAt, revokedAt)"
+                + " VALUES (?, NULL, ?, ?, ?, ?);", System.nanoTime(), subject, now,
+                now + Constants.EXPIRATION_TIME, now);
+
+        // The filter does not know the revocation of the other node yet
+        assertFalse(service.isRevoked(null, subject, now - 1000));
+
+        service.refresh();
+        assertTrue(service.isRevoked(null, subject, now - 1000));
+    }
+}